@@ -13,6 +13,7 @@ repositories {
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 application {
@@ -37,6 +38,57 @@ tasks.register<JavaExec>("client") {
     standardInput = System.`in`
 }
 
+// 👇 Compare platform and virtual threads for the thread-per-client engine
+tasks.register<JavaExec>("compareThreadModes") {
+    group = "application"
+    description = "Compares memory per connection and broadcast latency of platform and virtual threads"
+    mainClass.set("testbed.ThreadModeComparison")
+    classpath = sourceSets.main.get().runtimeClasspath
+}
+
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+// 👇 JMH benchmarks in src/jmh/java, kept out of 'build'. Run with 'jmh', optionally
+// passing a benchmark name pattern with --args. Results go to build/reports/jmh/results.json
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+val jmhVersion = "1.37"
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:$jmhVersion")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+}
+
+tasks.register<JavaExec>("jmh") {
+    group = "benchmark"
+    description = "Runs the JMH benchmarks and writes the results as JSON"
+    mainClass.set("org.openjdk.jmh.Main")
+    classpath = sourceSets["jmh"].runtimeClasspath
+
+    val results = layout.buildDirectory.file("reports/jmh/results.json").get().asFile
+    argumentProviders.add(CommandLineArgumentProvider { listOf("-rf", "json", "-rff", results.absolutePath) })
+    doFirst { results.parentFile.mkdirs() }
+}
+
+// 👇 Simulated clients against a running server, reporting delivery latency
+tasks.register<JavaExec>("loadTest") {
+    group = "application"
+    description = "Opens many headless clients against a running server and reports delivery latency"
+    mainClass.set("testbed.LoadGenerator")
+    classpath = sourceSets.main.get().runtimeClasspath
+}
+
+// 👇 Many clients connecting at once to a running server, reporting time to be welcomed
+tasks.register<JavaExec>("connectStorm") {
+    group = "application"
+    description = "Connects many clients at once to a running server and reports how long each takes to be welcomed"
+    mainClass.set("testbed.ConnectStorm")
+    classpath = sourceSets.main.get().runtimeClasspath
+}
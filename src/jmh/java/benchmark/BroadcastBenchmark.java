@@ -0,0 +1,144 @@
+package benchmark;
+
+import message.Message;
+import message.Protocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import server.Server;
+import server.ServerOptions;
+
+/**
+ * Time for one message to reach every other client, with the server running
+ * in-process and every client connected over loopback. One operation sends a
+ * message from one client and waits until each recipient has read all of it
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    private static final String BODY = "Hello everyone, this is a fairly ordinary chat message";
+
+    /**
+     * Longest wait for a message to reach every recipient
+     */
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    @Param({"thread", "nio"})
+    public String engine;
+
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private Selector selector;
+    private SocketChannel sender;
+    private ByteBuffer message;
+    private ByteBuffer readBuffer;
+
+    /**
+     * Bytes each broadcast delivers to every recipient together
+     */
+    private long bytesPerBroadcast;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        // No log, flush delay or rate limit, so the measurement is fan-out alone
+        if (!Server.start(ServerOptions.parse(new String[] {String.valueOf(port), "--engine=" + engine,
+                "--log=false", "--flush-delay-us=0", "--rate-limit=0"}))) {
+            throw new IllegalStateException("Server did not start on port " + port);
+        }
+
+        selector = Selector.open();
+        sender = connect(port, "sender");
+        for (int i = 0; i < recipients; i++) {
+            SocketChannel channel = connect(port, "recipient" + i);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        while (Server.sessionCount() < recipients + 1) {
+            Thread.sleep(10);
+        }
+
+        message = utfFrame(BODY);
+        readBuffer = ByteBuffer.allocateDirect(1 << 16);
+
+        // Legacy clients receive the formatted text, whose length does not depend on the time sent
+        bytesPerBroadcast = (long) recipients * new Message(1, "sender", BODY).getFrame(Protocol.LEGACY_VERSION).remaining();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        channels.clear();
+        selector.close();
+        Server.stop();
+    }
+
+    @Benchmark
+    public long broadcast() throws IOException {
+        message.rewind();
+        while (message.hasRemaining()) {
+            sender.write(message);
+        }
+
+        long received = 0;
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (received < bytesPerBroadcast) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Broadcast reached " + received + " of " + bytesPerBroadcast + " bytes");
+            }
+            if (selector.select(100) == 0) continue;
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                readBuffer.clear();
+                received += Math.max(0, ((SocketChannel) key.channel()).read(readBuffer));
+            }
+        }
+        return received;
+    }
+
+    private SocketChannel connect(int port, String name) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        channel.write(utfFrame(name));
+        channels.add(channel);
+        return channel;
+    }
+
+    /**
+     * @param text text to send
+     * @return text as a writeUTF frame, as sent by legacy clients
+     */
+    private static ByteBuffer utfFrame(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(text);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,47 @@
+package benchmark;
+
+import message.Message;
+import message.Protocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a legacy message string into a Message, and formatting a Message
+ * back into the string shown to users, both for a new message and for one
+ * already formatted
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+
+    private String line;
+    private Message message;
+    private long timestamp;
+
+    @Setup
+    public void setup() {
+        message = new Message(1, "Alice", "Hello world, this is a fairly ordinary chat message");
+        line = message.getMessage();
+        timestamp = message.getTimestamp();
+    }
+
+    @Benchmark
+    public Message parse() {
+        return new Message(line);
+    }
+
+    @Benchmark
+    public String format() {
+        return new Message(0, timestamp, 1, "Alice", Protocol.DEFAULT_ROOM, "Hello world, this is a fairly ordinary chat message").getMessage();
+    }
+
+    @Benchmark
+    public String formatAgain() {
+        return message.getMessage();
+    }
+}
@@ -0,0 +1,67 @@
+package benchmark;
+
+import client.MessageHistory;
+import message.Message;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding to the client's message history, and taking and reading a snapshot
+ * of it, for different history sizes. The history starts full so adds always
+ * replace the oldest message
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageHistoryBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int size;
+
+    private Message message;
+
+    @Setup
+    public void setup() {
+        MessageHistory.setMessageHistorySize(size);
+
+        message = new Message(1, "Alice", "Hello world");
+        for (int i = 0; i < size; i++) {
+            MessageHistory.addIncomingMessage(message);
+        }
+    }
+
+    @Benchmark
+    public void addIncomingMessage() {
+        MessageHistory.addIncomingMessage(message);
+    }
+
+    /**
+     * Several threads adding at once, as when messages arrive while the
+     * client's own messages are being added
+     */
+    @Benchmark
+    @Threads(4)
+    public void addIncomingMessageContended() {
+        MessageHistory.addIncomingMessage(message);
+    }
+
+    @Benchmark
+    public MessageHistory.Snapshot getMessages() {
+        return MessageHistory.getMessages();
+    }
+
+    /**
+     * Take a snapshot and read every message in it, as a full repaint does
+     */
+    @Benchmark
+    public void readAll(Blackhole blackhole) {
+        for (Message message : MessageHistory.getMessages()) {
+            blackhole.consume(message);
+        }
+    }
+}
@@ -2,30 +2,148 @@ package client;
 
 import client.UI.Launcher;
 import client.UI.MainWindow;
+import message.Message;
+import message.PresenceState;
 
-import javax.swing.*;
 import java.io.*;
 import java.net.*;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * Desktop client: a Swing window over one Connection
+ */
 public class Client {
 
-    private static Socket socket;
-    private static DataOutputStream dos;
-    private static DataInputStream dis;
-
     private final static String name = getRandomString();
-    private static boolean clientConnected = false;
+
+    private static Connection connection;
+
+    /**
+     * Most messages shown for one search
+     */
+    private static final int SEARCH_RESULTS = 50;
 
     public static MainWindow mainWindow;
 
     public static void disconnectClient() {
-        closeConnection();
-        clientConnected = false;
+        connection.close();
+    }
+
+    /**
+     * @param room room to send to, must have been joined
+     * @param message message body
+     */
+    public static void sendMessage(String room, String message) {
+        if (!connection.sendMessage(room, message)) System.err.println("Failed to send message");
+    }
+
+    /**
+     * @param recipients names of the clients to send to
+     * @param message message body
+     */
+    public static void sendDirect(Collection<String> recipients, String message) {
+        if (!connection.sendDirect(recipients, message)) System.err.println("Failed to send direct message");
+    }
+
+    /**
+     * Start receiving messages sent to a room
+     * @param room room name
+     */
+    public static void joinRoom(String room) {
+        if (!connection.joinRoom(room)) System.err.println("Failed to join room");
+    }
+
+    /**
+     * Stop receiving messages sent to a room
+     * @param room room name
+     */
+    public static void leaveRoom(String room) {
+        if (!connection.leaveRoom(room)) System.err.println("Failed to leave room");
+    }
+
+    /**
+     * @return true if the server supports rooms other than the default room
+     */
+    public static boolean supportsRooms() {
+        return connection.supportsRooms();
+    }
+
+    /**
+     * Post a file to a room. It is added to the message history once the server has stored it
+     * @param room room to post to, must have been joined
+     * @param file file to send
+     */
+    public static void sendAttachment(String room, Path file) {
+        connection.sendAttachment(room, file).whenComplete((attachment, error) -> {
+            if (error != null) {
+                System.err.println("Failed to send " + file.getFileName() + ": " + error.getMessage());
+                return;
+            }
+
+            MessageHistory.addClientMessage(name, room, attachment.toBody());
+            MainWindow.messagesAdded();
+        });
+    }
+
+    /**
+     * Fetch an attachment and save it
+     * @param hash attachment hash, as announced
+     * @param target file to save to
+     */
+    public static void downloadAttachment(String hash, Path target) {
+        connection.downloadAttachment(hash, target).whenComplete((saved, error) -> {
+            if (error != null) System.err.println("Failed to fetch attachment: " + error.getMessage());
+            else System.out.println("Saved attachment to " + saved);
+        });
+    }
+
+    /**
+     * @return true if the server delivers direct messages
+     */
+    public static boolean supportsDirect() {
+        return connection.supportsDirect();
+    }
+
+    /**
+     * Tell other clients what this one is doing
+     * @param state new state, other than OFFLINE
+     */
+    public static void setPresence(PresenceState state) {
+        if (!connection.setPresence(state)) System.err.println("Failed to send presence");
+    }
+
+    /**
+     * @return live view of who is online, by id. Empty if the server does not support presence
+     */
+    public static Map<Integer, Connection.Member> getRoster() {
+        return connection.getRoster();
+    }
+
+    /**
+     * Search the server's message history
+     * @param query words, from:name, in:room, after:date and before:date
+     * @return completes with the most recent messages matching
+     */
+    public static CompletableFuture<Connection.SearchResults> search(String query) {
+        return connection.search(query, SEARCH_RESULTS);
+    }
+
+    /**
+     * @return true if the server searches its message history
+     */
+    public static boolean supportsSearch() {
+        return connection.supportsSearch();
     }
 
-    public static void sendMessage(String message) {
-        if (!writeToDataOutput(message)) System.err.println("Failed to send message");
+    /**
+     * @return true if the server accepts attachments
+     */
+    public static boolean supportsAttachments() {
+        return connection.supportsAttachments();
     }
 
     private static String getRandomString() {
@@ -42,45 +160,13 @@ public class Client {
     public static void main(String[] args) {
         Launcher.UILauncher();
 
-        socket = openSocket(args);
-
-        if (socket == null) {
-            System.err.println("Could not open socket");
-            System.exit(1);
-        }
-
-        // Create data input and data output streams
-        try {
-            dos = new DataOutputStream(socket.getOutputStream());
-            dis = new DataInputStream(socket.getInputStream());
-        }
-        catch (IOException e) {
-            System.err.println("I/O Exception: " + e.getMessage());
-            System.exit(1);
-        }
-
-        clientConnected = true;
-
-        // Send name to server
-        writeToDataOutput(name);
-
-        Thread incomingDataThread = new Thread(() -> {
-            while (clientConnected) {
-                try {
-                    String incomingMessage = dis.readUTF();
-                    MessageHistory.addIncomingMessage(incomingMessage);
-                    SwingUtilities.invokeLater(() -> mainWindow.updateMessageDisplay());
-                }
-                catch (IOException e) {
-                    System.err.println("I/O Exception when reading incoming message");
-                }
-            }
-        });
+        connection = openConnection(args);
 
+        Thread incomingDataThread = new Thread(connection);
         incomingDataThread.start();
     }
 
-    private static Socket openSocket(String[] args) {
+    private static Connection openConnection(String[] args) {
         String ip = "";
         int port = 0;
 
@@ -109,16 +195,29 @@ public class Client {
             System.exit(1);
         }
 
-        Socket socket = null;
+        Connection newConnection = new Connection(ip, port, name, new Connection.Listener() {
+            @Override
+            public void messageReceived(Message message) {
+                MessageHistory.addIncomingMessage(message);
+                MainWindow.messagesAdded();
+            }
+
+            @Override
+            public void rosterChanged() {
+                MainWindow.rosterChanged();
+            }
+        });
+        newConnection.useMulticast(args.length > 2 && args[2].equals("--multicast"));
+
         try {
-            socket = new Socket(ip, port);
+            newConnection.connect();
         }
         catch (UnknownHostException e) {
             System.out.println("Unknown host: " + e.getMessage());
             System.exit(1);
         }
         catch (IOException e) {
-            System.out.println("I/O error: " + e.getMessage());
+            System.out.println("Could not connect: " + e.getMessage());
             System.exit(1);
         }
         catch (SecurityException e) {
@@ -126,7 +225,7 @@ public class Client {
             System.exit(1);
         }
 
-        return socket;
+        return newConnection;
     }
 
     private static boolean validateIp(String ip) {
@@ -147,32 +246,6 @@ public class Client {
         return true;
     }
 
-    private static boolean writeToDataOutput(String outputStr) {
-        if (outputStr == null) return true;
-
-        try {
-            dos.writeUTF(outputStr);
-            dos.flush();
-        }
-        catch (IOException e) {
-            System.err.println("I/O error: " + e.getMessage());
-            return false;
-        }
-
-        return true;
-    }
-
-    private static void closeConnection() {
-        try {
-            socket.close();
-            dis.close();
-            dos.close();
-        }
-        catch (IOException e) {
-            System.err.println("I/O error: " + e.getMessage());
-        }
-    }
-
     public static String getName() {
         return name;
     }
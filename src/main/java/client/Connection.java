@@ -0,0 +1,1103 @@
+package client;
+
+import message.Attachment;
+import message.Frame;
+import message.Message;
+import message.PresenceState;
+import message.Protocol;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One client connection to the server, with no user interface. Runs the
+ * handshake, sends chat, join and leave frames, and reads incoming messages
+ * on whichever thread runs it, passing each one to a Listener. If the
+ * connection drops it reconnects and picks up where it left off.
+ *
+ * If asked to, and the server multicasts, room messages are received from
+ * its multicast group instead of over the connection; see MulticastReceiver.
+ *
+ * Files are sent and fetched as attachments, in chunks on the same
+ * connection. A chunk is only written once no chat frame is waiting to be,
+ * so sending a large file holds chat up by one chunk at most.
+ *
+ * A server of version 7 onwards sends the roster of who is online when the
+ * connection opens, then batches of changes to it; the listener is told
+ * whenever it changes.
+ *
+ * A server of version 8 onwards searches its message history on request.
+ * Searches are answered in the order they were sent, so replies are matched
+ * to them by position.
+ *
+ * A server of version 6 onwards that has been silent for a while is sent
+ * PING, and if it stays silent the connection is dropped and reconnected,
+ * so a server that vanished without closing the connection is noticed.
+ *
+ * The desktop client uses one; the load generator opens thousands
+ */
+public class Connection implements Runnable {
+
+    /**
+     * Receives every chat message sent to this client
+     */
+    public interface Listener {
+
+        /**
+         * Called on the connection's reading thread, or its multicast
+         * thread, never on both at once
+         * @param message message received
+         */
+        void messageReceived(Message message);
+
+        /**
+         * Called on the connection's reading thread once the roster has
+         * changed; see getRoster()
+         */
+        default void rosterChanged() {
+        }
+    }
+
+    /**
+     * A client on the server's roster
+     */
+    public static class Member {
+        private final String name;
+        private final PresenceState state;
+
+        private Member(String name, PresenceState state) {
+            this.name = name;
+            this.state = state;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public PresenceState getState() {
+            return state;
+        }
+    }
+
+    /**
+     * Messages found by a search
+     */
+    public static class SearchResults {
+        private final List<Message> messages;
+        private final long total;
+        private final boolean exact;
+
+        private SearchResults(List<Message> messages, long total, boolean exact) {
+            this.messages = messages;
+            this.total = total;
+            this.exact = exact;
+        }
+
+        /**
+         * @return most recent messages matching, newest first
+         */
+        public List<Message> getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return number of messages matching, including those not returned
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return false if the server stopped counting, so more messages match than the total
+         */
+        public boolean isTotalExact() {
+            return exact;
+        }
+    }
+
+    /**
+     * Longest wait between reconnect attempts
+     */
+    private static final int MAX_RECONNECT_DELAY = 30_000;
+
+    /**
+     * Most bytes of a file sent in one CHUNK frame
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Longest wait for the server to answer an UPLOAD frame, in milliseconds.
+     * The last answer comes once the server has checked the whole file
+     */
+    private static final long UPLOAD_REPLY_TIMEOUT = 60_000;
+
+    /**
+     * Milliseconds between checks that the server is still there
+     */
+    private static final long HEARTBEAT_CHECK = 5_000;
+
+    /**
+     * Silence from the server, in milliseconds, after which it is sent PING
+     */
+    private static final long PING_INTERVAL = 20_000;
+
+    /**
+     * Silence from the server, in milliseconds, after which the connection is dropped
+     */
+    private static final long SERVER_TIMEOUT = 60_000;
+
+    /**
+     * Runs the heartbeat checks of every connection in the process, so the
+     * load generator's thousands of connections share one thread
+     */
+    private static final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "connection-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String host;
+    private final int port;
+    private final String name;
+    private final Listener listener;
+
+    private volatile Socket socket;
+    private volatile DataOutputStream dos;
+    private volatile DataInputStream dis;
+
+    private volatile int clientId = 0;
+
+    /**
+     * Secret from the server's last WELCOME, sent back in HELLO so a
+     * reconnect can take the name back from the dead connection
+     */
+    private volatile String resumeToken = "";
+
+    /**
+     * Protocol version agreed with the server
+     */
+    private volatile int protocolVersion = Protocol.MIN_VERSION;
+    private volatile boolean connected = false;
+
+    /**
+     * System.nanoTime() when anything was last read from the server
+     */
+    private volatile long lastRead;
+
+    /**
+     * Periodic heartbeat check, null until connected
+     */
+    private volatile ScheduledFuture<?> heartbeat;
+
+    /**
+     * Sequence of the last message received, sent to the server on reconnect
+     * so it can replay anything missed
+     */
+    private volatile long lastSequence = 0;
+
+    /**
+     * Rooms joined, other than the default room, rejoined on reconnect
+     */
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean inDefaultRoom = true;
+
+    /**
+     * True to receive messages by multicast when the server offers it
+     */
+    private volatile boolean multicastWanted = false;
+
+    /**
+     * Receiver for the server's multicast group, null if not used
+     */
+    private volatile MulticastReceiver multicast;
+
+    /**
+     * First sequence the server only multicasts to this connection,
+     * Long.MAX_VALUE until it acknowledges SUBSCRIBE
+     */
+    private volatile long multicastFrom = Long.MAX_VALUE;
+
+    /**
+     * Clients on the server's roster, by id
+     */
+    private final ConcurrentHashMap<Integer, Member> roster = new ConcurrentHashMap<>();
+
+    /**
+     * Roster being received in ROSTER frames, null between rosters. Only
+     * used by the reading thread
+     */
+    private Map<Integer, Member> incomingRoster;
+
+    /**
+     * State this client last set, sent again after a reconnect
+     */
+    private volatile PresenceState presence = PresenceState.ONLINE;
+
+    /**
+     * Held while passing a message to the listener
+     */
+    private final Object deliveryLock = new Object();
+
+    /**
+     * Replies awaited to UPLOAD frames and final chunks, by hash
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Frame>> uploadReplies = new ConcurrentHashMap<>();
+
+    /**
+     * Searches sent and not yet answered, oldest first. Added to while
+     * holding the lock, so the order matches the order they were written
+     */
+    private final ConcurrentLinkedQueue<Search> searches = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Attachments being fetched, by hash
+     */
+    private final ConcurrentHashMap<String, Download> downloads = new ConcurrentHashMap<>();
+
+    /**
+     * Threads waiting to write a frame other than a chunk. Chunks wait until there are none
+     */
+    private final AtomicInteger framesWaiting = new AtomicInteger(0);
+
+    /**
+     * @param host server host name or address
+     * @param port server port
+     * @param name name to connect with
+     * @param listener receives incoming messages
+     */
+    public Connection(String host, int port, String name, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.listener = listener;
+    }
+
+    /**
+     * Connect to the server and run the handshake. Incoming messages are
+     * only read once the connection is run
+     * @throws IOException if the server cannot be reached or the handshake fails
+     */
+    public void connect() throws IOException {
+        Socket newSocket = new Socket(host, port);
+        try {
+            handshake(newSocket);
+        }
+        catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+        connected = true;
+        heartbeat = heartbeats.scheduleAtFixedRate(this::checkServer, HEARTBEAT_CHECK, HEARTBEAT_CHECK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ping a server that has gone quiet, and drop the connection to one that
+     * has stopped answering, so the reading thread reconnects. Servers older
+     * than version 6 do not answer PING and are left alone
+     */
+    private void checkServer() {
+        Socket current = socket;
+        if (!connected || protocolVersion < Protocol.HEARTBEAT_VERSION || current.isClosed()) return;
+
+        long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRead);
+        if (quiet >= SERVER_TIMEOUT) {
+            System.err.println("No reply from server in " + quiet / 1000 + "s");
+            try {
+                current.close();
+            }
+            catch (IOException e) {
+                System.err.println("I/O error: " + e.getMessage());
+            }
+        }
+        else if (quiet >= PING_INTERVAL) {
+            write(new Frame(Frame.PING, 0, System.currentTimeMillis(), clientId, name, ""));
+        }
+    }
+
+    /**
+     * Receive messages from the server's multicast group if it has one.
+     * Call before connect()
+     * @param enabled true to use multicast
+     */
+    public void useMulticast(boolean enabled) {
+        multicastWanted = enabled;
+    }
+
+    /**
+     * Read incoming messages until closed, reconnecting if the connection drops
+     */
+    public void run() {
+        while (connected) {
+            try {
+                Frame incomingFrame = Frame.read(dis, protocolVersion);
+                lastRead = System.nanoTime();
+                if (incomingFrame.getType() == Frame.PING) {
+                    write(new Frame(Frame.PONG, 0, System.currentTimeMillis(), clientId, name, ""));
+                    continue;
+                }
+                if (onPresenceFrame(incomingFrame)) continue;
+                if (incomingFrame.getType() == Frame.SUBSCRIBE && multicast != null) {
+                    multicastFrom = incomingFrame.getSequence();
+                    multicast.subscribed(multicastFrom);
+                    continue;
+                }
+                if (onAttachmentFrame(incomingFrame)) continue;
+                if (incomingFrame.getType() == Frame.SEARCH) {
+                    onSearchFrame(incomingFrame);
+                    continue;
+                }
+                if (incomingFrame.getType() == Frame.DIRECT) {
+                    // Not sequenced and not in any room, straight to the listener
+                    synchronized (deliveryLock) {
+                        listener.messageReceived(incomingFrame.toMessage());
+                    }
+                    continue;
+                }
+                if (incomingFrame.getType() != Frame.CHAT) continue;
+
+                Message message = incomingFrame.toMessage();
+                MulticastReceiver receiver = multicast;
+                if (receiver == null) {
+                    deliver(message);
+                }
+                else if (message.getSequence() >= multicastFrom) {
+                    // Resent, or sent both ways around the switch to multicast
+                    receiver.offer(message);
+                }
+                else if (receiver.isNew(message.getSequence())) {
+                    deliver(message);
+                }
+            }
+            catch (IOException e) {
+                if (!connected) break;
+
+                System.err.println("Connection to server lost. Reconnecting");
+                reconnect();
+            }
+        }
+    }
+
+    /**
+     * Pass a message to the listener
+     * @param message message sent to this client, or to the multicast group
+     */
+    private void deliver(Message message) {
+        synchronized (deliveryLock) {
+            lastSequence = Math.max(lastSequence, message.getSequence());
+
+            // Multicast carries every room, and this client's own messages
+            if (message.getSenderId() == clientId) return;
+            if (message.getRoom().equals(Protocol.DEFAULT_ROOM) ? !inDefaultRoom : !rooms.contains(message.getRoom())) return;
+
+            listener.messageReceived(message);
+        }
+    }
+
+    /**
+     * Apply a roster or a batch of changes to it
+     * @param frame frame read from the server
+     * @return false if it is not a presence frame
+     */
+    private boolean onPresenceFrame(Frame frame) {
+        switch (frame.getType()) {
+            case Frame.ROSTER:
+                if (incomingRoster == null) incomingRoster = new HashMap<>();
+                applyPresence(incomingRoster, frame.getBody());
+                if (frame.getSequence() > 0) return true;
+
+                roster.clear();
+                roster.putAll(incomingRoster);
+                incomingRoster = null;
+                break;
+
+            case Frame.PRESENCE:
+                applyPresence(roster, frame.getBody());
+                break;
+
+            default:
+                return false;
+        }
+
+        listener.rosterChanged();
+        return true;
+    }
+
+    /**
+     * @param members roster to change
+     * @param body lines of id, state code and, for clients new to the roster, name
+     */
+    private static void applyPresence(Map<Integer, Member> members, String body) {
+        for (String line : body.split("\n")) {
+            String[] fields = line.split(" ", 3);
+            if (fields.length < 2 || fields[1].length() != 1) continue;
+
+            PresenceState state = PresenceState.fromCode(fields[1].charAt(0));
+            if (state == null) continue;
+
+            int id;
+            try {
+                id = Integer.parseInt(fields[0]);
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+
+            if (state == PresenceState.OFFLINE) {
+                members.remove(id);
+                continue;
+            }
+
+            Member member = members.get(id);
+            String memberName = fields.length == 3 ? fields[2] : member == null ? null : member.getName();
+            if (memberName != null) members.put(id, new Member(memberName, state));
+        }
+    }
+
+    /**
+     * Handle a reply to an upload, or part of an attachment being fetched
+     * @param frame frame read from the server
+     * @return false if it is not an attachment frame
+     */
+    private boolean onAttachmentFrame(Frame frame) {
+        switch (frame.getType()) {
+            case Frame.UPLOAD:
+                CompletableFuture<Frame> reply = uploadReplies.remove(frame.getName());
+                if (reply != null) reply.complete(frame);
+                return true;
+
+            case Frame.CHUNK:
+                Download download = downloads.get(frame.getName());
+                if (download != null && download.write(frame)) downloads.remove(frame.getName(), download);
+                return true;
+
+            case Frame.FETCH:
+                Download missing = downloads.remove(frame.getName());
+                if (missing != null) missing.fail(new IOException("Server does not have attachment " + frame.getName()));
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Add a result to the oldest search waiting, or complete it once the server says it has sent them all
+     * @param frame SEARCH frame read from the server
+     */
+    private void onSearchFrame(Frame frame) {
+        Search search = searches.peek();
+        if (search == null) return;
+
+        if (frame.getSequence() > 0) {
+            search.messages.add(frame.toMessage());
+            return;
+        }
+
+        searches.poll();
+        if (frame.getSequence() < 0) {
+            search.result.completeExceptionally(new IOException(frame.getBody()));
+            return;
+        }
+
+        String body = frame.getBody();
+        boolean exact = !body.endsWith("+");
+        long total;
+        try {
+            total = Long.parseLong(exact ? body : body.substring(0, body.length() - 1));
+        }
+        catch (NumberFormatException e) {
+            total = search.messages.size();
+        }
+        search.result.complete(new SearchResults(Collections.unmodifiableList(search.messages), total, exact));
+    }
+
+    /**
+     * Ask the server to resend messages missed by multicast
+     */
+    private boolean requestResend(long from, int count) {
+        return write(new Frame(Frame.RESEND, from, System.currentTimeMillis(), clientId, name, String.valueOf(count)));
+    }
+
+    /**
+     * Open streams on socket, agree protocol version and introduce this
+     * client. The HELLO frame carries the last sequence seen, the id and
+     * resume token of the previous connection and the rooms joined, so after
+     * a reconnect the server replays what was missed
+     * @param newSocket connected socket
+     * @throws IOException if the handshake fails
+     */
+    private void handshake(Socket newSocket) throws IOException {
+        DataOutputStream newDos = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream()));
+        DataInputStream newDis = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+
+        int version = Protocol.clientHandshake(newDos, newDis);
+        String rejoin = version >= 2 ? String.join("\n", rooms) : "";
+        new Frame(Frame.HELLO, lastSequence, System.currentTimeMillis(), clientId, name, resumeToken, rejoin).write(newDos, version);
+        newDos.flush();
+
+        Frame welcome = Frame.read(newDis, version);
+        if (welcome.getType() != Frame.WELCOME) throw new IOException("Expected WELCOME frame");
+        if (welcome.getSenderId() == 0) throw new IOException(welcome.getBody());
+
+        if (multicastWanted && version >= Protocol.MULTICAST_VERSION && !welcome.getBody().isEmpty()) {
+            subscribe(welcome.getBody(), newDos, version);
+        }
+
+        protocolVersion = version;
+        lastRead = System.nanoTime();
+        clientId = welcome.getSenderId();
+        resumeToken = version >= 2 ? welcome.getRoom() : "";
+        socket = newSocket;
+        dis = newDis;
+        dos = newDos;
+    }
+
+    /**
+     * Join the server's multicast group, the first time, and ask the server
+     * to stop sending live messages over the connection. Until it
+     * acknowledges, they keep coming both ways
+     * @param group multicast group as host:port, from the WELCOME frame
+     */
+    private void subscribe(String group, DataOutputStream newDos, int version) throws IOException {
+        if (multicast == null) {
+            try {
+                multicast = MulticastReceiver.join(group, this::deliver, this::requestResend);
+            }
+            catch (IOException e) {
+                System.err.println("Could not join multicast group " + group + ". Receiving over TCP: " + e.getMessage());
+                multicastWanted = false;
+                return;
+            }
+
+            Thread receiver = new Thread(multicast, "multicast-" + name);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        multicastFrom = Long.MAX_VALUE;
+        new Frame(Frame.SUBSCRIBE, 0, System.currentTimeMillis(), clientId, name, "").write(newDos, version);
+        newDos.flush();
+    }
+
+    /**
+     * Keep trying to reconnect to the server until connected or the
+     * connection is closed. Waits a random time between attempts, doubling up
+     * to MAX_RECONNECT_DELAY, so clients dropped together do not all come
+     * back at the same moment
+     */
+    private void reconnect() {
+        closeSocket();
+        failTransfers();
+        if (multicast != null) multicast.unsubscribed();
+        incomingRoster = null;
+
+        Random random = new Random();
+        int delay = 1000;
+        while (connected) {
+            try {
+                Thread.sleep(delay / 2 + random.nextInt(delay / 2));
+                Socket newSocket = new Socket(host, port);
+                try {
+                    handshake(newSocket);
+                }
+                catch (IOException e) {
+                    newSocket.close();
+                    throw e;
+                }
+                System.err.println("Reconnected to server");
+
+                // The server starts every connection as online
+                PresenceState state = presence;
+                if (state != PresenceState.ONLINE && supportsPresence()) {
+                    write(new Frame(Frame.PRESENCE, 0, System.currentTimeMillis(), clientId, name, String.valueOf(state.getCode())));
+                }
+                return;
+            }
+            catch (IOException e) {
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param room room to send to, must have been joined
+     * @param message message body
+     * @return false if the message could not be sent
+     */
+    public boolean sendMessage(String room, String message) {
+        return write(new Frame(Frame.CHAT, 0, System.currentTimeMillis(), clientId, name, room, message));
+    }
+
+    /**
+     * Send a message to named clients only, rather than to a room
+     * @param recipients names of the clients to send to
+     * @param message message body
+     * @return false if the message could not be sent
+     */
+    public boolean sendDirect(Collection<String> recipients, String message) {
+        String body = String.join("\n", recipients) + "\n\n" + message;
+        return write(new Frame(Frame.DIRECT, 0, System.currentTimeMillis(), clientId, name, Protocol.DIRECT_ROOM, body));
+    }
+
+    /**
+     * Tell other clients what this one is doing. Does nothing if the server
+     * does not support presence
+     * @param state new state, other than OFFLINE
+     * @return false if the change could not be sent
+     */
+    public boolean setPresence(PresenceState state) {
+        if (state == presence || state == PresenceState.OFFLINE) return true;
+
+        presence = state;
+        if (!supportsPresence()) return true;
+        return write(new Frame(Frame.PRESENCE, 0, System.currentTimeMillis(), clientId, name, String.valueOf(state.getCode())));
+    }
+
+    /**
+     * Search the server's message history. Words must all occur in a
+     * message; from:name, in:room, after:date and before:date narrow it down
+     * @param query query as typed
+     * @param limit most messages wanted, at most 100
+     * @return completes with the most recent messages matching, or
+     *         exceptionally if the server refused the search or the
+     *         connection was lost
+     */
+    public CompletableFuture<SearchResults> search(String query, int limit) {
+        Search search = new Search();
+        if (!supportsSearch()) {
+            search.result.completeExceptionally(new IOException("Server does not support search"));
+            return search.result;
+        }
+
+        synchronized (searches) {
+            searches.add(search);
+            if (!write(new Frame(Frame.SEARCH, limit, System.currentTimeMillis(), clientId, name, query))) {
+                searches.remove(search);
+                search.result.completeExceptionally(new IOException("Connection lost"));
+            }
+        }
+        return search.result;
+    }
+
+    /**
+     * @return live view of the clients on the server's roster, by id. Empty
+     *         if the server does not support presence
+     */
+    public Map<Integer, Member> getRoster() {
+        return Collections.unmodifiableMap(roster);
+    }
+
+    /**
+     * Start receiving messages sent to a room
+     * @param room room name
+     * @return false if the request could not be sent
+     */
+    public boolean joinRoom(String room) {
+        if (room.equals(Protocol.DEFAULT_ROOM)) inDefaultRoom = true;
+        else rooms.add(room);
+        return write(new Frame(Frame.JOIN, 0, System.currentTimeMillis(), clientId, name, room, ""));
+    }
+
+    /**
+     * Stop receiving messages sent to a room
+     * @param room room name
+     * @return false if the request could not be sent
+     */
+    public boolean leaveRoom(String room) {
+        if (room.equals(Protocol.DEFAULT_ROOM)) inDefaultRoom = false;
+        else rooms.remove(room);
+        return write(new Frame(Frame.LEAVE, 0, System.currentTimeMillis(), clientId, name, room, ""));
+    }
+
+    /**
+     * @return true if the server supports rooms other than the default room
+     */
+    public boolean supportsRooms() {
+        return protocolVersion >= 2;
+    }
+
+    /**
+     * @return true if the server delivers direct messages
+     */
+    public boolean supportsDirect() {
+        return protocolVersion >= Protocol.DIRECT_VERSION;
+    }
+
+    /**
+     * @return true if the server sends rosters and presence changes
+     */
+    public boolean supportsPresence() {
+        return protocolVersion >= Protocol.PRESENCE_VERSION;
+    }
+
+    /**
+     * @return true if the server searches its message history
+     */
+    public boolean supportsSearch() {
+        return protocolVersion >= Protocol.SEARCH_VERSION;
+    }
+
+    /**
+     * @return true if the server accepts attachments
+     */
+    public boolean supportsAttachments() {
+        return protocolVersion >= Protocol.ATTACHMENT_VERSION;
+    }
+
+    /**
+     * Post a file to a room. The file is hashed, then offered to the server,
+     * which asks for only the bytes it does not have: none if anyone has
+     * posted the same contents before, the rest if an earlier upload was cut
+     * off. Runs on its own thread; chat sent meanwhile goes out between chunks
+     * @param room room to post to, must have been joined
+     * @param file file to send
+     * @return completes with the attachment once the server has stored and
+     *         announced it, or exceptionally if the upload failed
+     */
+    public CompletableFuture<Attachment> sendAttachment(String room, Path file) {
+        CompletableFuture<Attachment> result = new CompletableFuture<>();
+
+        Thread uploader = new Thread(() -> {
+            try {
+                result.complete(upload(room, file));
+            }
+            catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        }, "upload-" + name);
+        uploader.setDaemon(true);
+        uploader.start();
+
+        return result;
+    }
+
+    private Attachment upload(String room, Path file) throws IOException {
+        if (!supportsAttachments()) throw new IOException("Server does not support attachments");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            String hash = hash(channel, size);
+            Attachment attachment = new Attachment(hash, size, file.getFileName().toString());
+
+            Frame offer = new Frame(Frame.UPLOAD, 0, System.currentTimeMillis(), clientId, hash, room,
+                    size + "\n" + attachment.getFileName());
+            long offset = awaitUploadReply(hash, offer, false).getSequence();
+
+            // Already stored once the offset reaches the size, whoever uploaded it
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            while (offset < size) {
+                buffer.clear().limit((int) Math.min(CHUNK_SIZE, size - offset));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) throw new EOFException("File shrank while sending");
+                }
+                buffer.flip();
+
+                Frame chunk = Frame.chunk(hash, offset, size, buffer);
+                offset += buffer.remaining();
+                if (offset < size) {
+                    if (!writeChunk(chunk)) throw new IOException("Connection lost while sending " + file.getFileName());
+                }
+                else {
+                    awaitUploadReply(hash, chunk, true);
+                }
+            }
+
+            return attachment;
+        }
+    }
+
+    /**
+     * Send a frame and wait for the server's UPLOAD reply to it
+     * @param chunk true if frame is a chunk, which waits for chat to be written first
+     * @return reply
+     * @throws IOException if the server refused, the frame could not be sent or there was no reply in time
+     */
+    private Frame awaitUploadReply(String hash, Frame frame, boolean chunk) throws IOException {
+        CompletableFuture<Frame> reply = new CompletableFuture<>();
+        uploadReplies.put(hash, reply);
+
+        if (!(chunk ? writeChunk(frame) : write(frame))) {
+            uploadReplies.remove(hash, reply);
+            throw new IOException("Connection lost while sending attachment");
+        }
+
+        try {
+            Frame answer = reply.get(UPLOAD_REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (answer.getSequence() < 0) throw new IOException("Server refused attachment: " + answer.getBody());
+            return answer;
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage());
+        }
+        catch (TimeoutException e) {
+            throw new IOException("No reply from server");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+        finally {
+            uploadReplies.remove(hash, reply);
+        }
+    }
+
+    /**
+     * Fetch an attachment from the server and save it. The contents are
+     * checked against the hash before the download completes
+     * @param hash attachment hash, as announced
+     * @param target file to save to, replaced if it exists
+     * @return completes with target once saved, or exceptionally if the
+     *         server does not have the attachment or the download failed
+     */
+    public CompletableFuture<Path> downloadAttachment(String hash, Path target) {
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        if (!supportsAttachments() || !Attachment.isValidHash(hash)) {
+            result.completeExceptionally(new IOException("Cannot fetch attachment " + hash));
+            return result;
+        }
+
+        Download download;
+        try {
+            download = new Download(hash, target, result);
+        }
+        catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        if (downloads.putIfAbsent(hash, download) != null) {
+            download.fail(new IOException("Already fetching attachment " + hash));
+            return result;
+        }
+        if (!write(new Frame(Frame.FETCH, 0, System.currentTimeMillis(), clientId, hash, ""))) {
+            downloads.remove(hash, download);
+            download.fail(new IOException("Connection lost"));
+        }
+
+        return result;
+    }
+
+    /**
+     * Fail every upload, download and search in progress, as the connection they were on has gone
+     */
+    private void failTransfers() {
+        synchronized (searches) {
+            for (Search search : searches) {
+                search.result.completeExceptionally(new IOException("Connection lost"));
+            }
+            searches.clear();
+        }
+
+        for (CompletableFuture<Frame> reply : uploadReplies.values()) {
+            reply.completeExceptionally(new IOException("Connection lost"));
+        }
+        uploadReplies.clear();
+
+        for (Download download : downloads.values()) {
+            download.fail(new IOException("Connection lost"));
+        }
+        downloads.clear();
+    }
+
+    private static String hash(FileChannel channel, long size) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) break;
+
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write a frame, ahead of any chunk waiting to be written
+     * @param frame frame to write
+     * @return false if the write failed
+     */
+    private boolean write(Frame frame) {
+        framesWaiting.incrementAndGet();
+        try {
+            return writeNow(frame);
+        }
+        finally {
+            framesWaiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Write an attachment chunk once no other frame is waiting to be written
+     * @param chunk CHUNK frame
+     * @return false if the write failed
+     */
+    private boolean writeChunk(Frame chunk) {
+        while (framesWaiting.get() > 0) {
+            Thread.yield();
+        }
+        return writeNow(chunk);
+    }
+
+    /**
+     * Write a frame. Synchronized so frames from different threads are not interleaved
+     * @param frame frame to write
+     * @return false if the write failed
+     */
+    private synchronized boolean writeNow(Frame frame) {
+        try {
+            frame.write(dos, protocolVersion);
+            dos.flush();
+        }
+        catch (IOException e) {
+            System.err.println("I/O error: " + e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Close the connection and stop reconnecting
+     */
+    public void close() {
+        connected = false;
+        if (heartbeat != null) heartbeat.cancel(false);
+        closeSocket();
+        failTransfers();
+        if (multicast != null) multicast.close();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+            dis.close();
+            dos.close();
+        }
+        catch (IOException e) {
+            System.err.println("I/O error: " + e.getMessage());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return server assigned id of this client, 0 before the handshake
+     */
+    public int getId() {
+        return clientId;
+    }
+
+    /**
+     * Search awaiting its results. The messages are only touched by the reading thread
+     */
+    private static class Search {
+        private final CompletableFuture<SearchResults> result = new CompletableFuture<>();
+        private final List<Message> messages = new ArrayList<>();
+    }
+
+    /**
+     * Attachment being fetched, written to its file chunk by chunk on the
+     * connection's reading thread and hashed along the way
+     */
+    private static class Download {
+        private final String hash;
+        private final Path target;
+        private final CompletableFuture<Path> result;
+        private final FileChannel channel;
+        private final MessageDigest digest = sha256();
+        private long position = 0;
+
+        Download(String hash, Path target, CompletableFuture<Path> result) throws IOException {
+            this.hash = hash;
+            this.target = target;
+            this.result = result;
+            this.channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * @param chunk CHUNK frame, sequence the offset and timestamp the attachment's size
+         * @return true once the download has finished, either way
+         */
+        boolean write(Frame chunk) {
+            ByteBuffer data = chunk.getData();
+            try {
+                if (chunk.getSequence() != position) throw new IOException("Expected chunk at " + position + ", got " + chunk.getSequence());
+
+                digest.update(data.duplicate());
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+                if (position < chunk.getTimestamp()) return false;
+
+                channel.close();
+                if (!HexFormat.of().formatHex(digest.digest()).equals(hash)) throw new IOException("Contents do not match the hash");
+                result.complete(target);
+            }
+            catch (IOException e) {
+                fail(e);
+            }
+            return true;
+        }
+
+        /**
+         * Give up on the download and delete what was saved
+         */
+        void fail(IOException cause) {
+            try {
+                channel.close();
+                Files.deleteIfExists(target);
+            }
+            catch (IOException e) {
+                System.err.println("I/O error: " + e.getMessage());
+            }
+            result.completeExceptionally(cause);
+        }
+    }
+}
@@ -2,63 +2,312 @@ package client;
 
 import message.Message;
 
-import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Latest messages sent and received by this client, oldest first.
+ *
+ * Backed by a fixed-capacity ring. Writers on any thread claim the next index
+ * with a compare-and-set, store their message in its slot and then
+ * publish the index, so adding never locks or allocates. Readers take a
+ * Snapshot, a view that reads slots in place and ends before the first index
+ * still being written, so every message in it has been stored; a slot
+ * overwritten after the snapshot was taken reads as null
+ */
 public class MessageHistory {
-    private static final ArrayList<Message> messages = new ArrayList<>();
-    private static int messageHistorySize = 1000;
-    private static int earliestMessage = 0;
+
+    private static final int DEFAULT_SIZE = 1000;
+
+    /**
+     * Added to a ring's head to stop writers claiming slots while it is resized
+     */
+    private static final long SEALED = 1L << 62;
+
+    private static final AtomicReference<Ring> ring = new AtomicReference<>(new Ring(DEFAULT_SIZE));
 
     /**
+     * Change how many messages are kept. The latest messages are kept in
+     * order; if the new size is smaller the oldest are dropped. Writers
+     * arriving during the resize wait for it, then write to the new ring
      * @param messageHistorySize new message history size
      */
-    public static void setMessageHistorySize(int messageHistorySize) {
-        MessageHistory.messageHistorySize = messageHistorySize;
+    public static synchronized void setMessageHistorySize(int messageHistorySize) {
+        Ring old = ring.get();
+        if (messageHistorySize < 1 || messageHistorySize == old.capacity()) return;
+
+        ring.set(old.resize(messageHistorySize));
     }
 
     /**
-     * Add new message to message history. Replaces earliest message
-     * in history if messageHistorySize reached.
+     * Add message sent by this client
+     * @param senderName name of this client
+     * @param room room the message was sent to
      * @param message message to add
      */
-    public static void addClientMessage(String senderName, String message) {
-        Message newMessage = new Message(senderName, message);
+    public static void addClientMessage(String senderName, String room, String message) {
+        add(new Message(0, senderName, room, message));
+    }
+
+    /**
+     * Add message received from the server to message history
+     * @param newMessage message decoded from an incoming frame
+     */
+    public static void addIncomingMessage(Message newMessage) {
+        add(newMessage);
+    }
 
-        // If message history maxed out, replace the earliest message
-        if (messages.size() == messageHistorySize) {
-            messages.set(earliestMessage, newMessage);
-            earliestMessage = (earliestMessage + 1) % messageHistorySize;
-            return;
+    private static void add(Message message) {
+        while (!ring.get().add(message)) {
+            // Ring is being resized, wait for the new one
+            Thread.onSpinWait();
         }
+    }
 
-        messages.add(newMessage);
+    /**
+     * @return view of the message history in order of earliest first, latest last
+     */
+    public static Snapshot getMessages() {
+        return ring.get().snapshot();
     }
 
-    public static void addIncomingMessage(String message) {
-        Message newMessage = new Message(message);
+    /**
+     * Fixed-capacity ring of messages. Each slot is written by the writers of
+     * its indexes strictly in index order, so a writer that stalls mid-write
+     * is never overtaken by one a lap ahead of it
+     */
+    static class Ring {
 
-        // If message history maxed out, replace the earliest message
-        if (messages.size() == messageHistorySize) {
-            messages.set(earliestMessage, newMessage);
-            earliestMessage = (earliestMessage + 1) % messageHistorySize;
-            return;
+        /**
+         * Published index of a slot while its message is being replaced
+         */
+        private static final long WRITING = Long.MIN_VALUE;
+
+        private final AtomicReferenceArray<Message> slots;
+
+        /**
+         * Index last stored in each slot, WRITING while a message is being
+         * stored. Starts a lap before 0
+         */
+        private final AtomicLongArray published;
+
+        /**
+         * Next index to be claimed. At or past SEALED once the ring is being resized
+         */
+        private final AtomicLong head = new AtomicLong(0);
+
+        /**
+         * Index one past the last of the messages published without a gap,
+         * behind head while writers are still storing their messages
+         */
+        private final AtomicLong end = new AtomicLong(0);
+
+        Ring(int capacity) {
+            slots = new AtomicReferenceArray<>(capacity);
+            published = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                published.set(i, i - capacity);
+            }
+        }
+
+        int capacity() {
+            return slots.length();
         }
 
-        messages.add(newMessage);
+        /**
+         * @param message message to store, replacing the oldest if full
+         * @return false if the ring is being resized
+         */
+        boolean add(Message message) {
+            long index = claim();
+            if (index < 0) return false;
+
+            publish(index, message);
+            return true;
+        }
+
+        /**
+         * @return next index, -1 if the ring is being resized
+         */
+        long claim() {
+            // Claim with a CAS rather than an increment so a sealed head stays at SEALED plus the next index
+            long index;
+            do {
+                index = head.get();
+                if (index >= SEALED) return -1;
+            } while (!head.compareAndSet(index, index + 1));
+
+            return index;
+        }
+
+        /**
+         * Store a message at an index claimed with claim()
+         * @param index claimed index
+         * @param message message to store
+         */
+        void publish(long index, Message message) {
+            int slot = (int) (index % capacity());
+
+            // Wait for the writer from the previous lap, only ever busy if it stalled mid-write
+            while (published.get(slot) != index - capacity()) {
+                Thread.onSpinWait();
+            }
+
+            published.set(slot, WRITING);
+            slots.set(slot, message);
+            published.set(slot, index);
+
+            // Move end past this index and any published after it while it was being written.
+            // A slot a lap ahead of end was published before being written again
+            long next;
+            while (published.get((int) ((next = end.get()) % capacity())) >= next) {
+                end.compareAndSet(next, next + 1);
+            }
+        }
+
+        /**
+         * @param index index of a message
+         * @return message stored at index, null if it has not been stored yet
+         *         or has since been overwritten
+         */
+        Message get(long index) {
+            int slot = (int) (index % capacity());
+            if (published.get(slot) != index) return null;
+
+            Message message = slots.get(slot);
+
+            // Being overwritten, or overwritten, between the two reads
+            return published.get(slot) == index ? message : null;
+        }
+
+        /**
+         * @param index index of a message
+         * @return true if a later message has been stored in index's slot
+         */
+        boolean isOverwritten(long index) {
+            return published.get((int) (index % capacity())) > index;
+        }
+
+        Snapshot snapshot() {
+            long last = end.get();
+            return new Snapshot(this, Math.max(0, last - capacity()), last);
+        }
+
+        /**
+         * Seal this ring and copy its latest messages, in order, into a new
+         * one. Waits for writers that claimed an index before the seal
+         * @param newCapacity capacity of the new ring
+         * @return new ring
+         */
+        Ring resize(int newCapacity) {
+            long sealed = head.getAndAdd(SEALED);
+            Ring resized = new Ring(newCapacity);
+
+            long start = Math.max(0, sealed - Math.min(capacity(), newCapacity));
+            for (long index = start; index < sealed; index++) {
+                // A writer that claimed this index before the seal may still be storing its message
+                Message message;
+                while ((message = get(index)) == null && !isOverwritten(index)) {
+                    Thread.onSpinWait();
+                }
+                if (message != null) resized.add(message);
+            }
+
+            return resized;
+        }
     }
 
     /**
-     * @return message history in order of earliest first, latest last
+     * Messages in the history when the snapshot was taken, read in place
+     * from the ring. Messages overwritten since read as null and are skipped
+     * when iterating
      */
-    public static ArrayList<message.Message> getMessages() {
-        ArrayList<Message> rtn = new ArrayList<>();
-        int index = earliestMessage;
+    public static class Snapshot implements Iterable<Message> {
+        private final Ring ring;
+        private final long start;
+        private final long end;
+
+        private Snapshot(Ring ring, long start, long end) {
+            this.ring = ring;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return number of messages in the snapshot, including any since overwritten
+         */
+        public int size() {
+            return (int) (end - start);
+        }
+
+        /**
+         * @return most messages the history held when the snapshot was taken
+         */
+        public int capacity() {
+            return ring.capacity();
+        }
+
+        /**
+         * @return index of the earliest message, counting every message added
+         *         to the history since it was last resized
+         */
+        public long getStart() {
+            return start;
+        }
 
-        for (int i = 0; i < messages.size(); i++) {
-            rtn.add(messages.get(index));
-            index = (index + 1) % messageHistorySize;
+        /**
+         * @return index one past the latest message
+         */
+        public long getEnd() {
+            return end;
         }
 
-        return rtn;
+        /**
+         * @param earlier snapshot taken before this one
+         * @return true if both snapshots index the same ring, so their indexes
+         *         can be compared. False if the history was resized in between
+         */
+        public boolean sameHistoryAs(Snapshot earlier) {
+            return earlier != null && earlier.ring == ring;
+        }
+
+        /**
+         * @param i position in the snapshot, 0 is the earliest
+         * @return message, null if it has been overwritten since the snapshot was taken
+         */
+        public Message get(int i) {
+            if (i < 0 || i >= size()) throw new IndexOutOfBoundsException(i);
+            return ring.get(start + i);
+        }
+
+        public Iterator<Message> iterator() {
+            return new Iterator<>() {
+                private long index = start;
+                private Message next = advance();
+
+                private Message advance() {
+                    while (index < end) {
+                        Message message = ring.get(index++);
+                        if (message != null) return message;
+                    }
+                    return null;
+                }
+
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                public Message next() {
+                    if (next == null) throw new NoSuchElementException();
+                    Message message = next;
+                    next = advance();
+                    return message;
+                }
+            };
+        }
     }
 }
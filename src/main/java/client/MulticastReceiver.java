@@ -0,0 +1,301 @@
+package client;
+
+import message.Frame;
+import message.Message;
+import message.Protocol;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Receives the messages a server multicasts and passes them on in sequence
+ * order. A message that arrives ahead of its turn waits for the ones before
+ * it; if a gap stays open for GAP_DELAY the missing messages are asked for
+ * over the client's connection, and after MAX_RESENDS requests they are
+ * given up on. Messages the server resends over the connection come back
+ * through here, so each one is passed on once whichever way it arrived.
+ *
+ * Every message multicast is passed on, whatever its room; the listener
+ * picks out the ones for this client
+ */
+class MulticastReceiver implements Runnable {
+
+    /**
+     * Asks the server to resend messages over the client's connection
+     */
+    interface Resender {
+
+        /**
+         * @param from first sequence missing
+         * @param count number of messages missing
+         * @return false if the request could not be sent
+         */
+        boolean requestResend(long from, int count);
+    }
+
+    /**
+     * How long a gap may stay open before it is asked for, to allow for datagrams arriving out of order
+     */
+    private static final long GAP_DELAY = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * How long to wait for a resend before asking again
+     */
+    private static final long RESEND_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /**
+     * Requests for the same gap before its messages are given up on
+     */
+    private static final int MAX_RESENDS = 5;
+
+    /**
+     * Most messages waiting for a gap to close. Past this the gap is given up on
+     */
+    private static final int MAX_PENDING = 65536;
+
+    /**
+     * How often gaps are checked while no datagrams arrive, in milliseconds
+     */
+    private static final int POLL_INTERVAL = 10;
+
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Largest UDP datagram
+     */
+    private static final int MAX_DATAGRAM = 64 * 1024;
+
+    private final MulticastSocket socket;
+    private final Consumer<Message> delivery;
+    private final Resender resender;
+
+    /**
+     * Messages received ahead of their turn, by sequence. Guarded by this
+     */
+    private final TreeMap<Long, Message> pending = new TreeMap<>();
+
+    /**
+     * Every sequence before this has been passed on or given up on, 0 before the first subscription
+     */
+    private long next = 0;
+
+    /**
+     * Highest sequence known to have been multicast
+     */
+    private long highestSeen = 0;
+
+    /**
+     * False while the connection is down, messages are then kept but not passed on
+     */
+    private boolean subscribed = false;
+
+    /**
+     * When the current gap was first seen, in System.nanoTime(), 0 if there is none
+     */
+    private long gapSince = 0;
+    private long lastRequest = 0;
+    private int resends = 0;
+
+    private volatile boolean running = true;
+
+    private MulticastReceiver(MulticastSocket socket, Consumer<Message> delivery, Resender resender) {
+        this.socket = socket;
+        this.delivery = delivery;
+        this.resender = resender;
+    }
+
+    /**
+     * Join a multicast group
+     * @param group group as host:port, as sent in the server's WELCOME frame
+     * @param delivery receives every message in sequence order, called with this receiver locked
+     * @param resender asks the server for missing messages
+     * @return receiver, ready to be run
+     * @throws IOException if the group cannot be joined
+     */
+    static MulticastReceiver join(String group, Consumer<Message> delivery, Resender resender) throws IOException {
+        int colon = group.lastIndexOf(':');
+        InetSocketAddress address;
+        try {
+            if (colon < 0) throw new NumberFormatException();
+            address = new InetSocketAddress(InetAddress.getByName(group.substring(0, colon)),
+                    Integer.parseInt(group.substring(colon + 1)));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Invalid multicast group (" + group + ")");
+        }
+
+        MulticastSocket socket = new MulticastSocket(address.getPort());
+        try {
+            socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            socket.setSoTimeout(POLL_INTERVAL);
+            socket.joinGroup(address, null);
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        return new MulticastReceiver(socket, delivery, resender);
+    }
+
+    /**
+     * Receive datagrams until closed
+     */
+    public void run() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (running) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                onDatagram(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+            }
+            catch (SocketTimeoutException e) {
+                // Nothing arrived, check for gaps below
+            }
+            catch (IOException e) {
+                if (running) System.err.println("Bad multicast datagram: " + e.getMessage());
+            }
+
+            checkGap();
+        }
+    }
+
+    private void onDatagram(ByteBuffer datagram) throws IOException {
+        if (Frame.frameSize(datagram) != datagram.remaining()) throw new IOException("Datagram is not one frame");
+
+        datagram.position(Frame.LENGTH_SIZE);
+        Frame frame = Frame.decode(datagram, Protocol.MULTICAST_VERSION);
+        if (frame.getType() == Frame.CHAT) {
+            offer(frame.toMessage());
+        }
+        else if (frame.getType() == Frame.HEARTBEAT) {
+            synchronized (this) {
+                highestSeen = Math.max(highestSeen, frame.getSequence());
+            }
+        }
+    }
+
+    /**
+     * Start passing messages on from a sequence, as acknowledged by the
+     * server. Messages before it are left to the connection
+     * @param from first sequence the server only multicasts
+     */
+    synchronized void subscribed(long from) {
+        subscribed = true;
+        if (from > next) {
+            pending.headMap(from).clear();
+            next = from;
+        }
+        resetGap();
+        drain();
+    }
+
+    /**
+     * Stop passing messages on until subscribed again, while the connection is down
+     */
+    synchronized void unsubscribed() {
+        subscribed = false;
+    }
+
+    /**
+     * Take a message received by multicast or resent over the connection
+     * @param message sequenced message
+     */
+    synchronized void offer(Message message) {
+        long sequence = message.getSequence();
+        highestSeen = Math.max(highestSeen, sequence);
+        if (sequence < next) return;
+
+        pending.putIfAbsent(sequence, message);
+        drain();
+
+        if (pending.size() > MAX_PENDING) {
+            if (subscribed) {
+                skipGap();
+                drain();
+            }
+            else {
+                pending.pollFirstEntry();
+            }
+        }
+    }
+
+    /**
+     * @param sequence sequence of a message received over the connection
+     * @return true if it has not been passed on by this receiver
+     */
+    synchronized boolean isNew(long sequence) {
+        return sequence >= next;
+    }
+
+    private void drain() {
+        if (!subscribed) return;
+
+        Message message;
+        while ((message = pending.remove(next)) != null) {
+            delivery.accept(message);
+            next++;
+            resetGap();
+        }
+    }
+
+    /**
+     * Ask for the messages of the current gap if it has been open long
+     * enough, or give up on them once asked too often
+     */
+    private synchronized void checkGap() {
+        if (!subscribed || highestSeen < next) {
+            resetGap();
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (gapSince == 0) {
+            gapSince = now;
+            return;
+        }
+        if (now - gapSince < GAP_DELAY || now - lastRequest < RESEND_INTERVAL) return;
+
+        if (resends >= MAX_RESENDS) {
+            skipGap();
+            drain();
+            return;
+        }
+
+        long end = pending.isEmpty() ? highestSeen + 1 : pending.firstKey();
+        resender.requestResend(next, (int) Math.min(end - next, Protocol.MAX_RESEND_COUNT));
+        resends++;
+        lastRequest = now;
+    }
+
+    /**
+     * Give up on the messages missing before the first one waiting
+     */
+    private void skipGap() {
+        Map.Entry<Long, Message> first = pending.firstEntry();
+        long to = first != null ? first.getKey() : highestSeen + 1;
+        System.err.println("Gave up on " + (to - next) + " multicast messages");
+        next = to;
+        resetGap();
+    }
+
+    private void resetGap() {
+        gapSince = 0;
+        resends = 0;
+    }
+
+    /**
+     * Leave the group and stop receiving
+     */
+    void close() {
+        running = false;
+        socket.close();
+    }
+}
@@ -1,20 +1,73 @@
 package client.UI;
 
 import client.Client;
+import client.Connection;
 import client.MessageHistory;
 
+import message.Attachment;
 import message.Message;
+import message.PresenceState;
+import message.Protocol;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainWindow {
 
-    private static DefaultListModel<String> model;
+    /**
+     * Longest time between a message arriving and the list showing it, about one frame
+     */
+    private static final int REFRESH_DELAY = 16;
+
+    private static MessageListModel model;
+
+    /**
+     * Set while a refresh is scheduled, so a burst of messages leads to one refresh
+     */
+    private static final AtomicBoolean refreshPending = new AtomicBoolean(false);
+    private static final Timer refreshTimer = new Timer(REFRESH_DELAY, e -> {
+        refreshPending.set(false);
+        if (model != null) model.refresh();
+    });
+
+    static {
+        refreshTimer.setRepeats(false);
+    }
+
+    /**
+     * Milliseconds after the last key press that the user stops being shown as typing
+     */
+    private static final int TYPING_IDLE = 3000;
+
+    private static final Timer typingTimer = new Timer(TYPING_IDLE, e -> Client.setPresence(PresenceState.ONLINE));
+
+    static {
+        typingTimer.setRepeats(false);
+    }
+
+    /**
+     * Who is online, rebuilt from the roster at most once per batch of changes
+     */
+    private static final DefaultListModel<String> rosterModel = new DefaultListModel<>();
+    private static final AtomicBoolean rosterPending = new AtomicBoolean(false);
+
+    /**
+     * Rooms this client has joined. Selected room is where messages are sent
+     */
+    private static DefaultListModel<String> roomModel;
+    private static JList<String> roomList;
 
     public MainWindow() {
             JFrame frame = createFrame();
@@ -28,6 +81,13 @@ public class MainWindow {
             roomSelectorPanel.setBackground(Color.PINK);
             roomSelectorPanel.setPreferredSize(new Dimension(200, 600));
             roomSelectorPanel.setMaximumSize(new Dimension(300, 600));
+            roomSelectorPanel.setLayout(new BorderLayout(5, 5));
+            addRoomSelector(roomSelectorPanel);
+
+            JPanel rosterPanel = new JPanel(new BorderLayout(5, 5));
+            rosterPanel.setPreferredSize(new Dimension(150, 600));
+            rosterPanel.add(new JLabel("Online"), BorderLayout.NORTH);
+            rosterPanel.add(new JScrollPane(new JList<>(rosterModel)), BorderLayout.CENTER);
 
             messagingPanel.setLayout(new BorderLayout(5, 5));
             messagingPanel.setBackground(Color.orange);
@@ -35,21 +95,24 @@ public class MainWindow {
             // Add panels to ui
             frame.add(roomSelectorPanel, BorderLayout.WEST);
             frame.add(messagingPanel, BorderLayout.CENTER);
+            frame.add(rosterPanel, BorderLayout.EAST);
             messagingPanel.add(messageAreaPanel, BorderLayout.SOUTH);
 
             // message.Message box to send messages
             JTextArea textArea = createTextArea();
             JScrollPane scrollPane = createScrollPane(textArea);
             // message.Message history
-            model = new DefaultListModel<>();
+            model = new MessageListModel();
             JScrollPane messageHistoryScrollPane = createMessageHistoryScrollPane();
             JButton sendMessageButton = sendMessageButton(textArea);
+            JButton sendFileButton = sendFileButton(frame);
 
             messagingPanel.add(messageHistoryScrollPane, BorderLayout.CENTER);
 
-            // Add message box and button
+            // Add message box and buttons
             messageAreaPanel.add(scrollPane, BorderLayout.SOUTH);
             messageAreaPanel.add(sendMessageButton, BorderLayout.EAST);
+            messageAreaPanel.add(sendFileButton, BorderLayout.EAST);
 
 
     }
@@ -79,12 +142,105 @@ public class MainWindow {
                 // Close the window after running function
                 frame.dispose();
             }
+
+            @Override
+            public void windowIconified(WindowEvent e) {
+                Client.setPresence(PresenceState.AWAY);
+            }
+
+            @Override
+            public void windowDeiconified(WindowEvent e) {
+                Client.setPresence(PresenceState.ONLINE);
+            }
         });
     }
 
+    /**
+     * Add the joined room list, with a text field and buttons to join and
+     * leave rooms. Disabled if the server does not support rooms
+     * @param panel room selector panel
+     */
+    private void addRoomSelector(JPanel panel) {
+        roomModel = new DefaultListModel<>();
+        roomModel.addElement(Protocol.DEFAULT_ROOM);
+        roomList = new JList<>(roomModel);
+        roomList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        roomList.setSelectedIndex(0);
+
+        JTextField roomField = new JTextField();
+        JButton joinButton = new JButton(new AbstractAction("Join") {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String room = roomField.getText().trim();
+                if (room.isEmpty() || roomModel.contains(room)) return;
+
+                Client.joinRoom(room);
+                roomModel.addElement(room);
+                roomList.setSelectedValue(room, true);
+                roomField.setText("");
+            }
+        });
+        JButton leaveButton = new JButton(new AbstractAction("Leave") {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String room = roomList.getSelectedValue();
+                if (room == null || room.equals(Protocol.DEFAULT_ROOM)) return;
+
+                Client.leaveRoom(room);
+                roomModel.removeElement(room);
+                roomList.setSelectedIndex(0);
+            }
+        });
+
+        boolean enabled = Client.supportsRooms();
+        roomField.setEnabled(enabled);
+        joinButton.setEnabled(enabled);
+        leaveButton.setEnabled(enabled);
+
+        JPanel buttons = new JPanel(new GridLayout(1, 2, 5, 5));
+        buttons.add(joinButton);
+        buttons.add(leaveButton);
+
+        JPanel controls = new JPanel(new BorderLayout(5, 5));
+        controls.add(roomField, BorderLayout.NORTH);
+        controls.add(buttons, BorderLayout.SOUTH);
+
+        panel.add(new JScrollPane(roomList), BorderLayout.CENTER);
+        panel.add(controls, BorderLayout.SOUTH);
+    }
+
+    /**
+     * @return room selected in the room list, the default room if none is
+     */
+    private static String selectedRoom() {
+        String room = roomList.getSelectedValue();
+        return room == null ? Protocol.DEFAULT_ROOM : room;
+    }
+
     private JScrollPane createMessageHistoryScrollPane() {
         // The JList that displays the strings
         JList<String> jList = new JList<>(model);
+
+        // Every row is one line, so the list never has to measure each row to lay itself out
+        jList.setFixedCellHeight(jList.getFontMetrics(jList.getFont()).getHeight() + 4);
+
+        // Double click an attachment to save it
+        jList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() != 2) return;
+
+                int row = jList.locationToIndex(e.getPoint());
+                Attachment attachment = row < 0 ? null : Attachment.find(model.getElementAt(row));
+                if (attachment == null || !Client.supportsAttachments()) return;
+
+                JFileChooser chooser = new JFileChooser();
+                chooser.setSelectedFile(new File(attachment.getFileName()));
+                if (chooser.showSaveDialog(jList) == JFileChooser.APPROVE_OPTION) {
+                    Client.downloadAttachment(attachment.getHash(), chooser.getSelectedFile().toPath());
+                }
+            }
+        });
         JScrollPane scrollPane = new JScrollPane(jList);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
 
@@ -98,6 +254,23 @@ public class MainWindow {
         messagingTextArea.setEditable(true);
         messagingTextArea.setBackground(Color.white);
 
+        // Shown as typing from the first key press until TYPING_IDLE after the last
+        messagingTextArea.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                Client.setPresence(PresenceState.TYPING);
+                typingTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+
         return messagingTextArea;
     }
 
@@ -124,10 +297,28 @@ public class MainWindow {
 
                 if (content.isEmpty()) return;
 
-                Client.sendMessage(content);
-                MessageHistory.addClientMessage(Client.getName(), content);
+                // "/search words" looks through the server's history instead of sending
+                if (content.startsWith("/search ") && Client.supportsSearch()) {
+                    search(content.substring(8));
+                    textArea.setText("");
+                    return;
+                }
+
+                // "@ann,bob text" goes to ann and bob only
+                int space = content.indexOf(' ');
+                if (content.startsWith("@") && space > 1 && Client.supportsDirect()) {
+                    Client.sendDirect(Arrays.asList(content.substring(1, space).split(",")), content.substring(space + 1));
+                    MessageHistory.addClientMessage(Client.getName(), Protocol.DIRECT_ROOM, content);
+                }
+                else {
+                    String room = selectedRoom();
+                    Client.sendMessage(room, content);
+                    MessageHistory.addClientMessage(Client.getName(), room, content);
+                }
                 updateMessageDisplay();
                 textArea.setText("");
+                typingTimer.stop();
+                Client.setPresence(PresenceState.ONLINE);
             }
         });
 
@@ -136,12 +327,100 @@ public class MainWindow {
         return button;
     }
 
-    public void updateMessageDisplay() {
-        ArrayList<Message> messageHistory = MessageHistory.getMessages();
-        model.clear();
+    /**
+     * Create button that posts a file to the selected room. Disabled if the
+     * server does not accept attachments
+     * @param frame window to show the file chooser over
+     * @return JButton
+     */
+    private JButton sendFileButton(JFrame frame) {
+        JButton button = new JButton(new AbstractAction("Send File") {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser chooser = new JFileChooser();
+                if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) return;
+
+                Client.sendAttachment(selectedRoom(), chooser.getSelectedFile().toPath());
+            }
+        });
+
+        button.setEnabled(Client.supportsAttachments());
+
+        return button;
+    }
 
-        for (int i = messageHistory.size() - 1; i >= 0; i--) {
-            model.addElement(messageHistory.get(i).getMessage());
+    /**
+     * Run a search and show what it found in a dialog once the server replies
+     * @param query query as typed after /search
+     */
+    private static void search(String query) {
+        Client.search(query).whenComplete((results, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                JOptionPane.showMessageDialog(null, cause.getMessage(), "Search failed", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            DefaultListModel<String> rows = new DefaultListModel<>();
+            for (Message message : results.getMessages()) {
+                rows.addElement("[" + message.getRoom() + "] " + message.getMessage());
+            }
+            JList<String> list = new JList<>(rows);
+            JScrollPane pane = new JScrollPane(list);
+            pane.setPreferredSize(new Dimension(500, 300));
+
+            String title = results.getTotal() + (results.isTotalExact() ? "" : "+") + " messages match \"" + query + "\""
+                    + (results.getTotal() > rows.size() ? ", newest " + rows.size() + " shown" : "");
+            JOptionPane.showMessageDialog(null, pane, title, JOptionPane.PLAIN_MESSAGE);
+        }));
+    }
+
+    /**
+     * Show messages added to MessageHistory. Safe to call from any thread;
+     * calls within the same frame are coalesced into one refresh on the EDT
+     */
+    public static void messagesAdded() {
+        if (refreshPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(refreshTimer::start);
         }
     }
+
+    /**
+     * Show the roster as it now is. Safe to call from any thread; calls
+     * before the EDT gets round to it are coalesced into one rebuild
+     */
+    public static void rosterChanged() {
+        if (rosterPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(MainWindow::showRoster);
+        }
+    }
+
+    private static void showRoster() {
+        rosterPending.set(false);
+
+        List<String> rows = new ArrayList<>();
+        for (Connection.Member member : Client.getRoster().values()) {
+            switch (member.getState()) {
+                case AWAY:
+                    rows.add(member.getName() + " (away)");
+                    break;
+                case TYPING:
+                    rows.add(member.getName() + " (typing)");
+                    break;
+                default:
+                    rows.add(member.getName());
+            }
+        }
+        rows.sort(String.CASE_INSENSITIVE_ORDER);
+
+        rosterModel.clear();
+        rosterModel.addAll(rows);
+    }
+
+    /**
+     * Show messages added to MessageHistory straight away. Must be called on the EDT
+     */
+    public void updateMessageDisplay() {
+        model.refresh();
+    }
 }
@@ -0,0 +1,118 @@
+package client.UI;
+
+import client.MessageHistory;
+import message.Message;
+import message.Protocol;
+
+import javax.swing.*;
+import java.util.Arrays;
+
+/**
+ * List model over MessageHistory, latest message first. Reads messages in
+ * place from a history snapshot instead of copying them, and keeps the text
+ * of each row once formatted. refresh() moves to a newer snapshot and fires
+ * one event for the rows added at the top and one for the rows dropped off
+ * the bottom. Only used on the EDT
+ */
+class MessageListModel extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private MessageHistory.Snapshot snapshot;
+
+    /**
+     * Rows reported to listeners, lags the snapshot while events are fired
+     */
+    private int size = 0;
+
+    /**
+     * Formatted row text, one slot per history slot, chosen by history index
+     */
+    private String[] cache = new String[0];
+    private long[] cachedIndexes = new long[0];
+
+    /**
+     * Catch up with messages added to the history since the last refresh
+     */
+    void refresh() {
+        MessageHistory.Snapshot latest = MessageHistory.getMessages();
+        int oldSize = size;
+        int newSize = latest.size();
+
+        if (!latest.sameHistoryAs(snapshot)) {
+            replaceAll(latest, oldSize, newSize);
+            return;
+        }
+
+        int added = (int) (latest.getEnd() - snapshot.getEnd());
+        if (added == 0) return;
+        if (added >= newSize) {
+            replaceAll(latest, oldSize, newSize);
+            return;
+        }
+
+        // Oldest rows that fell out of the history, at the bottom of the list
+        int removed = oldSize + added - newSize;
+        if (removed > 0) {
+            size = oldSize - removed;
+            fireIntervalRemoved(this, size, oldSize - 1);
+        }
+
+        snapshot = latest;
+        size = newSize;
+        fireIntervalAdded(this, 0, added - 1);
+    }
+
+    private void replaceAll(MessageHistory.Snapshot latest, int oldSize, int newSize) {
+        if (oldSize > 0) {
+            size = 0;
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+
+        // History was resized, the cached indexes belong to the old ring
+        if (!latest.sameHistoryAs(snapshot)) resizeCache(latest.capacity());
+
+        snapshot = latest;
+        size = newSize;
+        if (newSize > 0) fireIntervalAdded(this, 0, newSize - 1);
+    }
+
+    private void resizeCache(int capacity) {
+        if (capacity <= cache.length) {
+            Arrays.fill(cachedIndexes, -1);
+            return;
+        }
+
+        cache = new String[capacity];
+        cachedIndexes = new long[capacity];
+        Arrays.fill(cachedIndexes, -1);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @param row row number, 0 is the latest message
+     * @return text of the row, empty if the message has since left the history
+     */
+    public String getElementAt(int row) {
+        long index = snapshot.getEnd() - 1 - row;
+        int slot = (int) (index % cache.length);
+        if (cachedIndexes[slot] == index) return cache[slot];
+
+        Message message = snapshot.get((int) (index - snapshot.getStart()));
+        if (message == null) return "";
+
+        String text = format(message);
+        cache[slot] = text;
+        cachedIndexes[slot] = index;
+        return text;
+    }
+
+    private static String format(Message message) {
+        String prefix = message.getRoom().equals(Protocol.DEFAULT_ROOM) ? ""
+                : message.getRoom().equals(Protocol.DIRECT_ROOM) ? "[direct] " : "#" + message.getRoom() + " ";
+        return prefix + message.getMessage();
+    }
+}
@@ -0,0 +1,76 @@
+package message;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * File posted to a room. The file itself is stored once by the server,
+ * named by the SHA-256 of its contents; rooms only see a chat message
+ * announcing it, which carries the hash clients fetch it by
+ */
+public class Attachment {
+
+    /**
+     * Body of the chat message announcing an attachment
+     */
+    private static final Pattern ANNOUNCEMENT = Pattern.compile("\\[attachment] (.*) \\((\\d+) bytes\\) sha256:([0-9a-f]{64})");
+
+    private final String hash;
+    private final long size;
+    private final String fileName;
+
+    /**
+     * @param hash SHA-256 of the contents, lowercase hex
+     * @param size size in bytes
+     * @param fileName name of the file as posted, without any directory
+     */
+    public Attachment(String hash, long size, String fileName) {
+        this.hash = hash;
+        this.size = size;
+        this.fileName = fileName;
+    }
+
+    /**
+     * @param hash text to check
+     * @return true if hash is a SHA-256 in lowercase hex, so it is safe to use as a file name
+     */
+    public static boolean isValidHash(String hash) {
+        if (hash.length() != 64) return false;
+
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param text message body, or any text containing one, e.g. a message as displayed
+     * @return attachment announced in the text, null if there is none
+     */
+    public static Attachment find(String text) {
+        Matcher matcher = ANNOUNCEMENT.matcher(text);
+        if (!matcher.find()) return null;
+
+        return new Attachment(matcher.group(3), Long.parseLong(matcher.group(2)), matcher.group(1));
+    }
+
+    /**
+     * @return body of the chat message announcing this attachment
+     */
+    public String toBody() {
+        return "[attachment] " + fileName + " (" + size + " bytes) sha256:" + hash;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+}
@@ -0,0 +1,401 @@
+package message;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One frame of the binary wire protocol.
+ *
+ * Layout, all numbers big endian:
+ *   int    length      bytes following this field
+ *   byte   type
+ *   long   sequence    server assigned, 0 if not yet sequenced
+ *   long   timestamp   epoch milliseconds
+ *   int    senderId    server assigned id of the sending client
+ *   short  nameLength
+ *   byte[] name        UTF-8 sender name
+ *   short  roomLength  version 2 onwards
+ *   byte[] room        UTF-8 room name, version 2 onwards. Version 1 frames
+ *                      are always in Protocol.DEFAULT_ROOM
+ *   byte[] body        UTF-8, runs to the end of the frame. Raw bytes in
+ *                      CHUNK frames
+ */
+public class Frame {
+
+    /** Chat message, client to server and server to client */
+    public static final byte CHAT = 1;
+    /**
+     * First frame from the client, name holds the client's name. sequence is
+     * the last sequence the client saw and senderId its id on its previous
+     * connection, both 0 if it has not connected before. From version 2 the
+     * body lists rooms to rejoin, one per line, and room holds the resume
+     * token from the previous connection's WELCOME, empty if there is none
+     */
+    public static final byte HELLO = 2;
+    /**
+     * Reply to HELLO, senderId is the id given to the client, sequence the
+     * latest broadcast. From version 2 room holds a resume token: a client
+     * reconnecting with it in HELLO takes its name back from a connection the
+     * server has not yet noticed is dead. Only the client is told it, unlike
+     * its id. From version 3 the body is the server's multicast group as
+     * host:port, empty if it has none. A senderId of 0 refuses the client,
+     * the body then says why, e.g. its name is in use
+     */
+    public static final byte WELCOME = 3;
+    /** Client asks to join the room named in room, version 2 onwards */
+    public static final byte JOIN = 4;
+    /** Client asks to leave the room named in room, version 2 onwards */
+    public static final byte LEAVE = 5;
+    /**
+     * Client asks to receive messages by multicast instead of over its
+     * connection, version 3 onwards. The server replies with a SUBSCRIBE frame
+     * whose sequence is the first message it will only multicast
+     */
+    public static final byte SUBSCRIBE = 6;
+    /**
+     * Client asks for multicast messages it missed to be sent over its
+     * connection, version 3 onwards. sequence is the first one, the body the
+     * number wanted. Messages the server no longer has are not sent
+     */
+    public static final byte RESEND = 7;
+    /**
+     * Sent to the multicast group while no messages are, so clients notice
+     * lost messages at the end of a burst. sequence is the last message multicast
+     */
+    public static final byte HEARTBEAT = 8;
+    /**
+     * Client offers an attachment, version 4 onwards. name is the SHA-256 of
+     * its contents in lowercase hex, room the room to post it to, and the
+     * body its size and file name on two lines. The server replies with an
+     * UPLOAD frame whose sequence is the offset to send chunks from, the size
+     * if it already has the file, or -1 with the reason in the body. Once the
+     * last chunk has been checked it replies again with the size
+     */
+    public static final byte UPLOAD = 9;
+    /**
+     * Part of an attachment, either way, version 4 onwards. name is the hash,
+     * sequence the offset of the part, timestamp the attachment's size and
+     * the body the raw bytes
+     */
+    public static final byte CHUNK = 10;
+    /**
+     * Client asks for the attachment whose hash is in name, version 4
+     * onwards. The server streams it back in CHUNK frames, or replies with a
+     * FETCH frame whose sequence is -1 if it does not have it
+     */
+    public static final byte FETCH = 11;
+    /**
+     * Direct message, version 5 onwards. From a client, the body lists the
+     * recipients' names one per line, then an empty line, then the text.
+     * Each recipient gets a DIRECT frame with the sender's id and name, room
+     * Protocol.DIRECT_ROOM and the text as its body. Recipients that cannot be reached are reported
+     * back to the sender in a DIRECT frame with senderId 0
+     */
+    public static final byte DIRECT = 12;
+    /**
+     * Either side checks the other is still there, version 6 onwards. Sent
+     * when nothing has been heard for a while; the other side replies with
+     * PONG. Any frame received shows the sender is alive, not only PONG
+     */
+    public static final byte PING = 13;
+    /** Reply to PING, version 6 onwards */
+    public static final byte PONG = 14;
+    /**
+     * Presence, version 7 onwards. From a client, the body is its new state's
+     * code (see PresenceState). From the server, a batch of changes since its
+     * last batch, one client per line: id and state code separated by a
+     * space, then the name after another space if the client is new to the
+     * roster. State OFFLINE removes the client
+     */
+    public static final byte PRESENCE = 15;
+    /**
+     * Whole roster, sent to a client once when it connects, version 7
+     * onwards. Lines as in PRESENCE, always with the name. A large roster is
+     * split over several frames; sequence is the number of frames still to
+     * come, so the roster is complete at 0. PRESENCE batches follow on from it
+     */
+    public static final byte ROSTER = 16;
+    /**
+     * Search of the message history, version 8 onwards. From a client, the
+     * body is the query and sequence the most results wanted, 0 for the
+     * default. Only messages in rooms the client is in are found. The server replies with one SEARCH frame per result, newest
+     * first, carrying the message as a CHAT frame would, then a SEARCH frame
+     * whose sequence is 0 and whose body is the number of messages matching,
+     * followed by + if the server stopped counting and there are more.
+     * A sequence of -1 refuses the search, the body then says why. Replies
+     * come in the order searches were sent
+     */
+    public static final byte SEARCH = 17;
+
+    /**
+     * Size of the length prefix
+     */
+    public static final int LENGTH_SIZE = 4;
+
+    /**
+     * Size of the fixed fields following the length prefix in version 1
+     */
+    public static final int HEADER_SIZE = 1 + 8 + 8 + 4 + 2;
+
+    /**
+     * Size of the room length field added in version 2
+     */
+    private static final int ROOM_LENGTH_SIZE = 2;
+
+    private final byte type;
+    private final long sequence;
+    private final long timestamp;
+    private final int senderId;
+    private final String name;
+    private final String room;
+    private final String body;
+
+    /**
+     * Raw body of a CHUNK frame, null for every other type
+     */
+    private final ByteBuffer data;
+
+    /**
+     * Frame in the default room
+     */
+    public Frame(byte type, long sequence, long timestamp, int senderId, String name, String body) {
+        this(type, sequence, timestamp, senderId, name, Protocol.DEFAULT_ROOM, body);
+    }
+
+    public Frame(byte type, long sequence, long timestamp, int senderId, String name, String room, String body) {
+        this(type, sequence, timestamp, senderId, name, room, body, null);
+    }
+
+    private Frame(byte type, long sequence, long timestamp, int senderId, String name, String room, String body, ByteBuffer data) {
+        this.type = type;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.senderId = senderId;
+        this.name = name;
+        this.room = room;
+        this.body = body;
+        this.data = data;
+    }
+
+    /**
+     * @param hash attachment hash
+     * @param offset offset of data within the attachment
+     * @param size attachment size
+     * @param data bytes from offset on, read from its position to its limit
+     * @return CHUNK frame carrying data
+     */
+    public static Frame chunk(String hash, long offset, long size, ByteBuffer data) {
+        return new Frame(CHUNK, offset, size, 0, hash, "", "", data);
+    }
+
+    /**
+     * Encode frame including its length prefix
+     * @param version negotiated protocol version
+     * @param direct true to encode into a direct buffer
+     * @return buffer ready to be written, position 0
+     */
+    public ByteBuffer encode(int version, boolean direct) {
+        byte[] bodyBytes = data == null ? body.getBytes(StandardCharsets.UTF_8) : null;
+        int bodyLength = data == null ? bodyBytes.length : data.remaining();
+
+        ByteBuffer buffer = encodeHeader(version, bodyLength, true, direct);
+        if (data == null) buffer.put(bodyBytes);
+        else buffer.put(data.duplicate());
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Encode everything in a CHUNK frame up to its data, so the data can be
+     * written after it straight from a file
+     * @param version negotiated protocol version
+     * @param hash attachment hash
+     * @param offset offset of the data within the attachment
+     * @param size attachment size
+     * @param dataLength bytes of data that will follow
+     * @return buffer ready to be written, position 0
+     */
+    public static ByteBuffer encodeChunkHeader(int version, String hash, long offset, long size, int dataLength) {
+        ByteBuffer buffer = new Frame(CHUNK, offset, size, 0, hash, "", "").encodeHeader(version, dataLength, false, false);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encode the length prefix and every field before the body
+     * @param bodyLength bytes of body that follow
+     * @param withBody true to leave room in the buffer for the body
+     * @return buffer in write mode, positioned after the header
+     */
+    private ByteBuffer encodeHeader(int version, int bodyLength, boolean withBody, boolean direct) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] roomBytes = version >= 2 ? room.getBytes(StandardCharsets.UTF_8) : null;
+
+        int length = HEADER_SIZE + nameBytes.length + bodyLength;
+        if (roomBytes != null) length += ROOM_LENGTH_SIZE + roomBytes.length;
+
+        int capacity = LENGTH_SIZE + length - (withBody ? 0 : bodyLength);
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buffer.putInt(length)
+                .put(type)
+                .putLong(sequence)
+                .putLong(timestamp)
+                .putInt(senderId)
+                .putShort((short) nameBytes.length)
+                .put(nameBytes);
+        if (roomBytes != null) {
+            buffer.putShort((short) roomBytes.length).put(roomBytes);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Encode and write frame to a stream. Does not flush
+     * @param dos stream to write to
+     * @param version negotiated protocol version
+     * @throws IOException if the write fails
+     */
+    public void write(DataOutputStream dos, int version) throws IOException {
+        ByteBuffer buffer = encode(version, false);
+        dos.write(buffer.array(), 0, buffer.limit());
+    }
+
+    /**
+     * Read one frame from a blocking stream
+     * @param dis stream to read from
+     * @param version negotiated protocol version
+     * @return decoded frame
+     * @throws IOException if the stream ends or the frame is malformed
+     */
+    public static Frame read(DataInputStream dis, int version) throws IOException {
+        int length = dis.readInt();
+        checkLength(length);
+
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return decode(ByteBuffer.wrap(bytes), version);
+    }
+
+    /**
+     * Peek at the total size of the next frame in a buffer
+     * @param buffer buffer in read mode, positioned at a length prefix
+     * @return frame size including the length prefix, -1 if the prefix has not fully arrived
+     * @throws IOException if the length is out of range
+     */
+    public static int frameSize(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < LENGTH_SIZE) return -1;
+
+        int length = buffer.getInt(buffer.position());
+        checkLength(length);
+        return LENGTH_SIZE + length;
+    }
+
+    /**
+     * Decode frame contents, not including the length prefix. The data of a
+     * CHUNK frame is not copied: it is a view of buffer, only valid for as
+     * long as buffer's contents are
+     * @param buffer buffer positioned at the type byte, limited to the end of the frame
+     * @param version negotiated protocol version
+     * @return decoded frame
+     * @throws IOException if the frame is malformed
+     */
+    public static Frame decode(ByteBuffer buffer, int version) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) throw new IOException("Frame too short");
+
+        byte type = buffer.get();
+        long sequence = buffer.getLong();
+        long timestamp = buffer.getLong();
+        int senderId = buffer.getInt();
+        int nameLength = buffer.getShort() & 0xFFFF;
+        if (nameLength > buffer.remaining()) throw new IOException("Frame name runs past end of frame");
+
+        String name = readString(buffer, nameLength);
+
+        String room = Protocol.DEFAULT_ROOM;
+        if (version >= 2) {
+            if (buffer.remaining() < ROOM_LENGTH_SIZE) throw new IOException("Frame too short");
+            int roomLength = buffer.getShort() & 0xFFFF;
+            if (roomLength > buffer.remaining()) throw new IOException("Frame room runs past end of frame");
+            room = readString(buffer, roomLength);
+        }
+
+        if (type == CHUNK) {
+            ByteBuffer data = buffer.slice();
+            buffer.position(buffer.limit());
+            return new Frame(type, sequence, timestamp, senderId, name, room, "", data);
+        }
+
+        String body = readString(buffer, buffer.remaining());
+
+        return new Frame(type, sequence, timestamp, senderId, name, room, body);
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        if (length == 0) return "";
+
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < HEADER_SIZE || length > Protocol.MAX_FRAME_SIZE - LENGTH_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * @return chat message carried by this frame
+     */
+    public Message toMessage() {
+        return new Message(sequence, timestamp, senderId, name, room, body);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * @return raw body of a CHUNK frame, null for other types
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+}
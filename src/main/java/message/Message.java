@@ -1,19 +1,85 @@
 package message;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * One chat message. Immutable once built, so it is shared as is by the
+ * broadcaster, every session it is written to and the client's history.
+ * Derived forms, the text shown to users and the encoded frames, are built
+ * on first use and kept
+ */
 public class Message {
     private final String message;
     private final String senderName;
-    private Date date;
-    private static final SimpleDateFormat sdf = new SimpleDateFormat("dd-MM-yy | HH:mm");
+    private final String room;
+    private final int senderId;
+    private final long sequence;
+
+    /**
+     * Epoch milliseconds the message was sent
+     */
+    private final long timestamp;
+
+    /**
+     * Text as shown to users, null until first asked for. Strings are
+     * immutable, so threads racing to set it at worst format it twice
+     */
+    private String text;
+
+    /**
+     * Message encoded for each protocol version, indexed by version. Each is
+     * built on first use and shared by every recipient. Null until the first
+     * encoding, since messages on clients are never encoded
+     */
+    private volatile AtomicReferenceArray<ByteBuffer> frames;
 
     public Message(String senderName, String message) {
+        this(0, senderName, message);
+    }
+
+    /**
+     * New, not yet sequenced message sent now
+     * @param senderId server assigned id of the sender
+     * @param senderName name of the sender
+     * @param message message body
+     */
+    public Message(int senderId, String senderName, String message) {
+        this(senderId, senderName, Protocol.DEFAULT_ROOM, message);
+    }
+
+    /**
+     * New, not yet sequenced message sent now to a room
+     * @param senderId server assigned id of the sender
+     * @param senderName name of the sender
+     * @param room room the message was sent to
+     * @param message message body
+     */
+    public Message(int senderId, String senderName, String room, String message) {
+        this(0, System.currentTimeMillis(), senderId, senderName, room, message);
+    }
+
+    /**
+     * Message with every field known, e.g. decoded from a binary frame
+     * @param sequence server assigned sequence number, 0 if not yet sequenced
+     * @param timestamp epoch milliseconds the message was sent
+     * @param senderId server assigned id of the sender
+     * @param senderName name of the sender
+     * @param room room the message was sent to
+     * @param message message body
+     */
+    public Message(long sequence, long timestamp, int senderId, String senderName, String room, String message) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.senderId = senderId;
+        this.senderName = SharedStrings.share(senderName);
+        this.room = SharedStrings.share(room);
         this.message = message;
-        this.senderName = senderName;
-        this.date = new Date();
     }
 
     /**
@@ -21,27 +87,120 @@ public class Message {
      * @param messageString message string from server
      */
     public Message(String messageString) {
-        // Example input: "Alice [2025-08-16 14:30:00] : Hello world"
+        // Example input: "Alice [16-08-25 | 14:30] : Hello world"
         int nameEnd = messageString.indexOf(" [");
         int dateStart = nameEnd + 2;
-        int dateEnd = messageString.indexOf("] :", dateStart);
-        int msgStart = dateEnd + 3;
+        int dateEnd = messageString.indexOf("] : ", dateStart);
+
+        senderId = 0;
+        sequence = 0;
+        room = Protocol.DEFAULT_ROOM;
+        senderName = SharedStrings.share(messageString.substring(0, nameEnd));
+        message = messageString.substring(dateEnd + 4);
 
-        senderName = messageString.substring(0, nameEnd);
         String dateStr = messageString.substring(dateStart, dateEnd);
-        date = new Date();
-        message = messageString.substring(msgStart);
+        long parsed;
         try {
-            date = sdf.parse(dateStr);
+            parsed = TimestampFormat.parse(dateStr);
         }
-        catch (ParseException e) {
+        catch (DateTimeParseException e) {
             System.err.println("Error parsing date: " + dateStr);
+            parsed = System.currentTimeMillis();
         }
-
+        timestamp = parsed;
     }
 
+    /**
+     * @return message as shown to users, e.g. "Alice [16-08-25 | 14:30] : Hello world"
+     */
     public String getMessage() {
-        return senderName + " [" + sdf.format(date) + "] : " + message;
+        String formatted = text;
+        if (formatted == null) {
+            formatted = senderName + " [" + TimestampFormat.format(timestamp) + "] : " + message;
+            text = formatted;
+        }
+        return formatted;
+    }
+
+    /**
+     * @param sequence sequence number given by the server
+     * @return copy of this message carrying the sequence number
+     */
+    public Message withSequence(long sequence) {
+        return new Message(sequence, timestamp, senderId, senderName, room, message);
+    }
+
+    /**
+     * Get this message encoded for a protocol version. The message is
+     * encoded once per version; every call returns a new read-only view over
+     * the same direct buffer, with its own position, so each recipient can be
+     * written to independently without copying
+     * @param version negotiated protocol version, Protocol.LEGACY_VERSION for writeUTF strings
+     * @return read-only view of the encoded frame
+     * @throws UTFDataFormatException if a legacy frame would be longer than 65535 bytes
+     */
+    public ByteBuffer getFrame(int version) throws UTFDataFormatException {
+        AtomicReferenceArray<ByteBuffer> versions = frames;
+        if (versions == null) {
+            // A race here at worst encodes a version twice
+            versions = new AtomicReferenceArray<>(Protocol.MAX_VERSION + 1);
+            frames = versions;
+        }
+
+        ByteBuffer encoded = versions.get(version);
+        if (encoded == null) {
+            encoded = version == Protocol.LEGACY_VERSION ? encodeLegacyFrame() : toFrame().encode(version, true).asReadOnlyBuffer();
+            versions.set(version, encoded);
+        }
+
+        return encoded.duplicate();
+    }
+
+    /**
+     * @return binary CHAT frame carrying this message
+     */
+    public Frame toFrame() {
+        return new Frame(Frame.CHAT, sequence, timestamp, senderId, senderName, room, message);
+    }
+
+    private ByteBuffer encodeLegacyFrame() throws UTFDataFormatException {
+        String text = getMessage();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() + 2);
+
+        try {
+            new DataOutputStream(bytes).writeUTF(text);
+        }
+        catch (UTFDataFormatException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            // ByteArrayOutputStream never throws
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.size());
+        buffer.put(bytes.toByteArray()).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getBody() {
+        return message;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
     }
 
     public String getSenderName() {
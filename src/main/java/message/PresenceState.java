@@ -0,0 +1,37 @@
+package message;
+
+/**
+ * What a client is doing, as shown in other clients' rosters. Sent as a
+ * single character in PRESENCE and ROSTER frames
+ */
+public enum PresenceState {
+    ONLINE('o'),
+    AWAY('a'),
+    TYPING('t'),
+    /** Disconnected. Only sent by the server, to remove a client from rosters */
+    OFFLINE('x');
+
+    private final char code;
+
+    PresenceState(char code) {
+        this.code = code;
+    }
+
+    /**
+     * @return character the state is sent as
+     */
+    public char getCode() {
+        return code;
+    }
+
+    /**
+     * @param code character from a frame
+     * @return state sent as code, null if there is none
+     */
+    public static PresenceState fromCode(char code) {
+        for (PresenceState state : values()) {
+            if (state.code == code) return state;
+        }
+        return null;
+    }
+}
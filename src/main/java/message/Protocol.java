@@ -0,0 +1,166 @@
+package message;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Constants and handshake for the binary wire protocol.
+ *
+ * Handshake, sent by the client straight after connecting:
+ *   short 0          (an empty writeUTF string, which no legacy client sends as its name)
+ *   byte[3] "LMP"
+ *   byte minVersion, byte maxVersion
+ * Server replies with "LMP" and the chosen version, 0 if there is no common
+ * version. Both sides then switch to Frames, starting with a HELLO frame
+ * from the client. Clients that start with a non-empty writeUTF name are
+ * served with the legacy string protocol.
+ */
+public final class Protocol {
+
+    /**
+     * Legacy writeUTF string protocol, never negotiated but used for clients
+     * that skip the handshake
+     */
+    public static final int LEGACY_VERSION = 0;
+
+    public static final int MIN_VERSION = 1;
+
+    /**
+     * Version 2 added rooms, version 3 multicast delivery, version 4
+     * attachments, version 5 direct messages, version 6 heartbeats, version 7
+     * presence, version 8 search
+     */
+    public static final int MAX_VERSION = 8;
+
+    /**
+     * Lowest version that can receive messages by multicast. Datagrams hold
+     * one frame of this version each
+     */
+    public static final int MULTICAST_VERSION = 3;
+
+    /**
+     * Lowest version that can send and fetch attachments
+     */
+    public static final int ATTACHMENT_VERSION = 4;
+
+    /**
+     * Lowest version that can send and receive direct messages
+     */
+    public static final int DIRECT_VERSION = 5;
+
+    /**
+     * Lowest version that answers PING frames. Older clients are only
+     * checked by TCP keepalive
+     */
+    public static final int HEARTBEAT_VERSION = 6;
+
+    /**
+     * Lowest version that is sent rosters and presence changes
+     */
+    public static final int PRESENCE_VERSION = 7;
+
+    /**
+     * Lowest version that can search the server's message history
+     */
+    public static final int SEARCH_VERSION = 8;
+
+    /**
+     * Room every client is in, and the only room legacy and version 1 clients see
+     */
+    public static final String DEFAULT_ROOM = "lobby";
+
+    /**
+     * Room clients file direct messages under. Room names starting with @
+     * are never real rooms, the server does not let clients join them
+     */
+    public static final String DIRECT_ROOM = "@direct";
+
+    /**
+     * Room of the empty messages a server resends in place of messages in
+     * rooms the client is not in, so it can tell they are not missing
+     */
+    public static final String SKIPPED_ROOM = "@skipped";
+
+    /**
+     * Most messages a client may ask for in one RESEND frame
+     */
+    public static final int MAX_RESEND_COUNT = 256;
+
+    public static final byte[] MAGIC = {'L', 'M', 'P'};
+
+    /**
+     * Bytes sent by the client to open the handshake
+     */
+    public static final int CLIENT_HANDSHAKE_SIZE = 2 + 3 + 2;
+
+    /**
+     * Bytes sent by the server in reply
+     */
+    public static final int SERVER_HANDSHAKE_SIZE = 3 + 1;
+
+    /**
+     * Largest frame accepted, including its length prefix
+     */
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    private Protocol() {
+    }
+
+    /**
+     * Pick the highest version supported by both sides
+     * @param clientMin lowest version the client speaks
+     * @param clientMax highest version the client speaks
+     * @return chosen version, 0 if there is none
+     */
+    public static int negotiate(int clientMin, int clientMax) {
+        int version = Math.min(clientMax, MAX_VERSION);
+        return version >= Math.max(clientMin, MIN_VERSION) ? version : 0;
+    }
+
+    /**
+     * Client side of the handshake
+     * @param dos connection output stream
+     * @param dis connection input stream
+     * @return version chosen by the server
+     * @throws IOException if the server does not speak the binary protocol
+     *                     or there is no common version
+     */
+    public static int clientHandshake(DataOutputStream dos, DataInputStream dis) throws IOException {
+        dos.writeShort(0);
+        dos.write(MAGIC);
+        dos.writeByte(MIN_VERSION);
+        dos.writeByte(MAX_VERSION);
+        dos.flush();
+
+        byte[] magic = new byte[MAGIC.length];
+        dis.readFully(magic);
+        int version = dis.readUnsignedByte();
+
+        if (magic[0] != MAGIC[0] || magic[1] != MAGIC[1] || magic[2] != MAGIC[2]) {
+            throw new IOException("Server does not speak the binary protocol");
+        }
+        if (version == 0) {
+            throw new IOException("No protocol version in common with server");
+        }
+
+        return version;
+    }
+
+    /**
+     * @param magic bytes read where the magic is expected
+     * @param offset index of the first magic byte
+     * @return true if the bytes match MAGIC
+     */
+    public static boolean isMagic(byte[] magic, int offset) {
+        return magic[offset] == MAGIC[0] && magic[offset + 1] == MAGIC[1] && magic[offset + 2] == MAGIC[2];
+    }
+
+    /**
+     * @param version chosen version, 0 if none
+     * @return server reply to the handshake
+     */
+    public static byte[] serverHandshake(int version) {
+        return new byte[] {MAGIC[0], MAGIC[1], MAGIC[2], (byte) version};
+    }
+}
@@ -0,0 +1,40 @@
+package message;
+
+/**
+ * Flyweights for the strings repeated across many messages: sender names
+ * and rooms. Each message decoded from the wire brings its own copy of
+ * them; sharing one copy lets the rest die young instead of being held by
+ * every message kept in a history or log. The table is fixed in size and
+ * a newer string simply replaces an older one in its slot, so names from
+ * the network cannot grow it. Safe to use from any thread
+ */
+final class SharedStrings {
+
+    /**
+     * Slots in the table, a power of two
+     */
+    private static final int SLOTS = 1024;
+
+    /**
+     * Strings are immutable, so threads racing on a slot at worst keep two copies
+     */
+    private static final String[] table = new String[SLOTS];
+
+    private SharedStrings() {
+    }
+
+    /**
+     * @param text string to share, may be null
+     * @return an equal string, the same instance as earlier calls returned while it stays in the table
+     */
+    static String share(String text) {
+        if (text == null) return null;
+
+        int slot = text.hashCode() & (SLOTS - 1);
+        String shared = table[slot];
+        if (text.equals(shared)) return shared;
+
+        table[slot] = text;
+        return text;
+    }
+}
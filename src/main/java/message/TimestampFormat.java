@@ -0,0 +1,71 @@
+package message;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Formats message timestamps as shown to users, e.g. "16-08-25 | 14:30".
+ * The format goes no finer than minutes, so each minute is formatted once
+ * and kept in a small table indexed by minute; messages sent in the same
+ * minute share the same String. Safe to use from any thread
+ */
+final class TimestampFormat {
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("dd-MM-yy | HH:mm");
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private static final long MINUTE = 60_000;
+
+    /**
+     * Minutes kept, a power of two. Enough for replayed history to mostly hit
+     */
+    private static final int SLOTS = 64;
+
+    /**
+     * Formatted minutes, by minute modulo SLOTS. Entries are immutable, so
+     * threads racing on a slot at worst format the same minute twice
+     */
+    private static final Entry[] cache = new Entry[SLOTS];
+
+    private TimestampFormat() {
+    }
+
+    /**
+     * @param timestamp epoch milliseconds
+     * @return timestamp as shown to users, in the local time zone
+     */
+    static String format(long timestamp) {
+        long minute = Math.floorDiv(timestamp, MINUTE);
+        int slot = (int) (minute & (SLOTS - 1));
+
+        Entry entry = cache[slot];
+        if (entry == null || entry.minute != minute) {
+            entry = new Entry(minute, FORMAT.format(Instant.ofEpochMilli(minute * MINUTE).atZone(ZONE)));
+            cache[slot] = entry;
+        }
+        return entry.text;
+    }
+
+    /**
+     * @param text timestamp as shown to users
+     * @return epoch milliseconds at the start of that minute, in the local time zone
+     * @throws DateTimeParseException if text is not a formatted timestamp
+     */
+    static long parse(String text) {
+        return LocalDateTime.parse(text, FORMAT).atZone(ZONE).toInstant().toEpochMilli();
+    }
+
+    private static final class Entry {
+        private final long minute;
+        private final String text;
+
+        private Entry(long minute, String text) {
+            this.minute = minute;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package server;
+
+import message.Attachment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Attachments kept on disk, one file per distinct content, named by the
+ * SHA-256 of that content. A file posted again, by anyone and to any room,
+ * is recognised by its hash and never uploaded or stored twice.
+ *
+ * Uploads are written to <hash>.part as their chunks arrive and renamed
+ * once the contents are checked against the hash. A part file outlives the
+ * connection that was writing it, so an interrupted upload resumes from
+ * where it stopped
+ */
+class AttachmentStore {
+
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * Bytes of a file mapped at a time while it is hashed
+     */
+    private static final long HASH_WINDOW = 64 * 1024 * 1024;
+
+    private final Path directory;
+    private final long maxSize;
+
+    /**
+     * Uploads in progress, by hash. At most one client uploads a hash at a time
+     */
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    private AttachmentStore(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Open the store from the startup options: --attachment-dir and
+     * --attachment-max-mb. Disabled with --attachments=false
+     * @param options parsed startup options
+     * @return store, null if attachments are disabled
+     * @throws IOException if the directory cannot be created
+     */
+    static AttachmentStore open(ServerOptions options) throws IOException {
+        if (!options.getBoolean("attachments", true)) return null;
+
+        Path directory = Path.of(options.getString("attachment-dir", "attachments"));
+        Files.createDirectories(directory);
+        return new AttachmentStore(directory, options.getLong("attachment-max-mb", 100) * 1024 * 1024);
+    }
+
+    /**
+     * @param hash attachment hash
+     * @return size of the stored file, -1 if it is not stored
+     */
+    long storedSize(String hash) {
+        if (!Attachment.isValidHash(hash)) return -1;
+
+        try {
+            return Files.size(directory.resolve(hash));
+        }
+        catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Start or resume uploading an attachment that is not stored yet
+     * @param owner client uploading
+     * @param attachment attachment offered
+     * @param room room it is posted to
+     * @return upload, positioned at the first byte still wanted
+     * @throws IOException with a reason to give the client if the upload cannot be accepted
+     */
+    Upload begin(Session owner, Attachment attachment, String room) throws IOException {
+        String hash = attachment.getHash();
+        if (!Attachment.isValidHash(hash)) throw new IOException("Invalid hash");
+        if (attachment.getSize() < 0 || attachment.getSize() > maxSize) {
+            throw new IOException("Attachments are limited to " + maxSize / (1024 * 1024) + " MB");
+        }
+
+        Upload upload = new Upload(owner, attachment, room);
+        Upload current = uploads.putIfAbsent(hash, upload);
+        if (current != null) {
+            if (current.owner != owner) throw new IOException("Already being uploaded");
+
+            // Offered again on the same connection, start over from what is on disk
+            current.close();
+            uploads.put(hash, upload);
+        }
+
+        try {
+            FileChannel channel = FileChannel.open(directory.resolve(hash + PART_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() > attachment.getSize()) channel.truncate(0);
+            upload.open(channel);
+        }
+        catch (IOException e) {
+            uploads.remove(hash, upload);
+            System.err.println("Could not open upload " + hash + ": " + e.getMessage());
+            throw new IOException("Could not store attachment");
+        }
+        return upload;
+    }
+
+    /**
+     * @param owner client uploading
+     * @param hash attachment hash
+     * @return owner's upload of that hash, null if there is none
+     */
+    Upload upload(Session owner, String hash) {
+        Upload upload = uploads.get(hash);
+        return upload != null && upload.owner == owner ? upload : null;
+    }
+
+    /**
+     * Check a fully received upload against its hash and, if it matches,
+     * store it. A part file that does not match is deleted
+     * @param upload upload whose last byte has been written
+     * @return true if the attachment is now stored
+     */
+    boolean complete(Upload upload) {
+        String hash = upload.attachment.getHash();
+        Path part = directory.resolve(hash + PART_SUFFIX);
+        try {
+            boolean matches = hash.equals(hash(upload.channel, upload.attachment.getSize()));
+            upload.close();
+
+            if (matches) {
+                Files.move(part, directory.resolve(hash), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            else {
+                Files.deleteIfExists(part);
+            }
+            return matches;
+        }
+        catch (IOException e) {
+            System.err.println("Could not store attachment " + hash + ": " + e.getMessage());
+            upload.close();
+            return false;
+        }
+        finally {
+            uploads.remove(hash, upload);
+        }
+    }
+
+    /**
+     * Hash a file by mapping it rather than reading it onto the heap
+     */
+    private static String hash(FileChannel channel, long size) throws IOException {
+        MessageDigest digest = sha256();
+        for (long position = 0; position < size; position += HASH_WINDOW) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(HASH_WINDOW, size - position));
+            digest.update(window);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param hash attachment hash
+     * @return stored file opened for reading, null if it is not stored
+     */
+    FileChannel openForRead(String hash) {
+        if (!Attachment.isValidHash(hash)) return null;
+
+        try {
+            return FileChannel.open(directory.resolve(hash), StandardOpenOption.READ);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stop an upload that has gone wrong. Its part file is kept, so the
+     * client can offer the attachment again and resume from what was written
+     * @param upload upload to stop
+     */
+    void cancel(Upload upload) {
+        if (uploads.remove(upload.attachment.getHash(), upload)) upload.close();
+    }
+
+    /**
+     * Close the uploads of a client that has disconnected. Their part files
+     * are kept so the uploads can be resumed
+     * @param owner disconnected client
+     */
+    void abandon(Session owner) {
+        for (Upload upload : uploads.values()) {
+            if (upload.owner == owner) cancel(upload);
+        }
+    }
+
+    /**
+     * Close every upload in progress
+     */
+    void close() {
+        for (Upload upload : uploads.values()) {
+            upload.close();
+        }
+        uploads.clear();
+    }
+
+    /**
+     * One client's upload of one attachment. Chunks must arrive in order,
+     * each starting where the last ended
+     */
+    static class Upload {
+        private final Session owner;
+        private final Attachment attachment;
+        private final String room;
+        private FileChannel channel;
+
+        /**
+         * Bytes written so far. Only changed by the owner's reading thread
+         */
+        private long position;
+
+        private Upload(Session owner, Attachment attachment, String room) {
+            this.owner = owner;
+            this.attachment = attachment;
+            this.room = room;
+        }
+
+        private void open(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.position = channel.size();
+        }
+
+        /**
+         * Write a chunk at the end of what has been received. The chunk is
+         * written straight from the buffer it was read into
+         * @param offset offset of the chunk within the attachment
+         * @param data chunk contents
+         * @throws IOException if the chunk is out of order, runs past the end or cannot be written
+         */
+        void write(long offset, ByteBuffer data) throws IOException {
+            if (offset != position) throw new IOException("Expected chunk at " + position + ", got " + offset);
+            if (position + data.remaining() > attachment.getSize()) throw new IOException("Chunk runs past the end of the attachment");
+
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+        }
+
+        /**
+         * @return true once every byte has been received
+         */
+        boolean isComplete() {
+            return position == attachment.getSize();
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        Attachment getAttachment() {
+            return attachment;
+        }
+
+        String getRoom() {
+            return room;
+        }
+
+        private void close() {
+            try {
+                if (channel != null) channel.close();
+            }
+            catch (IOException e) {
+                System.err.println("I/O Exception: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+import message.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One stored attachment being sent to one client, as a series of CHUNK
+ * frames. Each frame's header is encoded on the heap and its data sent with
+ * FileChannel.transferTo, so the file's contents go from the page cache to
+ * the socket without being copied into Java. A connection's writer sends one
+ * chunk at a time, and only when no chat frames are waiting, so an
+ * attachment never holds up chat by more than one chunk
+ */
+class AttachmentTransfer {
+
+    /**
+     * Most bytes of the file carried by one CHUNK frame
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final String hash;
+    private final FileChannel file;
+    private final long size;
+    private final int version;
+
+    /**
+     * Bytes of the file sent so far
+     */
+    private long position = 0;
+
+    /**
+     * Header of the chunk being sent, null between chunks
+     */
+    private ByteBuffer header;
+
+    /**
+     * End of the chunk being sent
+     */
+    private long chunkEnd;
+
+    private boolean started = false;
+
+    /**
+     * @param hash attachment hash
+     * @param file stored file, closed once sent
+     * @param version protocol version of the client
+     * @throws IOException if the file's size cannot be read
+     */
+    AttachmentTransfer(String hash, FileChannel file, int version) throws IOException {
+        this.hash = hash;
+        this.file = file;
+        this.size = file.size();
+        this.version = version;
+    }
+
+    /**
+     * Send the next chunk, or carry on with one already started. Nothing
+     * else may be written to the channel until this returns true
+     * @param channel client's channel, blocking or not
+     * @return true if the chunk has been sent in full, false if the channel
+     *         would not take it all and this must be called again
+     * @throws IOException if the write fails
+     */
+    boolean writeChunk(SocketChannel channel) throws IOException {
+        if (header == null) {
+            int length = (int) Math.min(CHUNK_SIZE, size - position);
+            header = Frame.encodeChunkHeader(version, hash, position, size, length);
+            chunkEnd = position + length;
+            started = true;
+        }
+
+        if (header.hasRemaining()) {
+            Metrics.bytesOut.add(channel.write(header));
+            if (header.hasRemaining()) return false;
+        }
+
+        while (position < chunkEnd) {
+            long sent = file.transferTo(position, chunkEnd - position, channel);
+            if (sent == 0) return false;
+
+            position += sent;
+            Metrics.bytesOut.add(sent);
+        }
+
+        header = null;
+        return true;
+    }
+
+    /**
+     * @return true once every chunk has been sent
+     */
+    boolean isDone() {
+        return started && header == null && position == size;
+    }
+
+    /**
+     * Close the file, whether or not it has been sent
+     */
+    void close() {
+        try {
+            file.close();
+        }
+        catch (IOException e) {
+            System.err.println("I/O Exception: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package server;
+
+import message.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Fans messages out to the members of their room. Rooms are sharded across
+ * a fixed number of workers, each with its own ring buffer and thread, so
+ * busy rooms are spread over several cores. All messages for one room go
+ * through the same worker, which keeps each sender's messages in order.
+ *
+ * A worker moves what arrives in its buffer into a FairQueue and delivers
+ * from there by deficit round robin across senders, taking in new arrivals
+ * between small batches. A client posting far more than others delays
+ * their messages by a bounded amount instead of queueing them behind its
+ * whole backlog, and messages beyond its share of the queue are dropped
+ * rather than filling the buffer everyone publishes to.
+ *
+ * If a MessageLog is given, messages are sequenced by the log and appended
+ * to it before they are sent. If a MulticastPublisher is given, every message
+ * is multicast once and only sent directly to members that have not
+ * subscribed to the group
+ */
+class Broadcaster {
+
+    /**
+     * Most messages a worker delivers per commit when the log must be forced
+     * before delivery
+     */
+    private static final int COMMIT_BATCH_SIZE = 1024;
+
+    /**
+     * Most messages a worker delivers before taking in new arrivals, when
+     * each is delivered as soon as it is sequenced
+     */
+    private static final int DELIVERY_BATCH_SIZE = 64;
+
+    private final RoomRegistry rooms;
+    private final MessageLog log;
+    private final SearchIndex search;
+    private final ConsoleLog console;
+    private final MulticastPublisher multicast;
+    private final RingBuffer<Message>[] shards;
+    private final FairQueue[] waiting;
+    private final Thread[] workers;
+
+    /**
+     * Sequence number of the last message broadcast, shared by every shard.
+     * Unused if there is a log, which keeps its own
+     */
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    private volatile boolean running = false;
+
+    /**
+     * @param rooms rooms to route messages through
+     * @param log log to append messages to, null to keep no history
+     * @param search index to add logged messages to, null if search is off
+     * @param console console to print broadcast messages on
+     * @param multicast publisher to multicast messages with, null to send them all directly
+     * @param shardCount number of worker threads
+     * @param ringSize ring buffer slots per worker
+     * @param senderQueue most messages per sender waiting in a worker
+     * @param waitStrategy name of the wait strategy for idle workers
+     */
+    Broadcaster(RoomRegistry rooms, MessageLog log, SearchIndex search, ConsoleLog console, MulticastPublisher multicast,
+                int shardCount, int ringSize, int senderQueue, String waitStrategy) {
+        this.rooms = rooms;
+        this.log = log;
+        this.search = search;
+        this.console = console;
+        this.multicast = multicast;
+        @SuppressWarnings("unchecked")
+        RingBuffer<Message>[] rings = (RingBuffer<Message>[]) new RingBuffer<?>[Math.max(1, shardCount)];
+        this.shards = rings;
+        this.waiting = new FairQueue[shards.length];
+        this.workers = new Thread[shards.length];
+
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new RingBuffer<>(ringSize, WaitStrategy.of(waitStrategy));
+            waiting[i] = new FairQueue(senderQueue);
+        }
+    }
+
+    /**
+     * Start one worker per shard
+     * @param threadMode kind of thread to run workers on
+     */
+    void start(ThreadMode threadMode) {
+        running = true;
+
+        for (int i = 0; i < shards.length; i++) {
+            RingBuffer<Message> shard = shards[i];
+            FairQueue queue = waiting[i];
+            workers[i] = threadMode.newThread("broadcast-" + i, () -> drain(shard, queue));
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queue message for its room's worker, waiting if that worker's buffer is full
+     * @param message message to broadcast
+     */
+    void publish(Message message) {
+        shards[shardOf(message.getRoom())].publish(message);
+    }
+
+    private int shardOf(String roomName) {
+        return (roomName.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Send every message in a shard to the members of its room, taking
+     * turns between senders. Sleeps according to the configured wait
+     * strategy while there is nothing to send
+     */
+    private void drain(RingBuffer<Message> shard, FairQueue queue) {
+        boolean commitFirst = log != null && log.commitsBeforeDelivery();
+        int batchSize = commitFirst ? COMMIT_BATCH_SIZE : DELIVERY_BATCH_SIZE;
+        List<Message> batch = new ArrayList<>();
+        Consumer<Message> enqueue = message -> {
+            if (!queue.add(message)) Metrics.messagesShed.increment();
+        };
+
+        while (running) {
+            try {
+                // Only wait when there is nothing to deliver, otherwise take in whatever has arrived
+                if (queue.isEmpty()) shard.drain(enqueue);
+                else shard.poll(enqueue, Integer.MAX_VALUE);
+
+                for (int i = 0; i < batchSize; i++) {
+                    Message next = queue.poll();
+                    if (next == null) break;
+
+                    if (!commitFirst) {
+                        broadcast(next);
+                        continue;
+                    }
+                    Message message = sequence(next);
+                    if (message != null) batch.add(message);
+                }
+                if (batch.isEmpty()) continue;
+
+                // Sequence and append a batch, force it to disk once, then deliver it
+                log.commit(batch.get(batch.size() - 1).getSequence());
+                for (Message message : batch) {
+                    deliver(message);
+                }
+                batch.clear();
+            }
+            catch (InterruptedException e) {
+                // Woken by close(), loop condition decides whether to carry on
+            }
+        }
+    }
+
+    private void broadcast(Message received) {
+        Message message = sequence(received);
+        if (message != null) deliver(message);
+    }
+
+    /**
+     * Give message its sequence number, appending it to the log if there is
+     * one and queueing it for the search index
+     * @param received message from a client
+     * @return sequenced message, null if its room no longer exists
+     */
+    private Message sequence(Message received) {
+        if (rooms.get(received.getRoom()) == null) return null;
+
+        if (log == null) return received.withSequence(sequence.incrementAndGet());
+
+        Message message = log.append(received);
+        if (search != null) search.add(message);
+        return message;
+    }
+
+    private void deliver(Message message) {
+        // Multicast even if the room has gone, so subscribers see no gap in the sequence
+        if (multicast != null) multicast.publish(message);
+
+        Room room = rooms.get(message.getRoom());
+        if (room == null) return;
+
+        console.message(message);
+
+        // Only the room's members are visited, whatever the number of connected clients
+        long start = System.nanoTime();
+        for (Session member : room.members()) {
+
+            // Don't echo message back to its sender
+            if (member.getId() == message.getSenderId()) continue;
+
+            // Subscribers get it from the multicast group
+            if (message.getSequence() >= member.getMulticastFrom()) continue;
+
+            member.sendMessage(message);
+        }
+        Metrics.fanOut.record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * @return sequence number of the last message broadcast, 0 if none yet
+     */
+    long lastSequence() {
+        return log != null ? log.lastSequence() : sequence.get();
+    }
+
+    /**
+     * @return messages waiting in every shard's buffer and fair queue
+     */
+    long queueDepth() {
+        long depth = 0;
+        for (int i = 0; i < shards.length; i++) {
+            depth += shards[i].size() + waiting[i].size();
+        }
+        return depth;
+    }
+
+    /**
+     * Stop every worker and release producers waiting on a full buffer
+     */
+    void close() {
+        running = false;
+
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].close();
+            if (workers[i] != null) workers[i].interrupt();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package server;
+
+import message.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brings a binary client up to date with the messages it missed while
+ * disconnected, then hands it over to live traffic.
+ *
+ * The session joins its rooms before the replay starts, and live messages
+ * for it are held back until the replay is done. The replay covers the log up
+ * to the last sequence at the time it started; held messages after that are
+ * sent straight after it, so the client sees no gap and no duplicate at the
+ * switch. Messages from the client's previous connection are left out, as
+ * the client already has them.
+ */
+class CatchUp {
+    private final Session session;
+
+    /**
+     * Last sequence the client saw, 0 if none
+     */
+    private final long lastSeen;
+
+    /**
+     * Id the client had on its previous connection, 0 if none
+     */
+    private final int previousId;
+
+    /**
+     * Live messages held back until the replay is sent. Guarded by this
+     */
+    private final List<Message> held = new ArrayList<>();
+
+    /**
+     * Last sequence read from the log for the replay. Written before live
+     */
+    private long replayedUpTo = 0;
+
+    /**
+     * True once the replay has been sent
+     */
+    private volatile boolean live = false;
+
+    /**
+     * @param session session to bring up to date
+     * @param lastSeen last sequence the client saw, 0 if none
+     * @param previousId id the client had on its previous connection, 0 if none
+     */
+    CatchUp(Session session, long lastSeen, int previousId) {
+        this.session = session;
+        this.lastSeen = lastSeen;
+        this.previousId = previousId;
+    }
+
+    /**
+     * Hold a live message back if the replay has not been sent yet. Once it
+     * has, messages it already covered are dropped: a message can be logged
+     * before the replay starts but reach the broadcaster's delivery loop only
+     * after the session has gone live
+     * @param message live message for the session
+     * @return true if the message was held or dropped, false if it should be
+     *         sent as usual
+     */
+    boolean hold(Message message) {
+        if (!live) {
+            synchronized (this) {
+                if (!live) {
+                    held.add(message);
+                    return true;
+                }
+            }
+        }
+
+        return message.getSequence() <= replayedUpTo;
+    }
+
+    /**
+     * Send the client everything it missed in its rooms as one batch, then
+     * switch it to live traffic. If it missed more than limit messages, only
+     * the latest limit are replayed
+     * @param log log to replay from
+     * @param rooms rooms, to check which messages the client should see
+     * @param limit most messages to replay
+     */
+    void run(MessageLog log, RoomRegistry rooms, int limit) {
+        long last = log.lastSequence();
+        long from = last - lastSeen > limit ? last - limit + 1 : lastSeen + 1;
+
+        List<Message> batch = new ArrayList<>();
+        if (from <= last) {
+            log.read(from, message -> {
+                if (message.getSequence() > last) return false;
+
+                if (message.getSenderId() != previousId && rooms.isMember(session, message.getRoom())) {
+                    batch.add(message);
+                }
+                return true;
+            });
+        }
+
+        // Hold the lock while sending, so live messages queue up behind the batch
+        synchronized (this) {
+            for (Message message : held) {
+                if (message.getSequence() > last) batch.add(message);
+            }
+            held.clear();
+
+            if (!batch.isEmpty()) session.sendHistory(batch);
+
+            replayedUpTo = last;
+            live = true;
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package server;
+
+import message.Frame;
+import message.Message;
+import message.Protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Blocking connection used by the thread-per-client engine. Not a thread
+ * itself; the server runs it, and its writer, on platform or virtual threads
+ * depending on the selected ThreadMode
+ */
+class ClientSession implements Session, Runnable {
+
+    /**
+     * Most frames written with one gathering write
+     */
+    private static final int MAX_GATHER = 64;
+
+    private final String clientName;
+    private final int clientId;
+
+    /**
+     * Negotiated protocol version, Protocol.LEGACY_VERSION for writeUTF clients
+     */
+    private final int version;
+
+    private final AtomicBoolean running;
+    private final SocketChannel clientChannel;
+
+    private final DataInputStream dis;
+
+    /**
+     * HELLO frame sent by a binary client, null for legacy clients
+     */
+    private final Frame hello;
+
+    /**
+     * Catch-up for this session, null if there was none
+     */
+    private volatile CatchUp catchUp;
+
+    /**
+     * First sequence sent by multicast only, Long.MAX_VALUE until the client subscribes
+     */
+    private volatile long multicastFrom = Long.MAX_VALUE;
+
+    /**
+     * Frames waiting for the writer thread, the only thread writing to
+     * clientChannel once the handshake is done
+     */
+    private final OutboundQueue outbound;
+
+    /**
+     * Messages the client may send, taken as they are read
+     */
+    private final TokenBucket rateLimit = Server.newRateLimit();
+
+    /**
+     * Secret the client must send to take its name back when it reconnects
+     */
+    private final String resumeToken = Server.newResumeToken();
+
+    /**
+     * System.nanoTime() of the last read. Written by the reading thread, read by the heartbeat thread
+     */
+    private volatile long lastRead = System.nanoTime();
+
+    /**
+     * Attachments being sent to the client, a chunk of each in turn
+     */
+    private final ConcurrentLinkedQueue<AttachmentTransfer> transfers = new ConcurrentLinkedQueue<>();
+
+    private final FlushPolicy flushPolicy;
+
+    /**
+     * Initialise client session with all relevant data
+     * @param name client name, read during the handshake
+     * @param id server assigned client id
+     * @param version negotiated protocol version
+     * @param clientChannel blocking channel for the client
+     * @param dis input stream of the channel's socket
+     * @param hello HELLO frame from a binary client, null for legacy clients
+     */
+    public ClientSession(String name, int id, int version, SocketChannel clientChannel, DataInputStream dis, Frame hello) {
+        this.running = new AtomicBoolean(true);
+
+        this.clientName = name;
+        this.clientId = id;
+        this.version = version;
+        this.clientChannel = clientChannel;
+
+        this.dis = dis;
+        this.hello = hello;
+        this.flushPolicy = Server.flushPolicy();
+        this.outbound = Server.newOutboundQueue(() -> version);
+    }
+
+    /**
+     * Run the handshake on a newly accepted channel. Clients that open with a
+     * non-empty writeUTF name get the legacy protocol, clients that open with
+     * the protocol handshake get the negotiated binary version
+     * @param channel newly accepted blocking channel
+     * @return session ready to be started
+     * @throws IOException if the handshake fails, the channel is then closed
+     */
+    static ClientSession handshake(SocketChannel channel) throws IOException {
+        ClientSession session = null;
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new CountingInputStream(channel.socket().getInputStream())));
+
+            // Legacy clients start with the length of their name, never 0
+            dis.mark(Protocol.CLIENT_HANDSHAKE_SIZE);
+            if (dis.readUnsignedShort() != 0) {
+                dis.reset();
+                String name = dis.readUTF();
+                session = new ClientSession(name, Server.nextClientId(), Protocol.LEGACY_VERSION, channel, dis, null);
+
+                // Legacy clients cannot be told why, the connection just closes
+                if (!Server.registerSession(session, "")) throw new IOException("Name " + name + " is already in use");
+                return session;
+            }
+
+            byte[] magic = new byte[Protocol.MAGIC.length];
+            dis.readFully(magic);
+            if (!Protocol.isMagic(magic, 0)) throw new IOException("Unknown handshake");
+
+            int version = Protocol.negotiate(dis.readUnsignedByte(), dis.readUnsignedByte());
+            writeFully(channel, ByteBuffer.wrap(Protocol.serverHandshake(version)));
+            if (version == 0) throw new IOException("No protocol version in common with client");
+
+            Frame hello = Frame.read(dis, version);
+            if (hello.getType() != Frame.HELLO) throw new IOException("Expected HELLO frame");
+
+            int id = Server.nextClientId();
+            ClientSession candidate = new ClientSession(hello.getName(), id, version, channel, dis, hello);
+            if (!Server.registerSession(candidate, Server.resumeTokenOf(hello, version))) {
+                String reason = "Name " + hello.getName() + " is already in use";
+                writeFully(channel, new Frame(Frame.WELCOME, 0, System.currentTimeMillis(), 0, hello.getName(), reason)
+                        .encode(version, false));
+                throw new IOException(reason);
+            }
+            session = candidate;
+
+            Frame welcome = new Frame(Frame.WELCOME, Server.lastSequence(), System.currentTimeMillis(), id, hello.getName(),
+                    candidate.resumeToken, Server.multicastGroup(version));
+            writeFully(channel, welcome.encode(version, false));
+
+            return session;
+        }
+        catch (IOException e) {
+            if (session != null) Server.removeSession(session, session.getName());
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read data from input stream until the client disconnects and queue
+     * each message for broadcast, then close the session
+     */
+    public void run() {
+        try {
+            while (running.get()) {
+                if (version == Protocol.LEGACY_VERSION) {
+                    String clientMessage = dis.readUTF();
+                    lastRead = System.nanoTime();
+                    Server.addMessageToBroadcast(this, new Message(clientId, clientName, clientMessage));
+                    continue;
+                }
+
+                Frame frame = Frame.read(dis, version);
+                lastRead = System.nanoTime();
+                onFrame(frame);
+            }
+        }
+        catch (EOFException e) {
+            System.err.println("Input stream reached end of stream before reading all bytes.");
+        }
+        catch (UTFDataFormatException e) {
+            System.err.println("Bytes do represent UTF-8.");
+        }
+        catch (IOException e) {
+            System.err.println("Client Disconnected.");
+        }
+        finally {
+            // However the reader stops, the writer and the socket go with it
+            Server.removeSession(this, clientName);
+            close();
+        }
+    }
+
+    /**
+     * Handle a frame from a binary client
+     * @param frame decoded frame
+     */
+    private void onFrame(Frame frame) {
+        switch (frame.getType()) {
+            case Frame.CHAT:
+                Server.addMessageToBroadcast(this, new Message(clientId, clientName, frame.getRoom(), frame.getBody()));
+                break;
+            case Frame.JOIN:
+                Server.joinRoom(this, frame.getRoom());
+                break;
+            case Frame.LEAVE:
+                Server.leaveRoom(this, frame.getRoom());
+                break;
+            case Frame.SUBSCRIBE:
+                if (version < Protocol.MULTICAST_VERSION) break;
+                multicastFrom = Server.subscribeMulticast();
+                sendFrame(new Frame(Frame.SUBSCRIBE, multicastFrom, System.currentTimeMillis(), clientId, clientName, ""));
+                break;
+            case Frame.RESEND:
+                if (version >= Protocol.MULTICAST_VERSION) Server.resend(this, frame);
+                break;
+            case Frame.UPLOAD:
+                if (version >= Protocol.ATTACHMENT_VERSION) Server.upload(this, frame);
+                break;
+            case Frame.CHUNK:
+                // Read onto the heap by Frame.read, written to the file from there
+                if (version >= Protocol.ATTACHMENT_VERSION) Server.receiveChunk(this, frame);
+                break;
+            case Frame.FETCH:
+                if (version >= Protocol.ATTACHMENT_VERSION) Server.fetchAttachment(this, frame);
+                break;
+            case Frame.DIRECT:
+                if (version >= Protocol.DIRECT_VERSION) Server.sendDirect(this, frame);
+                break;
+            case Frame.PRESENCE:
+                if (version >= Protocol.PRESENCE_VERSION) Server.updatePresence(this, frame);
+                break;
+            case Frame.SEARCH:
+                if (version >= Protocol.SEARCH_VERSION) Server.search(this, frame);
+                break;
+            case Frame.PING:
+                // Charged like a message, so a client cannot flood its own queue with PONGs
+                if (version >= Protocol.HEARTBEAT_VERSION && Server.takeToken(this, Protocol.DEFAULT_ROOM)) {
+                    sendFrame(new Frame(Frame.PONG, 0, System.currentTimeMillis(), 0, "", ""));
+                }
+                break;
+            case Frame.PONG:
+                // Being read at all is what counts
+                break;
+            default:
+                // Not a frame clients send, ignore
+        }
+    }
+
+    /**
+     * Queue message's shared frame for this client's protocol version. Never
+     * blocks: the writer thread writes it, and if the client has fallen too
+     * far behind the slow consumer policy decides what is dropped
+     * @param message message to send
+     */
+    public void sendMessage(Message message) {
+        CatchUp held = catchUp;
+        if (held != null && held.hold(message)) return;
+
+        try {
+            queue(message.getFrame(version), false);
+        }
+        catch (UTFDataFormatException e) {
+            System.err.println("Message too long to send: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queue a direct message frame, applying the slow consumer policy
+     * @param frame encoded DIRECT frame
+     */
+    public void sendDirect(ByteBuffer frame) {
+        queue(frame, false);
+    }
+
+    public void sendPresence(ByteBuffer frame) {
+        queue(frame, true);
+    }
+
+    /**
+     * Queue every message's frame, applying the slow consumer policy
+     * @param messages messages to send, in sequence order
+     */
+    public void sendHistory(List<Message> messages) {
+        for (Message message : messages) {
+            try {
+                if (!queue(message.getFrame(version), false)) return;
+            }
+            catch (UTFDataFormatException e) {
+                System.err.println("Message too long to send: " + e.getMessage());
+            }
+        }
+    }
+
+    public void sendFrame(Frame frame) {
+        queue(frame.encode(version, false), true);
+    }
+
+    /**
+     * Queue a frame, and disconnect the client if it has fallen too far behind
+     * @param frame encoded frame
+     * @param control true for replies and roster updates, which the slow
+     *        consumer policy never drops, false for messages
+     * @return false if the client is being disconnected
+     */
+    private boolean queue(ByteBuffer frame, boolean control) {
+        if (control ? outbound.offerControl(frame) : outbound.offer(frame)) return true;
+
+        System.err.println("Client " + clientName + " could not keep up. Disconnecting");
+        close();
+        return false;
+    }
+
+    /**
+     * Queue an attachment and wake the writer, which sends it between chat frames
+     * @param hash attachment hash
+     * @param file stored file, opened for reading
+     */
+    public void sendAttachment(String hash, FileChannel file) {
+        try {
+            transfers.add(new AttachmentTransfer(hash, file, version));
+        }
+        catch (IOException e) {
+            System.err.println("Could not send attachment " + hash + ": " + e.getMessage());
+            closeQuietly(file);
+            return;
+        }
+
+        outbound.wake();
+        if (!running.get()) closeTransfers();
+    }
+
+    /**
+     * Write queued frames until the session is closed. Waits up to the flush
+     * delay after the first frame arrives so frames queued in the meantime go
+     * out in the same gathering write. Attachments are sent a chunk at a
+     * time, only when no frames are queued. Runs on the session's writer thread
+     */
+    void writeFrames() {
+        ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+        try {
+            while (true) {
+                // Only wait for frames while there is no attachment to send
+                int count = transfers.isEmpty()
+                        ? outbound.take(batch, flushPolicy.getDelayNanos(), flushPolicy.getMaxBytes())
+                        : outbound.poll(batch, 0, batch.length);
+
+                if (count > 0) {
+                    long remaining = 0;
+                    for (int i = 0; i < count; i++) {
+                        remaining += batch[i].remaining();
+                    }
+                    while (remaining > 0) {
+                        long written = clientChannel.write(batch, 0, count);
+                        remaining -= written;
+                        Metrics.bytesOut.add(written);
+                    }
+                    Arrays.fill(batch, 0, count, null);
+                    continue;
+                }
+
+                if (outbound.isClosed()) break;
+
+                AttachmentTransfer transfer = transfers.poll();
+                if (transfer != null) sendChunk(transfer);
+            }
+        }
+        catch (IOException e) {
+            if (running.get()) System.err.println("I/O Exception in ClientSession: " + e.getMessage());
+            close();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        closeTransfers();
+    }
+
+    /**
+     * Send one chunk of an attachment, then put it back at the end of the
+     * line unless that was its last
+     */
+    private void sendChunk(AttachmentTransfer transfer) throws IOException {
+        try {
+            while (!transfer.writeChunk(clientChannel)) {
+                // Blocking channel, but transferTo may still send less than asked
+            }
+        }
+        catch (IOException e) {
+            transfer.close();
+            throw e;
+        }
+
+        if (transfer.isDone()) transfer.close();
+        else transfers.add(transfer);
+    }
+
+    private void closeTransfers() {
+        AttachmentTransfer transfer;
+        while ((transfer = transfers.poll()) != null) {
+            transfer.close();
+        }
+    }
+
+    public void setCatchUp(CatchUp catchUp) {
+        this.catchUp = catchUp;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void closeQuietly(FileChannel file) {
+        try {
+            file.close();
+        }
+        catch (IOException ignored) {
+            // Only read from, nothing to lose
+        }
+    }
+
+    public long getMulticastFrom() {
+        return multicastFrom;
+    }
+
+    public int getId() {
+        return clientId;
+    }
+
+    public String getName() {
+        return clientName;
+    }
+
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * @return HELLO frame sent by a binary client, null for legacy clients
+     */
+    public Frame getHello() {
+        return hello;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public long getLastRead() {
+        return lastRead;
+    }
+
+    public TokenBucket getRateLimit() {
+        return rateLimit;
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    /**
+     * Close client socket and stop the writer
+     */
+    public void close() {
+        running.set(false);
+        outbound.close();
+        try {
+            clientChannel.close();
+        }
+        catch (IOException e) {
+            System.err.println("Could not close socket. Closing Client");
+        }
+    }
+
+    /**
+     * Counts bytes read from the client for the server's metrics
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) Metrics.bytesIn.increment();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) Metrics.bytesIn.add(read);
+            return read;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package server;
+
+import message.Message;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Prints to the server console from its own thread, so broadcasters and
+ * sessions never wait on System.out. Broadcast messages are sampled: one in
+ * every sampleEvery is printed, chosen at random. If the console falls
+ * behind, lines are dropped and counted rather than queued without limit
+ */
+class ConsoleLog {
+
+    private final int sampleEvery;
+    private final BlockingQueue<Object> lines;
+    private Thread printer;
+
+    /**
+     * @param sampleEvery print one broadcast message in this many, 1 to print all
+     * @param capacity most lines waiting to be printed
+     */
+    ConsoleLog(int sampleEvery, int capacity) {
+        this.sampleEvery = Math.max(1, sampleEvery);
+        this.lines = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    /**
+     * Start printing
+     * @param threadMode kind of thread to print on
+     */
+    void start(ThreadMode threadMode) {
+        printer = threadMode.newThread("console", this::print);
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    /**
+     * Print a broadcast message, if it is sampled. Formatting is left to the printer thread
+     * @param message message broadcast
+     */
+    void message(Message message) {
+        if (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) return;
+        offer(message);
+    }
+
+    /**
+     * Print a line of server information
+     * @param line line to print
+     */
+    void info(String line) {
+        offer(line);
+    }
+
+    private void offer(Object line) {
+        if (!lines.offer(line)) Metrics.consoleLinesDropped.increment();
+    }
+
+    private void print() {
+        long droppedReported = 0;
+        try {
+            while (true) {
+                Object line = lines.take();
+                System.out.println(line instanceof Message ? ((Message) line).getMessage() : line);
+
+                long dropped = Metrics.consoleLinesDropped.sum();
+                if (dropped != droppedReported && lines.isEmpty()) {
+                    System.out.println("<System Info>: " + (dropped - droppedReported) + " console lines dropped");
+                    droppedReported = dropped;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Print what is still waiting, then stop
+     */
+    void close() {
+        if (printer != null) {
+            printer.interrupt();
+            try {
+                printer.join(1000);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Object line;
+        while ((line = lines.poll()) != null) {
+            System.out.println(line instanceof Message ? ((Message) line).getMessage() : line);
+        }
+    }
+}
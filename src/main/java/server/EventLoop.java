@@ -0,0 +1,242 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single threaded selector loop. Owns every channel registered with it;
+ * other threads interact with those channels only by submitting tasks
+ * through execute() or schedule()
+ */
+class EventLoop implements Runnable {
+
+    /**
+     * Size of the read buffer shared by every connection on this loop. Must
+     * hold the largest partial frame plus a full read
+     */
+    private static final int READ_BUFFER_SIZE = 128 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    /**
+     * Tasks waiting for their deadline, soonest first. Only used on the loop thread
+     */
+    private final PriorityQueue<ScheduledTask> timers = new PriorityQueue<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param id loop number, used for the thread name
+     * @throws IOException if the selector cannot be opened
+     */
+    EventLoop(int id) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "nio-loop-" + id);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Register a newly accepted channel with this loop
+     * @param channel non-blocking channel
+     * @param acceptedAt System.nanoTime() when the channel was accepted
+     */
+    void register(SocketChannel channel, long acceptedAt) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioSession(this, channel, key, acceptedAt));
+            }
+            catch (IOException e) {
+                System.err.println("I/O Exception: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * Run a task on the loop thread. Wakes the selector at most once per
+     * batch of submitted tasks
+     * @param task task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+
+        if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @return true if called on the loop thread
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the loop thread once delayNanos have passed. The selector
+     * times out in whole milliseconds, so the delay is rounded up to the next
+     * millisecond
+     * @param task task to run
+     * @param delayNanos nanoseconds to wait
+     */
+    void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        execute(() -> timers.add(new ScheduledTask(deadline, task)));
+    }
+
+    /**
+     * @return buffer shared by all reads on this loop. Only valid on the loop thread
+     */
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                // Don't block if the loop queued tasks for itself last time round
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                }
+                else if (!timers.isEmpty()) {
+                    long waitNanos = timers.peek().deadline - System.nanoTime();
+                    if (waitNanos > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos + 999_999)));
+                    }
+                    else {
+                        selector.selectNow();
+                    }
+                }
+                else {
+                    selector.select();
+                }
+                wakeupPending.set(false);
+
+                processSelectedKeys();
+                runTasks();
+                runTimers();
+            }
+            catch (IOException e) {
+                System.err.println("I/O Exception in event loop: " + e.getMessage());
+            }
+            catch (RuntimeException e) {
+                System.err.println("Error in event loop: " + e);
+            }
+        }
+
+        // Loop stopped, close every channel it owns
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioSession session) {
+                session.close();
+            }
+        }
+
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+            System.err.println("I/O Exception: " + e.getMessage());
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runSafely(task);
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            runSafely(timers.poll().task);
+        }
+    }
+
+    /**
+     * Run a task, logging anything it throws. One broken task must not stop
+     * the loop, every other connection on it would go with it
+     */
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        }
+        catch (RuntimeException e) {
+            System.err.println("Task failed in event loop: " + e);
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            NioSession session = (NioSession) key.attachment();
+            try {
+                if (key.isReadable()) session.onReadable();
+                if (key.isValid() && key.isWritable()) session.onWritable();
+            }
+            catch (CancelledKeyException e) {
+                session.close();
+            }
+            catch (RuntimeException e) {
+                // A bug handling one connection closes that connection, not the loop
+                System.err.println("Closing connection after error in event loop: " + e);
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Stop the loop. Channels are closed by the loop thread on its way out
+     */
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Task waiting in the timer queue
+     */
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        private final long deadline;
+        private final Runnable task;
+
+        ScheduledTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public int compareTo(ScheduledTask other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException ignored) {
+            // Already closing, nothing else to do
+        }
+    }
+}
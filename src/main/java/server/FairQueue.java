@@ -0,0 +1,130 @@
+package server;
+
+import message.Message;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Messages waiting in a broadcast worker, queued per sender and taken out by
+ * deficit round robin. Each sender with messages waiting gets a turn in
+ * order, and a turn lets it send up to QUANTUM bytes plus whatever it did
+ * not use of earlier turns. A sender posting far more than others can only
+ * hold anyone else's message back by one turn per busy sender, however
+ * long its own backlog. Each sender's messages stay in the order they were
+ * published.
+ *
+ * A sender with maxPerSender messages waiting has further messages
+ * dropped, so one sender's backlog cannot grow without bound. Only used by
+ * its worker thread, so not synchronized, apart from reading size()
+ */
+class FairQueue {
+
+    /**
+     * Bytes a sender may send per turn
+     */
+    static final int QUANTUM = 4096;
+
+    /**
+     * Bytes charged per message on top of its body, so empty messages are not free
+     */
+    private static final int MESSAGE_OVERHEAD = 64;
+
+    private final int maxPerSender;
+
+    /**
+     * Senders with messages waiting, by sender id
+     */
+    private final HashMap<Integer, Sender> senders = new HashMap<>();
+
+    /**
+     * Senders with messages waiting, the one whose turn it is first
+     */
+    private final ArrayDeque<Sender> turns = new ArrayDeque<>();
+
+    /**
+     * Messages waiting. Only written by the worker, read by metrics
+     */
+    private volatile int size = 0;
+
+    /**
+     * @param maxPerSender most messages waiting per sender
+     */
+    FairQueue(int maxPerSender) {
+        this.maxPerSender = Math.max(1, maxPerSender);
+    }
+
+    /**
+     * @param message message to queue behind its sender's earlier messages
+     * @return false if its sender already has maxPerSender messages waiting and it was dropped
+     */
+    boolean add(Message message) {
+        Sender sender = senders.get(message.getSenderId());
+        if (sender == null) {
+            sender = new Sender(message.getSenderId());
+            senders.put(sender.id, sender);
+
+            // A sender that was idle starts with a full turn, at the back
+            sender.deficit = QUANTUM;
+            turns.addLast(sender);
+        }
+        else if (sender.messages.size() >= maxPerSender) {
+            return false;
+        }
+
+        sender.messages.addLast(message);
+        size++;
+        return true;
+    }
+
+    /**
+     * @return next message by deficit round robin, null if none are waiting
+     */
+    Message poll() {
+        while (!turns.isEmpty()) {
+            Sender sender = turns.peekFirst();
+            Message next = sender.messages.peekFirst();
+            int cost = cost(next);
+
+            if (cost > sender.deficit) {
+                // Turn over, carry the rest of the deficit to the next one
+                turns.pollFirst();
+                sender.deficit += QUANTUM;
+                turns.addLast(sender);
+                continue;
+            }
+
+            sender.messages.pollFirst();
+            sender.deficit -= cost;
+            size--;
+            if (sender.messages.isEmpty()) {
+                turns.pollFirst();
+                senders.remove(sender.id);
+            }
+            return next;
+        }
+        return null;
+    }
+
+    private static int cost(Message message) {
+        return MESSAGE_OVERHEAD + message.getBody().length();
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static class Sender {
+        private final int id;
+        private final ArrayDeque<Message> messages = new ArrayDeque<>();
+        private int deficit;
+
+        private Sender(int id) {
+            this.id = id;
+        }
+    }
+}
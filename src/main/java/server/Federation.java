@@ -0,0 +1,365 @@
+package server;
+
+import message.Message;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Cluster of servers that share their rooms. Every node keeps a link to
+ * every other node and relays the messages its own clients send over each
+ * of them, so a client connected to any node reaches the members of its
+ * room on all of them. Messages received from a peer are only broadcast
+ * locally, never relayed again.
+ *
+ * Nodes listen for peers on --peer-port, on the loopback address unless
+ * --federation-bind says otherwise, and dial the addresses in --peers,
+ * retrying with backoff until the peer is up. Links are only made between
+ * nodes that prove they know the same --federation-secret. Two nodes that dial each other
+ * keep only one link: the one dialed by the node with the lower id. The
+ * other link is retired, it finishes writing what it has queued first
+ */
+class Federation {
+
+    /**
+     * Highest node id. Node ids fill the top byte of client ids
+     */
+    static final int MAX_NODE_ID = 127;
+
+    /**
+     * Delay before redialing a peer after the first failure, in milliseconds
+     */
+    private static final long MIN_BACKOFF = 1000;
+
+    /**
+     * Longest delay between attempts to dial a peer, in milliseconds
+     */
+    private static final long MAX_BACKOFF = 30_000;
+
+    /**
+     * MAC used to prove knowledge of the shared secret in the handshake
+     */
+    private static final String PROOF_ALGORITHM = "HmacSHA256";
+
+    private final int nodeId;
+    private final InetAddress bindAddress;
+    private final int peerPort;
+    private final SecretKeySpec secret;
+    private final List<InetSocketAddress> peers;
+    private final int queueSize;
+    private final long queueDeadline;
+
+    /**
+     * Link in use to each peer, by peer node id
+     */
+    private final ConcurrentHashMap<Integer, PeerLink> links = new ConcurrentHashMap<>();
+
+    private final List<Thread> threads = new ArrayList<>();
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    private ServerSocketChannel listener;
+    private volatile boolean running = false;
+
+    private Federation(int nodeId, InetAddress bindAddress, int peerPort, byte[] secret, List<InetSocketAddress> peers,
+                       int queueSize, long queueDeadline) {
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.peerPort = peerPort;
+        this.secret = new SecretKeySpec(secret, PROOF_ALGORITHM);
+        this.peers = peers;
+        this.queueSize = queueSize;
+        this.queueDeadline = queueDeadline;
+    }
+
+    /**
+     * Read the federation flags: --node-id, --peer-port, --federation-bind,
+     * --federation-secret, --peers=host:port,..., --peer-queue and --peer-deadline
+     * @param options parsed startup options
+     * @return federation, null if neither --peer-port nor --peers is set
+     * @throws IllegalArgumentException if the node id, bind address or a peer
+     *         address is invalid, or there is no secret
+     */
+    static Federation create(ServerOptions options) {
+        int peerPort = options.getInt("peer-port", 0);
+        String peerList = options.getString("peers", "");
+        if (peerPort <= 0 && peerList.isEmpty()) return null;
+
+        int nodeId = options.getInt("node-id", 0);
+        if (nodeId < 1 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Federated servers need a --node-id from 1 to " + MAX_NODE_ID);
+        }
+
+        String secret = options.getString("federation-secret", "");
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("Federated servers need a --federation-secret shared by every node");
+        }
+
+        String bind = options.getString("federation-bind", "");
+        InetAddress bindAddress;
+        try {
+            bindAddress = bind.isEmpty() ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+        }
+        catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid --federation-bind address (" + bind + ")");
+        }
+
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : peerList.split(",")) {
+            if (peer.isBlank()) continue;
+
+            int colon = peer.lastIndexOf(':');
+            try {
+                if (colon < 0) throw new NumberFormatException();
+                peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon).trim(),
+                        Integer.parseInt(peer.substring(colon + 1).trim())));
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid peer address (" + peer + "). Expected host:port");
+            }
+        }
+
+        return new Federation(nodeId, bindAddress, peerPort, secret.getBytes(StandardCharsets.UTF_8), peers,
+                options.getInt("peer-queue", 65536), options.getLong("peer-deadline", 10_000));
+    }
+
+    /**
+     * Bind the port peers connect to, if there is one
+     * @throws IOException if the port is unavailable
+     */
+    void bind() throws IOException {
+        if (peerPort <= 0) return;
+
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(bindAddress, peerPort));
+    }
+
+    /**
+     * Start accepting peers and dialing the configured ones
+     * @param threadMode kind of thread to run links and dialers on
+     */
+    synchronized void start(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+        running = true;
+
+        if (listener != null) threads.add(threadMode.newThread("peer-accept", this::acceptPeers));
+        for (InetSocketAddress peer : peers) {
+            threads.add(threadMode.newThread("peer-dial-" + peer.getHostString() + ":" + peer.getPort(), () -> dialPeer(peer)));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    private void acceptPeers() {
+        while (running) {
+            try {
+                SocketChannel channel = listener.accept();
+
+                // Handshake off the accept thread, so a silent connection cannot hold up other peers
+                threadMode.newThread("peer-handshake", () -> {
+                    try {
+                        register(PeerLink.accept(this, channel));
+                    }
+                    catch (IOException e) {
+                        System.err.println("Rejected peer connection: " + e.getMessage());
+                    }
+                }).start();
+            }
+            catch (IOException e) {
+                if (running) System.err.println("I/O Exception: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keep a link to one peer address open, redialing with jittered
+     * exponential backoff whenever there is none
+     */
+    private void dialPeer(InetSocketAddress peer) {
+        long backoff = MIN_BACKOFF;
+        while (running) {
+            try {
+                // Resolved on every attempt, in case the peer's address changes while it is down
+                InetSocketAddress address = new InetSocketAddress(peer.getHostString(), peer.getPort());
+                if (address.isUnresolved()) throw new UnknownHostException(peer.getHostString());
+
+                PeerLink link = PeerLink.dial(this, address);
+                backoff = MIN_BACKOFF;
+                register(link);
+                awaitUnlinked(link.getPeerId());
+            }
+            catch (IOException e) {
+                if (!running) return;
+
+                long delay = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+                System.err.println("Could not link to peer at " + peer.getHostString() + ":" + peer.getPort() + ": " + e.getMessage()
+                        + ". Retrying in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                }
+                catch (InterruptedException interrupted) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Make a newly handshaken link the one used for its peer, unless a link
+     * dialed by the node with the lower id is already in use. Whichever link
+     * loses is retired
+     * @param link link that has completed its handshake
+     */
+    private synchronized void register(PeerLink link) {
+        if (!running) {
+            link.close();
+            return;
+        }
+
+        int peerId = link.getPeerId();
+        int preferredDialer = Math.min(nodeId, peerId);
+        PeerLink current = links.get(peerId);
+
+        if (current != null && current.getDialerId() == preferredDialer && link.getDialerId() != preferredDialer) {
+            // Started so it can hand over cleanly, nothing is ever queued on it
+            link.retire();
+            link.start(threadMode);
+            return;
+        }
+
+        links.put(peerId, link);
+        link.start(threadMode);
+        if (current != null) {
+            current.retire();
+        }
+        else {
+            System.out.println("<System Info>: Linked to peer node " + peerId);
+        }
+    }
+
+    /**
+     * Wait until there is no link to a peer
+     * @param peerId peer node id
+     */
+    private synchronized void awaitUnlinked(int peerId) throws InterruptedException {
+        while (running && links.containsKey(peerId)) {
+            wait();
+        }
+    }
+
+    /**
+     * Called by a link once it has closed
+     * @param link closed link
+     */
+    synchronized void linkClosed(PeerLink link) {
+        if (links.remove(link.getPeerId(), link)) {
+            if (running) System.out.println("<System Info>: Lost peer node " + link.getPeerId());
+            notifyAll();
+        }
+    }
+
+    /**
+     * Send a message from one of this node's clients to every peer
+     * @param message message to relay
+     */
+    void relay(Message message) {
+        for (PeerLink link : links.values()) {
+            link.relay(message);
+            Metrics.peerMessagesOut.increment();
+        }
+    }
+
+    /**
+     * @return number of peers currently linked
+     */
+    int linkCount() {
+        return links.size();
+    }
+
+    /**
+     * Close every link and stop accepting and dialing peers
+     */
+    void close() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+
+        if (listener != null) {
+            try {
+                listener.close();
+            }
+            catch (IOException e) {
+                System.err.println("I/O Exception: " + e.getMessage());
+            }
+        }
+
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+    }
+
+    /**
+     * Prove to a peer in the handshake that this node knows the shared
+     * secret, without sending it. Each side answers the other's random
+     * challenge, and the role and node ids are covered too, so a proof cannot
+     * be replayed or reflected back on another link
+     * @param role "dial" or "accept", the side giving the proof
+     * @param prover node id of the side giving the proof
+     * @param verifier node id of the side checking it
+     * @param challenge nonce sent by the verifier
+     * @param nonce nonce sent by the prover
+     * @return proof in hex
+     */
+    String prove(String role, int prover, int verifier, String challenge, String nonce) {
+        try {
+            Mac mac = Mac.getInstance(PROOF_ALGORITHM);
+            mac.init(secret);
+            String proved = role + "\n" + prover + "\n" + verifier + "\n" + challenge + "\n" + nonce;
+            return HexFormat.of().formatHex(mac.doFinal(proved.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (GeneralSecurityException e) {
+            // Every Java platform has HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int getNodeId() {
+        return nodeId;
+    }
+
+    InetAddress getBindAddress() {
+        return bindAddress;
+    }
+
+    int getPeerPort() {
+        return peerPort;
+    }
+
+    int getQueueSize() {
+        return queueSize;
+    }
+
+    long getQueueDeadline() {
+        return queueDeadline;
+    }
+}
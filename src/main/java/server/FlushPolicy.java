@@ -0,0 +1,39 @@
+package server;
+
+/**
+ * How long a connection may hold frames back so several can be written with
+ * one system call, and how many bytes it may hold before writing straight
+ * away. A delay of 0 turns the wait off: frames are written as soon as the
+ * connection gets to them, together with whatever else is already queued.
+ *
+ * The thread-per-client engine's writer threads wait in OutboundQueue.take(),
+ * the nio engine on its event loop's own timers
+ */
+class FlushPolicy {
+    private final long delayNanos;
+    private final int maxBytes;
+
+    /**
+     * @param delayMicros longest time a frame may be held back, 0 for none
+     * @param maxBytes bytes held back that trigger an immediate write
+     */
+    FlushPolicy(long delayMicros, int maxBytes) {
+        this.delayNanos = Math.max(0, delayMicros) * 1000;
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    /**
+     * @return true if frames are written as soon as possible
+     */
+    boolean isImmediate() {
+        return delayNanos == 0;
+    }
+
+    long getDelayNanos() {
+        return delayNanos;
+    }
+
+    int getMaxBytes() {
+        return maxBytes;
+    }
+}
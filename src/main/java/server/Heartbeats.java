@@ -0,0 +1,107 @@
+package server;
+
+import message.Frame;
+import message.Protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells idle clients from dead ones. Every session has a timer on one wheel
+ * driven by a single thread. When it fires, a client heard from recently is
+ * simply checked again later; one silent for the ping interval is sent a
+ * PING, which any live client answers; one silent for the idle timeout is
+ * closed, which removes it from the server and frees its connection.
+ *
+ * Only clients of version 6 onwards answer PING, so older ones are not
+ * watched and never closed for being quiet. Every connection has TCP
+ * keepalive on as well, which finds a vanished peer of any version, more
+ * slowly
+ */
+class Heartbeats {
+
+    /**
+     * Slots in the wheel. With the tick below, timers up to about 100 seconds
+     * ahead are met once; further ones go round the wheel
+     */
+    private static final int SLOTS = 1024;
+
+    /**
+     * Precision of every heartbeat timer
+     */
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final TimerWheel<Session> wheel = new TimerWheel<>(SLOTS, TICK);
+    private final SessionRegistry sessions;
+    private final long pingInterval;
+    private final long idleTimeout;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    /**
+     * @param sessions registered clients; sessions no longer in it are forgotten
+     * @param pingIntervalMillis silence after which a client is sent PING
+     * @param idleTimeoutMillis silence after which a client is closed
+     */
+    Heartbeats(SessionRegistry sessions, long pingIntervalMillis, long idleTimeoutMillis) {
+        this.sessions = sessions;
+        this.pingInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, pingIntervalMillis));
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(Math.max(pingIntervalMillis + 1, idleTimeoutMillis));
+    }
+
+    void start(ThreadMode threadMode) {
+        thread = threadMode.newThread("heartbeat", this::run);
+        thread.start();
+    }
+
+    /**
+     * Start checking a client that has registered, if it answers PING. Safe
+     * to call from any thread
+     * @param session registered client
+     */
+    void watch(Session session) {
+        if (session.getVersion() >= Protocol.HEARTBEAT_VERSION) wheel.schedule(session, pingInterval);
+    }
+
+    private void run() {
+        while (running) {
+            wheel.advance(this::check);
+            try {
+                TimeUnit.NANOSECONDS.sleep(wheel.getTickNanos());
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called by the wheel when a session's timer is due
+     * @param session session to check
+     * @return nanoseconds until it is next checked, -1 to stop checking it
+     */
+    private long check(Session session) {
+        if (!sessions.contains(session)) return -1;
+
+        long idle = System.nanoTime() - session.getLastRead();
+        if (idle < pingInterval) return pingInterval - idle;
+
+        if (idle >= idleTimeout) {
+            System.err.println("Client " + session.getName() + " timed out after "
+                    + TimeUnit.NANOSECONDS.toSeconds(idle) + "s without a reply");
+            Metrics.connectionsTimedOut.increment();
+            session.close();
+            return -1;
+        }
+
+        session.sendFrame(new Frame(Frame.PING, 0, System.currentTimeMillis(), 0, "", ""));
+        return Math.min(pingInterval, idleTimeout - idle);
+    }
+
+    /**
+     * Stop the heartbeat thread. Sessions are closed by the server
+     */
+    void close() {
+        running = false;
+        if (thread != null) thread.interrupt();
+    }
+}
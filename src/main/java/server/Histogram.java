@@ -0,0 +1,123 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in microseconds for the server's metrics. Buckets
+ * grow with the value and keep about 3% precision. Counts are striped over
+ * several arrays, chosen by thread, so broadcasters and writers recording at
+ * the same time rarely touch the same cache line
+ */
+class Histogram {
+
+    /**
+     * Bits of each value kept exactly
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    /**
+     * Largest value tracked, an hour in microseconds. Larger values are recorded as this
+     */
+    private static final long HIGHEST_TRACKABLE = 3_600_000_000L;
+    private static final int BUCKETS = indexOf(HIGHEST_TRACKABLE) + 1;
+
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+    private final LongAdder sum = new LongAdder();
+
+    Histogram() {
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * @param micros duration in microseconds, negative values count as 0
+     */
+    void record(long micros) {
+        long value = Math.max(0, Math.min(micros, HIGHEST_TRACKABLE));
+        stripes[(int) Thread.currentThread().getId() & mask].incrementAndGet(indexOf(value));
+        sum.add(value);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKET_COUNT + (shift - 1) * HALF_COUNT + (int) (value >> shift) - HALF_COUNT;
+    }
+
+    /**
+     * @return largest value counted at index
+     */
+    private static long highestAt(int index) {
+        int next = index + 1;
+        if (next < SUB_BUCKET_COUNT) return index;
+
+        int shift = (next - SUB_BUCKET_COUNT) / HALF_COUNT + 1;
+        long subBucket = (next - SUB_BUCKET_COUNT) % HALF_COUNT + HALF_COUNT;
+        return (subBucket << shift) - 1;
+    }
+
+    /**
+     * @return counts of every stripe added together, indexed by bucket
+     */
+    private long[] merged() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    long count() {
+        long total = 0;
+        for (long count : merged()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return sum of the values recorded, in microseconds
+     */
+    long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @param quantiles quantiles from 0 to 1, in ascending order
+     * @return highest value of the bucket each quantile falls in, 0 if nothing was recorded
+     */
+    long[] quantiles(double... quantiles) {
+        long[] counts = merged();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+
+        long[] values = new long[quantiles.length];
+        if (total == 0) return values;
+
+        int q = 0;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS && q < quantiles.length; i++) {
+            seen += counts[i];
+            while (q < quantiles.length && seen >= Math.max(1, (long) Math.ceil(quantiles[q] * total))) {
+                values[q++] = highestAt(i);
+            }
+        }
+        return values;
+    }
+}
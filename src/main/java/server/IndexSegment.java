@@ -0,0 +1,520 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable part of the search index, covering a run of message sequences.
+ * Holds a sorted term dictionary and, for each term, the messages it occurs
+ * in as a posting list. A message is identified by its sequence less the
+ * segment's base sequence, its doc.
+ *
+ * Posting lists are ascending docs stored as the difference from the one
+ * before in variable length bytes, seven bits a byte, so a term occurring in
+ * most messages costs about a byte per message. The docs are split into
+ * blocks of BLOCK_SIZE, each headed by its last doc and length in bytes, so
+ * intersecting with a rarer term skips whole blocks without decoding them.
+ * Docs are also grouped into zones of ZONE_DOCS, whose earliest and latest
+ * timestamps are kept, so a search for a time range skips zones outside it.
+ *
+ * Segments are built from a few seconds of messages at most, then merged
+ * into larger ones in the background, so a search visits a few dozen
+ * segments however many messages are indexed
+ */
+final class IndexSegment {
+
+    /**
+     * Docs per posting list block
+     */
+    static final int BLOCK_SIZE = 128;
+
+    /**
+     * Returned by Postings once it has no docs left
+     */
+    static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /**
+     * Docs per zone
+     */
+    static final int ZONE_DOCS = 1024;
+
+    /**
+     * Marks a doc with no message in this segment in the timestamp table
+     */
+    private static final int ABSENT = -1;
+
+    private final long baseSequence;
+    private final int docCount;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+
+    /**
+     * Terms in ascending order, and where each one's postings start
+     */
+    private final String[] terms;
+    private final int[] postingOffsets;
+    private final int[] postingCounts;
+    private final byte[] postings;
+
+    /**
+     * Milliseconds after minTimestamp each doc was sent, ABSENT for docs not in this segment
+     */
+    private final int[] timestamps;
+
+    /**
+     * Earliest and latest entry in timestamps of each zone. A zone with no messages has a latest of ABSENT
+     */
+    private final int[] zoneMin;
+    private final int[] zoneMax;
+
+    private IndexSegment(long baseSequence, int docCount, long minTimestamp, long maxTimestamp,
+                         String[] terms, int[] postingOffsets, int[] postingCounts, byte[] postings, int[] timestamps) {
+        this.baseSequence = baseSequence;
+        this.docCount = docCount;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+        this.terms = terms;
+        this.postingOffsets = postingOffsets;
+        this.postingCounts = postingCounts;
+        this.postings = postings;
+        this.timestamps = timestamps;
+
+        int zones = (timestamps.length + ZONE_DOCS - 1) / ZONE_DOCS;
+        zoneMin = new int[zones];
+        zoneMax = new int[zones];
+        Arrays.fill(zoneMin, Integer.MAX_VALUE);
+        Arrays.fill(zoneMax, ABSENT);
+        for (int doc = 0; doc < timestamps.length; doc++) {
+            if (timestamps[doc] == ABSENT) continue;
+
+            int zone = doc / ZONE_DOCS;
+            zoneMin[zone] = Math.min(zoneMin[zone], timestamps[doc]);
+            zoneMax[zone] = Math.max(zoneMax[zone], timestamps[doc]);
+        }
+    }
+
+    /**
+     * Build a segment from messages collected by the indexer
+     * @param postingsByTerm positions in sequences of the messages each term occurs in
+     * @param sequences sequence of each message, in any order
+     * @param sent timestamp of each message
+     * @param count number of messages
+     * @return new segment
+     */
+    static IndexSegment build(Map<String, int[]> postingsByTerm, long[] sequences, long[] sent, int count) {
+        long base = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            base = Math.min(base, sequences[i]);
+            last = Math.max(last, sequences[i]);
+            minTimestamp = Math.min(minTimestamp, sent[i]);
+            maxTimestamp = Math.max(maxTimestamp, sent[i]);
+        }
+
+        int[] timestamps = new int[(int) (last - base + 1)];
+        Arrays.fill(timestamps, ABSENT);
+        for (int i = 0; i < count; i++) {
+            timestamps[(int) (sequences[i] - base)] = (int) (sent[i] - minTimestamp);
+        }
+
+        String[] terms = postingsByTerm.keySet().toArray(new String[0]);
+        Arrays.sort(terms);
+
+        Writer writer = new Writer(terms.length);
+        for (String term : terms) {
+            int[] messages = postingsByTerm.get(term);
+
+            // First element is the number used
+            int length = messages[0];
+            int[] docs = new int[length];
+            for (int i = 0; i < length; i++) {
+                docs[i] = (int) (sequences[messages[i + 1]] - base);
+            }
+            if (!ascending(docs, length)) Arrays.sort(docs);
+            writer.add(term, docs, length);
+        }
+
+        return writer.finish(base, count, minTimestamp, maxTimestamp, timestamps);
+    }
+
+    /**
+     * Merge adjacent segments into one. The segments are not changed
+     * @param segments segments to merge
+     * @return merged segment
+     */
+    static IndexSegment merge(List<IndexSegment> segments) {
+        long base = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        int docCount = 0;
+        for (IndexSegment segment : segments) {
+            base = Math.min(base, segment.baseSequence);
+            last = Math.max(last, segment.lastSequence());
+            minTimestamp = Math.min(minTimestamp, segment.minTimestamp);
+            maxTimestamp = Math.max(maxTimestamp, segment.maxTimestamp);
+            docCount += segment.docCount;
+        }
+
+        int[] timestamps = new int[(int) (last - base + 1)];
+        Arrays.fill(timestamps, ABSENT);
+        for (IndexSegment segment : segments) {
+            int shift = (int) (segment.baseSequence - base);
+            for (int doc = 0; doc < segment.timestamps.length; doc++) {
+                if (segment.timestamps[doc] == ABSENT) continue;
+                timestamps[doc + shift] = (int) (segment.minTimestamp + segment.timestamps[doc] - minTimestamp);
+            }
+        }
+
+        // Walk every dictionary in step, merging the postings of each term in turn
+        int[] positions = new int[segments.size()];
+        Writer writer = new Writer(segments.get(segments.size() - 1).terms.length * 2);
+        int[] docs = new int[BLOCK_SIZE];
+        while (true) {
+            String term = null;
+            for (int i = 0; i < segments.size(); i++) {
+                IndexSegment segment = segments.get(i);
+                if (positions[i] == segment.terms.length) continue;
+
+                String candidate = segment.terms[positions[i]];
+                if (term == null || candidate.compareTo(term) < 0) term = candidate;
+            }
+            if (term == null) break;
+
+            int count = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                IndexSegment segment = segments.get(i);
+                if (positions[i] == segment.terms.length || !segment.terms[positions[i]].equals(term)) continue;
+
+                int total = count + segment.postingCounts[positions[i]];
+                if (total > docs.length) docs = Arrays.copyOf(docs, Math.max(total, docs.length * 2));
+
+                int shift = (int) (segment.baseSequence - base);
+                Postings postings = segment.postings(positions[i]);
+                for (int doc = postings.next(); doc != NO_MORE_DOCS; doc = postings.next()) {
+                    docs[count++] = doc + shift;
+                }
+                positions[i]++;
+            }
+
+            // Sequences of adjacent segments can interleave a little, as broadcasters append in parallel
+            if (!ascending(docs, count)) Arrays.sort(docs, 0, count);
+            writer.add(term, docs, count);
+        }
+
+        return writer.finish(base, docCount, minTimestamp, maxTimestamp, timestamps);
+    }
+
+    private static boolean ascending(int[] docs, int length) {
+        for (int i = 1; i < length; i++) {
+            if (docs[i] < docs[i - 1]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param term term to look up
+     * @return its postings, null if it does not occur in this segment
+     */
+    Postings postings(String term) {
+        int index = Arrays.binarySearch(terms, term);
+        return index < 0 ? null : postings(index);
+    }
+
+    private Postings postings(int index) {
+        return new Postings(postings, postingOffsets[index], postingCounts[index]);
+    }
+
+    /**
+     * @param doc doc in this segment
+     * @return epoch millisecond timestamp of its message
+     */
+    long timestamp(int doc) {
+        return minTimestamp + timestamps[doc];
+    }
+
+    /**
+     * @param from earliest timestamp wanted, inclusive
+     * @param to latest timestamp wanted, exclusive
+     * @return true if any message in this segment could be in the range
+     */
+    boolean overlaps(long from, long to) {
+        return maxTimestamp >= from && minTimestamp < to;
+    }
+
+    /**
+     * @param from earliest timestamp wanted, inclusive
+     * @param to latest timestamp wanted, exclusive
+     * @return true if every message in this segment is in the range
+     */
+    boolean within(long from, long to) {
+        return minTimestamp >= from && maxTimestamp < to;
+    }
+
+    /**
+     * @param zone zone of a doc, doc / ZONE_DOCS
+     * @param from earliest timestamp wanted, inclusive
+     * @param to latest timestamp wanted, exclusive
+     * @return true if any message in the zone could be in the range
+     */
+    boolean zoneOverlaps(int zone, long from, long to) {
+        return zoneMax[zone] != ABSENT && minTimestamp + zoneMax[zone] >= from && minTimestamp + zoneMin[zone] < to;
+    }
+
+    /**
+     * @param end doc to stop at, exclusive
+     * @param from earliest timestamp wanted, inclusive
+     * @param to latest timestamp wanted, exclusive
+     * @return true if any message before end could be in the range
+     */
+    boolean overlapsBefore(int end, long from, long to) {
+        for (int zone = 0; zone * ZONE_DOCS < end; zone++) {
+            if (zoneOverlaps(zone, from, to)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return number of docs from the first to the last, whether or not their messages are in this segment
+     */
+    int docSpan() {
+        return timestamps.length;
+    }
+
+    long getBaseSequence() {
+        return baseSequence;
+    }
+
+    long lastSequence() {
+        return baseSequence + timestamps.length - 1;
+    }
+
+    int getDocCount() {
+        return docCount;
+    }
+
+    long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    /**
+     * @return bytes of posting lists, the bulk of the segment
+     */
+    int postingBytes() {
+        return postings.length;
+    }
+
+    /**
+     * Encodes posting lists one term at a time, in term order
+     */
+    private static class Writer {
+        private final List<String> terms;
+        private int[] offsets;
+        private int[] counts;
+        private final Output out = new Output();
+        private final Output block = new Output();
+
+        private Writer(int expectedTerms) {
+            int capacity = Math.max(16, expectedTerms);
+            terms = new ArrayList<>(capacity);
+            offsets = new int[capacity];
+            counts = new int[capacity];
+        }
+
+        /**
+         * @param term next term, after every term added so far
+         * @param docs its docs, ascending, duplicates allowed
+         * @param length docs to use
+         */
+        private void add(String term, int[] docs, int length) {
+            int index = terms.size();
+            if (index == offsets.length) {
+                offsets = Arrays.copyOf(offsets, index * 2);
+                counts = Arrays.copyOf(counts, index * 2);
+            }
+            terms.add(term);
+            offsets[index] = out.size();
+
+            // Duplicates only arise if a message was indexed twice; keep one
+            int unique = 0;
+            for (int i = 0; i < length; i++) {
+                if (unique == 0 || docs[i] != docs[unique - 1]) docs[unique++] = docs[i];
+            }
+            counts[index] = unique;
+
+            Output block = this.block;
+            int previous = -1;
+            for (int start = 0; start < unique; start += BLOCK_SIZE) {
+                int end = Math.min(unique, start + BLOCK_SIZE);
+                block.reset();
+                int doc = previous;
+                for (int i = start; i < end; i++) {
+                    block.writeVarint(docs[i] - doc);
+                    doc = docs[i];
+                }
+
+                out.writeVarint(docs[end - 1] - previous);
+                out.writeVarint(block.size());
+                block.writeTo(out);
+                previous = docs[end - 1];
+            }
+        }
+
+        private IndexSegment finish(long base, int docCount, long minTimestamp, long maxTimestamp, int[] timestamps) {
+            int size = terms.size();
+            return new IndexSegment(base, docCount, minTimestamp, maxTimestamp, terms.toArray(new String[0]),
+                    Arrays.copyOf(offsets, size), Arrays.copyOf(counts, size), out.toByteArray(), timestamps);
+        }
+    }
+
+    /**
+     * Growable byte array
+     */
+    private static class Output {
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+
+        void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeTo(Output other) {
+            other.ensure(size);
+            System.arraycopy(bytes, 0, other.bytes, other.size, size);
+            other.size += size;
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(size + extra, bytes.length * 2));
+        }
+    }
+
+    /**
+     * Reads one posting list in doc order. Not thread safe, but any number
+     * can read the same segment at once
+     */
+    static final class Postings {
+        private final byte[] data;
+        private final int count;
+        private int position;
+
+        /**
+         * Docs not yet read, in total and in the current block
+         */
+        private int remaining;
+        private int blockRemaining = 0;
+        private int blockLast;
+        private int blockEnd;
+        private int doc = -1;
+
+        private Postings(byte[] data, int offset, int count) {
+            this.data = data;
+            this.position = offset;
+            this.count = count;
+            this.remaining = count;
+        }
+
+        /**
+         * @return number of docs in the list
+         */
+        int count() {
+            return count;
+        }
+
+        /**
+         * @return next doc, NO_MORE_DOCS at the end
+         */
+        int next() {
+            if (blockRemaining == 0) {
+                if (remaining == 0) return doc = NO_MORE_DOCS;
+                readBlockHeader();
+            }
+            blockRemaining--;
+            remaining--;
+            return doc += readVarint();
+        }
+
+        /**
+         * @param target doc wanted
+         * @return first doc at or after target, NO_MORE_DOCS if there is none
+         */
+        int advance(int target) {
+            while (doc < target) {
+                if (blockRemaining == 0) {
+                    if (remaining == 0) return doc = NO_MORE_DOCS;
+                    readBlockHeader();
+
+                    // Nothing in this block is wanted, step over it undecoded
+                    if (blockLast < target) {
+                        remaining -= blockRemaining;
+                        blockRemaining = 0;
+                        position = blockEnd;
+                        doc = blockLast;
+                        continue;
+                    }
+                }
+                next();
+            }
+            return doc;
+        }
+
+        /**
+         * Step over whole blocks undecoded, as long as at least n docs are left
+         * after them, so that reading the last n docs costs at most a block more
+         * @param n docs wanted from the end of the list
+         */
+        void skipAllBut(int n) {
+            while (blockRemaining == 0 && remaining - Math.min(BLOCK_SIZE, remaining) >= n && remaining > 0) {
+                readBlockHeader();
+                remaining -= blockRemaining;
+                blockRemaining = 0;
+                position = blockEnd;
+                doc = blockLast;
+            }
+        }
+
+        private void readBlockHeader() {
+            blockLast = doc + readVarint();
+            int length = readVarint();
+            blockEnd = position + length;
+            blockRemaining = Math.min(BLOCK_SIZE, remaining);
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package server;
+
+import message.Frame;
+import message.Message;
+import message.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the message log, memory mapped at a fixed size.
+ *
+ * Layout:
+ *   byte[4] "LMPL"
+ *   byte    protocol version the records are encoded with
+ *   byte[3] unused
+ *   long    baseSequence   sequence of the first record
+ *   records, each:
+ *     int    crc           CRC32 of the frame
+ *     byte[] frame         binary Frame, including its own length prefix
+ *   zeros to the end of the file
+ *
+ * A record with a zero length or a bad CRC marks the end of the segment, so a
+ * record torn by a crash is dropped on the next start. A sparse index of
+ * (sequence, timestamp, position) is kept in memory, with an entry at least
+ * every INDEX_INTERVAL bytes, and saved next to the segment once it is sealed.
+ *
+ * Only one thread appends. Readers may run on any thread, but only see records
+ * up to the last sequence published by the writer
+ */
+class LogSegment {
+
+    private static final byte[] MAGIC = {'L', 'M', 'P', 'L'};
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Bytes in front of each record's frame
+     */
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    /**
+     * Bytes of records between index entries
+     */
+    private static final int INDEX_INTERVAL = 4096;
+
+    /**
+     * Bytes per entry in a saved index file
+     */
+    private static final int INDEX_ENTRY_SIZE = 8 + 8 + 4;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int version;
+    private final long baseSequence;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Position the next record is written at. Only written by the appending thread
+     */
+    private int writePosition;
+
+    /**
+     * Sequence of the last record written, baseSequence - 1 if empty. Written
+     * after the record, so readers never see a partial record
+     */
+    private volatile long lastSequence;
+
+    // Sparse index, grown as records are appended. Guarded by this
+    private long[] indexSequences = new long[64];
+    private long[] indexTimestamps = new long[64];
+    private int[] indexPositions = new int[64];
+    private int indexSize = 0;
+    private int lastIndexedPosition = -INDEX_INTERVAL;
+
+    private LogSegment(Path path, FileChannel channel, MappedByteBuffer buffer, int version, long baseSequence) {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.version = version;
+        this.baseSequence = baseSequence;
+        this.writePosition = HEADER_SIZE;
+        this.lastSequence = baseSequence - 1;
+    }
+
+    /**
+     * @param directory log directory
+     * @param baseSequence sequence of the first record
+     * @return path of the segment starting at baseSequence
+     */
+    static Path pathFor(Path directory, long baseSequence) {
+        return directory.resolve(String.format("%020d.log", baseSequence));
+    }
+
+    /**
+     * Create a new, empty segment
+     * @param directory log directory
+     * @param baseSequence sequence of the first record
+     * @param size file size in bytes
+     * @return writable segment
+     * @throws IOException if the file cannot be created or mapped
+     */
+    static LogSegment create(Path directory, long baseSequence, int size) throws IOException {
+        Path path = pathFor(directory, baseSequence);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        buffer.put(0, MAGIC);
+        buffer.put(4, (byte) Protocol.MAX_VERSION);
+        buffer.putLong(8, baseSequence);
+
+        return new LogSegment(path, channel, buffer, Protocol.MAX_VERSION, baseSequence);
+    }
+
+    /**
+     * Open an existing segment, finding where its records end
+     * @param path segment file
+     * @param writable true for the segment that will be appended to
+     * @return opened segment
+     * @throws IOException if the file cannot be mapped or is not a log segment
+     */
+    static LogSegment open(Path path, boolean writable) throws IOException {
+        FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        MappedByteBuffer buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(0, magic);
+        if (buffer.capacity() < HEADER_SIZE || !Arrays.equals(magic, MAGIC)) {
+            channel.close();
+            throw new IOException("Not a log segment: " + path);
+        }
+
+        LogSegment segment = new LogSegment(path, channel, buffer, buffer.get(4), buffer.getLong(8));
+        if (writable || !segment.loadIndex()) {
+            segment.recover();
+        }
+        else {
+            segment.findEnd();
+        }
+        return segment;
+    }
+
+    /**
+     * Walk every record, rebuilding the index and finding the end of the segment
+     */
+    private void recover() {
+        int position = HEADER_SIZE;
+        int size;
+        while ((size = recordSize(position)) > 0) {
+            Message message = decode(position);
+            if (message == null) break;
+
+            index(message.getSequence(), message.getTimestamp(), position);
+            lastSequence = message.getSequence();
+            position += size;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * Find the end of a sealed segment from its last index entry
+     */
+    private void findEnd() {
+        int position = indexSize == 0 ? HEADER_SIZE : indexPositions[indexSize - 1];
+        int size;
+        while ((size = recordSize(position)) > 0) {
+            Message message = decode(position);
+            if (message == null) break;
+
+            lastSequence = message.getSequence();
+            position += size;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * Append a sequenced message
+     * @param frame message encoded with this segment's protocol version
+     * @param sequence message sequence number
+     * @param timestamp message timestamp
+     * @return false if the segment is too full to hold the record
+     */
+    boolean append(ByteBuffer frame, long sequence, long timestamp) {
+        int length = frame.remaining();
+        if (writePosition + RECORD_HEADER_SIZE + length > buffer.capacity()) return false;
+
+        crc.reset();
+        crc.update(frame.duplicate());
+
+        buffer.put(writePosition + RECORD_HEADER_SIZE, frame, frame.position(), length);
+        buffer.putInt(writePosition, (int) crc.getValue());
+
+        index(sequence, timestamp, writePosition);
+        writePosition += RECORD_HEADER_SIZE + length;
+        lastSequence = sequence;
+        return true;
+    }
+
+    /**
+     * Add an index entry if the last one is at least INDEX_INTERVAL bytes back
+     */
+    private void index(long sequence, long timestamp, int position) {
+        if (position - lastIndexedPosition < INDEX_INTERVAL) return;
+
+        addIndexEntry(sequence, timestamp, position);
+    }
+
+    private synchronized void addIndexEntry(long sequence, long timestamp, int position) {
+        if (indexSize == indexPositions.length) {
+            indexSequences = Arrays.copyOf(indexSequences, indexSize * 2);
+            indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+        }
+        indexSequences[indexSize] = sequence;
+        indexTimestamps[indexSize] = timestamp;
+        indexPositions[indexSize] = position;
+        indexSize++;
+        lastIndexedPosition = position;
+    }
+
+    /**
+     * @param position position of a record
+     * @return size of the record including its header, 0 if there is no
+     *         complete record at position
+     */
+    private int recordSize(int position) {
+        if (position + RECORD_HEADER_SIZE + Frame.LENGTH_SIZE > buffer.capacity()) return 0;
+
+        int length = buffer.getInt(position + RECORD_HEADER_SIZE);
+        if (length < Frame.HEADER_SIZE || length > buffer.capacity() - position - RECORD_HEADER_SIZE - Frame.LENGTH_SIZE) return 0;
+
+        return RECORD_HEADER_SIZE + Frame.LENGTH_SIZE + length;
+    }
+
+    /**
+     * @param position position of a record
+     * @return message held in the record, null if it fails its CRC or cannot be decoded
+     */
+    private Message decode(int position) {
+        int size = recordSize(position);
+        ByteBuffer frame = buffer.slice(position + RECORD_HEADER_SIZE, size - RECORD_HEADER_SIZE);
+
+        CRC32 check = new CRC32();
+        check.update(frame.duplicate());
+        if ((int) check.getValue() != buffer.getInt(position)) return null;
+
+        try {
+            frame.position(Frame.LENGTH_SIZE);
+            return Frame.decode(frame, version).toMessage();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hand messages to handler in sequence order, starting at the first one
+     * with a sequence of at least fromSequence
+     * @param fromSequence first sequence wanted
+     * @param handler called once per message, returns false to stop
+     * @return false if handler asked to stop
+     */
+    boolean read(long fromSequence, Predicate<Message> handler) {
+        return readFrom(floorPosition(indexSequences, fromSequence), message -> message.getSequence() < fromSequence || handler.test(message));
+    }
+
+    /**
+     * Hand messages to handler in sequence order, starting at the first one
+     * sent at or after timestamp. Timestamps are taken on receipt, so are
+     * close to, but not strictly in, sequence order
+     * @param timestamp epoch milliseconds
+     * @param handler called once per message, returns false to stop
+     * @return false if handler asked to stop
+     */
+    boolean readFromTime(long timestamp, Predicate<Message> handler) {
+        return readFrom(floorPosition(indexTimestamps, timestamp), message -> message.getTimestamp() < timestamp || handler.test(message));
+    }
+
+    private boolean readFrom(int position, Predicate<Message> handler) {
+        long last = lastSequence;
+
+        int size;
+        while ((size = recordSize(position)) > 0) {
+            Message message = decode(position);
+            if (message == null || message.getSequence() > last) break;
+            if (!handler.test(message)) return false;
+            position += size;
+        }
+        return true;
+    }
+
+    /**
+     * @param keys index column, ascending
+     * @param key value looked for
+     * @return position of the last index entry with a key below key, or the
+     *         first record if there is none
+     */
+    private synchronized int floorPosition(long[] keys, long key) {
+        int low = 0;
+        int high = indexSize - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < key) {
+                found = middle;
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return found < 0 ? HEADER_SIZE : indexPositions[found];
+    }
+
+    private Path indexPath() {
+        String name = path.getFileName().toString();
+        return path.resolveSibling(name.substring(0, name.length() - ".log".length()) + ".idx");
+    }
+
+    /**
+     * Save the sparse index next to the segment, so it does not have to be
+     * rebuilt from the records on the next start
+     * @throws IOException if the index cannot be written
+     */
+    synchronized void saveIndex() throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(indexSize * INDEX_ENTRY_SIZE);
+        for (int i = 0; i < indexSize; i++) {
+            bytes.putLong(indexSequences[i]).putLong(indexTimestamps[i]).putInt(indexPositions[i]);
+        }
+        Files.write(indexPath(), bytes.array());
+    }
+
+    /**
+     * @return true if a saved index was loaded
+     */
+    private synchronized boolean loadIndex() {
+        Path indexPath = indexPath();
+        if (!Files.exists(indexPath)) return false;
+
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+            while (bytes.remaining() >= INDEX_ENTRY_SIZE) {
+                long sequence = bytes.getLong();
+                long timestamp = bytes.getLong();
+                addIndexEntry(sequence, timestamp, bytes.getInt());
+            }
+            return true;
+        }
+        catch (IOException e) {
+            System.err.println("Could not read log index " + indexPath + ": " + e.getMessage());
+            indexSize = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Write appended records through to disk
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * @return protocol version records are encoded with
+     */
+    int getVersion() {
+        return version;
+    }
+
+    long getBaseSequence() {
+        return baseSequence;
+    }
+
+    /**
+     * @return timestamp of the first record, Long.MAX_VALUE if empty
+     */
+    synchronized long getFirstTimestamp() {
+        return indexSize == 0 ? Long.MAX_VALUE : indexTimestamps[0];
+    }
+
+    /**
+     * @return sequence of the last record, baseSequence - 1 if empty
+     */
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Close the file. Records already read stay valid, the mapping is released
+     * once it is no longer reachable
+     */
+    void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            System.err.println("Could not close log segment " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package server;
+
+import message.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+/**
+ * Durable, append-only log of every broadcast message, split into memory
+ * mapped segment files named after the first sequence they hold.
+ *
+ * Messages are sequenced and appended in one step, so the log is always in
+ * sequence order whichever broadcaster appends. Appending only copies the
+ * message's already encoded frame into the mapped segment; when it reaches
+ * the disk is set by the fsync policy:
+ *   ALWAYS    commit() forces the log before a batch is delivered. Batches
+ *             from every broadcaster share one force (group commit)
+ *   INTERVAL  a background thread forces the log every interval
+ *   NEVER     left to the operating system
+ */
+class MessageLog {
+
+    /**
+     * When appended messages are forced to disk
+     */
+    enum FsyncPolicy {
+        ALWAYS,
+        INTERVAL,
+        NEVER;
+
+        /**
+         * @param name policy name, case insensitive
+         * @return matching policy, INTERVAL if unknown
+         */
+        static FsyncPolicy parse(String name) {
+            try {
+                return valueOf(name.toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                System.err.println("Unknown fsync policy (" + name + "). Defaulting to interval");
+                return INTERVAL;
+            }
+        }
+    }
+
+    /**
+     * Smallest segment accepted, big enough for the largest frame
+     */
+    private static final int MIN_SEGMENT_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Largest segment accepted, the most one MappedByteBuffer can map
+     */
+    static final int MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncPolicy policy;
+    private final long intervalMillis;
+
+    /**
+     * Every segment, oldest first. The last one is being appended to
+     */
+    private final CopyOnWriteArrayList<LogSegment> segments = new CopyOnWriteArrayList<>();
+    private volatile LogSegment active;
+
+    /**
+     * Sequence of the last message appended
+     */
+    private volatile long lastSequence;
+
+    /**
+     * Sequence of the last message known to be on disk
+     */
+    private volatile long durableSequence;
+    private final Object forceLock = new Object();
+
+    private Thread flusher;
+    private volatile boolean open = true;
+
+    private MessageLog(Path directory, int segmentSize, FsyncPolicy policy, long intervalMillis) {
+        this.directory = directory;
+        this.segmentSize = Math.max(segmentSize, MIN_SEGMENT_SIZE);
+        this.policy = policy;
+        this.intervalMillis = Math.max(1, intervalMillis);
+    }
+
+    /**
+     * Open the log in directory, creating it if needed, and recover the
+     * sequence the previous run got to
+     * @param directory log directory
+     * @param segmentSize bytes per segment file
+     * @param policy when to force appended messages to disk
+     * @param intervalMillis time between forces for FsyncPolicy.INTERVAL
+     * @return opened log
+     * @throws IOException if the directory or a segment cannot be opened
+     */
+    static MessageLog open(Path directory, int segmentSize, FsyncPolicy policy, long intervalMillis) throws IOException {
+        Files.createDirectories(directory);
+        MessageLog log = new MessageLog(directory, segmentSize, policy, intervalMillis);
+
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            files.forEach(paths::add);
+        }
+        paths.sort(null);
+
+        for (int i = 0; i < paths.size(); i++) {
+            log.segments.add(LogSegment.open(paths.get(i), i == paths.size() - 1));
+        }
+
+        if (log.segments.isEmpty()) {
+            log.segments.add(LogSegment.create(directory, 1, log.segmentSize));
+        }
+
+        log.active = log.segments.get(log.segments.size() - 1);
+        log.lastSequence = log.active.getLastSequence();
+        log.durableSequence = log.lastSequence;
+
+        if (policy == FsyncPolicy.INTERVAL) {
+            log.flusher = new Thread(log::flushPeriodically, "log-flush");
+            log.flusher.setDaemon(true);
+            log.flusher.start();
+        }
+
+        return log;
+    }
+
+    /**
+     * Give message the next sequence number and append it. If the log cannot
+     * be written the message is still sequenced, so broadcasting carries on
+     * @param received message without a sequence number
+     * @return sequenced message
+     */
+    synchronized Message append(Message received) {
+        Message message = received.withSequence(lastSequence + 1);
+
+        try {
+            ByteBuffer frame = message.getFrame(active.getVersion());
+            if (!active.append(frame, message.getSequence(), message.getTimestamp())) {
+                roll(message.getSequence());
+                active.append(frame, message.getSequence(), message.getTimestamp());
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Could not write message " + message.getSequence() + " to log: " + e.getMessage());
+        }
+
+        lastSequence = message.getSequence();
+        return message;
+    }
+
+    /**
+     * Seal the active segment and start a new one. Called with the append lock held
+     * @param baseSequence sequence of the first message in the new segment
+     * @throws IOException if the new segment cannot be created
+     */
+    private void roll(long baseSequence) throws IOException {
+        LogSegment sealed = active;
+
+        // Anything committed later may be in the new segment only, so this one has to be on disk first
+        if (policy != FsyncPolicy.NEVER) sealed.force();
+        sealed.saveIndex();
+
+        LogSegment next = LogSegment.create(directory, baseSequence, segmentSize);
+        segments.add(next);
+        active = next;
+    }
+
+    /**
+     * @return true if messages must be committed before they are delivered
+     */
+    boolean commitsBeforeDelivery() {
+        return policy == FsyncPolicy.ALWAYS;
+    }
+
+    /**
+     * Make sure every message up to sequence is on disk. A single force
+     * covers everything appended so far, so callers that arrive while
+     * another force is running usually find their messages already covered
+     * @param sequence sequence that must be durable
+     */
+    void commit(long sequence) {
+        if (durableSequence >= sequence) return;
+
+        synchronized (forceLock) {
+            if (durableSequence >= sequence) return;
+
+            long target = lastSequence;
+            active.force();
+            durableSequence = target;
+        }
+    }
+
+    private void flushPeriodically() {
+        while (open) {
+            try {
+                Thread.sleep(intervalMillis);
+            }
+            catch (InterruptedException e) {
+                // Woken by close(), loop condition decides whether to carry on
+            }
+            commit(lastSequence);
+        }
+    }
+
+    /**
+     * @return sequence of the last message appended, 0 if the log is empty
+     */
+    long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Hand logged messages to handler in sequence order, starting at fromSequence
+     * @param fromSequence first sequence wanted
+     * @param handler called once per message, returns false to stop
+     */
+    void read(long fromSequence, Predicate<Message> handler) {
+        int start = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).getBaseSequence() <= fromSequence) start = i;
+        }
+
+        for (int i = start; i < segments.size(); i++) {
+            if (!segments.get(i).read(fromSequence, handler)) return;
+        }
+    }
+
+    /**
+     * Hand logged messages to handler in sequence order, starting at the
+     * first one sent at or after timestamp
+     * @param timestamp epoch milliseconds
+     * @param handler called once per message, returns false to stop
+     */
+    void readFromTime(long timestamp, Predicate<Message> handler) {
+        int start = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).getFirstTimestamp() <= timestamp) start = i;
+        }
+
+        for (int i = start; i < segments.size(); i++) {
+            if (!segments.get(i).readFromTime(timestamp, handler)) return;
+        }
+    }
+
+    /**
+     * Force the log to disk, unless the policy is NEVER, and close every segment
+     */
+    synchronized void close() {
+        open = false;
+        if (flusher != null) flusher.interrupt();
+
+        if (policy != FsyncPolicy.NEVER) commit(lastSequence);
+        for (LogSegment segment : segments) {
+            segment.close();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms for the whole server. Counters are LongAdders, so
+ * the threads that update them on every message do not contend. Readable
+ * through JMX, the stats console command and, if started with
+ * --metrics-port, a Prometheus text endpoint on localhost
+ */
+class Metrics implements MetricsMBean {
+
+    static final LongAdder connectionsOpened = new LongAdder();
+    static final LongAdder connectionsClosed = new LongAdder();
+
+    /**
+     * Clients closed for not answering PING within the idle timeout
+     */
+    static final LongAdder connectionsTimedOut = new LongAdder();
+    static final LongAdder messagesIn = new LongAdder();
+    static final LongAdder messagesOut = new LongAdder();
+    static final LongAdder messagesDropped = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder consoleLinesDropped = new LongAdder();
+
+    /**
+     * Messages refused because their sender was over its rate limit
+     */
+    static final LongAdder messagesThrottled = new LongAdder();
+
+    /**
+     * Messages dropped by a broadcaster because their sender already had its share queued
+     */
+    static final LongAdder messagesShed = new LongAdder();
+
+    /**
+     * PRESENCE and ROSTER frames queued for clients, and their bytes
+     */
+    static final LongAdder presenceFramesOut = new LongAdder();
+    static final LongAdder presenceBytesOut = new LongAdder();
+
+    /**
+     * Messages received from other nodes of a federation
+     */
+    static final LongAdder peerMessagesIn = new LongAdder();
+
+    /**
+     * Messages from peers dropped for not coming from one of the peer's own clients
+     */
+    static final LongAdder peerMessagesRejected = new LongAdder();
+
+    /**
+     * Messages relayed to other nodes of a federation, counted once per peer
+     */
+    static final LongAdder peerMessagesOut = new LongAdder();
+
+    /**
+     * Datagrams sent to the multicast group, messages and heartbeats
+     */
+    static final LongAdder multicastSent = new LongAdder();
+
+    /**
+     * Multicast messages sent again to clients that missed them
+     */
+    static final LongAdder multicastResent = new LongAdder();
+
+    /**
+     * Attachments uploaded, checked and stored
+     */
+    static final LongAdder attachmentsStored = new LongAdder();
+
+    /**
+     * Attachments posted again that were already stored, so were not uploaded
+     */
+    static final LongAdder attachmentsDeduplicated = new LongAdder();
+
+    /**
+     * Attachments streamed to clients that fetched them
+     */
+    static final LongAdder attachmentsFetched = new LongAdder();
+
+    /**
+     * Direct messages delivered, one per recipient
+     */
+    static final LongAdder directMessages = new LongAdder();
+
+    /**
+     * Searches of the message history run, from clients and the console
+     */
+    static final LongAdder searches = new LongAdder();
+
+    /**
+     * Time for a broadcaster to hand a message to every member of its room
+     */
+    static final Histogram fanOut = new Histogram();
+
+    /**
+     * Time frames wait in a client's outbound queue before being written
+     */
+    static final Histogram sendLatency = new Histogram();
+
+    /**
+     * Time from accepting a connection to the client being ready, name and version agreed
+     */
+    static final Histogram handshakeTime = new Histogram();
+
+    /**
+     * Time to run a search against the index, not counting fetching the messages found
+     */
+    static final Histogram searchTime = new Histogram();
+
+    private static final String OBJECT_NAME = "server:type=Metrics";
+
+    private static HttpServer httpServer;
+
+    /**
+     * Register with the platform MBean server, replacing any earlier registration
+     */
+    static void register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), name);
+        }
+        catch (JMException e) {
+            System.err.println("Could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serve the metrics in Prometheus text format at /metrics on localhost
+     * @param port port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    static synchronized void serve(int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        httpServer.start();
+    }
+
+    /**
+     * Stop the Prometheus endpoint and unregister from JMX
+     */
+    static synchronized void close() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+        }
+        catch (JMException e) {
+            System.err.println("Could not unregister metrics from JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return every metric, one per line, for the console
+     */
+    static String report() {
+        long[] fan = fanOut.quantiles(0.5, 0.99, 1);
+        long[] send = sendLatency.quantiles(0.5, 0.99, 1);
+        long[] handshake = handshakeTime.quantiles(0.5, 0.99, 1);
+        long[] search = searchTime.quantiles(0.5, 0.99, 1);
+
+        return "Connections:     " + Server.sessionCount() + " open, " + connectionsOpened.sum() + " opened, "
+                + connectionsClosed.sum() + " closed, " + connectionsTimedOut.sum() + " timed out\n"
+                + "Messages:        " + messagesIn.sum() + " in, " + messagesOut.sum() + " out, "
+                + messagesDropped.sum() + " dropped, " + messagesThrottled.sum() + " throttled, "
+                + messagesShed.sum() + " shed\n"
+                + "Bytes:           " + bytesIn.sum() + " in, " + bytesOut.sum() + " out\n"
+                + "Presence:        " + Server.rosterSize() + " on roster, " + presenceFramesOut.sum() + " frames, "
+                + presenceBytesOut.sum() + " bytes out\n"
+                + "Broadcast queue: " + Server.broadcastQueueDepth() + " waiting\n"
+                + "Peers:           " + Server.peerCount() + " linked, " + peerMessagesIn.sum() + " messages in, "
+                + peerMessagesOut.sum() + " out, " + peerMessagesRejected.sum() + " rejected\n"
+                + "Multicast:       " + multicastSent.sum() + " datagrams, " + multicastResent.sum() + " messages resent\n"
+                + "Attachments:     " + attachmentsStored.sum() + " stored, " + attachmentsDeduplicated.sum() + " deduplicated, "
+                + attachmentsFetched.sum() + " fetched\n"
+                + "Direct:          " + directMessages.sum() + " messages\n"
+                + "Search:          " + Server.indexedCount() + " indexed, " + searches.sum() + " searches, p50 "
+                + search[0] + " us, p99 " + search[1] + " us, max " + search[2] + " us\n"
+                + "Fan-out:         p50 " + fan[0] + " us, p99 " + fan[1] + " us, max " + fan[2] + " us\n"
+                + "Send latency:    p50 " + send[0] + " us, p99 " + send[1] + " us, max " + send[2] + " us\n"
+                + "Handshake:       p50 " + handshake[0] + " us, p99 " + handshake[1] + " us, max " + handshake[2] + " us\n"
+                + "Console:         " + consoleLinesDropped.sum() + " lines dropped";
+    }
+
+    /**
+     * @return every metric in Prometheus text exposition format
+     */
+    static String prometheus() {
+        StringBuilder out = new StringBuilder();
+        gauge(out, "chat_connections", "Connected clients", Server.sessionCount());
+        counter(out, "chat_connections_opened_total", "Clients connected since start", connectionsOpened.sum());
+        counter(out, "chat_connections_closed_total", "Clients disconnected since start", connectionsClosed.sum());
+        counter(out, "chat_connections_timed_out_total", "Clients closed for not answering PING within the idle timeout", connectionsTimedOut.sum());
+        counter(out, "chat_messages_in_total", "Messages received from clients", messagesIn.sum());
+        counter(out, "chat_messages_out_total", "Frames written to clients", messagesOut.sum());
+        counter(out, "chat_messages_dropped_total", "Frames dropped for clients that could not keep up", messagesDropped.sum());
+        counter(out, "chat_messages_throttled_total", "Messages refused because their sender was over its rate limit", messagesThrottled.sum());
+        counter(out, "chat_messages_shed_total", "Messages dropped because their sender already had its share of a broadcast queue", messagesShed.sum());
+        gauge(out, "chat_roster_size", "Clients on the presence roster", Server.rosterSize());
+        counter(out, "chat_presence_frames_out_total", "Presence and roster frames queued for clients", presenceFramesOut.sum());
+        counter(out, "chat_presence_bytes_out_total", "Bytes of presence and roster frames queued for clients", presenceBytesOut.sum());
+        counter(out, "chat_bytes_in_total", "Bytes read from clients", bytesIn.sum());
+        counter(out, "chat_bytes_out_total", "Bytes written to clients", bytesOut.sum());
+        gauge(out, "chat_broadcast_queue_depth", "Messages waiting for a broadcaster", Server.broadcastQueueDepth());
+        gauge(out, "chat_peers", "Federation peers linked", Server.peerCount());
+        counter(out, "chat_peer_messages_in_total", "Messages received from federation peers", peerMessagesIn.sum());
+        counter(out, "chat_peer_messages_out_total", "Messages relayed to federation peers", peerMessagesOut.sum());
+        counter(out, "chat_peer_messages_rejected_total", "Messages from federation peers not sent by their own clients",
+                peerMessagesRejected.sum());
+        counter(out, "chat_multicast_datagrams_total", "Datagrams sent to the multicast group", multicastSent.sum());
+        counter(out, "chat_multicast_resent_total", "Multicast messages sent again to clients that missed them", multicastResent.sum());
+        counter(out, "chat_attachments_stored_total", "Attachments uploaded and stored", attachmentsStored.sum());
+        counter(out, "chat_attachments_deduplicated_total", "Attachments posted again without being uploaded", attachmentsDeduplicated.sum());
+        counter(out, "chat_attachments_fetched_total", "Attachments streamed to clients", attachmentsFetched.sum());
+        counter(out, "chat_direct_messages_total", "Direct messages delivered, one per recipient", directMessages.sum());
+        gauge(out, "chat_search_indexed", "Messages indexed for search", Server.indexedCount());
+        counter(out, "chat_searches_total", "Searches of the message history", searches.sum());
+        summary(out, "chat_search_seconds", "Time to run a search against the index", searchTime);
+        summary(out, "chat_fan_out_seconds", "Time to hand a message to every member of its room", fanOut);
+        summary(out, "chat_send_latency_seconds", "Time frames wait in a client's outbound queue", sendLatency);
+        summary(out, "chat_handshake_seconds", "Time from accepting a connection to the client being ready", handshakeTime);
+        counter(out, "chat_console_lines_dropped_total", "Console lines dropped because the console fell behind", consoleLinesDropped.sum());
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" gauge\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, Histogram histogram) {
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        long[] values = histogram.quantiles(quantiles);
+
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" summary\n");
+        for (int i = 0; i < quantiles.length; i++) {
+            out.append(name).append("{quantile=\"").append(quantiles[i]).append("\"} ")
+                    .append(values[i] / 1e6).append('\n');
+        }
+        out.append(name).append("_sum ").append(histogram.sum() / 1e6).append('\n')
+                .append(name).append("_count ").append(histogram.count()).append('\n');
+    }
+
+    public int getConnections() {
+        return Server.sessionCount();
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    public long getConnectionsClosed() {
+        return connectionsClosed.sum();
+    }
+
+    public long getConnectionsTimedOut() {
+        return connectionsTimedOut.sum();
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    public long getMessagesDropped() {
+        return messagesDropped.sum();
+    }
+
+    public long getMessagesThrottled() {
+        return messagesThrottled.sum();
+    }
+
+    public long getMessagesShed() {
+        return messagesShed.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getPresenceFramesOut() {
+        return presenceFramesOut.sum();
+    }
+
+    public long getPresenceBytesOut() {
+        return presenceBytesOut.sum();
+    }
+
+    public long getBroadcastQueueDepth() {
+        return Server.broadcastQueueDepth();
+    }
+
+    public int getPeers() {
+        return Server.peerCount();
+    }
+
+    public long getPeerMessagesIn() {
+        return peerMessagesIn.sum();
+    }
+
+    public long getPeerMessagesOut() {
+        return peerMessagesOut.sum();
+    }
+
+    public long getMulticastSent() {
+        return multicastSent.sum();
+    }
+
+    public long getMulticastResent() {
+        return multicastResent.sum();
+    }
+
+    public long getAttachmentsStored() {
+        return attachmentsStored.sum();
+    }
+
+    public long getAttachmentsDeduplicated() {
+        return attachmentsDeduplicated.sum();
+    }
+
+    public long getAttachmentsFetched() {
+        return attachmentsFetched.sum();
+    }
+
+    public long getDirectMessages() {
+        return directMessages.sum();
+    }
+
+    public long getSearchIndexed() {
+        return Server.indexedCount();
+    }
+
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    public long getSearchP50() {
+        return searchTime.quantiles(0.5)[0];
+    }
+
+    public long getSearchP99() {
+        return searchTime.quantiles(0.99)[0];
+    }
+
+    public long getSearchMax() {
+        return searchTime.quantiles(1)[0];
+    }
+
+    public long getFanOutP50() {
+        return fanOut.quantiles(0.5)[0];
+    }
+
+    public long getFanOutP99() {
+        return fanOut.quantiles(0.99)[0];
+    }
+
+    public long getFanOutMax() {
+        return fanOut.quantiles(1)[0];
+    }
+
+    public long getSendLatencyP50() {
+        return sendLatency.quantiles(0.5)[0];
+    }
+
+    public long getSendLatencyP99() {
+        return sendLatency.quantiles(0.99)[0];
+    }
+
+    public long getSendLatencyMax() {
+        return sendLatency.quantiles(1)[0];
+    }
+
+    public long getHandshakeP50() {
+        return handshakeTime.quantiles(0.5)[0];
+    }
+
+    public long getHandshakeP99() {
+        return handshakeTime.quantiles(0.99)[0];
+    }
+
+    public long getHandshakeMax() {
+        return handshakeTime.quantiles(1)[0];
+    }
+
+    public long getConsoleLinesDropped() {
+        return consoleLinesDropped.sum();
+    }
+}
@@ -0,0 +1,84 @@
+package server;
+
+/**
+ * Server metrics as seen through JMX, under server:type=Metrics. Durations
+ * are in microseconds
+ */
+public interface MetricsMBean {
+
+    int getConnections();
+
+    long getConnectionsOpened();
+
+    long getConnectionsClosed();
+
+    long getConnectionsTimedOut();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getMessagesDropped();
+
+    long getMessagesThrottled();
+
+    long getMessagesShed();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getPresenceFramesOut();
+
+    long getPresenceBytesOut();
+
+    long getBroadcastQueueDepth();
+
+    int getPeers();
+
+    long getPeerMessagesIn();
+
+    long getPeerMessagesOut();
+
+    long getMulticastSent();
+
+    long getMulticastResent();
+
+    long getAttachmentsStored();
+
+    long getAttachmentsDeduplicated();
+
+    long getAttachmentsFetched();
+
+    long getDirectMessages();
+
+    long getSearchIndexed();
+
+    long getSearches();
+
+    long getSearchP50();
+
+    long getSearchP99();
+
+    long getSearchMax();
+
+    long getFanOutP50();
+
+    long getFanOutP99();
+
+    long getFanOutMax();
+
+    long getSendLatencyP50();
+
+    long getSendLatencyP99();
+
+    long getSendLatencyMax();
+
+    long getHandshakeP50();
+
+    long getHandshakeP99();
+
+    long getHandshakeMax();
+
+    long getConsoleLinesDropped();
+}
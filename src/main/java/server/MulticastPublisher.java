@@ -0,0 +1,205 @@
+package server;
+
+import message.Frame;
+import message.Message;
+import message.Protocol;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sends every broadcast message once to an IP multicast group, however many
+ * clients are in its room. Clients that subscribe receive their rooms'
+ * messages from the group, spot lost datagrams from gaps in the sequence
+ * numbers and ask for those over their connection. The last messages
+ * multicast are kept for that, indexed by sequence.
+ *
+ * Messages too large for one datagram are not multicast; subscribers see
+ * the gap and fetch them like any other lost message
+ */
+class MulticastPublisher {
+
+    /**
+     * Largest UDP payload over IPv4
+     */
+    private static final int MAX_DATAGRAM = 65_507;
+
+    /**
+     * How long the group may go without a datagram before a heartbeat is sent
+     */
+    private static final long HEARTBEAT_INTERVAL_MS = 1000;
+
+    private final InetSocketAddress group;
+    private final DatagramChannel channel;
+
+    /**
+     * Recent messages, each at its sequence modulo the length
+     */
+    private final AtomicReferenceArray<Message> history;
+
+    private final AtomicLong lastPublished = new AtomicLong(0);
+    private volatile long lastSentNanos = System.nanoTime();
+    private volatile boolean running = false;
+    private Thread heartbeat;
+
+    private MulticastPublisher(InetSocketAddress group, DatagramChannel channel, int historySize) {
+        this.group = group;
+        this.channel = channel;
+        this.history = new AtomicReferenceArray<>(Math.max(1, historySize));
+    }
+
+    /**
+     * Open the multicast socket from the startup options: --multicast=group:port,
+     * and optionally --multicast-interface, --multicast-ttl and --multicast-history
+     * @param options parsed startup options
+     * @return publisher, null if --multicast is not set
+     * @throws IOException if the group is not a multicast address or the socket cannot be set up
+     */
+    static MulticastPublisher open(ServerOptions options) throws IOException {
+        String address = options.getString("multicast", "");
+        if (address.isEmpty()) return null;
+
+        int colon = address.lastIndexOf(':');
+        InetSocketAddress group;
+        try {
+            if (colon < 0) throw new NumberFormatException();
+            group = new InetSocketAddress(InetAddress.getByName(address.substring(0, colon)),
+                    Integer.parseInt(address.substring(colon + 1)));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Invalid multicast group (" + address + "). Expected group:port");
+        }
+        if (!group.getAddress().isMulticastAddress()) throw new IOException(address + " is not a multicast address");
+
+        DatagramChannel channel = DatagramChannel.open(
+                group.getAddress().getAddress().length == 4 ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+        try {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, options.getInt("multicast-ttl", 1));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+
+            String interfaceName = options.getString("multicast-interface", "");
+            if (!interfaceName.isEmpty()) {
+                NetworkInterface networkInterface = NetworkInterface.getByName(interfaceName);
+                if (networkInterface == null) throw new IOException("No network interface named " + interfaceName);
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            }
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return new MulticastPublisher(group, channel, options.getInt("multicast-history", 65536));
+    }
+
+    /**
+     * Start sending heartbeats while there is nothing to multicast
+     * @param threadMode kind of thread to send heartbeats on
+     */
+    void start(ThreadMode threadMode) {
+        running = true;
+        heartbeat = threadMode.newThread("multicast-heartbeat", this::sendHeartbeats);
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+
+    /**
+     * Keep a sequenced message for resends and send it to the group. Called
+     * by every broadcaster worker
+     * @param message sequenced message
+     */
+    void publish(Message message) {
+        long sequence = message.getSequence();
+        history.set((int) (sequence % history.length()), message);
+        lastPublished.accumulateAndGet(sequence, Math::max);
+
+        try {
+            ByteBuffer frame = message.getFrame(Protocol.MULTICAST_VERSION);
+            if (frame.remaining() > MAX_DATAGRAM) return;
+
+            send(frame.duplicate());
+        }
+        catch (UTFDataFormatException e) {
+            // Left for subscribers to fetch, the error is reported when it is sent to them
+        }
+    }
+
+    private void send(ByteBuffer datagram) {
+        try {
+            channel.send(datagram, group);
+            Metrics.multicastSent.increment();
+            lastSentNanos = System.nanoTime();
+        }
+        catch (IOException e) {
+            if (running) System.err.println("Could not multicast: " + e.getMessage());
+        }
+    }
+
+    private void sendHeartbeats() {
+        while (running) {
+            try {
+                Thread.sleep(HEARTBEAT_INTERVAL_MS);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            long last = lastPublished.get();
+            if (last > 0 && System.nanoTime() - lastSentNanos >= TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_INTERVAL_MS)) {
+                send(new Frame(Frame.HEARTBEAT, last, System.currentTimeMillis(), 0, "", "")
+                        .encode(Protocol.MULTICAST_VERSION, false));
+            }
+        }
+    }
+
+    /**
+     * @param from first sequence wanted
+     * @param count number of messages wanted
+     * @return those still kept, in sequence order
+     */
+    List<Message> history(long from, int count) {
+        from = Math.max(1, from);
+        count = Math.max(0, Math.min(count, history.length()));
+
+        List<Message> messages = new ArrayList<>(count);
+        for (long sequence = from; sequence < from + count; sequence++) {
+            Message message = history.get((int) (sequence % history.length()));
+            if (message != null && message.getSequence() == sequence) messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * @return group and port as host:port
+     */
+    String getGroup() {
+        return group.getAddress().getHostAddress() + ":" + group.getPort();
+    }
+
+    /**
+     * Stop sending heartbeats and close the socket
+     */
+    void close() {
+        running = false;
+        if (heartbeat != null) heartbeat.interrupt();
+
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            System.err.println("I/O Exception: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Selector based server engine. One thread accepts connections and hands
+ * them round-robin to a small fixed pool of event loops, each of which
+ * services thousands of non-blocking connections
+ */
+class NioServer {
+
+    /**
+     * Pending connection queue length passed to bind. Large so that a burst
+     * of connects is not refused while the acceptor catches up
+     */
+    static final int ACCEPT_BACKLOG = 4096;
+
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private Thread acceptThread;
+    private int nextLoop = 0;
+
+    /**
+     * Bind server channel to port and create event loops
+     * @param port port to bind to
+     * @param loopCount number of event loop threads
+     * @throws IOException if the port cannot be bound or a selector cannot be opened
+     */
+    NioServer(int port, int loopCount) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+
+        eventLoops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Start event loops and the accept thread
+     */
+    void start() {
+        running.set(true);
+
+        for (EventLoop loop : eventLoops) {
+            loop.start();
+        }
+
+        acceptThread = new Thread(this::acceptLoop, "nio-accept");
+        acceptThread.start();
+    }
+
+    /**
+     * Blocking accept loop. Accepted channels are switched to non-blocking
+     * mode and registered with the next event loop
+     */
+    private void acceptLoop() {
+        while (running.get()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                long acceptedAt = System.nanoTime();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Server.keepAlive(channel);
+
+                EventLoop loop = eventLoops[nextLoop];
+                nextLoop = (nextLoop + 1) % eventLoops.length;
+                loop.register(channel, acceptedAt);
+            }
+            catch (ClosedChannelException e) {
+                // Server channel closed by close()
+                return;
+            }
+            catch (IOException e) {
+                System.err.println("I/O Exception: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stop accepting, stop all event loops and close every connection
+     */
+    void close() {
+        running.set(false);
+
+        try {
+            serverChannel.close();
+        }
+        catch (IOException e) {
+            System.err.println("I/O Exception: " + e.getMessage());
+        }
+
+        for (EventLoop loop : eventLoops) {
+            loop.close();
+        }
+    }
+}
@@ -0,0 +1,658 @@
+package server;
+
+import message.Frame;
+import message.Message;
+import message.Protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking connection owned by an EventLoop. Runs the same handshake as
+ * ClientSession: legacy clients open with their name as a writeUTF string
+ * and keep using writeUTF strings, binary clients open with the protocol
+ * handshake and then exchange Frames
+ */
+class NioSession implements Session {
+
+    /**
+     * Where the session is in its handshake
+     */
+    private enum State {
+        /** Waiting for the first bytes, which decide legacy or binary */
+        OPENING,
+        /** Binary handshake done, waiting for the HELLO frame */
+        AWAITING_HELLO,
+        /** Legacy writeUTF client, name received */
+        LEGACY,
+        /** Binary client, HELLO received */
+        BINARY,
+        /** Handshake failed, connection closing */
+        FAILED
+    }
+
+    /**
+     * Smallest per-session buffer allocated to hold a partial frame
+     */
+    private static final int MIN_INBOUND_SIZE = 256;
+
+    /**
+     * Most frames written with one gathering write
+     */
+    private static final int MAX_GATHER = 64;
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    /**
+     * Incomplete frame left over from the previous read, in write mode. Null
+     * if nothing is pending, in which case reads go to the loop's shared buffer
+     */
+    private ByteBuffer inbound;
+
+    /**
+     * Frames waiting to be written, drained by the loop when the channel is writable
+     */
+    private final OutboundQueue outbound;
+
+    /**
+     * Messages the client may send, taken as they are read
+     */
+    private final TokenBucket rateLimit = Server.newRateLimit();
+
+    /**
+     * Secret the client must send to take its name back when it reconnects
+     */
+    private final String resumeToken = Server.newResumeToken();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    /**
+     * Set once a write has been asked for without waiting for the flush delay
+     */
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+    /**
+     * Frames taken from outbound for gathering writes, those from gatherStart
+     * to gatherEnd not yet written in full. Only used on the loop thread
+     */
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private int gatherStart = 0;
+    private int gatherEnd = 0;
+
+    /**
+     * Attachments waiting to be sent, a chunk of each in turn
+     */
+    private final ConcurrentLinkedQueue<AttachmentTransfer> transfers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Attachment whose current chunk is only partly written, null between
+     * chunks. Only used on the loop thread
+     */
+    private AttachmentTransfer sending;
+
+    private final FlushPolicy flushPolicy;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Catch-up for this session, null if there was none
+     */
+    private volatile CatchUp catchUp;
+
+    /**
+     * First sequence sent by multicast only, Long.MAX_VALUE until the client subscribes
+     */
+    private volatile long multicastFrom = Long.MAX_VALUE;
+
+    /**
+     * System.nanoTime() when the connection was accepted, for the handshake time
+     */
+    private final long acceptedAt;
+
+    /**
+     * System.nanoTime() of the last read. Written by the loop, read by the heartbeat thread
+     */
+    private volatile long lastRead;
+
+    private State state = State.OPENING;
+    private volatile int version = Protocol.LEGACY_VERSION;
+    private String clientName;
+    private int clientId;
+
+    /**
+     * Called on the loop thread. The handshake must be done within the
+     * server's handshake timeout or the connection is closed
+     */
+    NioSession(EventLoop loop, SocketChannel channel, SelectionKey key, long acceptedAt) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.acceptedAt = acceptedAt;
+        this.lastRead = acceptedAt;
+        this.flushPolicy = Server.flushPolicy();
+        this.outbound = Server.newOutboundQueue(() -> version);
+
+        loop.schedule(this::checkHandshake, TimeUnit.MILLISECONDS.toNanos(Server.handshakeTimeout()));
+    }
+
+    /**
+     * Close the connection if the client has still not finished its handshake
+     */
+    private void checkHandshake() {
+        if (closed.get() || (state != State.OPENING && state != State.AWAITING_HELLO)) return;
+
+        System.err.println("Handshake failed: timed out");
+        close();
+    }
+
+    /**
+     * Read whatever is available, then handle every complete frame. Any
+     * trailing partial frame is moved to a buffer owned by this session until
+     * the rest arrives. Runs on the loop thread
+     */
+    void onReadable() {
+        ByteBuffer buffer = inbound;
+        if (buffer == null) {
+            buffer = loop.readBuffer();
+            buffer.clear();
+        }
+
+        try {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                System.err.println("Client Disconnected.");
+                close();
+                return;
+            }
+            Metrics.bytesIn.add(read);
+            lastRead = System.nanoTime();
+
+            buffer.flip();
+            int needed;
+            while ((needed = bytesNeeded(buffer)) != -1 && buffer.remaining() >= needed) {
+                ByteBuffer frame = buffer.slice();
+                frame.limit(needed);
+                buffer.position(buffer.position() + needed);
+
+                onFrame(frame);
+                if (state == State.FAILED) return;
+            }
+
+            keepPartialFrame(buffer, needed);
+        }
+        catch (UTFDataFormatException e) {
+            System.err.println("Bytes do represent UTF-8.");
+            close();
+        }
+        catch (IOException e) {
+            System.err.println("Client Disconnected.");
+            close();
+        }
+    }
+
+    /**
+     * @param buffer buffer in read mode
+     * @return size of the next frame, including any prefix, or the number of
+     *         bytes needed to work out its size. -1 if the buffer is empty
+     * @throws IOException if the next frame is too large
+     */
+    private int bytesNeeded(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) return -1;
+
+        switch (state) {
+            case OPENING:
+                if (buffer.remaining() < 2) return 2;
+                int first = buffer.getShort(buffer.position()) & 0xFFFF;
+                return first == 0 ? Protocol.CLIENT_HANDSHAKE_SIZE : 2 + first;
+            case LEGACY:
+                if (buffer.remaining() < 2) return 2;
+                return 2 + (buffer.getShort(buffer.position()) & 0xFFFF);
+            default:
+                int size = Frame.frameSize(buffer);
+                return size == -1 ? Frame.LENGTH_SIZE : size;
+        }
+    }
+
+    /**
+     * Keep the unprocessed tail of buffer for the next read, growing the
+     * session's buffer if the pending frame will not fit
+     * @param buffer buffer in read mode
+     * @param needed bytes needed for the next frame, -1 if buffer is empty
+     */
+    private void keepPartialFrame(ByteBuffer buffer, int needed) {
+        if (!buffer.hasRemaining()) {
+            inbound = null;
+            return;
+        }
+
+        if (buffer == inbound && inbound.capacity() >= needed) {
+            inbound.compact();
+            return;
+        }
+
+        ByteBuffer next = ByteBuffer.allocate(Math.max(needed, MIN_INBOUND_SIZE));
+        next.put(buffer);
+        inbound = next;
+    }
+
+    /**
+     * Handle one complete frame according to the handshake state
+     * @param frame frame bytes including any prefix
+     * @throws IOException if the frame is malformed
+     */
+    private void onFrame(ByteBuffer frame) throws IOException {
+        switch (state) {
+            case OPENING:
+                if (frame.getShort(0) != 0) {
+                    clientName = readUTF(frame);
+                    clientId = Server.nextClientId();
+
+                    // Legacy clients cannot be told why, the connection just closes
+                    if (!Server.registerSession(this, "")) {
+                        fail("Name " + clientName + " is already in use");
+                        return;
+                    }
+                    state = State.LEGACY;
+                    Metrics.handshakeTime.record((System.nanoTime() - acceptedAt) / 1000);
+                    Server.addSession(this, clientName);
+                    return;
+                }
+
+                byte[] handshake = new byte[Protocol.CLIENT_HANDSHAKE_SIZE];
+                frame.get(handshake);
+                if (!Protocol.isMagic(handshake, 2)) {
+                    fail("Unknown handshake");
+                    return;
+                }
+
+                int negotiated = Protocol.negotiate(handshake[5] & 0xFF, handshake[6] & 0xFF);
+                outbound.offerAlways(ByteBuffer.wrap(Protocol.serverHandshake(negotiated)));
+                requestWrite(true);
+                if (negotiated == 0) {
+                    fail("No protocol version in common with client");
+                    return;
+                }
+                version = negotiated;
+                state = State.AWAITING_HELLO;
+                return;
+
+            case AWAITING_HELLO:
+                frame.position(Frame.LENGTH_SIZE);
+                Frame hello = Frame.decode(frame, version);
+                if (hello.getType() != Frame.HELLO) {
+                    fail("Expected HELLO frame");
+                    return;
+                }
+
+                clientName = hello.getName();
+                clientId = Server.nextClientId();
+                if (!Server.registerSession(this, Server.resumeTokenOf(hello, version))) {
+                    String reason = "Name " + clientName + " is already in use";
+                    outbound.offerAlways(new Frame(Frame.WELCOME, 0, System.currentTimeMillis(), 0, clientName, reason)
+                            .encode(version, false));
+                    requestWrite(true);
+                    fail(reason);
+                    return;
+                }
+                outbound.offerAlways(new Frame(Frame.WELCOME, Server.lastSequence(), System.currentTimeMillis(), clientId, clientName,
+                        resumeToken, Server.multicastGroup(version)).encode(version, false));
+                requestWrite(true);
+                state = State.BINARY;
+                Metrics.handshakeTime.record((System.nanoTime() - acceptedAt) / 1000);
+                Server.addSession(this, hello);
+                return;
+
+            case LEGACY:
+                Server.addMessageToBroadcast(this, new Message(clientId, clientName, readUTF(frame)));
+                return;
+
+            case BINARY:
+                frame.position(Frame.LENGTH_SIZE);
+                onBinaryFrame(Frame.decode(frame, version));
+                return;
+
+            default:
+                // Failed, ignore anything else the client sends
+        }
+    }
+
+    /**
+     * Handle a frame from a binary client after the handshake
+     * @param frame decoded frame
+     */
+    private void onBinaryFrame(Frame frame) {
+        switch (frame.getType()) {
+            case Frame.CHAT:
+                Server.addMessageToBroadcast(this, new Message(clientId, clientName, frame.getRoom(), frame.getBody()));
+                break;
+            case Frame.JOIN:
+                Server.joinRoom(this, frame.getRoom());
+                break;
+            case Frame.LEAVE:
+                Server.leaveRoom(this, frame.getRoom());
+                break;
+            case Frame.SUBSCRIBE:
+                if (version < Protocol.MULTICAST_VERSION) break;
+                multicastFrom = Server.subscribeMulticast();
+                sendFrame(new Frame(Frame.SUBSCRIBE, multicastFrom, System.currentTimeMillis(), clientId, clientName, ""));
+                break;
+            case Frame.RESEND:
+                if (version >= Protocol.MULTICAST_VERSION) Server.resend(this, frame);
+                break;
+            case Frame.UPLOAD:
+                if (version >= Protocol.ATTACHMENT_VERSION) Server.upload(this, frame);
+                break;
+            case Frame.CHUNK:
+                // Data is a view of the read buffer, written to the file before the buffer is reused
+                if (version >= Protocol.ATTACHMENT_VERSION) Server.receiveChunk(this, frame);
+                break;
+            case Frame.FETCH:
+                if (version >= Protocol.ATTACHMENT_VERSION) Server.fetchAttachment(this, frame);
+                break;
+            case Frame.DIRECT:
+                if (version >= Protocol.DIRECT_VERSION) Server.sendDirect(this, frame);
+                break;
+            case Frame.PRESENCE:
+                if (version >= Protocol.PRESENCE_VERSION) Server.updatePresence(this, frame);
+                break;
+            case Frame.SEARCH:
+                if (version >= Protocol.SEARCH_VERSION) Server.search(this, frame);
+                break;
+            case Frame.PING:
+                // Charged like a message, so a client cannot flood its own queue with PONGs
+                if (version >= Protocol.HEARTBEAT_VERSION && Server.takeToken(this, Protocol.DEFAULT_ROOM)) {
+                    sendFrame(new Frame(Frame.PONG, 0, System.currentTimeMillis(), 0, "", ""));
+                }
+                break;
+            case Frame.PONG:
+                // Being read at all is what counts
+                break;
+            default:
+                // Not a frame clients send, ignore
+        }
+    }
+
+    private static String readUTF(ByteBuffer frame) throws IOException {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Stop reading and close once any queued handshake reply has been written
+     * @param reason reason to log
+     */
+    private void fail(String reason) {
+        System.err.println("Handshake failed: " + reason);
+        state = State.FAILED;
+        inbound = null;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Queue message's shared frame for this client's protocol version and
+     * make sure the loop writes it within the flush delay. Never blocks: if
+     * the client has fallen too far behind the slow consumer policy decides
+     * what is dropped. Safe to call from any thread
+     * @param message message to send
+     */
+    public void sendMessage(Message message) {
+        if (closed.get()) return;
+
+        CatchUp pending = catchUp;
+        if (pending != null && pending.hold(message)) return;
+
+        try {
+            if (queue(message.getFrame(version), false)) requestWrite(outbound.bytes() >= flushPolicy.getMaxBytes());
+        }
+        catch (UTFDataFormatException e) {
+            System.err.println("Message too long to send: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queue a direct message frame, applying the slow consumer policy, and
+     * make sure the loop writes it within the flush delay. Safe to call from any thread
+     * @param frame encoded DIRECT frame
+     */
+    public void sendDirect(ByteBuffer frame) {
+        if (closed.get()) return;
+
+        if (queue(frame, false)) requestWrite(outbound.bytes() >= flushPolicy.getMaxBytes());
+    }
+
+    public void sendPresence(ByteBuffer frame) {
+        if (closed.get()) return;
+
+        if (queue(frame, true)) requestWrite(outbound.bytes() >= flushPolicy.getMaxBytes());
+    }
+
+    /**
+     * Queue every message's frame, applying the slow consumer policy, and
+     * write them straight away
+     * @param messages messages to send, in sequence order
+     */
+    public void sendHistory(List<Message> messages) {
+        if (closed.get()) return;
+
+        for (Message message : messages) {
+            try {
+                if (!queue(message.getFrame(version), false)) return;
+            }
+            catch (UTFDataFormatException e) {
+                System.err.println("Message too long to send: " + e.getMessage());
+            }
+        }
+
+        requestWrite(true);
+    }
+
+    public void sendFrame(Frame frame) {
+        if (closed.get()) return;
+
+        if (queue(frame.encode(version, false), true)) requestWrite(true);
+    }
+
+    /**
+     * Queue a frame, and disconnect the client if it has fallen too far behind
+     * @param frame encoded frame
+     * @param control true for replies and roster updates, which the slow
+     *        consumer policy never drops, false for messages
+     * @return false if the client is being disconnected
+     */
+    private boolean queue(ByteBuffer frame, boolean control) {
+        if (control ? outbound.offerControl(frame) : outbound.offer(frame)) return true;
+
+        System.err.println("Client " + clientName + " could not keep up. Disconnecting");
+        loop.execute(this::close);
+        return false;
+    }
+
+    /**
+     * Queue an attachment, sent by the loop between chat frames
+     * @param hash attachment hash
+     * @param file stored file, opened for reading
+     */
+    public void sendAttachment(String hash, FileChannel file) {
+        try {
+            transfers.add(new AttachmentTransfer(hash, file, version));
+        }
+        catch (IOException e) {
+            System.err.println("Could not send attachment " + hash + ": " + e.getMessage());
+            try {
+                file.close();
+            }
+            catch (IOException ignored) {
+                // Only read from, nothing to lose
+            }
+            return;
+        }
+
+        if (closed.get()) closeTransfers();
+        else requestWrite(true);
+    }
+
+    public void setCatchUp(CatchUp catchUp) {
+        this.catchUp = catchUp;
+    }
+
+    /**
+     * Make sure the loop will write what is queued: straight away if now is
+     * set or the flush policy has no delay, otherwise once the delay has
+     * passed, so frames queued in the meantime go out in the same write
+     * @param now true to write without waiting for the flush delay
+     */
+    private void requestWrite(boolean now) {
+        now |= flushPolicy.isImmediate();
+
+        if (writeScheduled.compareAndSet(false, true)) {
+            if (now) {
+                flushRequested.set(true);
+                loop.execute(this::enableWriteInterest);
+            }
+            else {
+                loop.schedule(this::enableWriteInterest, flushPolicy.getDelayNanos());
+            }
+        }
+        else if (now && flushRequested.compareAndSet(false, true)) {
+            // A delayed write is already pending, bring it forward
+            loop.execute(this::enableWriteInterest);
+        }
+    }
+
+    private void enableWriteInterest() {
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Write queued frames until the queue is empty or the socket buffer is
+     * full, up to MAX_GATHER frames per gathering write. Attachments are sent
+     * a chunk at a time once no frames are queued. Write interest is dropped
+     * once everything has been written. Runs on the loop thread
+     */
+    void onWritable() {
+        try {
+            while (true) {
+                if (gatherStart == gatherEnd) {
+                    gatherStart = 0;
+                    gatherEnd = sending == null ? outbound.poll(gather, 0, gather.length) : 0;
+                    if (gatherEnd == 0) {
+                        if (sending == null) sending = transfers.poll();
+                        if (sending == null) break;
+
+                        // Socket buffer full, finish the chunk before anything else is written
+                        if (!sending.writeChunk(channel)) return;
+
+                        if (sending.isDone()) sending.close();
+                        else transfers.add(sending);
+                        sending = null;
+                        continue;
+                    }
+                }
+
+                Metrics.bytesOut.add(channel.write(gather, gatherStart, gatherEnd - gatherStart));
+
+                // Drop the frames written in full, keep the rest for the next writable event
+                while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+                    gather[gatherStart++] = null;
+                }
+
+                // Socket buffer full, wait for next writable event
+                if (gatherStart < gatherEnd) return;
+            }
+        }
+        catch (IOException e) {
+            System.err.println("I/O Exception in NioSession: " + e.getMessage());
+            close();
+            return;
+        }
+
+        if (state == State.FAILED) {
+            close();
+            return;
+        }
+
+        key.interestOps(SelectionKey.OP_READ);
+        flushRequested.set(false);
+        writeScheduled.set(false);
+
+        // A frame may have been queued after the last poll but before the flag was cleared
+        if ((outbound.size() > 0 || !transfers.isEmpty()) && writeScheduled.compareAndSet(false, true)) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    public long getMulticastFrom() {
+        return multicastFrom;
+    }
+
+    public int getId() {
+        return clientId;
+    }
+
+    public String getName() {
+        return clientName;
+    }
+
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public long getLastRead() {
+        return lastRead;
+    }
+
+    public TokenBucket getRateLimit() {
+        return rateLimit;
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    /**
+     * Close channel and remove session from the server. Safe to call more
+     * than once and from any thread; off the loop thread it is done on the
+     * loop, which owns the attachment being sent
+     */
+    public void close() {
+        if (!loop.inLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        if (!closed.compareAndSet(false, true)) return;
+
+        key.cancel();
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            System.err.println("Could not close socket. Closing Client");
+        }
+
+        outbound.close();
+        if (sending != null) sending.close();
+        closeTransfers();
+        if (clientName != null) Server.removeSession(this, clientName);
+    }
+
+    private void closeTransfers() {
+        AttachmentTransfer transfer;
+        while ((transfer = transfers.poll()) != null) {
+            transfer.close();
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package server;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+import message.Message;
+
+/**
+ * Bounded queue of frames waiting to be written to one client. Broadcasters
+ * and catch-ups add frames, the connection's own writer takes them, so a
+ * client that reads slowly only ever fills its own queue. What happens to a
+ * message offered to a full queue is set by the slow consumer Policy.
+ *
+ * Control frames, such as replies and roster updates, wait in the same queue
+ * so everything is written in order, but the policy never drops them: a
+ * client that missed one could be left waiting for a reply or showing the
+ * wrong roster. They have a small limit of their own instead.
+ *
+ * Also counts what the client has missed and how far behind it is, for the
+ * server's lag report
+ */
+class OutboundQueue {
+
+    /**
+     * What to do with a message offered to a full queue
+     */
+    enum Policy {
+        /** Drop the oldest queued message to make room */
+        DROP_OLDEST,
+        /** Drop the message offered */
+        DROP_NEWEST,
+        /** Drop every queued message and replace them with one notice of how many were skipped */
+        COALESCE,
+        /** Drop the message offered, and disconnect the client if the queue is still full after the deadline */
+        DISCONNECT;
+
+        /**
+         * @param name policy name, case insensitive, with - or _ between words
+         * @return matching policy, DROP_OLDEST if unknown
+         */
+        static Policy parse(String name) {
+            try {
+                return valueOf(name.toUpperCase().replace('-', '_'));
+            }
+            catch (IllegalArgumentException e) {
+                System.err.println("Unknown slow consumer policy (" + name + "). Defaulting to drop-oldest");
+                return DROP_OLDEST;
+            }
+        }
+    }
+
+    /**
+     * Most control frames queued. A client this far behind is not reading at all
+     */
+    static final int CONTROL_CAPACITY = 256;
+
+    private final int capacity;
+    private final Policy policy;
+    private final long deadlineNanos;
+
+    /**
+     * Protocol version of the client, for the notice sent in place of coalesced frames
+     */
+    private final IntSupplier version;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition added = lock.newCondition();
+
+    // Ring of queued frames, the time each was queued and whether it is a
+    // control frame. Guarded by lock
+    private ByteBuffer[] frames;
+    private long[] queuedAt;
+    private boolean[] control;
+    private int head = 0;
+    private int size = 0;
+    private int controlSize = 0;
+    private long bytes = 0;
+
+    /**
+     * Last notice of skipped messages queued, and how many it counts. A
+     * notice still queued when the queue is coalesced again is replaced by one
+     * counting both. Guarded by lock
+     */
+    private ByteBuffer notice;
+    private int noticeSkipped = 0;
+
+    /**
+     * Time the queue was first found full, 0 if it has room. Guarded by lock
+     */
+    private long fullSince = 0;
+
+    private volatile long dropped = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Set by finish(): no more frames are accepted and take() returns 0 once
+     * the queue is empty. Guarded by lock
+     */
+    private boolean finishing = false;
+
+    /**
+     * Set by wake(): the next take() returns without waiting for a frame. Guarded by lock
+     */
+    private boolean woken = false;
+
+    /**
+     * @param capacity most messages queued before the policy applies
+     * @param policy what to do with messages offered to a full queue
+     * @param deadlineMillis how long the queue may stay full before the client is disconnected, Policy.DISCONNECT only
+     * @param version protocol version of the client, read when a notice is sent
+     */
+    OutboundQueue(int capacity, Policy policy, long deadlineMillis, IntSupplier version) {
+        this.capacity = Math.max(2, capacity);
+        this.policy = policy;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        this.version = version;
+
+        this.frames = new ByteBuffer[this.capacity];
+        this.queuedAt = new long[this.capacity];
+        this.control = new boolean[this.capacity];
+    }
+
+    /**
+     * Queue a message, applying the policy if the queue is full
+     * @param frame frame to write to the client
+     * @return false if the client should be disconnected, the queue is then closed
+     */
+    boolean offer(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (closed || finishing) return true;
+
+            if (size - controlSize >= capacity && !makeRoom()) {
+                dropped++;
+                Metrics.messagesDropped.increment();
+                if (policy != Policy.DISCONNECT || System.nanoTime() - fullSince < deadlineNanos) return true;
+
+                // Only the first offer past the deadline reports it
+                close();
+                return false;
+            }
+
+            add(frame, false);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a control frame, which the policy never drops
+     * @param frame frame to write to the client
+     * @return false if CONTROL_CAPACITY control frames are already queued and
+     *         the client should be disconnected, the queue is then closed
+     */
+    boolean offerControl(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (closed || finishing) return true;
+
+            if (controlSize >= CONTROL_CAPACITY) {
+                close();
+                return false;
+            }
+
+            add(frame, true);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a control frame whatever is queued, for the handshake replies
+     * that are the first frames a client is sent
+     * @param frame frame to write to the client
+     */
+    void offerAlways(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (!closed && !finishing) add(frame, true);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Apply the policy to a queue full of messages. Called with lock held
+     * @return true if there is now room for the message offered
+     */
+    private boolean makeRoom() {
+        switch (policy) {
+            case DROP_OLDEST:
+                removeOldestMessage();
+                dropped++;
+                Metrics.messagesDropped.increment();
+                return true;
+
+            case COALESCE:
+                int carried = noticeQueued() ? noticeSkipped : 0;
+                int skipped = removeMessages() - (carried > 0 ? 1 : 0);
+                dropped += skipped;
+                Metrics.messagesDropped.add(skipped);
+                addNotice(carried + skipped);
+                return true;
+
+            default:
+                if (fullSince == 0) fullSince = System.nanoTime();
+                return false;
+        }
+    }
+
+    /**
+     * Queue a system message telling the client how many messages it missed.
+     * Called with lock held
+     * @param skipped number of frames dropped
+     */
+    private void addNotice(int skipped) {
+        Message message = new Message(0, "<System Info>", "Skipped " + skipped + " messages, your connection could not keep up");
+        try {
+            notice = message.getFrame(version.getAsInt());
+            noticeSkipped = skipped;
+            add(notice, false);
+        }
+        catch (UTFDataFormatException e) {
+            System.err.println("Could not encode notice: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if the last notice is still queued. Called with lock held
+     */
+    private boolean noticeQueued() {
+        for (int i = 0; i < size; i++) {
+            if (frames[(head + i) % frames.length] == notice) return true;
+        }
+        return false;
+    }
+
+    private void add(ByteBuffer frame, boolean isControl) {
+        if (size == frames.length) grow();
+
+        int tail = (head + size) % frames.length;
+        frames[tail] = frame;
+        queuedAt[tail] = System.nanoTime();
+        control[tail] = isControl;
+        size++;
+        if (isControl) controlSize++;
+        bytes += frame.remaining();
+
+        // Every add, so a writer lingering in take() sees the byte count rise
+        added.signal();
+    }
+
+    private void removeHead() {
+        bytes -= frames[head].remaining();
+        if (control[head]) controlSize--;
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        size--;
+    }
+
+    /**
+     * Remove the oldest message, moving any control frames queued ahead of
+     * it up one place. Called with lock held and at least one message queued
+     */
+    private void removeOldestMessage() {
+        int skip = 0;
+        while (control[(head + skip) % frames.length]) {
+            skip++;
+        }
+
+        int removed = (head + skip) % frames.length;
+        bytes -= frames[removed].remaining();
+        for (int i = skip; i > 0; i--) {
+            move((head + i - 1) % frames.length, (head + i) % frames.length);
+        }
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        size--;
+    }
+
+    /**
+     * Remove every message, keeping control frames in order. Called with lock held
+     * @return number of messages removed
+     */
+    private int removeMessages() {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % frames.length;
+            if (control[index]) {
+                move(index, (head + kept) % frames.length);
+                kept++;
+            }
+            else {
+                bytes -= frames[index].remaining();
+            }
+        }
+        for (int i = kept; i < size; i++) {
+            frames[(head + i) % frames.length] = null;
+        }
+
+        int removed = size - kept;
+        size = kept;
+        return removed;
+    }
+
+    private void move(int from, int to) {
+        frames[to] = frames[from];
+        queuedAt[to] = queuedAt[from];
+        control[to] = control[from];
+    }
+
+    private void grow() {
+        ByteBuffer[] grownFrames = new ByteBuffer[frames.length * 2];
+        long[] grownTimes = new long[frames.length * 2];
+        boolean[] grownControl = new boolean[frames.length * 2];
+        for (int i = 0; i < size; i++) {
+            grownFrames[i] = frames[(head + i) % frames.length];
+            grownTimes[i] = queuedAt[(head + i) % frames.length];
+            grownControl[i] = control[(head + i) % frames.length];
+        }
+        frames = grownFrames;
+        queuedAt = grownTimes;
+        control = grownControl;
+        head = 0;
+    }
+
+    /**
+     * Take up to max frames, oldest first, without waiting. Records how long
+     * each waited in the queue
+     * @param out array to fill
+     * @param offset first index of out to fill
+     * @param max most frames to take
+     * @return number of frames taken
+     */
+    int poll(ByteBuffer[] out, int offset, int max) {
+        lock.lock();
+        try {
+            int taken = Math.min(max, size);
+            long now = taken > 0 ? System.nanoTime() : 0;
+            for (int i = 0; i < taken; i++) {
+                Metrics.sendLatency.record((now - queuedAt[head]) / 1000);
+                out[offset + i] = frames[head];
+                removeHead();
+            }
+            Metrics.messagesOut.add(taken);
+            if (size - controlSize < capacity) fullSince = 0;
+            return taken;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for a frame, then wait up to lingerNanos more for up to
+     * lingerBytes to be queued, so they can be written together. Then take
+     * up to out.length frames
+     * @param out array to fill
+     * @param lingerNanos longest time to wait for more frames once one has arrived
+     * @param lingerBytes bytes queued that end the wait early
+     * @return number of frames taken, 0 if the queue was closed, finished and
+     *         empty, or woken with nothing queued
+     * @throws InterruptedException if interrupted while waiting
+     */
+    int take(ByteBuffer[] out, long lingerNanos, long lingerBytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0 && !closed && !finishing && !woken) {
+                added.await();
+            }
+            woken = false;
+
+            long remaining = lingerNanos;
+            while (!closed && !finishing && bytes < lingerBytes && size < out.length && remaining > 0) {
+                remaining = added.awaitNanos(remaining);
+            }
+
+            if (closed) return 0;
+            return poll(out, 0, out.length);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return frames queued
+     */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes queued
+     */
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return milliseconds the oldest queued frame has been waiting, 0 if empty
+     */
+    long lagMillis() {
+        lock.lock();
+        try {
+            return size == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt[head]);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return frames dropped by the policy since the client connected
+     */
+    long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Make a writer waiting in take() return, or the next call to it, so it
+     * can send something that does not go through the queue
+     */
+    void wake() {
+        lock.lock();
+        try {
+            woken = true;
+            added.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true once the queue has been closed
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop accepting frames but let the writer take those already queued
+     */
+    void finish() {
+        lock.lock();
+        try {
+            finishing = true;
+            added.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop everything queued and wake a writer waiting in take()
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            Arrays.fill(frames, null);
+            size = 0;
+            controlSize = 0;
+            bytes = 0;
+            added.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
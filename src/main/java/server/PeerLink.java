@@ -0,0 +1,341 @@
+package server;
+
+import message.Frame;
+import message.Message;
+import message.Protocol;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server-to-server connection between two nodes of a federation. Carries
+ * the chat messages each node's own clients send, as binary CHAT frames of
+ * the latest protocol version. The dialing node opens with a HELLO frame
+ * whose sender id is its node id and whose body is a random challenge. The
+ * other node replies with WELCOME carrying its own id, its own challenge as
+ * the body and its answer to the dialer's in the room. The dialer checks the
+ * answer and sends its own in the room of a second HELLO. Answers need the
+ * federation's shared secret, see Federation.prove().
+ *
+ * A peer may only relay messages from its own clients, whose ids carry its
+ * node id in the top byte; anything else it sends is dropped.
+ *
+ * Messages are queued and written by the link's writer thread in batches,
+ * and read by its reader thread, which hands them to the local broadcaster.
+ * A link has one TCP connection, so each sender's messages arrive in the
+ * order they were sent
+ */
+class PeerLink {
+
+    /**
+     * Protocol version spoken between nodes
+     */
+    static final int VERSION = Protocol.MAX_VERSION;
+
+    /**
+     * Name sent in the handshake frames
+     */
+    private static final String PEER_NAME = "peer";
+
+    /**
+     * Name the server sends its own notices under, which no relayed message may use
+     */
+    private static final String SYSTEM_NAME = "<System Info>";
+
+    /**
+     * Source of handshake challenges
+     */
+    private static final SecureRandom challenges = new SecureRandom();
+
+    /**
+     * Most frames written with one gathering write
+     */
+    private static final int MAX_GATHER = 256;
+
+    private final Federation federation;
+    private final SocketChannel channel;
+    private final DataInputStream dis;
+    private final int peerId;
+
+    /**
+     * Node id of whichever end dialed this link
+     */
+    private final int dialerId;
+
+    private final OutboundQueue outbound;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile boolean retired = false;
+
+    private PeerLink(Federation federation, SocketChannel channel, DataInputStream dis, int peerId, int dialerId) {
+        this.federation = federation;
+        this.channel = channel;
+        this.dis = dis;
+        this.peerId = peerId;
+        this.dialerId = dialerId;
+        this.outbound = new OutboundQueue(federation.getQueueSize(), OutboundQueue.Policy.DISCONNECT,
+                federation.getQueueDeadline(), () -> VERSION);
+    }
+
+    /**
+     * Connect to a peer and introduce this node. Connecting and each read of
+     * the handshake must finish within the server's handshake timeout
+     * @param federation federation this node belongs to
+     * @param address peer's federation address
+     * @return link ready to be started
+     * @throws IOException if the peer cannot be reached, the handshake fails or
+     *         times out, the peer does not know the secret or the address is
+     *         this node's own
+     */
+    static PeerLink dial(Federation federation, InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            int timeout = handshakeTimeout();
+            channel.socket().connect(address, timeout);
+            channel.socket().setSoTimeout(timeout);
+
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+            int nodeId = federation.getNodeId();
+            String challenge = newChallenge();
+
+            writeFully(channel, new Frame(Frame.HELLO, 0, System.currentTimeMillis(), nodeId, PEER_NAME, challenge)
+                    .encode(VERSION, false));
+            Frame welcome = Frame.read(dis, VERSION);
+            if (welcome.getType() != Frame.WELCOME) throw new IOException("Expected WELCOME frame from peer");
+            int peerId = welcome.getSenderId();
+            checkPeerId(federation, peerId);
+            checkProof(federation.prove("accept", peerId, nodeId, challenge, welcome.getBody()), welcome.getRoom(), peerId);
+
+            String proof = federation.prove("dial", nodeId, peerId, welcome.getBody(), challenge);
+            writeFully(channel, new Frame(Frame.HELLO, 0, System.currentTimeMillis(), nodeId, PEER_NAME, proof, "")
+                    .encode(VERSION, false));
+
+            channel.socket().setSoTimeout(0);
+            return new PeerLink(federation, channel, dis, peerId, nodeId);
+        }
+        catch (SocketTimeoutException e) {
+            channel.close();
+            throw new IOException("Peer did not finish the handshake within " + handshakeTimeout() + " ms");
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Run the handshake on a connection accepted from a peer. Each read of
+     * the handshake must finish within the server's handshake timeout
+     * @param federation federation this node belongs to
+     * @param channel newly accepted blocking channel
+     * @return link ready to be started
+     * @throws IOException if the handshake fails or times out, or the peer
+     *         does not know the secret, the channel is then closed
+     */
+    static PeerLink accept(Federation federation, SocketChannel channel) throws IOException {
+        try {
+            channel.socket().setSoTimeout(handshakeTimeout());
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+            int nodeId = federation.getNodeId();
+
+            Frame hello = Frame.read(dis, VERSION);
+            if (hello.getType() != Frame.HELLO) throw new IOException("Expected HELLO frame from peer");
+            int peerId = hello.getSenderId();
+            checkPeerId(federation, peerId);
+
+            String challenge = newChallenge();
+            String proof = federation.prove("accept", nodeId, peerId, hello.getBody(), challenge);
+            writeFully(channel, new Frame(Frame.WELCOME, 0, System.currentTimeMillis(), nodeId, PEER_NAME, proof, challenge)
+                    .encode(VERSION, false));
+
+            Frame answer;
+            try {
+                answer = Frame.read(dis, VERSION);
+            }
+            catch (EOFException e) {
+                // What a dialer with another secret does on checking our proof
+                throw new IOException("Peer node " + peerId + " closed the link in the handshake, it may have another federation secret");
+            }
+            if (answer.getType() != Frame.HELLO) throw new IOException("Expected HELLO frame from peer");
+            checkProof(federation.prove("dial", peerId, nodeId, challenge, hello.getBody()), answer.getRoom(), peerId);
+
+            channel.socket().setSoTimeout(0);
+            return new PeerLink(federation, channel, dis, peerId, peerId);
+        }
+        catch (SocketTimeoutException e) {
+            channel.close();
+            throw new IOException("Peer did not finish the handshake within " + handshakeTimeout() + " ms");
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the server's handshake timeout in milliseconds, as a socket timeout
+     */
+    private static int handshakeTimeout() {
+        return (int) Math.min(Integer.MAX_VALUE, Server.handshakeTimeout());
+    }
+
+    private static void checkPeerId(Federation federation, int peerId) throws IOException {
+        if (peerId == federation.getNodeId()) throw new IOException("Peer has this node's id " + peerId);
+        if (peerId < 1 || peerId > Federation.MAX_NODE_ID) throw new IOException("Invalid peer node id " + peerId);
+    }
+
+    /**
+     * Compare a peer's proof with the expected one in constant time
+     * @throws IOException if they differ
+     */
+    private static void checkProof(String expected, String proof, int peerId) throws IOException {
+        if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), proof.getBytes(StandardCharsets.UTF_8))) {
+            throw new IOException("Peer node " + peerId + " has another federation secret");
+        }
+    }
+
+    private static String newChallenge() {
+        byte[] challenge = new byte[16];
+        challenges.nextBytes(challenge);
+        return HexFormat.of().formatHex(challenge);
+    }
+
+    /**
+     * Start reading and writing
+     * @param threadMode kind of thread to run the reader and writer on
+     */
+    void start(ThreadMode threadMode) {
+        threadMode.newThread("peer-" + peerId, this::readFrames).start();
+        threadMode.newThread("peer-" + peerId + "-writer", this::writeFrames).start();
+    }
+
+    /**
+     * Queue a message sent by one of this node's clients for the peer
+     * @param message message to relay
+     */
+    void relay(Message message) {
+        try {
+            if (!outbound.offer(message.getFrame(VERSION))) {
+                System.err.println("Peer " + peerId + " could not keep up. Disconnecting");
+                close();
+            }
+        }
+        catch (UTFDataFormatException e) {
+            System.err.println("Message too long to relay: " + e.getMessage());
+        }
+    }
+
+    private void readFrames() {
+        try {
+            while (!closed.get()) {
+                Frame frame = Frame.read(dis, VERSION);
+                if (frame.getType() != Frame.CHAT) continue;
+
+                if (isFromOwnClient(frame)) {
+                    Server.publishFromPeer(frame.toMessage());
+                }
+                else {
+                    Metrics.peerMessagesRejected.increment();
+                }
+            }
+        }
+        catch (EOFException e) {
+            // Closed by the peer, after it retired the link or shut down
+        }
+        catch (IOException e) {
+            if (!closed.get() && !retired) System.err.println("Lost link to peer " + peerId + ": " + e.getMessage());
+        }
+
+        close();
+    }
+
+    /**
+     * Check a relayed message could have been sent by one of the peer's own
+     * clients: its sender id was issued by the peer, and its room and name
+     * are ones a client can use
+     * @param frame CHAT frame from the peer
+     */
+    private boolean isFromOwnClient(Frame frame) {
+        int senderId = frame.getSenderId();
+        return senderId >>> 24 == peerId && (senderId & 0xFFFFFF) != 0
+                && !frame.getRoom().isEmpty() && !frame.getRoom().startsWith("@")
+                && !frame.getName().isEmpty() && !frame.getName().equals(SYSTEM_NAME);
+    }
+
+    private void writeFrames() {
+        FlushPolicy flushPolicy = Server.flushPolicy();
+        ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+        try {
+            int count;
+            while ((count = outbound.take(batch, flushPolicy.getDelayNanos(), flushPolicy.getMaxBytes())) > 0) {
+                long remaining = 0;
+                for (int i = 0; i < count; i++) {
+                    remaining += batch[i].remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= channel.write(batch, 0, count);
+                }
+                Arrays.fill(batch, 0, count, null);
+            }
+
+            // Retired: the peer closes once it has read everything written
+            if (!closed.get()) channel.shutdownOutput();
+        }
+        catch (IOException e) {
+            if (!closed.get() && !retired) System.err.println("Lost link to peer " + peerId + ": " + e.getMessage());
+            close();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop relaying over this link in favour of another to the same peer.
+     * Frames already queued are still written, and the link stays open for
+     * reading until the peer closes it, so nothing in flight is lost
+     */
+    void retire() {
+        retired = true;
+        outbound.finish();
+    }
+
+    /**
+     * Close the link. Safe to call more than once
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) return;
+
+        outbound.close();
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            System.err.println("Could not close peer link. Closing link");
+        }
+        federation.linkClosed(this);
+    }
+
+    int getPeerId() {
+        return peerId;
+    }
+
+    int getDialerId() {
+        return dialerId;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
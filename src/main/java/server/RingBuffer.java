@@ -0,0 +1,164 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Bounded, preallocated multi-producer single-consumer ring buffer.
+ *
+ * Producers claim a sequence number, store their entry in the slot for that
+ * sequence and then mark the slot as published. The consumer takes entries
+ * strictly in sequence order, so every entry is handed over exactly once and
+ * entries from the same producer thread keep their order. Producers block
+ * while the ring is full.
+ *
+ * @param <E> entry type
+ */
+class RingBuffer<E> {
+
+    private final Object[] entries;
+    private final int mask;
+
+    /**
+     * Sequence published into each slot, -1 if never published
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * Next sequence to be claimed by a producer
+     */
+    private final AtomicLong claimSequence = new AtomicLong(0);
+
+    /**
+     * Next sequence the consumer will take. Only written by the consumer
+     */
+    private final AtomicLong consumeSequence = new AtomicLong(0);
+
+    private final WaitStrategy waitStrategy;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     * @param waitStrategy how the consumer waits for new entries
+     */
+    RingBuffer(int capacity, WaitStrategy waitStrategy) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+
+        this.entries = new Object[size];
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Add entry to the ring, waiting for a free slot if the ring is full.
+     * Safe to call from any number of threads
+     * @param entry entry to add
+     * @return false if the ring was closed before the entry could be added
+     */
+    boolean publish(E entry) {
+        long sequence = claimSequence.getAndIncrement();
+
+        // Wait for the consumer to free the slot from the previous lap
+        long wrapPoint = sequence - entries.length;
+        while (consumeSequence.get() <= wrapPoint) {
+            if (closed) return false;
+            LockSupport.parkNanos(1_000);
+        }
+
+        int index = (int) sequence & mask;
+        entries[index] = entry;
+        published.set(index, sequence); // Volatile write, makes the entry visible to the consumer
+
+        waitStrategy.signal();
+        return true;
+    }
+
+    /**
+     * Wait until at least one entry is available, then hand every available
+     * entry to handler in sequence order. Must only be called by the single
+     * consumer thread
+     * @param handler called once per entry
+     * @return number of entries handled
+     * @throws InterruptedException if interrupted while waiting
+     */
+    int drain(Consumer<E> handler) throws InterruptedException {
+        return drain(handler, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Wait until at least one entry is available, then hand up to limit
+     * available entries to handler in sequence order. Must only be called by
+     * the single consumer thread
+     * @param handler called once per entry
+     * @param limit most entries to handle
+     * @return number of entries handled
+     * @throws InterruptedException if interrupted while waiting
+     */
+    int drain(Consumer<E> handler, int limit) throws InterruptedException {
+        long next = consumeSequence.get();
+        int nextIndex = (int) next & mask;
+
+        waitStrategy.await(() -> published.get(nextIndex) == next);
+
+        return poll(handler, limit);
+    }
+
+    /**
+     * Hand up to limit available entries to handler in sequence order,
+     * without waiting if there are none. Must only be called by the single
+     * consumer thread
+     * @param handler called once per entry
+     * @param limit most entries to handle
+     * @return number of entries handled, 0 if none were available
+     */
+    @SuppressWarnings("unchecked")
+    int poll(Consumer<E> handler, int limit) {
+        int handled = 0;
+        long sequence = consumeSequence.get();
+        int index = (int) sequence & mask;
+        while (handled < limit && published.get(index) == sequence) {
+            E entry = (E) entries[index];
+            entries[index] = null;
+
+            handler.accept(entry);
+            handled++;
+
+            sequence++;
+            index = (int) sequence & mask;
+
+            // Free the slot for producers waiting on a full ring
+            consumeSequence.lazySet(sequence);
+        }
+
+        return handled;
+    }
+
+    /**
+     * @return number of entries claimed but not yet consumed
+     */
+    long size() {
+        return Math.max(0, claimSequence.get() - consumeSequence.get());
+    }
+
+    /**
+     * @return number of slots
+     */
+    int capacity() {
+        return entries.length;
+    }
+
+    /**
+     * Release producers blocked on a full ring. Entries published after this
+     * point may never be consumed
+     */
+    void close() {
+        closed = true;
+    }
+}
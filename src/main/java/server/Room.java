@@ -0,0 +1,48 @@
+package server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chat room and the sessions subscribed to it. Messages sent to a room only
+ * go to its members
+ */
+class Room {
+    private final String name;
+    private final Set<Session> members = ConcurrentHashMap.newKeySet();
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    void add(Session session) {
+        members.add(session);
+    }
+
+    void remove(Session session) {
+        members.remove(session);
+    }
+
+    boolean contains(Session session) {
+        return members.contains(session);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * @return live view of the room's members, safe to iterate while members join and leave
+     */
+    Iterable<Session> members() {
+        return members;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,86 @@
+package server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every room on the server, and the rooms each session is in. Rooms are
+ * created when the first session joins and removed when the last one leaves
+ */
+class RoomRegistry {
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Session, Set<String>> memberships = new ConcurrentHashMap<>();
+
+    /**
+     * @param session session joining
+     * @param roomName room to join, created if it does not exist
+     */
+    void join(Session session, String roomName) {
+        // compute() runs atomically per room, so a room cannot be removed while being joined
+        rooms.compute(roomName, (name, room) -> {
+            if (room == null) room = new Room(name);
+            room.add(session);
+            return room;
+        });
+        memberships.computeIfAbsent(session, s -> ConcurrentHashMap.newKeySet()).add(roomName);
+    }
+
+    /**
+     * @param session session leaving
+     * @param roomName room to leave, removed if it is now empty
+     */
+    void leave(Session session, String roomName) {
+        removeFromRoom(session, roomName);
+
+        Set<String> joined = memberships.get(session);
+        if (joined != null) joined.remove(roomName);
+    }
+
+    /**
+     * Remove session from every room it is in
+     * @param session disconnected session
+     */
+    void leaveAll(Session session) {
+        Set<String> joined = memberships.remove(session);
+        if (joined == null) return;
+
+        for (String roomName : joined) {
+            removeFromRoom(session, roomName);
+        }
+    }
+
+    private void removeFromRoom(Session session, String roomName) {
+        rooms.computeIfPresent(roomName, (name, room) -> {
+            room.remove(session);
+            return room.isEmpty() ? null : room;
+        });
+    }
+
+    /**
+     * @param roomName room name
+     * @return room, or null if nobody is in it
+     */
+    Room get(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    /**
+     * @param session session to check
+     * @param roomName room name
+     * @return true if session has joined the room
+     */
+    boolean isMember(Session session, String roomName) {
+        Room room = rooms.get(roomName);
+        return room != null && room.contains(session);
+    }
+
+    /**
+     * @param session session to look up
+     * @return rooms the session is in
+     */
+    Set<String> roomsOf(Session session) {
+        Set<String> joined = memberships.get(session);
+        return joined == null ? Collections.emptySet() : Collections.unmodifiableSet(joined);
+    }
+}
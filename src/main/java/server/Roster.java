@@ -0,0 +1,265 @@
+package server;
+
+import message.Frame;
+import message.PresenceState;
+import message.Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Who is online and what they are doing. Changes are not sent as they
+ * happen: they are collected per client, so only a client's latest state
+ * counts, and once a tick whatever changed is sent to every client as one
+ * PRESENCE frame, encoded once per protocol version. A client that starts
+ * typing and sends its message within a tick costs nothing, and however
+ * busy the server, each client gets at most one presence frame per tick.
+ *
+ * A client that has just connected is sent the whole roster in ROSTER
+ * frames on the next tick, after which it gets the same batches as
+ * everyone else. Only the roster thread touches the roster, so snapshots
+ * and batches never interleave
+ */
+class Roster {
+
+    /**
+     * Most body bytes in one ROSTER frame, well under the largest frame allowed
+     */
+    private static final int ROSTER_PART = 64 * 1024;
+
+    /**
+     * Latest change per client since the last tick, by session id
+     */
+    private final ConcurrentHashMap<Integer, Change> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Every client on the roster, by session id. Only used by the roster thread
+     */
+    private final HashMap<Integer, Member> members = new HashMap<>();
+
+    /**
+     * Size of members, for metrics
+     */
+    private volatile int online = 0;
+
+    private final long tickNanos;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    /**
+     * @param tickMillis time between batches of changes
+     */
+    Roster(long tickMillis) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+    }
+
+    void start(ThreadMode threadMode) {
+        thread = threadMode.newThread("roster", this::run);
+        thread.start();
+    }
+
+    /**
+     * Add a client that has been welcomed. Safe to call from any thread
+     * @param session connected client
+     */
+    void join(Session session) {
+        change(new Change(session, PresenceState.ONLINE, true));
+    }
+
+    /**
+     * Record a client's new state. Safe to call from any thread
+     * @param session client
+     * @param state new state, other than OFFLINE
+     */
+    void update(Session session, PresenceState state) {
+        if (state != PresenceState.OFFLINE) change(new Change(session, state, false));
+    }
+
+    /**
+     * Remove a client that has disconnected. Safe to call from any thread
+     * @param session disconnected client
+     */
+    void leave(Session session) {
+        change(new Change(session, PresenceState.OFFLINE, false));
+    }
+
+    /**
+     * Keep the latest change, but a client that left stays gone and one that
+     * joined this tick is still new
+     */
+    private void change(Change change) {
+        pending.merge(change.session.getId(), change, (earlier, later) -> {
+            if (earlier.state == PresenceState.OFFLINE) return earlier;
+            return earlier.joined ? new Change(later.session, later.state, true) : later;
+        });
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(tickNanos);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            tick();
+        }
+    }
+
+    /**
+     * Apply the changes since the last tick, send them as one batch, and
+     * send the whole roster to clients that joined since
+     */
+    private void tick() {
+        if (pending.isEmpty()) return;
+
+        StringBuilder batch = new StringBuilder();
+        List<Member> joined = new ArrayList<>();
+
+        Iterator<Map.Entry<Integer, Change>> changes = pending.entrySet().iterator();
+        while (changes.hasNext()) {
+            Change change = changes.next().getValue();
+            changes.remove();
+
+            int id = change.session.getId();
+            Member member = members.get(id);
+            if (member == null) {
+                // Left before it was ever listed, or a change arriving after it left
+                if (!change.joined || change.state == PresenceState.OFFLINE) continue;
+
+                member = new Member(change.session, change.state);
+                members.put(id, member);
+                appendLine(batch, member, true);
+                if (change.session.getVersion() >= Protocol.PRESENCE_VERSION) {
+                    member.awaitingRoster = true;
+                    joined.add(member);
+                }
+            }
+            else if (change.state == PresenceState.OFFLINE) {
+                members.remove(id);
+                member.state = PresenceState.OFFLINE;
+                appendLine(batch, member, false);
+            }
+            else if (member.state != change.state) {
+                member.state = change.state;
+                appendLine(batch, member, false);
+            }
+        }
+
+        online = members.size();
+
+        if (batch.length() > 0) sendBatch(new Frame(Frame.PRESENCE, 0, System.currentTimeMillis(), 0, "", batch.toString()));
+        if (!joined.isEmpty()) sendRoster(joined);
+    }
+
+    /**
+     * Send a batch to every client on the roster except those about to get the whole roster
+     */
+    private void sendBatch(Frame batch) {
+        ByteBuffer[] encoded = new ByteBuffer[Protocol.MAX_VERSION + 1];
+        for (Member member : members.values()) {
+            if (member.session.getVersion() < Protocol.PRESENCE_VERSION || member.awaitingRoster) continue;
+
+            send(member.session, batch, encoded);
+        }
+    }
+
+    /**
+     * Send the whole roster, in as many ROSTER frames as it takes, to clients that have just joined
+     */
+    private void sendRoster(List<Member> joined) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        for (Member member : members.values()) {
+            if (part.length() >= ROSTER_PART) {
+                parts.add(part.toString());
+                part.setLength(0);
+            }
+            appendLine(part, member, true);
+        }
+        parts.add(part.toString());
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < parts.size(); i++) {
+            Frame frame = new Frame(Frame.ROSTER, parts.size() - 1 - i, now, 0, "", parts.get(i));
+            ByteBuffer[] encoded = new ByteBuffer[Protocol.MAX_VERSION + 1];
+            for (Member member : joined) {
+                send(member.session, frame, encoded);
+            }
+        }
+
+        for (Member member : joined) {
+            member.awaitingRoster = false;
+        }
+    }
+
+    private static void send(Session session, Frame frame, ByteBuffer[] encoded) {
+        int version = session.getVersion();
+        if (encoded[version] == null) encoded[version] = frame.encode(version, false);
+
+        session.sendPresence(encoded[version].duplicate());
+        Metrics.presenceFramesOut.increment();
+        Metrics.presenceBytesOut.add(encoded[version].remaining());
+    }
+
+    private static void appendLine(StringBuilder body, Member member, boolean withName) {
+        body.append(member.session.getId()).append(' ').append(member.state.getCode());
+        if (withName) body.append(' ').append(member.session.getName());
+        body.append('\n');
+    }
+
+    /**
+     * @return clients on the roster as of the last tick
+     */
+    int size() {
+        return online;
+    }
+
+    /**
+     * Stop the roster thread
+     */
+    void close() {
+        running = false;
+        if (thread != null) thread.interrupt();
+    }
+
+    /**
+     * A client's change of state, waiting for the next tick
+     */
+    private static class Change {
+        private final Session session;
+        private final PresenceState state;
+
+        /**
+         * True if the client joined since the last tick
+         */
+        private final boolean joined;
+
+        private Change(Session session, PresenceState state, boolean joined) {
+            this.session = session;
+            this.state = state;
+            this.joined = joined;
+        }
+    }
+
+    private static class Member {
+        private final Session session;
+        private PresenceState state;
+
+        /**
+         * True from joining until the whole roster has been sent to it
+         */
+        private boolean awaitingRoster = false;
+
+        private Member(Session session, PresenceState state) {
+            this.session = session;
+            this.state = state;
+        }
+    }
+}
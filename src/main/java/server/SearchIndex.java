@@ -0,0 +1,473 @@
+package server;
+
+import message.Message;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full-text index over the message log, kept up to date as messages are
+ * broadcast. Broadcasters only hand each message over a queue; one indexer
+ * thread splits it into words and collects a few thousand messages, or a
+ * fraction of a second's worth, before freezing them into an immutable
+ * IndexSegment. A merge thread combines runs of MERGE_FACTOR segments of
+ * about the same size into one, so the number of segments grows with the
+ * log of the number of messages.
+ *
+ * Searches read the current array of segments without locking and never
+ * wait for indexing or merging. They see messages once their segment has
+ * been frozen, at most FREEZE_DELAY after being broadcast. On start the
+ * messages already in the log are indexed first, in the background
+ */
+class SearchIndex {
+
+    /**
+     * Most messages in a newly frozen segment
+     */
+    static final int SEGMENT_MESSAGES = 4096;
+
+    /**
+     * Longest time a message waits to become searchable
+     */
+    private static final long FREEZE_DELAY = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /**
+     * Segments of one size merged at once
+     */
+    static final int MERGE_FACTOR = 8;
+
+    /**
+     * Largest segment a merge may produce
+     */
+    private static final int MAX_MERGED_MESSAGES = 1 << 24;
+
+    /**
+     * Matches counted before a search that is reading postings may stop. Beyond it the total is a lower bound
+     */
+    static final int EXACT_TOTAL = 10_000;
+
+    /**
+     * Docs in the first window searched at the end of a segment
+     */
+    private static final int FIRST_WINDOW = 4096;
+
+    private final MessageLog log;
+
+    /**
+     * Last sequence in the log when the server started, indexed from the log rather than the queue
+     */
+    private final long replayTo;
+
+    private final LinkedBlockingQueue<Message> incoming = new LinkedBlockingQueue<>();
+
+    /**
+     * Every segment, oldest first. Replaced whole, never changed in place
+     */
+    private volatile IndexSegment[] segments = new IndexSegment[0];
+    private final Object segmentsLock = new Object();
+
+    /**
+     * Messages being collected for the next segment: for each term, the
+     * number of messages followed by their slots. Only used by the indexer
+     */
+    private final HashMap<String, int[]> buffer = new HashMap<>();
+    private final long[] sequences = new long[SEGMENT_MESSAGES];
+    private final long[] sent = new long[SEGMENT_MESSAGES];
+    private final HashSet<String> messageTerms = new HashSet<>();
+    private int buffered = 0;
+    private long bufferStarted;
+
+    /**
+     * Messages indexed, whether or not yet searchable. Only written by the indexer
+     */
+    private volatile long indexed = 0;
+
+    private volatile boolean running = true;
+    private Thread indexer;
+    private ExecutorService merger;
+
+    /**
+     * @param log log whose messages are indexed
+     */
+    SearchIndex(MessageLog log) {
+        this.log = log;
+        this.replayTo = log.lastSequence();
+    }
+
+    void start(ThreadMode threadMode) {
+        merger = Executors.newSingleThreadExecutor(task -> threadMode.newThread("search-merge", task));
+        indexer = threadMode.newThread("search-index", this::run);
+        indexer.start();
+    }
+
+    /**
+     * Queue a message for indexing. Never blocks. Called by broadcasters once
+     * the message has its sequence
+     * @param message sequenced message
+     */
+    void add(Message message) {
+        if (running && message.getSequence() > replayTo) incoming.offer(message);
+    }
+
+    private void run() {
+        if (replayTo > 0) {
+            long start = System.nanoTime();
+            log.read(1, message -> {
+                if (!running || message.getSequence() > replayTo) return false;
+                index(message);
+                return true;
+            });
+            System.out.println("Indexed " + indexed + " logged messages for search in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+
+        while (running) {
+            try {
+                Message message = incoming.poll(FREEZE_DELAY, TimeUnit.NANOSECONDS);
+                if (message != null) index(message);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            if (buffered > 0 && System.nanoTime() - bufferStarted >= FREEZE_DELAY) freeze();
+        }
+    }
+
+    /**
+     * Add a message to the segment being collected, freezing it once full
+     */
+    private void index(Message message) {
+        messageTerms.clear();
+        SearchQuery.tokenize(message.getBody(), messageTerms::add);
+        messageTerms.add(SearchQuery.senderTerm(message.getSenderName()));
+        messageTerms.add(SearchQuery.roomTerm(message.getRoom()));
+
+        int slot = buffered++;
+        if (slot == 0) bufferStarted = System.nanoTime();
+        sequences[slot] = message.getSequence();
+        sent[slot] = message.getTimestamp();
+
+        for (String term : messageTerms) {
+            int[] slots = buffer.get(term);
+            if (slots == null) {
+                slots = new int[4];
+                buffer.put(term, slots);
+            }
+            else if (slots[0] + 1 == slots.length) {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+                buffer.put(term, slots);
+            }
+            slots[++slots[0]] = slot;
+        }
+        indexed++;
+
+        if (buffered == SEGMENT_MESSAGES) freeze();
+    }
+
+    /**
+     * Turn the messages collected into a searchable segment
+     */
+    private void freeze() {
+        IndexSegment segment = IndexSegment.build(buffer, sequences, sent, buffered);
+        buffer.clear();
+        buffered = 0;
+
+        synchronized (segmentsLock) {
+            IndexSegment[] current = segments;
+            IndexSegment[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = segment;
+            segments = next;
+        }
+
+        try {
+            merger.execute(this::merge);
+        }
+        catch (RejectedExecutionException e) {
+            // Closing
+        }
+    }
+
+    /**
+     * Merge runs of segments of the same size until there are none left. Runs on the merge thread
+     */
+    private void merge() {
+        while (running) {
+            IndexSegment[] current = segments;
+            int start = findRun(current);
+            if (start < 0) return;
+
+            IndexSegment merged = IndexSegment.merge(Arrays.asList(current).subList(start, start + MERGE_FACTOR));
+
+            // Only this thread removes segments and the indexer only appends, so the run is still at start
+            synchronized (segmentsLock) {
+                IndexSegment[] latest = segments;
+                IndexSegment[] next = new IndexSegment[latest.length - MERGE_FACTOR + 1];
+                System.arraycopy(latest, 0, next, 0, start);
+                next[start] = merged;
+                System.arraycopy(latest, start + MERGE_FACTOR, next, start + 1, latest.length - start - MERGE_FACTOR);
+                segments = next;
+            }
+        }
+    }
+
+    /**
+     * @return start of the oldest run of MERGE_FACTOR adjacent segments of
+     *         the same size class that can be merged, -1 if there is none
+     */
+    private static int findRun(IndexSegment[] segments) {
+        for (int start = 0; start + MERGE_FACTOR <= segments.length; start++) {
+            int level = level(segments[start]);
+            long messages = 0;
+            int end = start;
+            while (end < start + MERGE_FACTOR && level(segments[end]) == level) {
+                messages += segments[end].getDocCount();
+                end++;
+            }
+            if (end < start + MERGE_FACTOR) continue;
+
+            // Docs and the timestamp table are ints, so a segment must span less than that many of each
+            IndexSegment first = segments[start];
+            IndexSegment last = segments[end - 1];
+            long sequenceSpan = Math.max(first.lastSequence(), last.lastSequence())
+                    - Math.min(first.getBaseSequence(), last.getBaseSequence());
+            long timeSpan = 0;
+            long minTimestamp = Long.MAX_VALUE;
+            for (int i = start; i < end; i++) {
+                minTimestamp = Math.min(minTimestamp, segments[i].getMinTimestamp());
+                timeSpan = Math.max(timeSpan, segments[i].getMaxTimestamp() - minTimestamp);
+            }
+            if (messages <= MAX_MERGED_MESSAGES && sequenceSpan < MAX_MERGED_MESSAGES * 2L && timeSpan < Integer.MAX_VALUE) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return size class: 0 up to SEGMENT_MESSAGES, then one more for each MERGE_FACTOR times as many
+     */
+    private static int level(IndexSegment segment) {
+        int level = 0;
+        long size = SEGMENT_MESSAGES;
+        while (segment.getDocCount() > size) {
+            size *= MERGE_FACTOR;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Find the most recent messages matching a query. Safe to call from any
+     * thread, alongside indexing and merging.
+     *
+     * Segments are searched newest first, and each one from its end in
+     * windows that double in size, so the latest matches are found without
+     * reading the whole index. A term on its own is counted for free; an
+     * intersection or a time range stops counting once EXACT_TOTAL matches
+     * and the latest ones have been found, and the total is then a lower bound
+     * @param query parsed query
+     * @param limit most sequences wanted
+     * @return matches
+     */
+    Results search(SearchQuery query, int limit) {
+        IndexSegment[] current = segments;
+        List<String> terms = query.getTerms();
+        long from = query.getFrom();
+        long to = query.getTo();
+
+        long total = 0;
+        boolean exact = true;
+        PriorityQueue<Long> latest = new PriorityQueue<>(limit + 1);
+        int[] ring = new int[limit];
+        IndexSegment.Postings[] lists = new IndexSegment.Postings[terms.size()];
+
+        for (int s = current.length - 1; s >= 0; s--) {
+            IndexSegment segment = current[s];
+            if (!segment.overlaps(from, to) || !postings(segment, terms, lists)) continue;
+
+            long base = segment.getBaseSequence();
+            boolean full = latest.size() == limit;
+            boolean checkTime = !segment.within(from, to);
+
+            // A single term needs no intersecting: its count is the number of matches, and only its last docs are decoded
+            if (lists.length == 1 && !checkTime) {
+                total += lists[0].count();
+                if (full && segment.lastSequence() < latest.peek()) continue;
+
+                lists[0].skipAllBut(limit);
+                for (int doc = lists[0].next(); doc != IndexSegment.NO_MORE_DOCS; doc = lists[0].next()) {
+                    offer(latest, base + doc, limit);
+                }
+                continue;
+            }
+
+            int window = FIRST_WINDOW;
+            for (int end = segment.docSpan(); end > 0; end -= window, window *= 2) {
+                // Every match left is older than those kept, and enough have been counted
+                if (latest.size() == limit && total >= EXACT_TOTAL && base + end <= latest.peek()) {
+                    if (!checkTime || segment.overlapsBefore(end, from, to)) exact = false;
+                    break;
+                }
+
+                int start = Math.max(0, end - window);
+                if (window > FIRST_WINDOW) postings(segment, terms, lists);
+                int matched = intersect(segment, lists, start, end, checkTime ? from : Long.MIN_VALUE, checkTime ? to : Long.MAX_VALUE, ring);
+                total += matched;
+                for (int i = 0; i < Math.min(matched, limit); i++) {
+                    offer(latest, base + ring[i], limit);
+                }
+            }
+        }
+
+        long[] found = new long[latest.size()];
+        for (int i = found.length - 1; i >= 0; i--) {
+            found[i] = latest.poll();
+        }
+        return new Results(total, exact, found);
+    }
+
+    /**
+     * Look up the postings of every term in a segment, rarest first
+     * @return false if a term does not occur in the segment
+     */
+    private static boolean postings(IndexSegment segment, List<String> terms, IndexSegment.Postings[] lists) {
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = segment.postings(terms.get(i));
+            if (lists[i] == null) return false;
+        }
+        Arrays.sort(lists, Comparator.comparingInt(IndexSegment.Postings::count));
+        return true;
+    }
+
+    /**
+     * Find the docs from start up to end that are in every list and in the time range
+     * @param lists unread postings, rarest first
+     * @param ring given the last matches, in the order found if there are fewer than it holds
+     * @return number of matches
+     */
+    private static int intersect(IndexSegment segment, IndexSegment.Postings[] lists, int start, int end,
+                                 long from, long to, int[] ring) {
+        boolean checkTime = from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+        int matched = 0;
+
+        int doc = lists[0].advance(start);
+        candidates:
+        while (doc < end) {
+            if (checkTime) {
+                int zone = doc / IndexSegment.ZONE_DOCS;
+                if (!segment.zoneOverlaps(zone, from, to)) {
+                    doc = lists[0].advance((zone + 1) * IndexSegment.ZONE_DOCS);
+                    continue;
+                }
+            }
+
+            // Leapfrog: every other list skips to the rarest term's next doc
+            for (int i = 1; i < lists.length; i++) {
+                int found = lists[i].advance(doc);
+                if (found > doc) {
+                    doc = lists[0].advance(found);
+                    continue candidates;
+                }
+            }
+
+            if (!checkTime || inRange(segment.timestamp(doc), from, to)) ring[matched++ % ring.length] = doc;
+            doc = lists[0].next();
+        }
+        return matched;
+    }
+
+    /**
+     * Keep sequence if it is among the latest limit seen
+     */
+    private static void offer(PriorityQueue<Long> latest, long sequence, int limit) {
+        if (latest.size() < limit) latest.add(sequence);
+        else if (sequence > latest.peek()) {
+            latest.poll();
+            latest.add(sequence);
+        }
+    }
+
+    private static boolean inRange(long timestamp, long from, long to) {
+        return timestamp >= from && timestamp < to;
+    }
+
+    /**
+     * @return messages indexed so far
+     */
+    long size() {
+        return indexed;
+    }
+
+    /**
+     * @return searchable segments
+     */
+    int segmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * @return bytes of posting lists across every segment
+     */
+    long postingBytes() {
+        long bytes = 0;
+        for (IndexSegment segment : segments) {
+            bytes += segment.postingBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Stop indexing and merging
+     */
+    void close() {
+        running = false;
+        if (indexer != null) indexer.interrupt();
+        if (merger != null) merger.shutdownNow();
+    }
+
+    /**
+     * Outcome of a search
+     */
+    static final class Results {
+        private final long total;
+        private final boolean exact;
+        private final long[] sequences;
+
+        private Results(long total, boolean exact, long[] sequences) {
+            this.total = total;
+            this.exact = exact;
+            this.sequences = sequences;
+        }
+
+        /**
+         * @return number of messages matching, including those not returned
+         */
+        long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return false if the search stopped counting early, so more messages match than the total
+         */
+        boolean isExact() {
+            return exact;
+        }
+
+        /**
+         * @return sequences of the most recent matches, newest first
+         */
+        long[] getSequences() {
+            return sequences;
+        }
+    }
+}
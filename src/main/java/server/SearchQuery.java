@@ -0,0 +1,155 @@
+package server;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Parsed search. Words must all occur in a message; from:name and in:room
+ * restrict it to one sender and one room, and after: and before: to a time
+ * range, given as yyyy-MM-dd, yyyy-MM-ddTHH:mm or epoch milliseconds. after
+ * is inclusive, before exclusive. Words are matched the way messages are
+ * indexed: split at anything other than letters and digits, ignoring case
+ */
+final class SearchQuery {
+
+    /**
+     * Longest word indexed. Longer ones are more likely noise than something searched for
+     */
+    static final int MAX_TERM_LENGTH = 64;
+
+    /**
+     * Prefixes of the terms for sender and room, which words can never produce
+     */
+    static final String SENDER_PREFIX = "from:";
+    static final String ROOM_PREFIX = "in:";
+
+    private final List<String> terms;
+    private final long from;
+    private final long to;
+
+    private SearchQuery(List<String> terms, long from, long to) {
+        this.terms = terms;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @param text query as typed
+     * @return parsed query
+     * @throws IllegalArgumentException if a time cannot be read, or there is
+     *                                  nothing to look up in the index
+     */
+    static SearchQuery parse(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+
+        for (String word : text.trim().split("\\s+")) {
+            if (word.isEmpty()) continue;
+
+            String lower = word.toLowerCase();
+            if (lower.startsWith(SENDER_PREFIX) && lower.length() > SENDER_PREFIX.length()) {
+                terms.add(senderTerm(word.substring(SENDER_PREFIX.length())));
+            }
+            else if (lower.startsWith(ROOM_PREFIX) && lower.length() > ROOM_PREFIX.length()) {
+                terms.add(roomTerm(word.substring(ROOM_PREFIX.length())));
+            }
+            else if (lower.startsWith("after:")) {
+                from = Math.max(from, parseTime(word.substring(6)));
+            }
+            else if (lower.startsWith("before:")) {
+                to = Math.min(to, parseTime(word.substring(7)));
+            }
+            else {
+                tokenize(word, terms::add);
+            }
+        }
+
+        if (terms.isEmpty()) throw new IllegalArgumentException("Search needs at least one word, from:name or in:room");
+        return new SearchQuery(new ArrayList<>(terms), from, to);
+    }
+
+    /**
+     * @param room room to restrict the search to
+     * @return this query, only matching messages in room as well
+     */
+    SearchQuery inRoom(String room) {
+        Set<String> restricted = new LinkedHashSet<>(terms);
+        restricted.add(roomTerm(room));
+        return new SearchQuery(new ArrayList<>(restricted), from, to);
+    }
+
+    /**
+     * Split text into the words that are indexed: runs of letters and
+     * digits, in lower case, at most MAX_TERM_LENGTH long
+     * @param text message body or query word
+     * @param consumer called once per word, repeats included
+     */
+    static void tokenize(String text, Consumer<String> consumer) {
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean wordChar = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar) {
+                if (start < 0) start = i;
+                continue;
+            }
+            if (start >= 0 && i - start <= MAX_TERM_LENGTH) consumer.accept(text.substring(start, i).toLowerCase());
+            start = -1;
+        }
+    }
+
+    static String senderTerm(String name) {
+        return SENDER_PREFIX + name.toLowerCase();
+    }
+
+    static String roomTerm(String room) {
+        return ROOM_PREFIX + room.toLowerCase();
+    }
+
+    private static long parseTime(String value) {
+        try {
+            if (value.chars().allMatch(Character::isDigit) && !value.isEmpty()) return Long.parseLong(value);
+            if (value.contains("T")) return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Unknown time " + value + ", expected yyyy-MM-dd, yyyy-MM-ddTHH:mm or epoch milliseconds");
+        }
+    }
+
+    /**
+     * @return terms a message must contain, including sender and room terms
+     */
+    List<String> getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return earliest timestamp wanted, inclusive
+     */
+    long getFrom() {
+        return from;
+    }
+
+    /**
+     * @return latest timestamp wanted, exclusive
+     */
+    long getTo() {
+        return to;
+    }
+
+    /**
+     * @return true if only part of the time line is wanted
+     */
+    boolean hasTimeRange() {
+        return from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+    }
+}
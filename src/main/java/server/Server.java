@@ -2,102 +2,208 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
 
+import jdk.net.ExtendedSocketOptions;
+import message.Attachment;
+import message.Frame;
 import message.Message;
+import message.PresenceState;
+import message.Protocol;
 
 public class Server {
 
     /**
-     * Server socket
+     * Most lines waiting to be printed on the console
      */
-    private static ServerSocket serverSocket;
+    private static final int CONSOLE_CAPACITY = 10_000;
 
     /**
-     * List of all clients, their data and threads
+     * TCP keepalive: seconds idle before probing, seconds between probes, and
+     * unanswered probes before the kernel drops the connection
      */
-    private final static CopyOnWriteArrayList<ClientThread> clientThreads = new CopyOnWriteArrayList<>();
+    private static final int KEEPALIVE_IDLE = 60;
+    private static final int KEEPALIVE_INTERVAL = 10;
+    private static final int KEEPALIVE_PROBES = 6;
 
     /**
-     * Buffer of all messages to broadcast to others
+     * Server socket channel, in blocking mode, for the thread-per-client engine
      */
-    private static volatile ConcurrentLinkedDeque<Message> messagesToBroadcast = new ConcurrentLinkedDeque<>();
+    private static ServerSocketChannel serverSocket;
 
-    private final static AtomicBoolean serverRunning = new AtomicBoolean(false);
+    /**
+     * Selector based engine, only set when started with --engine=nio
+     */
+    private static NioServer nioServer;
 
-    public static void main(String[] args) {
-        System.out.println("Starting Server");
+    /**
+     * Kind of thread used for the accept loop, client sessions and broadcasters
+     */
+    private static ThreadMode threadMode = ThreadMode.PLATFORM;
 
-        // Get port from arguments, or use default 8888 port
-        int port = argsToPortNum(args);
+    /**
+     * All connected clients, from whichever engine is running, by id and by name
+     */
+    private final static SessionRegistry sessions = new SessionRegistry();
 
-        // Bind application to port specified
-        try {
-            serverSocket = new ServerSocket(port);
-        }
-        catch (IOException e) {
-            System.out.println("Server failed to start. Port " + port + " currently unavailable. Try again.");
-            return;
-        }
-        System.out.println("Server Started\n");
-        serverRunning.set(true);
+    /**
+     * Every room and its members
+     */
+    private final static RoomRegistry rooms = new RoomRegistry();
 
+    /**
+     * Every broadcast message, kept on disk. Null if started with --log=false
+     */
+    private static MessageLog messageLog;
 
-        // Thread for accepting connections
-        Thread connectionThread = new Thread(() -> {
-            while (serverRunning.get()) {
-                try {
-                    Socket newSocket = serverSocket.accept(); // Wait for new connection
+    /**
+     * Replays missed messages to clients that have just sent HELLO. A small
+     * fixed pool, so a burst of reconnecting clients queues up here instead
+     * of holding up live broadcasts. Null if there is no message log
+     */
+    private static ExecutorService catchUpPool;
 
-                    // Create data input and output streams from socket
-                    DataInputStream dis = new DataInputStream(newSocket.getInputStream());
-                    DataOutputStream dos = new DataOutputStream(newSocket.getOutputStream());
+    /**
+     * Most messages replayed to a client when it connects
+     */
+    private static int catchUpLimit;
 
-                    // Read in name
-                    String name = dis.readUTF();
+    /**
+     * Full-text index of the message log. Null if there is no log or the
+     * server was started with --search=false
+     */
+    private static SearchIndex searchIndex;
 
-                    // Create new clientThread object
-                    ClientThread clientThread = new ClientThread(name, newSocket, dis, dos);
+    /**
+     * Runs clients' searches one at a time, off their I/O threads, so each
+     * client gets its replies in the order it searched
+     */
+    private static ExecutorService searchPool;
 
-                    clientThread.start(); // Start the thread
-                    clientThreads.add(clientThread);
-                    System.out.println("<System Info>: New Client, " + name + ", Connected");
-                }
-                catch (IOException e) {
-                    System.err.println("I/O Exception: " + e.getMessage());
-                }
-            }
-        });
+    /**
+     * Results sent when a client does not say how many it wants, and the most it may ask for
+     */
+    private static final int DEFAULT_SEARCH_RESULTS = 20;
+    private static final int MAX_SEARCH_RESULTS = 100;
 
-        // Thread for sending input from 1 client to all other clients
-        Thread IOThread = new Thread(() -> {
-            while (serverRunning.get()) {
+    /**
+     * How long connections may hold frames back to write them together
+     */
+    private static FlushPolicy flushPolicy = new FlushPolicy(0, 1);
 
-                // Do nothing if no messages to broadcast
-                if (messagesToBroadcast.isEmpty()) continue;
+    /**
+     * Most frames queued for one client before the slow consumer policy applies
+     */
+    private static int clientQueueSize = 1024;
 
-                for (Message message : messagesToBroadcast) {
-                    String clientName = message.getSenderName();
-                    System.out.println(message.getMessage());
+    /**
+     * What happens to frames for a client whose queue is full
+     */
+    private static OutboundQueue.Policy slowClientPolicy = OutboundQueue.Policy.DROP_OLDEST;
 
-                    for (ClientThread client : clientThreads) {
+    /**
+     * How long a client's queue may stay full before it is disconnected, with Policy.DISCONNECT
+     */
+    private static long slowClientDeadline = 5000;
 
-                        // If client name matches current client, skip
-                        if (client.compareNames(clientName)) continue;
+    /**
+     * Messages a second each client may send, 0 for no limit, and how many it may send at once
+     */
+    private static int rateLimit = 0;
+    private static int rateBurst = 1;
 
-                        client.sendMessage(message);
-                    }
-                }
+    /**
+     * Prints broadcast messages and connection events without holding up the threads reporting them
+     */
+    private static ConsoleLog console = new ConsoleLog(1, CONSOLE_CAPACITY);
 
-                messagesToBroadcast.clear();
-            }
-        });
+    /**
+     * Fans messages from clients out to the other members of their room
+     */
+    private static Broadcaster broadcaster;
 
-        connectionThread.start();
-        IOThread.start();
+    /**
+     * Multicasts every broadcast message once. Null unless started with --multicast
+     */
+    private static MulticastPublisher multicast;
+
+    /**
+     * Attachments, stored once per distinct content. Null if started with --attachments=false
+     */
+    private static AttachmentStore attachments;
+
+    /**
+     * Checks finished uploads against their hash, off the threads reading
+     * from clients. Null if attachments are disabled
+     */
+    private static ExecutorService attachmentPool;
+
+    /**
+     * Closes connections of the thread engine whose handshake takes too long.
+     * Null with the nio engine, whose loops time handshakes themselves
+     */
+    private static ScheduledThreadPoolExecutor handshakeTimer;
+
+    /**
+     * Milliseconds a client has from being accepted to finishing its handshake
+     */
+    private static long handshakeTimeout = 5000;
+
+    /**
+     * Pings quiet clients and closes those that stop answering
+     */
+    private static Heartbeats heartbeats;
+
+    /**
+     * Who is online, sent to clients as batched changes
+     */
+    private static Roster roster;
+
+    /**
+     * Other servers this one shares its rooms with. Null unless started with --peer-port or --peers
+     */
+    private static Federation federation;
+
+    /**
+     * Source of client ids, unique for the lifetime of the server
+     */
+    private final static AtomicInteger clientIds = new AtomicInteger(0);
+
+    private final static AtomicBoolean serverRunning = new AtomicBoolean(false);
+
+    /**
+     * Source of resume tokens, which must not be guessable from earlier ones
+     */
+    private final static SecureRandom resumeTokens = new SecureRandom();
+
+    public static void main(String[] args) {
+        System.out.println("Starting Server");
+
+        if (!start(ServerOptions.parse(args))) return;
 
         Scanner input = new Scanner(System.in);
         while (serverRunning.get()) {
@@ -107,6 +213,15 @@ public class Server {
                 if (message.equalsIgnoreCase("stop")) {
                     serverRunning.set(false);
                 }
+                else if (message.equalsIgnoreCase("lag")) {
+                    printLag();
+                }
+                else if (message.equalsIgnoreCase("stats")) {
+                    System.out.println(Metrics.report());
+                }
+                else if (message.regionMatches(true, 0, "search ", 0, 7)) {
+                    printSearch(message.substring(7));
+                }
             }
         }
 
@@ -114,137 +229,1015 @@ public class Server {
     }
 
     /**
-     * Take args passed in and extract port number from them, or default to
-     * port 8888 if no port number passed in or port number is invalid
-     * @param args args passed to main
-     * @return port number to open server socket on
+     * Bind the server to its port and start accepting and broadcasting.
+     * Returns once the server is running
+     * @param options parsed startup options
+     * @return false if the server could not be started
      */
-    private static int argsToPortNum(String[] args) {
-        int port;
+    public static boolean start(ServerOptions options) {
+        int port = options.getPort();
+        ServerOptions.Engine engine = options.getEngine();
+
+        threadMode = ThreadMode.parse(options.getString("threads", "platform"));
+        if (!threadMode.isSupported()) {
+            System.err.println("Virtual threads need Java 21 or newer. Using platform threads");
+            threadMode = ThreadMode.PLATFORM;
+        }
+
         try {
-            port = Integer.parseInt(args[0]);
+            federation = Federation.create(options);
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Server failed to start. " + e.getMessage());
+            return false;
+        }
+
+        try {
+            multicast = MulticastPublisher.open(options);
+        }
+        catch (IOException e) {
+            System.out.println("Server failed to start. Could not set up multicast: " + e.getMessage());
+            return false;
+        }
+
+        if (options.getBoolean("log", true)) {
+            String logDir = options.getString("log-dir", "log");
+            long segmentMb = options.getLong("log-segment-mb", 64);
+            long maxSegmentMb = MessageLog.MAX_SEGMENT_SIZE / (1024 * 1024);
+            if (segmentMb < 1 || segmentMb > maxSegmentMb) {
+                System.out.println("Server failed to start. --log-segment-mb must be from 1 to " + maxSegmentMb);
+                abortStart();
+                return false;
+            }
 
-            // Throw exception so it is caught and error message printed
-            if (port < 0 || port > 65535) {
-                throw new NumberFormatException();
+            try {
+                messageLog = MessageLog.open(Path.of(logDir),
+                        (int) (segmentMb * 1024 * 1024),
+                        MessageLog.FsyncPolicy.parse(options.getString("fsync", "interval")),
+                        options.getLong("fsync-interval", 100));
+            }
+            catch (IOException e) {
+                System.out.println("Server failed to start. Could not open message log in " + logDir + ": " + e.getMessage());
+                abortStart();
+                return false;
             }
         }
-        catch (NumberFormatException e) {
-            System.err.println("Invalid port number (" + args[0] +"). Defaulting to 8888");
-            port = 8888;
+
+        try {
+            attachments = AttachmentStore.open(options);
+        }
+        catch (IOException e) {
+            System.out.println("Server failed to start. Could not open attachment directory: " + e.getMessage());
+            abortStart();
+            return false;
+        }
+        if (attachments != null) {
+            attachmentPool = Executors.newSingleThreadExecutor(task -> threadMode.newThread("attachment-check", task));
+        }
+
+        if (messageLog != null) {
+            catchUpLimit = options.getInt("catch-up-limit", 1000);
+            int catchUpThreads = Math.max(1, options.getInt("catch-up-threads", 2));
+            catchUpPool = Executors.newFixedThreadPool(catchUpThreads, task -> threadMode.newThread("catch-up", task));
+
+            if (options.getBoolean("search", true)) {
+                searchIndex = new SearchIndex(messageLog);
+                searchPool = Executors.newSingleThreadExecutor(task -> threadMode.newThread("search", task));
+            }
         }
-        catch (ArrayIndexOutOfBoundsException e) {
-            System.err.println("No port number specified. Defaulting to 8888");
-            port = 8888;
+
+        flushPolicy = new FlushPolicy(options.getLong("flush-delay-us", 1000), options.getInt("flush-bytes", 64 * 1024));
+        clientQueueSize = options.getInt("client-queue", 1024);
+        slowClientPolicy = OutboundQueue.Policy.parse(options.getString("slow-client", "drop-oldest"));
+        slowClientDeadline = options.getLong("slow-client-deadline", 5000);
+        rateLimit = options.getInt("rate-limit", 20);
+        rateBurst = options.getInt("rate-burst", 40);
+        handshakeTimeout = Math.max(1, options.getLong("handshake-timeout", 5000));
+        roster = new Roster(options.getLong("presence-interval", 250));
+        heartbeats = new Heartbeats(sessions, options.getLong("ping-interval", 15000), options.getLong("idle-timeout", 45000));
+
+        console = new ConsoleLog(options.getInt("console-sample", 1), CONSOLE_CAPACITY);
+
+        int broadcasters = options.getInt("broadcasters", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        int ringSize = options.getInt("ring-size", 65536);
+        broadcaster = new Broadcaster(rooms, messageLog, searchIndex, console, multicast, broadcasters, ringSize,
+                options.getInt("sender-queue", 1024), options.getString("wait", "park"));
+
+        // Bind application to port specified
+        try {
+            if (engine == ServerOptions.Engine.NIO) {
+                int loops = options.getInt("loops", Runtime.getRuntime().availableProcessors());
+                nioServer = new NioServer(port, loops);
+            }
+            else {
+                serverSocket = ServerSocketChannel.open();
+                serverSocket.bind(new InetSocketAddress(port), NioServer.ACCEPT_BACKLOG);
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Server failed to start. Port " + port + " currently unavailable. Try again.");
+            abortStart();
+            return false;
+        }
+
+        if (federation != null) {
+            try {
+                federation.bind();
+            }
+            catch (IOException e) {
+                System.out.println("Server failed to start. Peer port " + federation.getPeerPort() + " currently unavailable. Try again.");
+                abortStart();
+                return false;
+            }
+        }
+        System.out.println("Server Started (" + engine.name().toLowerCase() + " engine, "
+                + threadMode.name().toLowerCase() + " threads)\n");
+        serverRunning.set(true);
+
+        Metrics.register();
+        int metricsPort = options.getInt("metrics-port", 0);
+        if (metricsPort > 0) {
+            try {
+                Metrics.serve(metricsPort);
+                System.out.println("Metrics at http://localhost:" + metricsPort + "/metrics\n");
+            }
+            catch (IOException e) {
+                System.err.println("Could not serve metrics on port " + metricsPort + ": " + e.getMessage());
+            }
+        }
+        console.start(threadMode);
+
+        if (nioServer != null) {
+            nioServer.start();
+        }
+        else {
+            // Thread for accepting connections
+            handshakeTimer = new ScheduledThreadPoolExecutor(1, task -> threadMode.newThread("handshake-timer", task));
+            handshakeTimer.setRemoveOnCancelPolicy(true);
+            threadMode.newThread("accept", Server::acceptConnections).start();
+        }
+
+        // Threads for sending input from 1 client to the rest of its room
+        if (searchIndex != null) searchIndex.start(threadMode);
+        broadcaster.start(threadMode);
+        heartbeats.start(threadMode);
+        roster.start(threadMode);
+
+        if (multicast != null) {
+            multicast.start(threadMode);
+            System.out.println("Multicasting to " + multicast.getGroup() + "\n");
+        }
+
+        if (federation != null) {
+            federation.start(threadMode);
+            System.out.println("Federation node " + federation.getNodeId()
+                    + (federation.getPeerPort() > 0 ? ", peers accepted on " + federation.getBindAddress().getHostAddress()
+                        + " port " + federation.getPeerPort() : "") + "\n");
         }
 
-        return port;
+        return true;
     }
 
-    public static synchronized void addMessageToBroadcast(Message message) {
-        messagesToBroadcast.add(message);
+    /**
+     * Release whatever start() had opened before it failed
+     */
+    private static void abortStart() {
+        federation = null;
+
+        if (nioServer != null) {
+            nioServer.close();
+            nioServer = null;
+        }
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            }
+            catch (IOException e) {
+                System.err.println("I/O Exception: " + e.getMessage());
+            }
+            serverSocket = null;
+        }
+
+        if (catchUpPool != null) {
+            catchUpPool.shutdownNow();
+            catchUpPool = null;
+        }
+        if (searchPool != null) {
+            searchPool.shutdownNow();
+            searchPool = null;
+        }
+        searchIndex = null;
+        if (messageLog != null) {
+            messageLog.close();
+            messageLog = null;
+        }
+        if (attachmentPool != null) {
+            attachmentPool.shutdownNow();
+            attachmentPool = null;
+        }
+        attachments = null;
+        if (multicast != null) {
+            multicast.close();
+            multicast = null;
+        }
     }
 
     /**
-     * Close the server by
-     *  - closing all open sockets
-     *  - freeing the port used
+     * Stop a server started with start()
      */
-    private static void closeServer() {
-        for (ClientThread client : clientThreads) {
-            client.close();
+    public static void stop() {
+        serverRunning.set(false);
+        closeServer();
+    }
+
+    /**
+     * Accept connections and start a thread of the selected ThreadMode for
+     * each one straight away. The handshake runs on that thread, so the
+     * accept loop never waits on a client and a burst of connects is
+     * handshaken all at once
+     */
+    private static void acceptConnections() {
+        while (serverRunning.get()) {
+            try {
+                SocketChannel newChannel = serverSocket.accept(); // Wait for new connection
+                long acceptedAt = System.nanoTime();
+                keepAlive(newChannel);
+
+                threadMode.newThread("client-handshake", () -> startSession(newChannel, acceptedAt)).start();
+            }
+            catch (IOException e) {
+                if (serverRunning.get()) System.err.println("I/O Exception: " + e.getMessage());
+            }
         }
+    }
 
-        // Close server socket
+    /**
+     * Read in name and agree protocol version with a newly accepted client,
+     * then carry on as its reading thread. The connection is closed if the
+     * handshake is not done within the handshake timeout
+     * @param channel accepted channel
+     * @param acceptedAt System.nanoTime() when it was accepted
+     */
+    private static void startSession(SocketChannel channel, long acceptedAt) {
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> timeout;
         try {
-            serverSocket.close();
-            serverSocket = null;
+            timeout = handshakeTimer.schedule(() -> {
+                timedOut.set(true);
+                closeQuietly(channel);
+            }, handshakeTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // Server is stopping
+            closeQuietly(channel);
+            return;
+        }
+
+        ClientSession session;
+        try {
+            session = ClientSession.handshake(channel);
+        }
+        catch (EOFException e) {
+            if (serverRunning.get()) System.err.println("Handshake failed: client disconnected");
+            return;
+        }
+        catch (IOException e) {
+            if (serverRunning.get()) System.err.println("Handshake failed: " + (timedOut.get() ? "timed out" : e.getMessage()));
+            return;
+        }
+        finally {
+            timeout.cancel(false);
+        }
+        Metrics.handshakeTime.record((System.nanoTime() - acceptedAt) / 1000);
+
+        String name = session.getName();
+        if (session.getHello() != null) {
+            addSession(session, session.getHello());
+        }
+        else {
+            addSession(session, name);
+        }
+
+        Thread.currentThread().setName("client-" + name);
+        threadMode.newThread("client-" + name + "-writer", session::writeFrames).start();
+        session.run();
+    }
+
+    /**
+     * Turn on TCP keepalive for an accepted connection, so the kernel finds
+     * peers that vanished without closing it, including clients too old to
+     * answer PING. Where the platform allows, probing starts after a minute
+     * idle rather than the usual two hours
+     * @param channel accepted channel
+     */
+    static void keepAlive(SocketChannel channel) {
+        try {
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            if (channel.supportedOptions().contains(ExtendedSocketOptions.TCP_KEEPIDLE)) {
+                channel.setOption(ExtendedSocketOptions.TCP_KEEPIDLE, KEEPALIVE_IDLE);
+                channel.setOption(ExtendedSocketOptions.TCP_KEEPINTERVAL, KEEPALIVE_INTERVAL);
+                channel.setOption(ExtendedSocketOptions.TCP_KEEPCOUNT, KEEPALIVE_PROBES);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Could not enable keepalive: " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
         }
         catch (IOException e) {
             System.err.println("I/O Exception: " + e.getMessage());
         }
     }
-}
 
-class ClientThread extends Thread {
-    private final String clientName;
+    /**
+     * Queue message for broadcast to the rest of its room, waiting if the
+     * broadcast buffer is full. Dropped if the sender is not in the room
+     * @param sender session the message came from
+     * @param message message to broadcast
+     */
+    static void addMessageToBroadcast(Session sender, Message message) {
+        if (!rooms.isMember(sender, message.getRoom())) return;
+        if (!takeToken(sender, message.getRoom())) return;
+
+        Metrics.messagesIn.increment();
+        broadcaster.publish(message);
 
-    private final AtomicBoolean running;
-    private final Socket clientSocket;
+        // Relayed from the sender's own thread, so peers get each sender's messages in order
+        if (federation != null) federation.relay(message);
+    }
 
-    private final DataInputStream dis;
-    private final DataOutputStream dos;
+    /**
+     * Take a token from a client's rate limit for a message it sent. The
+     * first message refused is answered with a notice, the rest are dropped
+     * silently until the client slows down enough for its bucket to refill
+     * @param sender client that sent the message
+     * @param room room to send the notice to, so the client sees it
+     * @return false if the client is over its limit and the message must be dropped
+     */
+    static boolean takeToken(Session sender, String room) {
+        TokenBucket bucket = sender.getRateLimit();
+        if (bucket.tryTake()) return true;
+
+        Metrics.messagesThrottled.increment();
+        if (bucket.getRefused() == 1) {
+            sender.sendMessage(new Message(0, "<System Info>", room, "You are sending too fast, messages are being dropped"));
+        }
+        return false;
+    }
 
     /**
-     * Initialise client thread with all relevant data. Creates a
-     * DataInputStream object
-     * @param clientSocket socket for the client
-     * @throws IOException if an I/O error occurs when creating the input stream,
-     *                     the socket is closed, the socket is not connected,
-     *                     or the socket input has been shutdown using shutdownInput()
+     * Queue a message relayed by another node of the federation for
+     * broadcast to this node's members of its room. Never relayed further
+     * @param message message sent by a client of the peer
      */
-    public ClientThread(String name, Socket clientSocket, DataInputStream dis, DataOutputStream dos) throws IOException {
-        this.running = new AtomicBoolean(true);
-        this.running.set(true);
+    static void publishFromPeer(Message message) {
+        Metrics.peerMessagesIn.increment();
+        broadcaster.publish(message);
+    }
 
-        this.clientName = name;
-        this.clientSocket = clientSocket;
+    /**
+     * @param version protocol version of the client
+     * @return multicast group as host:port for the client's WELCOME frame,
+     *         empty if there is none or the client cannot use it
+     */
+    static String multicastGroup(int version) {
+        return multicast != null && version >= Protocol.MULTICAST_VERSION ? multicast.getGroup() : "";
+    }
 
-        this.dis = dis;
-        this.dos = dos;
+    /**
+     * Stop sending live messages to a client directly from the next one
+     * sequenced, as it now receives them by multicast
+     * @return sequence of the first message only multicast to it
+     */
+    static long subscribeMulticast() {
+        return multicast == null ? Long.MAX_VALUE : broadcaster.lastSequence() + 1;
     }
 
     /**
-     * Separate thread for client socket. Read data from input stream
-     * and send any data back to client
+     * Send a client the multicast messages it asked for in a RESEND frame,
+     * those still kept. A message in a room the client is not in is replaced
+     * by an empty one in Protocol.SKIPPED_ROOM, so it can tell it is not
+     * missing without seeing it. Each request takes a token from the client's
+     * rate limit and asks for at most Protocol.MAX_RESEND_COUNT messages
+     * @param session client asking
+     * @param request RESEND frame, sequence the first wanted and body the count
      */
-    public void run() {
+    static void resend(Session session, Frame request) {
+        if (multicast == null) return;
+
+        int count;
         try {
-            while (running.get()) {
-                String clientMessage = dis.readUTF();
-                Server.addMessageToBroadcast(new Message(clientName, clientMessage));
+            count = Integer.parseInt(request.getBody().trim());
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Invalid RESEND from " + session.getName() + ": " + request.getBody());
+            return;
+        }
+        if (!takeToken(session, Protocol.DEFAULT_ROOM)) return;
+
+        List<Message> messages = multicast.history(request.getSequence(), Math.min(count, Protocol.MAX_RESEND_COUNT));
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            if (!rooms.isMember(session, message.getRoom())) {
+                messages.set(i, new Message(message.getSequence(), 0, 0, "", Protocol.SKIPPED_ROOM, ""));
             }
         }
-        catch (EOFException e) {
-            System.err.println("Input stream reached end of stream before reading all bytes.");
+        session.sendHistory(messages);
+        Metrics.multicastResent.add(messages.size());
+    }
+
+    /**
+     * Start or resume an upload the client offered in an UPLOAD frame. If
+     * the attachment is already stored nothing is uploaded: it is posted to
+     * the room straight away
+     * @param session client offering
+     * @param request UPLOAD frame, name the hash and body the size and file name
+     */
+    static void upload(Session session, Frame request) {
+        String hash = request.getName();
+        if (attachments == null) {
+            replyUpload(session, hash, -1, "Attachments are disabled");
+            return;
         }
-        catch (UTFDataFormatException e) {
-            System.err.println("Bytes do represent UTF-8.");
+        if (!rooms.isMember(session, request.getRoom())) {
+            replyUpload(session, hash, -1, "Not in room " + request.getRoom());
+            return;
+        }
+
+        Attachment attachment;
+        try {
+            String[] fields = request.getBody().split("\n", 2);
+            // Only the file's own name is shown, never a path or control characters
+            String fileName = fields.length > 1 ? fields[1] : hash;
+            fileName = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1)
+                    .replaceAll("\\p{Cntrl}", "_");
+            attachment = new Attachment(hash, Long.parseLong(fields[0].trim()), fileName.isEmpty() ? hash : fileName);
+        }
+        catch (NumberFormatException e) {
+            replyUpload(session, hash, -1, "Invalid size");
+            return;
+        }
+
+        long stored = attachments.storedSize(hash);
+        if (stored >= 0) {
+            if (stored != attachment.getSize()) {
+                replyUpload(session, hash, -1, "Size does not match the stored attachment");
+                return;
+            }
+
+            Metrics.attachmentsDeduplicated.increment();
+            postAttachment(session, attachment, request.getRoom());
+            return;
+        }
+
+        try {
+            AttachmentStore.Upload upload = attachments.begin(session, attachment, request.getRoom());
+            if (upload.isComplete()) {
+                // Every byte arrived before, but the upload was never checked
+                checkUpload(session, upload);
+            }
+            else {
+                replyUpload(session, hash, upload.getPosition(), "");
+            }
         }
         catch (IOException e) {
-            System.err.println("Client Disconnected.");
+            replyUpload(session, hash, -1, e.getMessage());
         }
     }
 
     /**
-     * Send message to client
-     * @param message message to send
+     * Write a CHUNK frame from the client to its upload, and once the last
+     * one has arrived check and store the attachment
+     * @param session client uploading
+     * @param chunk CHUNK frame, its data still in the buffer it was read into
      */
-    public void sendMessage(Message message) {
+    static void receiveChunk(Session session, Frame chunk) {
+        if (attachments == null) return;
+
+        AttachmentStore.Upload upload = attachments.upload(session, chunk.getName());
+        if (upload == null) {
+            replyUpload(session, chunk.getName(), -1, "No upload in progress");
+            return;
+        }
+
         try {
-            dos.writeUTF(message.getMessage());
-            dos.flush();
+            upload.write(chunk.getSequence(), chunk.getData());
         }
         catch (IOException e) {
-            System.err.println("I/O Exception in ClientThread: " + e.getMessage());
+            // Nothing is lost: the client can offer it again to resume from what was written
+            attachments.cancel(upload);
+            replyUpload(session, chunk.getName(), -1, e.getMessage());
+            return;
         }
+
+        if (upload.isComplete()) checkUpload(session, upload);
     }
 
-    public boolean compareNames(String name) {
-        return name.equals(this.clientName);
+    /**
+     * Check a fully received upload on the attachment pool, so hashing a
+     * large file never holds up the thread reading from the client
+     */
+    private static void checkUpload(Session session, AttachmentStore.Upload upload) {
+        ExecutorService pool = attachmentPool;
+        AttachmentStore store = attachments;
+        if (pool == null || store == null) return;
+
+        pool.execute(() -> {
+            Attachment attachment = upload.getAttachment();
+            if (store.complete(upload)) {
+                Metrics.attachmentsStored.increment();
+                postAttachment(session, attachment, upload.getRoom());
+            }
+            else {
+                replyUpload(session, attachment.getHash(), -1, "Contents do not match the hash");
+            }
+        });
+    }
+
+    /**
+     * Tell the uploader its attachment is stored and announce it to the room
+     */
+    private static void postAttachment(Session session, Attachment attachment, String room) {
+        replyUpload(session, attachment.getHash(), attachment.getSize(), "");
+        addMessageToBroadcast(session, new Message(session.getId(), session.getName(), room, attachment.toBody()));
+    }
+
+    /**
+     * @param offset where the client should send from, the size once stored, -1 on failure
+     * @param reason why the upload failed, empty otherwise
+     */
+    private static void replyUpload(Session session, String hash, long offset, String reason) {
+        session.sendFrame(new Frame(Frame.UPLOAD, offset, System.currentTimeMillis(), session.getId(), hash, reason));
+    }
+
+    /**
+     * Stream a stored attachment to a client that sent a FETCH frame
+     * @param session client asking
+     * @param request FETCH frame, name the hash
+     */
+    static void fetchAttachment(Session session, Frame request) {
+        FileChannel file = attachments == null ? null : attachments.openForRead(request.getName());
+        if (file == null) {
+            session.sendFrame(new Frame(Frame.FETCH, -1, System.currentTimeMillis(), session.getId(), request.getName(), "Not found"));
+            return;
+        }
+
+        Metrics.attachmentsFetched.increment();
+        session.sendAttachment(request.getName(), file);
     }
 
     /**
-     * Close client socket
+     * Send a DIRECT frame's text to each of its recipients and no one else.
+     * It bypasses rooms, the broadcaster and the message log; the frame is
+     * encoded once per protocol version and shared by every recipient.
+     * Recipients that are not connected, or whose client is too old for
+     * direct messages, are reported back to the sender
+     * @param sender client sending
+     * @param request DIRECT frame, body is the recipients' names one per line, a blank line, then the text
      */
-    public void close() {
+    static void sendDirect(Session sender, Frame request) {
+        String body = request.getBody();
+        int split = body.indexOf("\n\n");
+        if (split < 0) return;
+        if (!takeToken(sender, Protocol.DEFAULT_ROOM)) return;
+
+        Frame direct = new Frame(Frame.DIRECT, 0, System.currentTimeMillis(), sender.getId(), sender.getName(),
+                Protocol.DIRECT_ROOM, body.substring(split + 2));
+        ByteBuffer[] encoded = new ByteBuffer[Protocol.MAX_VERSION + 1];
+
+        for (String name : new LinkedHashSet<>(Arrays.asList(body.substring(0, split).split("\n")))) {
+            if (name.isEmpty()) continue;
+
+            Session recipient = sessions.byName(name);
+            if (recipient == null || recipient.getVersion() < Protocol.DIRECT_VERSION) {
+                sender.sendFrame(new Frame(Frame.DIRECT, 0, System.currentTimeMillis(), 0, "<System Info>", Protocol.DIRECT_ROOM,
+                        (recipient == null ? "No user named " : "Direct messages are not supported by ") + name));
+                continue;
+            }
+
+            int version = recipient.getVersion();
+            if (encoded[version] == null) encoded[version] = direct.encode(version, false);
+            recipient.sendDirect(encoded[version].duplicate());
+            Metrics.directMessages.increment();
+        }
+    }
+
+    /**
+     * Change a client's state on the roster
+     * @param session client
+     * @param request PRESENCE frame whose body is the new state's code
+     */
+    static void updatePresence(Session session, Frame request) {
+        String body = request.getBody();
+        PresenceState state = body.length() == 1 ? PresenceState.fromCode(body.charAt(0)) : null;
+        if (state != null) roster.update(session, state);
+    }
+
+    /**
+     * Search the message history for a client, in the rooms it is in. The
+     * search runs on the search thread and counts against the client's rate
+     * limit like a message
+     * @param session client searching
+     * @param request SEARCH frame, body is the query and sequence the most results wanted
+     */
+    static void search(Session session, Frame request) {
+        if (!takeToken(session, Protocol.DEFAULT_ROOM)) return;
+
+        ExecutorService pool = searchPool;
+        if (pool == null) {
+            session.sendFrame(searchRefusal("Search is not enabled on this server"));
+            return;
+        }
+
+        int limit = request.getSequence() <= 0 ? DEFAULT_SEARCH_RESULTS : (int) Math.min(MAX_SEARCH_RESULTS, request.getSequence());
         try {
-            clientSocket.close();
+            pool.execute(() -> {
+                List<Message> results = new ArrayList<>();
+                String total;
+                try {
+                    total = runSearch(request.getBody(), limit, results, session);
+                }
+                catch (IllegalArgumentException e) {
+                    session.sendFrame(searchRefusal(e.getMessage()));
+                    return;
+                }
+
+                for (Message result : results) {
+                    session.sendFrame(new Frame(Frame.SEARCH, result.getSequence(), result.getTimestamp(), result.getSenderId(),
+                            result.getSenderName(), result.getRoom(), result.getBody()));
+                }
+                session.sendFrame(new Frame(Frame.SEARCH, 0, System.currentTimeMillis(), 0, "", total));
+            });
         }
-        catch (IOException e) {
-            System.err.println("Could not close socket. Closing Client");
+        catch (RejectedExecutionException e) {
+            // Server stopping
         }
     }
-}
 
+    private static Frame searchRefusal(String reason) {
+        return new Frame(Frame.SEARCH, -1, System.currentTimeMillis(), 0, "<System Info>", reason);
+    }
+
+    /**
+     * Look a query up in the index and read the messages it found from the
+     * log. A client only finds messages in rooms it is in: the query is run
+     * once per room, restricted to it, and the results merged
+     * @param text query as typed
+     * @param limit most messages wanted
+     * @param results given the most recent messages found, newest first
+     * @param reader client searching, null to search every room
+     * @return number of messages matching, followed by + if the index stopped counting before the end
+     * @throws IllegalArgumentException if the query cannot be parsed
+     */
+    private static String runSearch(String text, int limit, List<Message> results, Session reader) {
+        SearchQuery query = SearchQuery.parse(text);
+
+        List<SearchQuery> queries = new ArrayList<>();
+        if (reader == null) {
+            queries.add(query);
+        }
+        else {
+            // Rooms whose names differ only in case share a term, their messages are told apart below
+            Set<String> roomTerms = new HashSet<>();
+            for (String room : rooms.roomsOf(reader)) {
+                if (roomTerms.add(SearchQuery.roomTerm(room))) queries.add(query.inRoom(room));
+            }
+        }
+
+        long start = System.nanoTime();
+        long total = 0;
+        boolean exact = true;
+        List<Long> sequences = new ArrayList<>();
+        for (SearchQuery restricted : queries) {
+            SearchIndex.Results found = searchIndex.search(restricted, limit);
+            total += found.getTotal();
+            exact &= found.isExact();
+            for (long sequence : found.getSequences()) {
+                sequences.add(sequence);
+            }
+        }
+        sequences.sort(Comparator.reverseOrder());
+        Metrics.searchTime.record((System.nanoTime() - start) / 1000);
+        Metrics.searches.increment();
+
+        for (long sequence : sequences.subList(0, Math.min(limit, sequences.size()))) {
+            messageLog.read(sequence, message -> {
+                if (message.getSequence() == sequence && (reader == null || rooms.isMember(reader, message.getRoom()))) {
+                    results.add(message);
+                }
+                return false;
+            });
+        }
+        return total + (exact ? "" : "+");
+    }
+
+    /**
+     * Print the messages matching a query typed at the console
+     * @param text query
+     */
+    private static void printSearch(String text) {
+        if (searchIndex == null) {
+            System.out.println("<System Info>: Search needs the message log and is off");
+            return;
+        }
+
+        List<Message> results = new ArrayList<>();
+        try {
+            String total = runSearch(text, DEFAULT_SEARCH_RESULTS, results, null);
+            System.out.println("<System Info>: " + total + " messages match"
+                    + (!total.equals(String.valueOf(results.size())) ? ", newest " + results.size() + " shown" : ""));
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("<System Info>: " + e.getMessage());
+            return;
+        }
+        for (Message result : results) {
+            System.out.println("[" + result.getRoom() + "] " + result.getMessage());
+        }
+    }
+
+    /**
+     * @param session session joining
+     * @param room room to join, created if needed
+     */
+    static void joinRoom(Session session, String room) {
+        if (room.startsWith("@")) return;
+        rooms.join(session, room);
+    }
+
+    /**
+     * @param session session leaving
+     * @param room room to leave
+     */
+    static void leaveRoom(Session session, String room) {
+        rooms.leave(session, room);
+    }
 
+    /**
+     * Claim a client's name during its handshake. Names are unique among
+     * connected clients; a client reconnecting may take its name back from
+     * its own earlier connection, which is then closed
+     * @param session client whose name and id are set
+     * @param resumeToken token from the client's previous connection, empty if none
+     * @return false if another client holds the name, the client must then be refused
+     */
+    static boolean registerSession(Session session, String resumeToken) {
+        if (!sessions.add(session, resumeToken)) return false;
+
+        Metrics.connectionsOpened.increment();
+        heartbeats.watch(session);
+        return true;
+    }
+
+    /**
+     * Add a client that has sent its name and claimed it to the clients receiving broadcasts
+     * @param session connected client
+     * @param name client name
+     */
+    static void addSession(Session session, String name) {
+        rooms.join(session, Protocol.DEFAULT_ROOM);
+        roster.join(session);
+        console.info("<System Info>: New Client, " + name + ", Connected");
+    }
+
+    /**
+     * Add a binary client that has sent HELLO. It rejoins the rooms listed in
+     * the HELLO body, one per line, and if there is a message log is sent
+     * what it missed since the sequence in the HELLO frame before it starts
+     * receiving live messages
+     * @param session connected client
+     * @param hello HELLO frame from the client
+     */
+    static void addSession(Session session, Frame hello) {
+        CatchUp catchUp = null;
+        if (catchUpPool != null) {
+            catchUp = new CatchUp(session, hello.getSequence(), hello.getSenderId());
+            session.setCatchUp(catchUp);
+        }
+
+        addSession(session, hello.getName());
+        for (String room : hello.getBody().split("\n")) {
+            if (!room.isEmpty()) rooms.join(session, room);
+        }
+
+        if (catchUp != null) {
+            CatchUp replay = catchUp;
+            catchUpPool.execute(() -> replay.run(messageLog, rooms, catchUpLimit));
+        }
+    }
+
+    /**
+     * Stop broadcasting to a client that has disconnected
+     * @param session disconnected client
+     * @param name client name
+     */
+    static void removeSession(Session session, String name) {
+        rooms.leaveAll(session);
+        if (attachments != null) attachments.abandon(session);
+        if (sessions.remove(session)) {
+            roster.leave(session);
+            Metrics.connectionsClosed.increment();
+            console.info("<System Info>: Client, " + name + ", Disconnected");
+        }
+    }
+
+    /**
+     * @return new client id, never 0. In a federation the top byte is the
+     *         node id, so ids are unique across the cluster
+     */
+    static int nextClientId() {
+        int id = clientIds.incrementAndGet();
+        return federation == null ? id : federation.getNodeId() << 24 | id & 0xFFFFFF;
+    }
+
+    /**
+     * @return sequence number of the last message broadcast, 0 if none yet
+     */
+    static long lastSequence() {
+        return broadcaster.lastSequence();
+    }
+
+    /**
+     * @return number of federation peers currently linked
+     */
+    static int peerCount() {
+        return federation == null ? 0 : federation.linkCount();
+    }
+
+    /**
+     * @return messages waiting to be broadcast
+     */
+    static long broadcastQueueDepth() {
+        return broadcaster == null ? 0 : broadcaster.queueDepth();
+    }
+
+    /**
+     * @return how long connections may hold frames back to write them together
+     */
+    static FlushPolicy flushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * @return milliseconds a client has from being accepted to finishing its handshake
+     */
+    static long handshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * @return new resume token for a client, 128 random bits in hex
+     */
+    static String newResumeToken() {
+        byte[] token = new byte[16];
+        resumeTokens.nextBytes(token);
+        return HexFormat.of().formatHex(token);
+    }
+
+    /**
+     * @param hello client's HELLO frame
+     * @param version protocol version agreed with the client
+     * @return resume token the client sent, empty if none. Version 1 frames have no room to carry one
+     */
+    static String resumeTokenOf(Frame hello, int version) {
+        return version >= 2 ? hello.getRoom() : "";
+    }
+
+    /**
+     * @return new rate limit for a client, with the configured rate and burst
+     */
+    static TokenBucket newRateLimit() {
+        return new TokenBucket(rateLimit, rateBurst);
+    }
+
+    /**
+     * @param version protocol version of the client, read when a notice is sent
+     * @return new outbound queue for a client, with the configured size and slow consumer policy
+     */
+    static OutboundQueue newOutboundQueue(IntSupplier version) {
+        return new OutboundQueue(clientQueueSize, slowClientPolicy, slowClientDeadline, version);
+    }
+
+    /**
+     * Print every client with frames waiting or dropped, furthest behind first
+     */
+    private static void printLag() {
+        // Lag is read once per client, it keeps changing while the list is sorted
+        List<Map.Entry<Session, Long>> lagging = new ArrayList<>();
+        for (Session session : sessions.all()) {
+            OutboundQueue queue = session.getOutbound();
+            if (queue.size() > 0 || queue.dropped() > 0) lagging.add(Map.entry(session, queue.lagMillis()));
+        }
+
+        if (lagging.isEmpty()) {
+            System.out.println("<System Info>: No clients lagging");
+            return;
+        }
+
+        lagging.sort(Map.Entry.<Session, Long>comparingByValue().reversed());
+        for (Map.Entry<Session, Long> entry : lagging) {
+            Session session = entry.getKey();
+            OutboundQueue queue = session.getOutbound();
+            System.out.println("<System Info>: " + session.getName() + " (" + session.getId() + "): "
+                    + queue.size() + " frames, " + queue.bytes() + " bytes queued, "
+                    + entry.getValue() + " ms behind, " + queue.dropped() + " dropped");
+        }
+    }
+
+    /**
+     * @return messages indexed for search
+     */
+    static long indexedCount() {
+        return searchIndex == null ? 0 : searchIndex.size();
+    }
+
+    /**
+     * @return clients on the presence roster
+     */
+    static int rosterSize() {
+        return roster == null ? 0 : roster.size();
+    }
+
+    /**
+     * @return number of connected clients
+     */
+    public static int sessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Close the server by
+     *  - closing all open sockets
+     *  - freeing the port used
+     */
+    private static void closeServer() {
+        if (federation != null) {
+            federation.close();
+            federation = null;
+        }
+
+        broadcaster.close();
+        heartbeats.close();
+        roster.close();
+        Metrics.close();
+
+        if (multicast != null) {
+            multicast.close();
+            multicast = null;
+        }
+
+        if (catchUpPool != null) {
+            catchUpPool.shutdownNow();
+            catchUpPool = null;
+        }
+
+        if (searchPool != null) {
+            searchPool.shutdownNow();
+            searchPool = null;
+        }
+        if (searchIndex != null) {
+            searchIndex.close();
+            searchIndex = null;
+        }
+
+        if (messageLog != null) {
+            messageLog.close();
+            messageLog = null;
+        }
+
+        if (attachmentPool != null) {
+            attachmentPool.shutdownNow();
+            attachmentPool = null;
+        }
+        if (attachments != null) {
+            attachments.close();
+            attachments = null;
+        }
+
+        for (Session client : sessions.all()) {
+            client.close();
+        }
+
+        if (nioServer != null) {
+            nioServer.close();
+            nioServer = null;
+        }
+        else {
+            // Close server socket
+            try {
+                serverSocket.close();
+                serverSocket = null;
+            }
+            catch (IOException e) {
+                System.err.println("I/O Exception: " + e.getMessage());
+            }
+            handshakeTimer.shutdownNow();
+        }
+
+        console.close();
+    }
+}
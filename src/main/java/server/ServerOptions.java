@@ -0,0 +1,163 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Startup options for the server. The first positional argument is the
+ * port number, every other argument is a flag of the form --name=value
+ * (or just --name for boolean flags)
+ */
+public class ServerOptions {
+
+    /**
+     * Engines the server can be run with
+     */
+    public enum Engine {
+        /** One blocking reader per connected client */
+        THREAD,
+        /** Small fixed pool of non-blocking selector loops */
+        NIO
+    }
+
+    private static final int DEFAULT_PORT = 8888;
+
+    private final int port;
+    private final Map<String, String> flags;
+
+    private ServerOptions(int port, Map<String, String> flags) {
+        this.port = port;
+        this.flags = flags;
+    }
+
+    /**
+     * Parse arguments passed to main. Invalid or missing port numbers default
+     * to port 8888
+     * @param args args passed to main
+     * @return parsed options
+     */
+    public static ServerOptions parse(String[] args) {
+        Map<String, String> flags = new HashMap<>();
+        String portArg = null;
+
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    flags.put(arg.substring(2).toLowerCase(), "true");
+                }
+                else {
+                    flags.put(arg.substring(2, equals).toLowerCase(), arg.substring(equals + 1));
+                }
+            }
+            else if (portArg == null) {
+                portArg = arg;
+            }
+        }
+
+        return new ServerOptions(argToPortNum(portArg), flags);
+    }
+
+    /**
+     * Take port argument and extract port number from it, or default to
+     * port 8888 if no port number passed in or port number is invalid
+     * @param arg port argument, may be null
+     * @return port number to open server socket on
+     */
+    private static int argToPortNum(String arg) {
+        if (arg == null) {
+            System.err.println("No port number specified. Defaulting to " + DEFAULT_PORT);
+            return DEFAULT_PORT;
+        }
+
+        try {
+            int port = Integer.parseInt(arg);
+
+            // Throw exception so it is caught and error message printed
+            if (port < 0 || port > 65535) {
+                throw new NumberFormatException();
+            }
+
+            return port;
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Invalid port number (" + arg + "). Defaulting to " + DEFAULT_PORT);
+            return DEFAULT_PORT;
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return engine selected with --engine=thread|nio, thread by default
+     */
+    public Engine getEngine() {
+        String engine = getString("engine", "thread");
+        try {
+            return Engine.valueOf(engine.toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("Unknown engine (" + engine + "). Defaulting to thread");
+            return Engine.THREAD;
+        }
+    }
+
+    /**
+     * @param name flag name, without leading dashes
+     * @param defaultValue value to return if flag not set
+     * @return flag value
+     */
+    public String getString(String name, String defaultValue) {
+        return flags.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * @param name flag name, without leading dashes
+     * @param defaultValue value to return if flag not set or not a number
+     * @return flag value
+     */
+    public int getInt(String name, int defaultValue) {
+        String value = flags.get(name);
+        if (value == null) return defaultValue;
+
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Invalid value for --" + name + " (" + value + "). Defaulting to " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param name flag name, without leading dashes
+     * @param defaultValue value to return if flag not set or not a number
+     * @return flag value
+     */
+    public long getLong(String name, long defaultValue) {
+        String value = flags.get(name);
+        if (value == null) return defaultValue;
+
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Invalid value for --" + name + " (" + value + "). Defaulting to " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param name flag name, without leading dashes
+     * @param defaultValue value to return if flag not set
+     * @return true if flag set to anything other than false
+     */
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = flags.get(name);
+        if (value == null) return defaultValue;
+
+        return !value.equalsIgnoreCase("false");
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+import message.Frame;
+import message.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A connected client, as seen by the broadcaster. Implemented once per
+ * server engine
+ */
+interface Session {
+
+    /**
+     * Send message to client
+     * @param message message to send
+     */
+    void sendMessage(Message message);
+
+    /**
+     * Send messages the client missed in one batch, ahead of anything held
+     * back by a catch-up
+     * @param messages messages to send, in sequence order
+     */
+    void sendHistory(List<Message> messages);
+
+    /**
+     * Send a direct message frame, encoded for this client's version. Goes
+     * through the slow consumer policy like broadcast messages
+     * @param frame encoded DIRECT frame, shared with other recipients
+     */
+    void sendDirect(ByteBuffer frame);
+
+    /**
+     * Send a roster or presence frame. Never dropped by the slow consumer
+     * policy, but a client with too many control frames queued is disconnected
+     * @param frame encoded PRESENCE or ROSTER frame, shared with other clients
+     */
+    void sendPresence(ByteBuffer frame);
+
+    /**
+     * Send a reply to a request from the client. Never dropped by the slow
+     * consumer policy, but a client with too many control frames queued is disconnected
+     * @param frame reply frame
+     */
+    void sendFrame(Frame frame);
+
+    /**
+     * Stream a stored attachment to the client in CHUNK frames, sent while
+     * no chat frames are waiting. The file is closed once sent
+     * @param hash attachment hash
+     * @param file stored file, opened for reading
+     */
+    void sendAttachment(String hash, FileChannel file);
+
+    /**
+     * Pass live messages through catchUp, which holds them back until it has
+     * sent what the client missed
+     * @param catchUp catch-up for this session
+     */
+    void setCatchUp(CatchUp catchUp);
+
+    /**
+     * @return sequence of the first message the client receives by multicast
+     *         instead of directly, Long.MAX_VALUE if it has not subscribed
+     */
+    long getMulticastFrom();
+
+    /**
+     * @return server assigned id of the client
+     */
+    int getId();
+
+    /**
+     * @return secret sent to the client in WELCOME, which it must present to
+     *         take its name back from this session when it reconnects
+     */
+    String getResumeToken();
+
+    /**
+     * @return name the client connected with
+     */
+    String getName();
+
+    /**
+     * @return negotiated protocol version, Protocol.LEGACY_VERSION for writeUTF clients
+     */
+    int getVersion();
+
+    /**
+     * @return System.nanoTime() when anything was last read from the client
+     */
+    long getLastRead();
+
+    /**
+     * @return limit on how fast the client may send messages
+     */
+    TokenBucket getRateLimit();
+
+    /**
+     * @return frames waiting to be written to the client, and how far behind it is
+     */
+    OutboundQueue getOutbound();
+
+    /**
+     * Close client connection
+     */
+    void close();
+}
@@ -0,0 +1,86 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every connected client, by id and by name. Names are unique among
+ * connected clients. Lookups are hash lookups, and adding or removing a
+ * session touches only its own entries
+ */
+class SessionRegistry {
+    private final ConcurrentHashMap<Integer, Session> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Session> byName = new ConcurrentHashMap<>();
+
+    /**
+     * Register a session under its id and name. A session already holding
+     * the name is only replaced if the client proves it is that session's
+     * own client, by presenting the resume token it was sent in WELCOME; the
+     * replaced session is closed. Ids are no proof, every client sees them
+     * @param session session that has completed its handshake
+     * @param resumeToken token the client was given on its previous connection, empty if none
+     * @return false if another client holds the name
+     */
+    boolean add(Session session, String resumeToken) {
+        Session[] replaced = new Session[1];
+        Session holder = byName.compute(session.getName(), (name, current) -> {
+            if (current != null && !matches(current.getResumeToken(), resumeToken)) return current;
+
+            replaced[0] = current;
+            return session;
+        });
+        if (holder != session) return false;
+
+        byId.put(session.getId(), session);
+
+        // Closing removes it by id, as for any other disconnect
+        if (replaced[0] != null) replaced[0].close();
+        return true;
+    }
+
+    /**
+     * Compare tokens in constant time, so timing says nothing about how much of a guess was right
+     */
+    private static boolean matches(String expected, String presented) {
+        return !presented.isEmpty() && MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8),
+                presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param session session to remove
+     * @return false if it was not registered, e.g. it was replaced or never added
+     */
+    boolean remove(Session session) {
+        byName.remove(session.getName(), session);
+        return byId.remove(session.getId(), session);
+    }
+
+    /**
+     * @param session session to look for
+     * @return true if it is registered, false once it has been removed or replaced
+     */
+    boolean contains(Session session) {
+        return byId.get(session.getId()) == session;
+    }
+
+    /**
+     * @param name client name
+     * @return connected client with that name, null if there is none
+     */
+    Session byName(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @return live view of every connected client, safe to iterate while clients come and go
+     */
+    Collection<Session> all() {
+        return byId.values();
+    }
+
+    int size() {
+        return byId.size();
+    }
+}
@@ -0,0 +1,71 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Kind of thread the thread-per-client engine runs its accept loop,
+ * client readers and broadcaster on
+ */
+public enum ThreadMode {
+    /** Ordinary OS threads, each with its own native stack */
+    PLATFORM,
+    /** Java 21+ virtual threads, mounted on a small pool of carrier threads */
+    VIRTUAL;
+
+    /**
+     * Builder for virtual threads, looked up reflectively so the server still
+     * builds and runs on JDKs older than 21. Null if not available
+     */
+    private static final ThreadFactory VIRTUAL_FACTORY = lookupVirtualFactory();
+
+    /**
+     * Create a new, unstarted thread of this kind
+     * @param name thread name
+     * @param task task the thread runs
+     * @return new thread
+     */
+    public Thread newThread(String name, Runnable task) {
+        if (this == VIRTUAL && VIRTUAL_FACTORY != null) {
+            Thread thread = VIRTUAL_FACTORY.newThread(task);
+            thread.setName(name);
+            return thread;
+        }
+
+        return new Thread(task, name);
+    }
+
+    /**
+     * @return true if threads created by this mode are really the kind asked for
+     */
+    public boolean isSupported() {
+        return this == PLATFORM || VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * @param mode mode name, case insensitive
+     * @return matching mode, or PLATFORM if not recognised
+     */
+    public static ThreadMode parse(String mode) {
+        try {
+            return ThreadMode.valueOf(mode.toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("Unknown thread mode (" + mode + "). Defaulting to platform");
+            return PLATFORM;
+        }
+    }
+
+    private static ThreadFactory lookupVirtualFactory() {
+        try {
+            // Thread.ofVirtual().factory()
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
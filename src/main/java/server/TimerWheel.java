@@ -0,0 +1,137 @@
+package server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hashed timer wheel. Time is cut into ticks and a timer goes in the slot
+ * for the tick it is due, modulo the number of slots; timers due more than
+ * one turn of the wheel ahead wait in their slot for the turns in between.
+ * Adding a timer and advancing by a tick cost the same however many timers
+ * there are, where a priority queue costs log n for each, so it suits a
+ * timer per connection for tens of thousands of connections.
+ *
+ * Timers may be added from any thread. Only the thread advancing the wheel
+ * touches the slots; it is also the one that runs expired timers, and each
+ * one says when it is next due, reusing its entry, so a timer that keeps
+ * going costs no allocation
+ *
+ * @param <T> what the timers are for
+ */
+class TimerWheel<T> {
+
+    private final Entry<T>[] slots;
+    private final int mask;
+    private final long tickNanos;
+    private final long start;
+
+    /**
+     * Ticks since start that have been processed. Only used by the advancing thread
+     */
+    private long tick = 0;
+
+    /**
+     * Timers added since the last advance, placed in their slots by the advancing thread
+     */
+    private final ConcurrentLinkedQueue<Entry<T>> added = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param slotCount number of slots, rounded up to a power of two
+     * @param tickNanos length of a tick, the precision of every timer
+     */
+    TimerWheel(int slotCount, long tickNanos) {
+        int size = slotCount <= 2 ? 2 : Integer.highestOneBit(slotCount - 1) << 1;
+        @SuppressWarnings("unchecked")
+        Entry<T>[] wheel = (Entry<T>[]) new Entry<?>[size];
+        this.slots = wheel;
+        this.mask = size - 1;
+        this.tickNanos = Math.max(1, tickNanos);
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * Add a timer. Safe to call from any thread
+     * @param item what the timer is for
+     * @param delayNanos time until it is due, rounded up to whole ticks
+     */
+    void schedule(T item, long delayNanos) {
+        Entry<T> entry = new Entry<>(item);
+        entry.due = System.nanoTime() + delayNanos;
+        added.add(entry);
+    }
+
+    /**
+     * Run every timer due by now, oldest tick first. Must only be called by
+     * one thread at a time
+     * @param expired called for each timer due; returns nanoseconds until
+     *                the timer is next due, or a negative number to drop it
+     */
+    void advance(ToLongFunction<T> expired) {
+        Entry<T> entry;
+        while ((entry = added.poll()) != null) {
+            place(entry, tickOf(entry.due));
+        }
+
+        long now = tickOf(System.nanoTime());
+        while (tick <= now) {
+            int slot = (int) (tick & mask);
+
+            // Detach the slot first, so timers rescheduled into it go round again instead of being met twice
+            Entry<T> next = slots[slot];
+            slots[slot] = null;
+            while (next != null) {
+                entry = next;
+                next = entry.next;
+                entry.next = null;
+
+                if (entry.dueTick > tick) {
+                    place(entry, entry.dueTick);
+                    continue;
+                }
+
+                long delay = expired.applyAsLong(entry.item);
+                if (delay >= 0) {
+                    entry.due = System.nanoTime() + delay;
+                    place(entry, tickOf(entry.due));
+                }
+            }
+            tick++;
+        }
+    }
+
+    /**
+     * @return length of a tick in nanoseconds
+     */
+    long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Put an entry in the slot for its tick, at the earliest the next one to
+     * be processed
+     */
+    private void place(Entry<T> entry, long dueTick) {
+        entry.dueTick = Math.max(dueTick, tick + 1);
+        int slot = (int) (entry.dueTick & mask);
+        entry.next = slots[slot];
+        slots[slot] = entry;
+    }
+
+    /**
+     * @return tick that a time falls in, rounded up
+     */
+    private long tickOf(long nanoTime) {
+        return Math.max(0, (nanoTime - start + tickNanos - 1) / tickNanos);
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private long due;
+        private long dueTick;
+        private Entry<T> next;
+
+        private Entry(T item) {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package server;
+
+/**
+ * Per-client rate limit on messages sent. The bucket holds up to burst
+ * tokens and refills at rate tokens a second; each message takes one, and a
+ * message arriving at an empty bucket is refused. A client can send a burst
+ * at once, but no more than rate a second for long
+ */
+class TokenBucket {
+    private final double burst;
+    private final double tokensPerNano;
+
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * Messages refused since the bucket was last full
+     */
+    private int refused = 0;
+
+    /**
+     * @param rate messages a second, 0 or less for no limit
+     * @param burst most messages sent at once
+     */
+    TokenBucket(int rate, int burst) {
+        this.burst = Math.max(1, burst);
+        this.tokensPerNano = rate > 0 ? rate / 1e9 : 0;
+        this.tokens = this.burst;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Take a token for a message. Usually called on the client's reading
+     * thread, but uploads finish on another, so it is synchronized
+     * @return false if the bucket is empty and the message must be refused
+     */
+    synchronized boolean tryTake() {
+        if (tokensPerNano == 0) return true;
+
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+        if (tokens == burst) refused = 0;
+
+        if (tokens < 1) {
+            if (refused < Integer.MAX_VALUE) refused++;
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * @return messages refused since the bucket was last full, so 1 for the
+     *         first refusal since the client last slowed down
+     */
+    synchronized int getRefused() {
+        return refused;
+    }
+}
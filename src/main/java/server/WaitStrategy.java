@@ -0,0 +1,110 @@
+package server;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * How the consumer of a RingBuffer waits for the next entry to be published.
+ * Trades idle CPU use against wake-up latency
+ */
+interface WaitStrategy {
+
+    /**
+     * Block until ready returns true
+     * @param ready condition to wait for, checked repeatedly
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    void await(BooleanSupplier ready) throws InterruptedException;
+
+    /**
+     * Called by producers after publishing, wakes the consumer if it is waiting
+     */
+    void signal();
+
+    /**
+     * @param name spin, yield or park, case insensitive
+     * @return new wait strategy, park if name not recognised
+     */
+    static WaitStrategy of(String name) {
+        switch (name.toLowerCase()) {
+            case "spin":
+                return new BusySpin();
+            case "yield":
+                return new Yield();
+            case "park":
+                return new Park();
+            default:
+                System.err.println("Unknown wait strategy (" + name + "). Defaulting to park");
+                return new Park();
+        }
+    }
+
+    /**
+     * Spin on the condition. Lowest latency, keeps a core at 100% while idle
+     */
+    class BusySpin implements WaitStrategy {
+        public void await(BooleanSupplier ready) throws InterruptedException {
+            while (!ready.getAsBoolean()) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                Thread.onSpinWait();
+            }
+        }
+
+        public void signal() {
+            // Consumer never sleeps
+        }
+    }
+
+    /**
+     * Spin briefly, then yield the core to other threads between checks
+     */
+    class Yield implements WaitStrategy {
+        private static final int SPIN_TRIES = 100;
+
+        public void await(BooleanSupplier ready) throws InterruptedException {
+            int tries = 0;
+            while (!ready.getAsBoolean()) {
+                if (Thread.interrupted()) throw new InterruptedException();
+
+                if (tries < SPIN_TRIES) {
+                    tries++;
+                    Thread.onSpinWait();
+                }
+                else {
+                    Thread.yield();
+                }
+            }
+        }
+
+        public void signal() {
+            // Consumer never sleeps
+        }
+    }
+
+    /**
+     * Park the consumer until a producer unparks it. No CPU used while idle,
+     * costs an unpark per publish while the consumer is asleep
+     */
+    class Park implements WaitStrategy {
+        private volatile Thread waiter;
+
+        public void await(BooleanSupplier ready) throws InterruptedException {
+            while (!ready.getAsBoolean()) {
+                waiter = Thread.currentThread();
+
+                // Re-check after announcing ourselves, a producer may have published in between
+                if (!ready.getAsBoolean()) {
+                    LockSupport.park(this);
+                }
+                waiter = null;
+
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        }
+
+        public void signal() {
+            Thread thread = waiter;
+            if (thread != null) LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package testbed;
+
+import message.Frame;
+import message.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens many connections to a running server at once and measures, for each
+ * one, the time from starting to connect to receiving the server's WELCOME.
+ * Each client sends its handshake and HELLO together without waiting for
+ * the server's reply, the way a crowd of clients arriving together looks to
+ * the server. Every client is driven from one selector thread, so the
+ * connects really are simultaneous.
+ *
+ * --silent connections are opened first and never send anything, to show
+ * they hold no one else up; the server closes them at its handshake timeout.
+ *
+ * Usage: ConnectStorm host port [--clients=1000] [--silent=0] [--timeout=30]
+ *
+ * --timeout is seconds to wait for every client to be welcomed
+ */
+public class ConnectStorm {
+
+    /**
+     * Longest time tracked, a minute in microseconds
+     */
+    private static final long HIGHEST_TIME = TimeUnit.MINUTES.toMicros(1);
+
+    private final LatencyHistogram histogram = new LatencyHistogram(HIGHEST_TIME);
+    private int welcomed = 0;
+    private int refused = 0;
+    private int failed = 0;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: ConnectStorm host port [--clients=1000] [--silent=0] [--timeout=30]");
+            System.exit(1);
+        }
+
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (!args[i].startsWith("--") || equals < 0) {
+                System.out.println("Ignoring unknown argument: " + args[i]);
+                continue;
+            }
+            options.put(args[i].substring(2, equals), args[i].substring(equals + 1));
+        }
+
+        new ConnectStorm().run(new InetSocketAddress(args[0], Integer.parseInt(args[1])),
+                Integer.parseInt(options.getOrDefault("clients", "1000")),
+                Integer.parseInt(options.getOrDefault("silent", "0")),
+                Integer.parseInt(options.getOrDefault("timeout", "30")));
+        System.exit(0);
+    }
+
+    private void run(InetSocketAddress server, int clientCount, int silentCount, int timeoutSeconds) throws IOException {
+        List<Socket> silent = new ArrayList<>(silentCount);
+        for (int i = 0; i < silentCount; i++) {
+            silent.add(new Socket(server.getAddress(), server.getPort()));
+        }
+
+        // Names unique to this run, so a rerun is not refused while the last one's clients are still connected
+        String prefix = "storm-" + Long.toString(System.nanoTime() % 1_000_000, 36) + "-";
+        Selector selector = Selector.open();
+        List<SocketChannel> channels = new ArrayList<>(clientCount);
+        long start = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            Client client = new Client(prefix + i);
+            channel.register(selector, channel.connect(server) ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, client);
+            channels.add(channel);
+        }
+
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (welcomed + refused + failed < clientCount && System.nanoTime() < deadline) {
+            selector.select(100);
+            for (SelectionKey key : selector.selectedKeys()) {
+                handle(key);
+            }
+            selector.selectedKeys().clear();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        report(clientCount, elapsed);
+
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        for (Socket socket : silent) {
+            socket.close();
+        }
+        selector.close();
+    }
+
+    private void handle(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Client client = (Client) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (key.isWritable()) {
+                channel.write(client.out);
+                if (!client.out.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (key.isReadable()) {
+                if (channel.read(client.in) < 0) throw new IOException("Closed by server");
+                if (client.welcome() == null) return;
+
+                if (client.welcome().getSenderId() == 0) refused++;
+                else welcomed++;
+                histogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - client.started));
+                key.interestOps(0);
+            }
+        }
+        catch (IOException e) {
+            failed++;
+            key.cancel();
+        }
+    }
+
+    private void report(int clientCount, long elapsedNanos) {
+        System.out.printf("%d of %d clients welcomed in %.1f ms, %d refused, %d failed, %d timed out%n",
+                welcomed, clientCount, elapsedNanos / 1e6, refused, failed, clientCount - welcomed - refused - failed);
+        System.out.printf("Connect to welcome: p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n%n",
+                histogram.valueAtPercentile(50) / 1000.0, histogram.valueAtPercentile(99) / 1000.0,
+                histogram.valueAtPercentile(99.9) / 1000.0, histogram.valueAtPercentile(100) / 1000.0);
+
+        // Values in milliseconds, as HdrHistogram tools expect by default
+        histogram.outputPercentileDistribution(System.out, 1000.0);
+    }
+
+    /**
+     * One storming client: the bytes it sends and what it has read so far
+     */
+    private static class Client {
+        private final long started = System.nanoTime();
+        private final ByteBuffer out;
+        private final ByteBuffer in = ByteBuffer.allocate(1024);
+        private Frame welcome;
+
+        private Client(String name) {
+            ByteBuffer hello = new Frame(Frame.HELLO, 0, System.currentTimeMillis(), 0, name, "").encode(Protocol.MAX_VERSION, false);
+            out = ByteBuffer.allocate(Protocol.CLIENT_HANDSHAKE_SIZE + hello.remaining());
+            out.putShort((short) 0).put(Protocol.MAGIC).put((byte) Protocol.MIN_VERSION).put((byte) Protocol.MAX_VERSION)
+                    .put(hello).flip();
+        }
+
+        /**
+         * @return WELCOME frame, null until the server's handshake reply and all of WELCOME have been read
+         * @throws IOException if the server refused the handshake
+         */
+        private Frame welcome() throws IOException {
+            if (welcome != null) return welcome;
+
+            int frameStart = Protocol.SERVER_HANDSHAKE_SIZE;
+            if (in.position() < frameStart + Frame.LENGTH_SIZE) return null;
+
+            int version = in.get(frameStart - 1);
+            if (version == 0) throw new IOException("No protocol version in common with server");
+
+            int end = frameStart + Frame.LENGTH_SIZE + in.getInt(frameStart);
+            if (in.position() < end) return null;
+
+            ByteBuffer frame = in.duplicate();
+            frame.position(frameStart + Frame.LENGTH_SIZE).limit(end);
+            welcome = Frame.decode(frame, version);
+            return welcome;
+        }
+    }
+}
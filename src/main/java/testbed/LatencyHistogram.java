@@ -0,0 +1,156 @@
+package testbed;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds, in the style of HdrHistogram: values
+ * below 2048 are counted exactly, larger ones in buckets that keep three
+ * significant digits. Any number of threads may record at once. The
+ * percentile distribution is printed in HdrHistogram's text format, so the
+ * usual plotting tools read it
+ */
+class LatencyHistogram {
+
+    /**
+     * Bits of each value kept exactly, giving 0.1% precision
+     */
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    /**
+     * Percentile steps printed per halving of the distance to 100%, as HdrHistogram does by default
+     */
+    private static final int TICKS_PER_HALF_DISTANCE = 5;
+
+    private final long highestTrackable;
+    private final AtomicLongArray counts;
+
+    /**
+     * @param highestTrackable largest value recorded, larger values are recorded as this
+     */
+    LatencyHistogram(long highestTrackable) {
+        this.highestTrackable = Math.max(SUB_BUCKET_COUNT, highestTrackable);
+        this.counts = new AtomicLongArray(indexOf(this.highestTrackable) + 1);
+    }
+
+    /**
+     * @param value latency in microseconds, negative values count as 0
+     */
+    void record(long value) {
+        counts.incrementAndGet(indexOf(Math.max(0, Math.min(value, highestTrackable))));
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+
+        // Shift that brings value into the upper half of a sub-bucket range
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKET_COUNT + (shift - 1) * HALF_COUNT + (int) (value >> shift) - HALF_COUNT;
+    }
+
+    /**
+     * @return smallest value counted at index
+     */
+    private static long lowestAt(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+
+        int shift = (index - SUB_BUCKET_COUNT) / HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % HALF_COUNT + HALF_COUNT;
+        return subBucket << shift;
+    }
+
+    /**
+     * @return largest value counted at index
+     */
+    private static long highestAt(int index) {
+        return lowestAt(index + 1) - 1;
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    long totalCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile percentile from 0 to 100
+     * @return highest value of the bucket the percentile falls in, 0 if nothing was recorded
+     */
+    long valueAtPercentile(double percentile) {
+        return valueAtPercentile(percentile, totalCount());
+    }
+
+    private long valueAtPercentile(double percentile, long total) {
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) return highestAt(i);
+        }
+        return 0;
+    }
+
+    /**
+     * @return mean of the values recorded, from the middle of each bucket
+     */
+    double mean() {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            total += count;
+            sum += count * (lowestAt(i) + highestAt(i)) / 2.0;
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * Print the percentile distribution in HdrHistogram's text format
+     * @param out stream to print to
+     * @param scale divisor applied to values, e.g. 1000.0 to print milliseconds
+     */
+    void outputPercentileDistribution(PrintStream out, double scale) {
+        long total = totalCount();
+        out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        if (total == 0) return;
+
+        double percentile = 0;
+        while (Math.ceil(percentile / 100 * total) < total) {
+            long value = valueAtPercentile(percentile, total);
+            out.printf("%12.3f %2.12f %10d %14.2f%n", value / scale, percentile / 100, countAtOrBelow(value),
+                    1 / (1 - percentile / 100));
+
+            long halfDistance = 1L << ((int) (Math.log(100 / (100 - percentile)) / Math.log(2)) + 1);
+            percentile += 100.0 / (halfDistance * TICKS_PER_HALF_DISTANCE);
+        }
+        long max = valueAtPercentile(100, total);
+        out.printf("%12.3f %2.12f %10d%n", max / scale, 1.0, total);
+
+        double mean = mean();
+        double variance = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            double deviation = (lowestAt(i) + highestAt(i)) / 2.0 - mean;
+            variance += counts.get(i) * deviation * deviation;
+        }
+        out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean / scale, Math.sqrt(variance / total) / scale);
+        out.printf("#[Max     = %12.3f, Total count    = %12d]%n", max / scale, total);
+        out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n",
+                (counts.length() - SUB_BUCKET_COUNT) / HALF_COUNT + 1, SUB_BUCKET_COUNT);
+    }
+
+    private long countAtOrBelow(long value) {
+        long count = 0;
+        int last = indexOf(value);
+        for (int i = 0; i <= last; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,230 @@
+package testbed;
+
+import client.Connection;
+import message.Message;
+import message.Protocol;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opens many headless clients against a running server and measures how
+ * long messages take to reach the other members of their room. Clients are
+ * spread evenly over the rooms; the first few in each room also send, each
+ * at a fixed rate. Every message carries the time it was due to be sent, so
+ * a sender that falls behind shows up as latency instead of hiding it.
+ * Messages sent during the warm-up are not measured.
+ *
+ * Prints the percentile distribution of delivery latency in HdrHistogram's
+ * format, along with send and delivery throughput.
+ *
+ * Usage: LoadGenerator host port [--clients=1000] [--senders=100] [--rate=1]
+ *        [--size=128] [--rooms=1] [--warmup=5] [--duration=30] [--output=file]
+ *        [--nodes=host:port,...] [--multicast]
+ *
+ * --rate is messages per second per sender, --size the message body in
+ * bytes, --warmup and --duration are seconds. --output also writes the
+ * distribution to a file. --nodes lists more servers of a federation, clients
+ * are then spread over them and host:port in turn. --multicast has clients
+ * receive from the server's multicast group, if it has one. Run with a high open file limit, and note the
+ * server replays its log to each new client unless started with --log=false.
+ */
+public class LoadGenerator {
+
+    /**
+     * Longest latency tracked, an hour in microseconds
+     */
+    private static final long HIGHEST_LATENCY = TimeUnit.HOURS.toMicros(1);
+
+    /**
+     * Stack size for client reading threads, which only ever decode frames
+     */
+    private static final long READER_STACK_SIZE = 256 * 1024;
+
+    private final LatencyHistogram histogram = new LatencyHistogram(HIGHEST_LATENCY);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+
+    /**
+     * Messages due before this time, in System.nanoTime(), are warm-up and not measured
+     */
+    private volatile long measureFrom;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: LoadGenerator host port [--clients=1000] [--senders=100] [--rate=1] "
+                    + "[--size=128] [--rooms=1] [--warmup=5] [--duration=30] [--output=file] [--nodes=host:port,...] [--multicast]");
+            System.exit(1);
+        }
+
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (!args[i].startsWith("--")) {
+                System.out.println("Ignoring unknown argument: " + args[i]);
+                continue;
+            }
+            if (equals < 0) {
+                options.put(args[i].substring(2), "true");
+                continue;
+            }
+            options.put(args[i].substring(2, equals), args[i].substring(equals + 1));
+        }
+
+        List<String> hosts = new ArrayList<>(List.of(args[0]));
+        List<Integer> ports = new ArrayList<>(List.of(Integer.parseInt(args[1])));
+        for (String node : options.getOrDefault("nodes", "").split(",")) {
+            int colon = node.lastIndexOf(':');
+            if (colon < 0) continue;
+            hosts.add(node.substring(0, colon));
+            ports.add(Integer.parseInt(node.substring(colon + 1)));
+        }
+
+        new LoadGenerator().run(hosts, ports,
+                Integer.parseInt(options.getOrDefault("clients", "1000")),
+                Integer.parseInt(options.getOrDefault("senders", "100")),
+                Double.parseDouble(options.getOrDefault("rate", "1")),
+                Integer.parseInt(options.getOrDefault("size", "128")),
+                Integer.parseInt(options.getOrDefault("rooms", "1")),
+                Integer.parseInt(options.getOrDefault("warmup", "5")),
+                Integer.parseInt(options.getOrDefault("duration", "30")),
+                Boolean.parseBoolean(options.getOrDefault("multicast", "false")),
+                options.get("output"));
+        System.exit(0);
+    }
+
+    private void run(List<String> hosts, List<Integer> ports, int clientCount, int senderCount, double rate, int size,
+                     int roomCount, int warmupSeconds, int durationSeconds, boolean multicast, String output) throws Exception {
+        roomCount = Math.max(1, Math.min(roomCount, clientCount));
+        senderCount = Math.min(senderCount, clientCount);
+
+        // Connect every client, then join its room once all are in, so the room sizes are known
+        List<Connection> connections = new ArrayList<>(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            int node = i % hosts.size();
+            Connection connection = new Connection(hosts.get(node), ports.get(node), "load" + i, this::messageReceived);
+            connection.useMulticast(multicast);
+            connection.connect();
+            connections.add(connection);
+
+            Thread reader = new Thread(null, connection, "load-reader-" + i, READER_STACK_SIZE);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        int[] roomSizes = new int[roomCount];
+        for (int i = 0; i < clientCount; i++) {
+            String room = roomName(i % roomCount, roomCount);
+            if (!room.equals(Protocol.DEFAULT_ROOM)) connections.get(i).joinRoom(room);
+            roomSizes[i % roomCount]++;
+        }
+        System.out.printf("Connected %d clients in %d rooms on %d servers%n", clientCount, roomCount, hosts.size());
+
+        // Senders are spread over the rooms the same way as clients, each starting at a random point in its period
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+            Thread thread = new Thread(task, "load-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < senderCount; i++) {
+            Connection connection = connections.get(i);
+            String room = roomName(i % roomCount, roomCount);
+            int recipients = roomSizes[i % roomCount] - 1;
+            long offset = ThreadLocalRandom.current().nextLong(periodNanos);
+
+            long[] due = {start + offset};
+            scheduler.scheduleAtFixedRate(() -> {
+                send(connection, room, due[0], size, recipients);
+                due[0] += periodNanos;
+            }, offset, periodNanos, TimeUnit.NANOSECONDS);
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds + durationSeconds));
+        scheduler.shutdownNow();
+
+        // Let messages in flight arrive
+        Thread.sleep(1000);
+
+        report(durationSeconds, output);
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return name of room number index, the default room when there is only one
+     */
+    private static String roomName(int index, int roomCount) {
+        return roomCount == 1 ? Protocol.DEFAULT_ROOM : "load" + index;
+    }
+
+    /**
+     * Send one message whose body starts with the time it was due, padded to size
+     * @param recipients number of clients the message should reach
+     */
+    private void send(Connection connection, String room, long due, int size, int recipients) {
+        StringBuilder body = new StringBuilder(size).append(due).append(' ');
+        while (body.length() < size) {
+            body.append('x');
+        }
+
+        if (!connection.sendMessage(room, body.toString())) return;
+        if (due >= measureFrom) {
+            sent.increment();
+            expected.add(recipients);
+        }
+    }
+
+    /**
+     * Record how long a message took from when it was due to be sent. Runs on every client's reading thread
+     */
+    private void messageReceived(Message message) {
+        long now = System.nanoTime();
+
+        String body = message.getBody();
+        int space = body.indexOf(' ');
+        long due;
+        try {
+            due = Long.parseLong(space < 0 ? body : body.substring(0, space));
+        }
+        catch (NumberFormatException e) {
+            // Not a load message
+            return;
+        }
+
+        if (due < measureFrom) return;
+        delivered.increment();
+        histogram.record(TimeUnit.NANOSECONDS.toMicros(now - due));
+    }
+
+    private void report(int durationSeconds, String output) throws IOException {
+        System.out.printf("%nSent %d messages (%.1f/s), delivered %d of %d expected (%.1f/s)%n",
+                sent.sum(), sent.sum() / (double) durationSeconds,
+                delivered.sum(), expected.sum(), delivered.sum() / (double) durationSeconds);
+        System.out.printf("Delivery latency: p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n%n",
+                histogram.valueAtPercentile(50) / 1000.0, histogram.valueAtPercentile(99) / 1000.0,
+                histogram.valueAtPercentile(99.9) / 1000.0, histogram.valueAtPercentile(100) / 1000.0);
+
+        // Values in milliseconds, as HdrHistogram tools expect by default
+        histogram.outputPercentileDistribution(System.out, 1000.0);
+        if (output != null) {
+            try (PrintStream file = new PrintStream(new FileOutputStream(output))) {
+                histogram.outputPercentileDistribution(file, 1000.0);
+            }
+            System.out.println("\nDistribution written to " + output);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package testbed;
+
+import server.Server;
+import server.ServerOptions;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compares the thread-per-client engine running on platform threads against
+ * virtual threads. Each run starts the server in a fresh JVM, connects N
+ * loopback clients, then reports memory per connection and how long a
+ * broadcast takes to reach every client. Broadcasts that have not reached
+ * every client within a few seconds are reported as lost.
+ *
+ * Usage: ThreadModeComparison [clientCounts...]   e.g. 1000 10000
+ * Run with a high open file limit, every client uses two descriptors.
+ */
+public class ThreadModeComparison {
+
+    private static final int BROADCAST_ROUNDS = 50;
+
+    /**
+     * How long to wait for a broadcast to reach every client before counting it as lost
+     */
+    private static final int ROUND_TIMEOUT_SECONDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 1 && args[0].equals("--child")) {
+            runChild(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+
+        int[] clientCounts = args.length == 0 ? new int[] {1000, 10000}
+                : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+
+        System.out.printf("%-10s %8s %14s %14s %9s %12s %12s %6s%n",
+                "threads", "clients", "heap B/conn", "rss B/conn", "threads", "p50 fan-out", "max fan-out", "lost");
+
+        int port = 9400;
+        for (int clients : clientCounts) {
+            for (String mode : new String[] {"platform", "virtual"}) {
+                System.out.println(runInChildJvm(mode, clients, port++));
+            }
+        }
+    }
+
+    /**
+     * Run one measurement in a separate JVM so runs do not share heap or threads
+     */
+    private static String runInChildJvm(String mode, int clients, int port) throws IOException, InterruptedException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                ThreadModeComparison.class.getName(), "--child", mode, String.valueOf(clients), String.valueOf(port));
+        builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+
+        Process process = builder.start();
+        String result = "";
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("RESULT ")) result = line.substring(7);
+            }
+        }
+        process.waitFor();
+
+        return result.isEmpty() ? String.format("%-10s %8d   failed, see server output", mode, clients) : result;
+    }
+
+    private static void runChild(String mode, int clientCount, int port) throws Exception {
+        Server.start(ServerOptions.parse(new String[] {String.valueOf(port), "--threads=" + mode, "--rate-limit=0"}));
+
+        long heapBefore = usedHeap();
+        long rssBefore = residentSetSize();
+        int threadsBefore = Thread.activeCount();
+
+        // Connect every client and send its name
+        Selector selector = Selector.open();
+        List<SocketChannel> channels = new ArrayList<>(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            channel.write(utfFrame("client" + i));
+            channels.add(channel);
+        }
+
+        while (Server.sessionCount() < clientCount) {
+            Thread.sleep(50);
+        }
+
+        long heapPerConnection = (usedHeap() - heapBefore) / clientCount;
+        long rssPerConnection = (residentSetSize() - rssBefore) / clientCount;
+        int threads = Thread.activeCount() - threadsBefore;
+
+        // Every client except the sender counts incoming frames
+        for (SocketChannel channel : channels.subList(1, channels.size())) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(512));
+        }
+        AtomicReference<CountDownLatch> roundLatch = new AtomicReference<>(new CountDownLatch(0));
+        Thread reader = new Thread(() -> countFrames(selector, roundLatch), "comparison-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long[] fanOutNanos = new long[BROADCAST_ROUNDS];
+        int lostRounds = 0;
+        SocketChannel sender = channels.get(0);
+        for (int round = 0; round < BROADCAST_ROUNDS; round++) {
+            CountDownLatch latch = new CountDownLatch(clientCount - 1);
+            roundLatch.set(latch);
+
+            long start = System.nanoTime();
+            sender.write(utfFrame("round " + round));
+            if (!latch.await(ROUND_TIMEOUT_SECONDS, TimeUnit.SECONDS)) lostRounds++;
+            fanOutNanos[round] = System.nanoTime() - start;
+        }
+        Arrays.sort(fanOutNanos);
+
+        System.out.printf("RESULT %-10s %8d %14d %14d %9d %10.2fms %10.2fms %6d%n", mode, clientCount,
+                heapPerConnection, rssPerConnection, threads,
+                fanOutNanos[BROADCAST_ROUNDS / 2] / 1e6, fanOutNanos[BROADCAST_ROUNDS - 1] / 1e6, lostRounds);
+        System.exit(0);
+    }
+
+    /**
+     * Count down the current round's latch for every complete writeUTF frame
+     * arriving on any registered channel
+     */
+    private static void countFrames(Selector selector, AtomicReference<CountDownLatch> roundLatch) {
+        try {
+            while (true) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ByteBuffer buffer = (ByteBuffer) key.attachment();
+                    ((SocketChannel) key.channel()).read(buffer);
+                    buffer.flip();
+
+                    while (buffer.remaining() >= 2) {
+                        int length = buffer.getShort(buffer.position()) & 0xFFFF;
+                        if (buffer.remaining() < 2 + length) break;
+                        buffer.position(buffer.position() + 2 + length);
+                        roundLatch.get().countDown();
+                    }
+                    buffer.compact();
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+        catch (IOException e) {
+            System.err.println("I/O Exception: " + e.getMessage());
+        }
+    }
+
+    private static ByteBuffer utfFrame(String data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(data);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return resident set size in bytes on Linux, includes thread stacks. 0 elsewhere
+     */
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        }
+        catch (IOException | NumberFormatException e) {
+            // Not on Linux
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,197 @@
+package client;
+
+import message.Message;
+import message.Protocol;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class MessageHistoryTest {
+
+    @Test
+    void snapshotAcrossAWrapHoldsTheLatestInOrder() {
+        MessageHistory.Ring ring = new MessageHistory.Ring(4);
+        add(ring, 10);
+
+        MessageHistory.Snapshot snapshot = ring.snapshot();
+        assertEquals(6, snapshot.getStart());
+        assertEquals(10, snapshot.getEnd());
+        assertEquals(List.of("m6", "m7", "m8", "m9"), bodies(snapshot));
+        for (int i = 0; i < snapshot.size(); i++) {
+            assertEquals("m" + (6 + i), snapshot.get(i).getBody());
+        }
+
+        // Overwritten after the snapshot was taken: read as null, skipped when iterating
+        ring.add(message("m10"));
+        ring.add(message("m11"));
+        assertNull(snapshot.get(0));
+        assertNull(snapshot.get(1));
+        assertEquals("m8", snapshot.get(2).getBody());
+        assertEquals(List.of("m8", "m9"), bodies(snapshot));
+        assertEquals(List.of("m8", "m9", "m10", "m11"), bodies(ring.snapshot()));
+    }
+
+    @Test
+    void snapshotEndsBeforeAnIndexStillBeingWritten() {
+        MessageHistory.Ring ring = new MessageHistory.Ring(4);
+        ring.add(message("m0"));
+        long stalled = ring.claim();
+        ring.add(message("m2"));
+        ring.add(message("m3"));
+
+        // m2 and m3 are stored but come after the stalled writer's index
+        MessageHistory.Snapshot before = ring.snapshot();
+        assertEquals(1, before.getEnd());
+        assertEquals(1, before.size());
+        assertEquals(List.of("m0"), bodies(before));
+
+        ring.publish(stalled, message("m1"));
+        MessageHistory.Snapshot after = ring.snapshot();
+        assertEquals(4, after.getEnd());
+        assertEquals(List.of("m0", "m1", "m2", "m3"), bodies(after));
+        for (int i = 0; i < after.size(); i++) {
+            assertNotNull(after.get(i));
+        }
+    }
+
+    @Test
+    void writerALapAheadWaitsForTheStalledOne() throws InterruptedException {
+        MessageHistory.Ring ring = new MessageHistory.Ring(2);
+        long stalled = ring.claim();
+        ring.add(message("m1"));
+
+        // Index 2 shares the stalled writer's slot
+        Thread lapAhead = new Thread(() -> ring.add(message("m2")));
+        lapAhead.start();
+        lapAhead.join(100);
+        assertTrue(lapAhead.isAlive(), "the writer a lap ahead should wait");
+        assertEquals(0, ring.snapshot().size());
+
+        ring.publish(stalled, message("m0"));
+        lapAhead.join(10_000);
+        assertFalse(lapAhead.isAlive());
+
+        MessageHistory.Snapshot snapshot = ring.snapshot();
+        assertEquals(3, snapshot.getEnd());
+        assertEquals(List.of("m1", "m2"), bodies(snapshot));
+    }
+
+    @Test
+    void resizeWaitsForWritersMidWrite() throws InterruptedException {
+        MessageHistory.Ring ring = new MessageHistory.Ring(4);
+        ring.add(message("m0"));
+        long stalled = ring.claim();
+        ring.add(message("m2"));
+
+        AtomicReference<MessageHistory.Ring> resized = new AtomicReference<>();
+        Thread resizer = new Thread(() -> resized.set(ring.resize(8)));
+        resizer.start();
+        resizer.join(100);
+        assertTrue(resizer.isAlive(), "resize should wait for the stalled writer");
+
+        // Sealed: writers arriving now are turned away to wait for the new ring
+        assertFalse(ring.add(message("late")));
+        assertEquals(-1, ring.claim());
+
+        ring.publish(stalled, message("m1"));
+        resizer.join(10_000);
+        assertFalse(resizer.isAlive());
+
+        MessageHistory.Ring bigger = resized.get();
+        assertEquals(8, bigger.capacity());
+        assertEquals(List.of("m0", "m1", "m2"), bodies(bigger.snapshot()));
+        assertTrue(bigger.add(message("m3")));
+        assertEquals(List.of("m0", "m1", "m2", "m3"), bodies(bigger.snapshot()));
+    }
+
+    @Test
+    void shrinkingKeepsTheLatest() {
+        MessageHistory.Ring ring = new MessageHistory.Ring(4);
+        add(ring, 6);
+
+        MessageHistory.Ring smaller = ring.resize(3);
+        assertEquals(List.of("m3", "m4", "m5"), bodies(smaller.snapshot()));
+        assertEquals(List.of("m2", "m3", "m4", "m5"), bodies(ring.snapshot()), "the old ring is left as it was");
+    }
+
+    @Test
+    void concurrentWritersAreSeenInOrderWithoutGaps() throws InterruptedException {
+        int writers = 4;
+        int perWriter = 20_000;
+        MessageHistory.Ring ring = new MessageHistory.Ring(64);
+        AtomicBoolean gap = new AtomicBoolean();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            String prefix = "w" + w + ":";
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    ring.add(message(prefix + i));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+
+        // Every index in a snapshot was stored: one that reads as null is being or has been overwritten,
+        // so it must never turn up later
+        while (threads.stream().anyMatch(Thread::isAlive)) {
+            MessageHistory.Snapshot snapshot = ring.snapshot();
+            for (int i = 0; i < snapshot.size(); i++) {
+                Message message = snapshot.get(i);
+                if (message != null) continue;
+                while ((message = snapshot.get(i)) == null && !ring.isOverwritten(snapshot.getStart() + i)) {
+                    Thread.onSpinWait();
+                }
+                if (message != null) gap.set(true);
+            }
+            assertSenderOrder(bodies(snapshot));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertFalse(gap.get(), "a snapshot included a message that had not been stored");
+        MessageHistory.Snapshot last = ring.snapshot();
+        assertEquals((long) writers * perWriter, last.getEnd());
+        assertEquals(64, bodies(last).size());
+        assertSenderOrder(bodies(last));
+    }
+
+    private static Message message(String body) {
+        return new Message(0, "writer", Protocol.DEFAULT_ROOM, body);
+    }
+
+    private static void add(MessageHistory.Ring ring, int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(ring.add(message("m" + i)));
+        }
+    }
+
+    private static List<String> bodies(MessageHistory.Snapshot snapshot) {
+        List<String> bodies = new ArrayList<>();
+        for (Message message : snapshot) {
+            bodies.add(message.getBody());
+        }
+        return bodies;
+    }
+
+    /**
+     * Each writer's messages, named writer:count, appear in the order it added them
+     */
+    private static void assertSenderOrder(List<String> bodies) {
+        int[] last = {-1, -1, -1, -1};
+        for (String body : bodies) {
+            int writer = body.charAt(1) - '0';
+            int count = Integer.parseInt(body.substring(body.indexOf(':') + 1));
+            assertTrue(count > last[writer], body + " after " + last[writer]);
+            last[writer] = count;
+        }
+    }
+}
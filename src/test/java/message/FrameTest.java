@@ -0,0 +1,242 @@
+package message;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameTest {
+
+    private static final long TIMESTAMP = 1_700_000_000_000L;
+
+    /**
+     * Largest length prefix a frame may have
+     */
+    private static final int MAX_LENGTH = Protocol.MAX_FRAME_SIZE - Frame.LENGTH_SIZE;
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5, 6, 7, 8})
+    void everyTypeRoundTripsThroughEncodeAndDecode(int version) throws IOException {
+        for (byte type = Frame.CHAT; type <= Frame.SEARCH; type++) {
+            if (type == Frame.CHUNK) continue;
+            Frame frame = new Frame(type, 42L + type, TIMESTAMP, 7, "alice", "garden", "body of type " + type);
+
+            for (boolean direct : new boolean[] {false, true}) {
+                ByteBuffer encoded = frame.encode(version, direct);
+                assertEquals(0, encoded.position());
+                assertEquals(encoded.limit(), Frame.frameSize(encoded));
+
+                encoded.position(Frame.LENGTH_SIZE);
+                Frame decoded = Frame.decode(encoded, version);
+                assertFalse(encoded.hasRemaining());
+                assertFrame(frame, decoded, version);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5, 6, 7, 8})
+    void framesRoundTripThroughStreams(int version) throws IOException {
+        Frame first = new Frame(Frame.CHAT, 1, TIMESTAMP, 1, "alice", "garden", "first");
+        Frame second = new Frame(Frame.JOIN, 0, TIMESTAMP + 1, 2, "bob", "kitchen", "");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        first.write(dos, version);
+        second.write(dos, version);
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertFrame(first, Frame.read(dis, version), version);
+        assertFrame(second, Frame.read(dis, version), version);
+        assertEquals(0, dis.available());
+    }
+
+    @Test
+    void versionOneHasNoRoomField() throws IOException {
+        Frame frame = new Frame(Frame.CHAT, 1, TIMESTAMP, 1, "alice", "garden", "hello");
+        int withRoom = frame.encode(2, false).limit();
+        int withoutRoom = frame.encode(1, false).limit();
+        assertEquals(2 + "garden".length(), withRoom - withoutRoom);
+    }
+
+    @Test
+    void chunkDataRoundTrips() throws IOException {
+        byte[] data = new byte[5000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteBuffer source = ByteBuffer.wrap(data, 100, 4000);
+
+        ByteBuffer encoded = Frame.chunk("abc123", 100, data.length, source).encode(Protocol.MAX_VERSION, true);
+        assertEquals(100, source.position(), "encoding leaves the data's position alone");
+
+        encoded.position(Frame.LENGTH_SIZE);
+        Frame decoded = Frame.decode(encoded, Protocol.MAX_VERSION);
+        assertEquals(Frame.CHUNK, decoded.getType());
+        assertEquals("abc123", decoded.getName());
+        assertEquals(100, decoded.getSequence());
+        assertEquals(data.length, decoded.getTimestamp());
+        assertEquals(ByteBuffer.wrap(data, 100, 4000), decoded.getData());
+        assertNull(new Frame(Frame.CHAT, 0, 0, 0, "", "").getData());
+
+        // The header encoded alone is the same bytes the whole frame starts with
+        ByteBuffer header = Frame.encodeChunkHeader(Protocol.MAX_VERSION, "abc123", 100, data.length, 4000);
+        encoded.position(0).limit(header.limit());
+        assertEquals(header, encoded);
+    }
+
+    @Test
+    void lengthsUpToTheMaximumFrameSizeAreAccepted() throws IOException {
+        assertEquals(Protocol.MAX_FRAME_SIZE, Frame.frameSize(lengthPrefix(MAX_LENGTH)));
+        assertEquals(Frame.LENGTH_SIZE + Frame.HEADER_SIZE, Frame.frameSize(lengthPrefix(Frame.HEADER_SIZE)));
+        assertEquals(-1, Frame.frameSize(ByteBuffer.allocate(Frame.LENGTH_SIZE - 1)));
+
+        // A body that brings the frame to exactly the maximum
+        int bodyLength = MAX_LENGTH - Frame.HEADER_SIZE - "alice".length() - 2 - "garden".length();
+        Frame largest = new Frame(Frame.CHAT, 1, TIMESTAMP, 1, "alice", "garden", "x".repeat(bodyLength));
+        ByteBuffer encoded = largest.encode(Protocol.MAX_VERSION, false);
+        assertEquals(Protocol.MAX_FRAME_SIZE, encoded.limit());
+        assertEquals(bodyLength, readBack(encoded, Protocol.MAX_VERSION).getBody().length());
+    }
+
+    @Test
+    void lengthsOutOfRangeAreRejected() {
+        for (int length : new int[] {MAX_LENGTH + 1, Integer.MAX_VALUE, Frame.HEADER_SIZE - 1, 0, -1}) {
+            IOException sized = assertThrows(IOException.class, () -> Frame.frameSize(lengthPrefix(length)));
+            assertTrue(sized.getMessage().startsWith("Invalid frame length"), sized.getMessage());
+
+            // Rejected from the prefix alone, before the rest of the frame is read
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(lengthPrefix(length).array()));
+            IOException read = assertThrows(IOException.class, () -> Frame.read(dis, Protocol.MAX_VERSION));
+            assertTrue(read.getMessage().startsWith("Invalid frame length"), read.getMessage());
+        }
+
+        // One byte over the maximum
+        Frame tooLarge = new Frame(Frame.CHAT, 1, TIMESTAMP, 1, "", "", "x".repeat(MAX_LENGTH - Frame.HEADER_SIZE - 2 + 1));
+        ByteBuffer encoded = tooLarge.encode(Protocol.MAX_VERSION, false);
+        assertEquals(Protocol.MAX_FRAME_SIZE + 1, encoded.limit());
+        assertThrows(IOException.class, () -> readBack(encoded, Protocol.MAX_VERSION));
+    }
+
+    @Test
+    void nameAndRoomAtTheirLengthLimits() throws IOException {
+        // Three-byte characters, so the limit is on bytes and not characters
+        String name = "\u20ac".repeat(65535 / 3);
+        String room = "r".repeat(65535);
+        assertEquals(65535, name.getBytes(StandardCharsets.UTF_8).length);
+
+        Frame frame = new Frame(Frame.CHAT, 1, TIMESTAMP, 1, name, room, "body");
+        for (int version = Protocol.MIN_VERSION; version <= Protocol.MAX_VERSION; version++) {
+            assertFrame(frame, readBack(frame.encode(version, false), version), version);
+        }
+    }
+
+    @Test
+    void fieldsRunningPastTheEndOfTheFrameAreRejected() {
+        ByteBuffer name = ByteBuffer.allocate(Frame.HEADER_SIZE + 4);
+        name.put(Frame.CHAT).putLong(1).putLong(TIMESTAMP).putInt(1).putShort((short) 5).put("abcd".getBytes(StandardCharsets.UTF_8));
+        name.flip();
+        IOException nameError = assertThrows(IOException.class, () -> Frame.decode(name, Protocol.MAX_VERSION));
+        assertTrue(nameError.getMessage().contains("runs past end of frame"), nameError.getMessage());
+
+        ByteBuffer room = ByteBuffer.allocate(Frame.HEADER_SIZE + 2 + 2 + 3);
+        room.put(Frame.CHAT).putLong(1).putLong(TIMESTAMP).putInt(1).putShort((short) 0).putShort((short) 0xFFFF).put(new byte[3]);
+        room.flip();
+        IOException roomError = assertThrows(IOException.class, () -> Frame.decode(room, Protocol.MAX_VERSION));
+        assertTrue(roomError.getMessage().contains("runs past end of frame"), roomError.getMessage());
+
+        // Version 1 has no room length to read, so the same bytes are a body
+        room.rewind();
+        assertDoesNotThrow(() -> Frame.decode(room, 1));
+
+        ByteBuffer noRoomLength = ByteBuffer.allocate(Frame.HEADER_SIZE + 1);
+        noRoomLength.put(Frame.CHAT).putLong(1).putLong(TIMESTAMP).putInt(1).putShort((short) 0).put((byte) 0);
+        noRoomLength.flip();
+        assertThrows(IOException.class, () -> Frame.decode(noRoomLength, Protocol.MAX_VERSION));
+
+        assertThrows(IOException.class, () -> Frame.decode(ByteBuffer.allocate(Frame.HEADER_SIZE - 1), Protocol.MAX_VERSION));
+    }
+
+    @Test
+    void nameThatLooksLikeTheLegacyFormatSurvivesBinaryFrames() throws IOException {
+        String name = "eve [01-01-25 | 00:00] : not";
+        Message sent = new Message(5, TIMESTAMP, 3, name, "garden", "really ] : hello [ there");
+
+        for (int version = Protocol.MIN_VERSION; version <= Protocol.MAX_VERSION; version++) {
+            Message received = readBack(sent.getFrame(version), version).toMessage();
+            assertEquals(name, received.getSenderName());
+            assertEquals(sent.getBody(), received.getBody());
+            assertEquals(sent.getTimestamp(), received.getTimestamp());
+            assertEquals(sent.getMessage(), received.getMessage());
+        }
+    }
+
+    @Test
+    void legacyFrameIsTheFormattedMessageAsWriteUTF() throws IOException {
+        Message message = new Message(5, TIMESTAMP, 3, "alice", Protocol.DEFAULT_ROOM, "hello \u00e9t\u00e9");
+        ByteBuffer frame = message.getFrame(Protocol.LEGACY_VERSION);
+        assertTrue(frame.isReadOnly());
+
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        String text = dis.readUTF();
+        assertEquals(message.getMessage(), text);
+        assertEquals(0, dis.available());
+
+        // What a legacy client makes of it
+        Message parsed = new Message(text);
+        assertEquals("alice", parsed.getSenderName());
+        assertEquals(message.getBody(), parsed.getBody());
+
+        // Each call is a view of the same bytes with its own position
+        ByteBuffer again = message.getFrame(Protocol.LEGACY_VERSION);
+        again.position(again.limit());
+        assertEquals(bytes.length, message.getFrame(Protocol.LEGACY_VERSION).remaining());
+    }
+
+    @Test
+    void legacyFrameOverTheWriteUTFLimitIsRefused() throws IOException {
+        Message tooLong = new Message(1, "alice", Protocol.DEFAULT_ROOM, "x".repeat(65535));
+        assertThrows(UTFDataFormatException.class, () -> tooLong.getFrame(Protocol.LEGACY_VERSION));
+
+        // The binary versions have no such limit
+        assertEquals(65535, readBack(tooLong.getFrame(Protocol.MAX_VERSION), Protocol.MAX_VERSION).getBody().length());
+    }
+
+    /**
+     * Check what a frame keeps through a version: rooms only exist from version 2
+     */
+    private static void assertFrame(Frame expected, Frame actual, int version) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getSenderId(), actual.getSenderId());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(version >= 2 ? expected.getRoom() : Protocol.DEFAULT_ROOM, actual.getRoom());
+        assertEquals(expected.getBody(), actual.getBody());
+    }
+
+    private static ByteBuffer lengthPrefix(int length) {
+        return ByteBuffer.allocate(Frame.LENGTH_SIZE).putInt(0, length);
+    }
+
+    /**
+     * Read an encoded frame back the way a blocking reader does
+     */
+    private static Frame readBack(ByteBuffer encoded, int version) throws IOException {
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.duplicate().get(bytes);
+        return Frame.read(new DataInputStream(new ByteArrayInputStream(bytes)), version);
+    }
+}
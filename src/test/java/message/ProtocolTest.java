@@ -0,0 +1,171 @@
+package message;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import server.Server;
+import server.ServerOptions;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class ProtocolTest {
+
+    private static int port;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        assertTrue(Server.start(ServerOptions.parse(new String[] {
+                String.valueOf(port), "--log=false", "--attachments=false", "--rate-limit=0"})));
+    }
+
+    @AfterAll
+    static void stopServer() {
+        Server.stop();
+    }
+
+    @Test
+    void negotiatePicksTheHighestCommonVersion() {
+        assertEquals(Protocol.MAX_VERSION, Protocol.negotiate(Protocol.MIN_VERSION, Protocol.MAX_VERSION));
+        assertEquals(Protocol.MAX_VERSION, Protocol.negotiate(1, 200));
+        assertEquals(2, Protocol.negotiate(1, 2));
+        assertEquals(1, Protocol.negotiate(0, 1));
+        assertEquals(Protocol.MAX_VERSION, Protocol.negotiate(Protocol.MAX_VERSION, Protocol.MAX_VERSION));
+
+        assertEquals(0, Protocol.negotiate(Protocol.MAX_VERSION + 1, Protocol.MAX_VERSION + 2));
+        assertEquals(0, Protocol.negotiate(0, 0));
+        assertEquals(0, Protocol.negotiate(3, 2));
+    }
+
+    @Test
+    void clientHandshakeWritesMagicAndVersionRange() throws IOException {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int version = Protocol.clientHandshake(new DataOutputStream(written), reply(Protocol.serverHandshake(5)));
+        assertEquals(5, version);
+
+        byte[] bytes = written.toByteArray();
+        assertEquals(Protocol.CLIENT_HANDSHAKE_SIZE, bytes.length);
+        assertEquals(0, bytes[0]);
+        assertEquals(0, bytes[1]);
+        assertTrue(Protocol.isMagic(bytes, 2));
+        assertEquals(Protocol.MIN_VERSION, bytes[5]);
+        assertEquals(Protocol.MAX_VERSION, bytes[6]);
+        assertEquals(Protocol.SERVER_HANDSHAKE_SIZE, Protocol.serverHandshake(5).length);
+    }
+
+    @Test
+    void clientHandshakeRejectsBadReplies() {
+        IOException noMagic = assertThrows(IOException.class,
+                () -> Protocol.clientHandshake(discard(), reply(new byte[] {'L', 'M', 'X', 5})));
+        assertEquals("Server does not speak the binary protocol", noMagic.getMessage());
+
+        IOException noVersion = assertThrows(IOException.class,
+                () -> Protocol.clientHandshake(discard(), reply(Protocol.serverHandshake(0))));
+        assertEquals("No protocol version in common with server", noVersion.getMessage());
+
+        assertThrows(EOFException.class, () -> Protocol.clientHandshake(discard(), reply(new byte[] {'L', 'M'})));
+    }
+
+    @Test
+    void clientHandshakeAgainstTheServer() throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            assertEquals(Protocol.MAX_VERSION, Protocol.clientHandshake(dos, dis));
+        }
+    }
+
+    @Test
+    void serverPicksFromTheRangeTheClientAdvertises() throws IOException {
+        assertEquals(2, handshake(1, 2));
+        assertEquals(Protocol.MAX_VERSION, handshake(Protocol.MAX_VERSION, 255));
+        assertEquals(0, handshake(Protocol.MAX_VERSION + 1, Protocol.MAX_VERSION + 2));
+    }
+
+    @Test
+    void legacyAndBinaryClientsShareTheLobby() throws IOException {
+        try (Socket legacy = new Socket("localhost", port); Socket binary = new Socket("localhost", port)) {
+            legacy.setSoTimeout(30_000);
+            binary.setSoTimeout(30_000);
+
+            DataOutputStream legacyOut = new DataOutputStream(legacy.getOutputStream());
+            DataInputStream legacyIn = new DataInputStream(new BufferedInputStream(legacy.getInputStream()));
+            legacyOut.writeUTF("old timer");
+            legacyOut.flush();
+
+            DataOutputStream binaryOut = new DataOutputStream(binary.getOutputStream());
+            DataInputStream binaryIn = new DataInputStream(new BufferedInputStream(binary.getInputStream()));
+            int version = Protocol.clientHandshake(binaryOut, binaryIn);
+            String name = "eve [01-01-25 | 00:00] : new";
+            new Frame(Frame.HELLO, 0, System.currentTimeMillis(), 0, name, "").write(binaryOut, version);
+            binaryOut.flush();
+            Frame welcome = Frame.read(binaryIn, version);
+            assertEquals(Frame.WELCOME, welcome.getType());
+            while (Server.sessionCount() < 2) {
+                Thread.onSpinWait();
+            }
+
+            // The binary client gets the legacy client's text as its body
+            legacyOut.writeUTF("from the old client");
+            legacyOut.flush();
+            Frame received = Frame.read(binaryIn, version);
+            while (received.getType() != Frame.CHAT || !received.getBody().equals("from the old client")) {
+                received = Frame.read(binaryIn, version);
+            }
+            assertEquals("old timer", received.getName());
+
+            // The legacy client gets the formatted text, with the binary client's name as it is
+            new Frame(Frame.CHAT, 0, System.currentTimeMillis(), 0, name, Protocol.DEFAULT_ROOM, "from the new client")
+                    .write(binaryOut, version);
+            binaryOut.flush();
+            String text = legacyIn.readUTF();
+            while (!text.endsWith("] : from the new client")) {
+                text = legacyIn.readUTF();
+            }
+            assertTrue(text.startsWith(name + " ["), text);
+        }
+    }
+
+    /**
+     * Handshake with the server by hand, advertising a version range
+     * @return version the server chose
+     */
+    private static int handshake(int min, int max) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(30_000);
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            dos.writeShort(0);
+            dos.write(Protocol.MAGIC);
+            dos.writeByte(min);
+            dos.writeByte(max);
+            dos.flush();
+
+            byte[] reply = new byte[Protocol.SERVER_HANDSHAKE_SIZE];
+            new DataInputStream(socket.getInputStream()).readFully(reply);
+            assertTrue(Protocol.isMagic(reply, 0));
+            return reply[3] & 0xFF;
+        }
+    }
+
+    private static DataInputStream reply(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static DataOutputStream discard() {
+        return new DataOutputStream(new ByteArrayOutputStream());
+    }
+}
@@ -0,0 +1,191 @@
+package server;
+
+import message.Frame;
+import message.Message;
+import message.Protocol;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class CatchUpTest {
+
+    private static final int LIMIT = 100_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void handsOverWithoutGapOrDuplicate() throws IOException {
+        MessageLog log = MessageLog.open(directory, 1, MessageLog.FsyncPolicy.NEVER, 100);
+        RoomRegistry rooms = new RoomRegistry();
+        RecordingSession session = new RecordingSession();
+        for (int i = 1; i <= 12; i++) {
+            log.append(message("message " + i));
+        }
+
+        CatchUp catchUp = new CatchUp(session, 4, 0);
+        session.setCatchUp(catchUp);
+        rooms.join(session, Protocol.DEFAULT_ROOM);
+
+        // 11 is logged and reaches delivery before the replay, 13 is logged after the replay read the log
+        session.sendMessage(read(log, 11));
+        session.sendMessage(new Message(13, System.currentTimeMillis(), 1, "sender", Protocol.DEFAULT_ROOM, "message 13"));
+        assertTrue(session.received.isEmpty(), "live messages should be held during the replay");
+
+        catchUp.run(log, rooms, LIMIT);
+
+        // 12 was logged before the replay but only reaches delivery now, so the replay already covered it
+        session.sendMessage(read(log, 12));
+        log.append(message("message 13"));
+        session.sendMessage(log.append(message("message 14")));
+
+        assertEquals(LongStream.rangeClosed(5, 14).boxed().toList(), session.sequences());
+        log.close();
+    }
+
+    @RepeatedTest(10)
+    void liveTrafficDuringReplayIsNeitherLostNorRepeated() throws Exception {
+        MessageLog log = MessageLog.open(directory, 1, MessageLog.FsyncPolicy.NEVER, 100);
+        RoomRegistry rooms = new RoomRegistry();
+        RecordingSession session = new RecordingSession();
+        int total = 3000;
+
+        // Logs then delivers to room members, in order, like the broadcaster
+        Thread broadcaster = new Thread(() -> {
+            for (int i = 1; i <= total; i++) {
+                Message logged = log.append(message("message " + i));
+                if (rooms.isMember(session, logged.getRoom())) session.sendMessage(logged);
+            }
+        });
+        broadcaster.start();
+
+        while (log.lastSequence() < 500) {
+            Thread.onSpinWait();
+        }
+        CatchUp catchUp = new CatchUp(session, 100, 0);
+        session.setCatchUp(catchUp);
+        rooms.join(session, Protocol.DEFAULT_ROOM);
+        catchUp.run(log, rooms, LIMIT);
+
+        broadcaster.join();
+        assertEquals(LongStream.rangeClosed(101, total).boxed().toList(), session.sequences());
+        log.close();
+    }
+
+    private static Message message(String body) {
+        return new Message(1, "sender", Protocol.DEFAULT_ROOM, body);
+    }
+
+    private static Message read(MessageLog log, long sequence) {
+        List<Message> read = new ArrayList<>();
+        log.read(sequence, message -> {
+            read.add(message);
+            return false;
+        });
+        return read.get(0);
+    }
+
+    /**
+     * Records what would be sent to the client, passing live messages through
+     * the catch-up the way the sessions do
+     */
+    private static class RecordingSession implements Session {
+        private final List<Message> received = new ArrayList<>();
+        private volatile CatchUp catchUp;
+
+        @Override
+        public void sendMessage(Message message) {
+            CatchUp pending = catchUp;
+            if (pending != null && pending.hold(message)) return;
+
+            synchronized (received) {
+                received.add(message);
+            }
+        }
+
+        @Override
+        public void sendHistory(List<Message> messages) {
+            synchronized (received) {
+                received.addAll(messages);
+            }
+        }
+
+        List<Long> sequences() {
+            synchronized (received) {
+                return received.stream().map(Message::getSequence).toList();
+            }
+        }
+
+        @Override
+        public void setCatchUp(CatchUp catchUp) {
+            this.catchUp = catchUp;
+        }
+
+        @Override
+        public void sendDirect(ByteBuffer frame) { }
+
+        @Override
+        public void sendPresence(ByteBuffer frame) { }
+
+        @Override
+        public void sendFrame(Frame frame) { }
+
+        @Override
+        public void sendAttachment(String hash, FileChannel file) { }
+
+        @Override
+        public long getMulticastFrom() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int getId() {
+            return 2;
+        }
+
+        @Override
+        public String getResumeToken() {
+            return "";
+        }
+
+        @Override
+        public String getName() {
+            return "reader";
+        }
+
+        @Override
+        public int getVersion() {
+            return Protocol.MAX_VERSION;
+        }
+
+        @Override
+        public long getLastRead() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public TokenBucket getRateLimit() {
+            return null;
+        }
+
+        @Override
+        public OutboundQueue getOutbound() {
+            return null;
+        }
+
+        @Override
+        public void close() { }
+    }
+}
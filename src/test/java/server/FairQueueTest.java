@@ -0,0 +1,115 @@
+package server;
+
+import message.Message;
+import message.Protocol;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FairQueueTest {
+
+    private static final int HEAVY = 1;
+    private static final int LIGHT = 2;
+
+    @Test
+    void lightSenderIsNotHeldBehindHeavySendersBacklog() {
+        FairQueue queue = new FairQueue(1000);
+        for (int i = 0; i < 500; i++) {
+            queue.add(message(HEAVY, i, 1000));
+        }
+        for (int i = 0; i < 5; i++) {
+            queue.add(message(LIGHT, i, 10));
+        }
+
+        List<Message> polled = drain(queue);
+        assertEquals(505, polled.size());
+
+        // One turn of the heavy sender, then the light sender's whole backlog fits in its own turn
+        int heavyPerTurn = FairQueue.QUANTUM / (1000 + 64);
+        int lastLight = 0;
+        for (int i = 0; i < polled.size(); i++) {
+            if (polled.get(i).getSenderId() == LIGHT) lastLight = i;
+        }
+        assertEquals(heavyPerTurn + 4, lastLight);
+        assertInSenderOrder(polled);
+    }
+
+    @Test
+    void backloggedSendersShareBytesEvenly() {
+        FairQueue queue = new FairQueue(10_000);
+        for (int i = 0; i < 2000; i++) {
+            queue.add(message(HEAVY, i, 1000));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            queue.add(message(LIGHT, i, 100));
+        }
+
+        // While both still have messages waiting, each is served the same bytes give or take a turn
+        long heavyBytes = 0;
+        long lightBytes = 0;
+        for (int i = 0; i < 3000; i++) {
+            Message next = queue.poll();
+            long cost = 64 + next.getBody().length();
+            if (next.getSenderId() == HEAVY) heavyBytes += cost;
+            else lightBytes += cost;
+
+            assertTrue(Math.abs(heavyBytes - lightBytes) <= FairQueue.QUANTUM + 1064,
+                    "heavy " + heavyBytes + " light " + lightBytes);
+        }
+        assertTrue(heavyBytes > 0 && lightBytes > 0);
+    }
+
+    @Test
+    void dropsMessagesPastMaxPerSender() {
+        FairQueue queue = new FairQueue(3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.add(message(HEAVY, i, 10)));
+        }
+        assertFalse(queue.add(message(HEAVY, 3, 10)));
+        assertTrue(queue.add(message(LIGHT, 0, 10)));
+        assertEquals(4, queue.size());
+
+        // Room again once the sender's backlog is sent
+        drain(queue);
+        assertTrue(queue.isEmpty());
+        assertTrue(queue.add(message(HEAVY, 4, 10)));
+    }
+
+    @Test
+    void messageLargerThanAQuantumIsSentOnceEnoughTurnsHavePassed() {
+        FairQueue queue = new FairQueue(10);
+        queue.add(message(HEAVY, 0, 3 * FairQueue.QUANTUM));
+        queue.add(message(LIGHT, 0, 10));
+
+        assertEquals(LIGHT, queue.poll().getSenderId());
+        assertEquals(HEAVY, queue.poll().getSenderId());
+        assertNull(queue.poll());
+    }
+
+    /**
+     * @return message whose body is its sender's sequence number, padded to length
+     */
+    private static Message message(int senderId, int index, int length) {
+        String body = String.valueOf(index);
+        return new Message(senderId, "sender " + senderId, Protocol.DEFAULT_ROOM, body + " ".repeat(Math.max(0, length - body.length())));
+    }
+
+    private static List<Message> drain(FairQueue queue) {
+        List<Message> polled = new ArrayList<>();
+        for (Message next = queue.poll(); next != null; next = queue.poll()) {
+            polled.add(next);
+        }
+        return polled;
+    }
+
+    private static void assertInSenderOrder(List<Message> polled) {
+        int[] next = new int[3];
+        for (Message message : polled) {
+            int sender = message.getSenderId();
+            assertEquals(next[sender]++, Integer.parseInt(message.getBody().trim()));
+        }
+    }
+}
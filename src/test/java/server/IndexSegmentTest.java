@@ -0,0 +1,208 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexSegmentTest {
+
+    private static final long START_TIME = 1_700_000_000_000L;
+
+    @Test
+    void postingsRoundTripThroughEveryVarintLength() {
+        // Gaps on either side of each varint length, over several blocks
+        int[] gaps = {1, 127, 128, 16_383, 16_384};
+        List<Long> sparse = new ArrayList<>();
+        long sequence = 1;
+        for (int i = 0; i < 600; i++) {
+            sparse.add(sequence);
+            sequence += i == 300 ? 2_097_152 : gaps[i % gaps.length];
+        }
+
+        SegmentBuilder builder = new SegmentBuilder();
+        for (int i = 0; i < sparse.size(); i++) {
+            builder.add(sparse.get(i), START_TIME + i, "sparse", i < 300 ? "early" : "late");
+        }
+        IndexSegment segment = builder.build();
+
+        assertEquals(sparse.size(), segment.getDocCount());
+        assertEquals(sparse, docs(segment, "sparse"));
+        assertEquals(sparse.subList(0, 300), docs(segment, "early"));
+        assertEquals(sparse.subList(300, sparse.size()), docs(segment, "late"));
+        assertEquals(sparse.size(), segment.postings("sparse").count());
+        assertNull(segment.postings("missing"));
+    }
+
+    @Test
+    void advanceFindsFirstDocAtOrAfterTarget() {
+        SegmentBuilder builder = new SegmentBuilder();
+        List<Integer> expected = new ArrayList<>();
+        for (int doc = 0; doc < 5000; doc++) {
+            boolean odd = doc % 3 == 1;
+            builder.add(doc + 1, START_TIME + doc, odd ? "odd" : "other");
+            if (odd) expected.add(doc);
+        }
+        IndexSegment segment = builder.build();
+
+        for (int target = 0; target < 5002; target += 37) {
+            int index = firstAtOrAfter(expected, target);
+            int wanted = index == expected.size() ? IndexSegment.NO_MORE_DOCS : expected.get(index);
+            assertEquals(wanted, segment.postings("odd").advance(target), "target " + target);
+        }
+
+        // Advancing one list in steps, some within a block and some skipping several
+        IndexSegment.Postings postings = segment.postings("odd");
+        for (int target : new int[] {2, 3, 400, 401, 1500, 4999}) {
+            assertEquals(expected.get(firstAtOrAfter(expected, target)), postings.advance(target));
+        }
+        assertEquals(IndexSegment.NO_MORE_DOCS, postings.advance(5000));
+    }
+
+    @Test
+    void skipAllButKeepsTheLastDocs() {
+        SegmentBuilder builder = new SegmentBuilder();
+        for (int i = 1; i <= 1000; i++) {
+            builder.add(i, START_TIME + i, "word");
+        }
+        IndexSegment segment = builder.build();
+
+        for (int n : new int[] {1, 5, IndexSegment.BLOCK_SIZE, IndexSegment.BLOCK_SIZE + 1, 1000}) {
+            IndexSegment.Postings postings = segment.postings("word");
+            postings.skipAllBut(n);
+            List<Integer> rest = new ArrayList<>();
+            for (int doc = postings.next(); doc != IndexSegment.NO_MORE_DOCS; doc = postings.next()) {
+                rest.add(doc);
+            }
+
+            assertTrue(rest.size() >= n && rest.size() <= n + IndexSegment.BLOCK_SIZE, "kept " + rest.size() + " for " + n);
+            assertEquals(999, rest.get(rest.size() - 1));
+            assertEquals(1000 - rest.size(), rest.get(0));
+        }
+    }
+
+    @Test
+    void mergeCombinesPostingsAndTimestampsOfEverySegment() {
+        List<IndexSegment> segments = new ArrayList<>();
+        Map<String, TreeSet<Long>> expected = new HashMap<>();
+        Map<Long, Long> timestamps = new HashMap<>();
+
+        for (int s = 0; s < SearchIndex.MERGE_FACTOR; s++) {
+            SegmentBuilder builder = new SegmentBuilder();
+            for (long sequence = s * 500L + 1; sequence <= (s + 1) * 500L; sequence++) {
+                // The third and fourth segments swap a pair across their boundary, as parallel broadcasters can leave them
+                long placed = sequence == 1500 ? 1501 : sequence == 1501 ? 1500 : sequence;
+                // Every 97th sequence was never indexed, leaving holes
+                if (placed % 97 == 0) continue;
+
+                long sent = START_TIME + placed * 3 + (placed % 7);
+                List<String> terms = new ArrayList<>(List.of("all", "segment" + s));
+                if (placed % 3 == 0) terms.add("third");
+                if (placed % 250 == 0) terms.add(SearchQuery.senderTerm("rare"));
+
+                builder.add(placed, sent, terms.toArray(new String[0]));
+                timestamps.put(placed, sent);
+                for (String term : terms) {
+                    expected.computeIfAbsent(term, t -> new TreeSet<>()).add(placed);
+                }
+            }
+            segments.add(builder.build());
+        }
+
+        IndexSegment merged = IndexSegment.merge(segments);
+
+        assertEquals(1, merged.getBaseSequence());
+        assertEquals(SearchIndex.MERGE_FACTOR * 500L, merged.lastSequence());
+        assertEquals(timestamps.size(), merged.getDocCount());
+        assertEquals(timestamps.values().stream().mapToLong(Long::longValue).min().getAsLong(), merged.getMinTimestamp());
+        assertEquals(timestamps.values().stream().mapToLong(Long::longValue).max().getAsLong(), merged.getMaxTimestamp());
+
+        for (Map.Entry<String, TreeSet<Long>> term : expected.entrySet()) {
+            assertEquals(new ArrayList<>(term.getValue()), docs(merged, term.getKey()), term.getKey());
+        }
+        for (Map.Entry<Long, Long> sent : timestamps.entrySet()) {
+            assertEquals(sent.getValue(), merged.timestamp((int) (sent.getKey() - merged.getBaseSequence())));
+        }
+        assertNull(merged.postings("missing"));
+    }
+
+    @Test
+    void zonesSkipTimesTheyDoNotCover() {
+        SegmentBuilder builder = new SegmentBuilder();
+        for (int doc = 0; doc < 3 * IndexSegment.ZONE_DOCS; doc++) {
+            builder.add(doc + 1, START_TIME + doc * 10L, "word");
+        }
+        IndexSegment segment = builder.build();
+
+        long zoneOneStart = START_TIME + IndexSegment.ZONE_DOCS * 10L;
+        long zoneTwoStart = START_TIME + 2 * IndexSegment.ZONE_DOCS * 10L;
+        assertFalse(segment.zoneOverlaps(0, zoneOneStart, zoneTwoStart));
+        assertTrue(segment.zoneOverlaps(1, zoneOneStart, zoneTwoStart));
+        assertFalse(segment.zoneOverlaps(2, zoneOneStart, zoneTwoStart));
+
+        // Only the last doc of zone 0 is in range
+        assertTrue(segment.zoneOverlaps(0, zoneOneStart - 10, zoneOneStart));
+        assertFalse(segment.overlapsBefore(IndexSegment.ZONE_DOCS, zoneOneStart, Long.MAX_VALUE));
+        assertTrue(segment.overlaps(zoneOneStart, zoneTwoStart));
+        assertFalse(segment.within(zoneOneStart, zoneTwoStart));
+    }
+
+    /**
+     * @return sequences of the messages term occurs in, in the order read
+     */
+    private static List<Long> docs(IndexSegment segment, String term) {
+        List<Long> sequences = new ArrayList<>();
+        IndexSegment.Postings postings = segment.postings(term);
+        for (int doc = postings.next(); doc != IndexSegment.NO_MORE_DOCS; doc = postings.next()) {
+            sequences.add(segment.getBaseSequence() + doc);
+        }
+        return sequences;
+    }
+
+    private static int firstAtOrAfter(List<Integer> docs, int target) {
+        int index = 0;
+        while (index < docs.size() && docs.get(index) < target) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Collects messages the way the indexer does, as slots in arrays and the slots each term occurs in
+     */
+    private static class SegmentBuilder {
+        private final Map<String, int[]> postingsByTerm = new HashMap<>();
+        private long[] sequences = new long[16];
+        private long[] sent = new long[16];
+        private int count = 0;
+
+        void add(long sequence, long timestamp, String... terms) {
+            if (count == sequences.length) {
+                sequences = Arrays.copyOf(sequences, count * 2);
+                sent = Arrays.copyOf(sent, count * 2);
+            }
+            sequences[count] = sequence;
+            sent[count] = timestamp;
+
+            for (String term : terms) {
+                int[] slots = postingsByTerm.computeIfAbsent(term, t -> new int[4]);
+                if (slots[0] + 1 == slots.length) {
+                    slots = Arrays.copyOf(slots, slots.length * 2);
+                    postingsByTerm.put(term, slots);
+                }
+                slots[++slots[0]] = count;
+            }
+            count++;
+        }
+
+        IndexSegment build() {
+            return IndexSegment.build(postingsByTerm, sequences, sent, count);
+        }
+    }
+}
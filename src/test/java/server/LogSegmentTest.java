@@ -0,0 +1,205 @@
+package server;
+
+import message.Message;
+import message.Protocol;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogSegmentTest {
+
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final long START_TIME = 1_700_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsFromAnySequenceThroughTheSparseIndex() throws IOException {
+        LogSegment segment = LogSegment.create(directory, 1, SEGMENT_SIZE);
+        int count = appendMessages(segment, 1, 2000);
+
+        // Enough records for many index entries, so lookups start part way through
+        for (long from : new long[] {1, 2, 37, 500, 1023, 1999, 2000}) {
+            List<Message> read = readFrom(segment, from, 5);
+            assertEquals(from, read.get(0).getSequence());
+            assertEquals(Math.min(5, count - from + 1), read.size());
+            for (int i = 1; i < read.size(); i++) {
+                assertEquals(read.get(i - 1).getSequence() + 1, read.get(i).getSequence());
+            }
+        }
+        assertTrue(readFrom(segment, count + 1, 5).isEmpty());
+        segment.close();
+    }
+
+    @Test
+    void readsFromAnyTimeThroughTheSparseIndex() throws IOException {
+        LogSegment segment = LogSegment.create(directory, 1, SEGMENT_SIZE);
+        appendMessages(segment, 1, 2000);
+
+        for (long sequence : new long[] {1, 600, 1500, 2000}) {
+            List<Message> read = new ArrayList<>();
+            segment.readFromTime(timeOf(sequence), message -> read.add(message) && read.size() < 3);
+            assertEquals(sequence, read.get(0).getSequence());
+        }
+        segment.close();
+    }
+
+    @Test
+    void savedIndexGivesTheSameLookups() throws IOException {
+        LogSegment segment = LogSegment.create(directory, 1, SEGMENT_SIZE);
+        appendMessages(segment, 1, 2000);
+        segment.saveIndex();
+        segment.close();
+
+        LogSegment reopened = LogSegment.open(LogSegment.pathFor(directory, 1), false);
+        assertEquals(2000, reopened.getLastSequence());
+        assertEquals(timeOf(1), reopened.getFirstTimestamp());
+        for (long from : new long[] {1, 777, 2000}) {
+            assertEquals(from, readFrom(reopened, from, 1).get(0).getSequence());
+        }
+        reopened.close();
+    }
+
+    @Test
+    void recoveryDropsATornRecordAndAppendsOverIt() throws IOException {
+        LogSegment segment = LogSegment.create(directory, 1, SEGMENT_SIZE);
+        appendMessages(segment, 1, 10);
+        segment.close();
+
+        // The last record's length made it to disk but the end of its frame did not
+        Path path = LogSegment.pathFor(directory, 1);
+        List<Integer> records = recordPositions(path);
+        int last = records.get(9);
+        int end = last + 8 + readInt(path, last + 4);
+        zero(path, last + 12, end - last - 12);
+
+        LogSegment recovered = LogSegment.open(path, true);
+        assertEquals(9, recovered.getLastSequence());
+        assertEquals(9, readFrom(recovered, 1, 100).size());
+
+        assertTrue(recovered.append(frame(10, "rewritten"), 10, timeOf(10)));
+        recovered.close();
+
+        LogSegment again = LogSegment.open(path, true);
+        List<Message> read = readFrom(again, 1, 100);
+        assertEquals(10, read.size());
+        assertEquals("rewritten", read.get(9).getBody());
+        again.close();
+    }
+
+    @Test
+    void recordFailingItsCrcEndsTheSegment() throws IOException {
+        LogSegment segment = LogSegment.create(directory, 1, SEGMENT_SIZE);
+        appendMessages(segment, 1, 10);
+        segment.close();
+
+        // Flip a byte of the fifth record's body, its length still reads as valid
+        Path path = LogSegment.pathFor(directory, 1);
+        int fifth = recordPositions(path).get(4);
+        int end = fifth + 8 + readInt(path, fifth + 4);
+        flip(path, end - 1);
+
+        LogSegment recovered = LogSegment.open(path, true);
+        assertEquals(4, recovered.getLastSequence());
+        List<Message> read = readFrom(recovered, 1, 100);
+        assertEquals(4, read.size());
+        assertEquals(4, read.get(3).getSequence());
+        recovered.close();
+    }
+
+    @Test
+    void appendRefusesRecordThatDoesNotFit() throws IOException {
+        LogSegment segment = LogSegment.create(directory, 1, LogSegment.HEADER_SIZE + 256);
+        int appended = 0;
+        while (segment.append(frame(appended + 1, "x".repeat(40)), appended + 1, timeOf(appended + 1))) {
+            appended++;
+        }
+
+        assertTrue(appended > 0);
+        assertEquals(appended, segment.getLastSequence());
+        assertEquals(appended, readFrom(segment, 1, 100).size());
+        segment.close();
+    }
+
+    @Test
+    void rejectsFileThatIsNotASegment() throws IOException {
+        Path path = directory.resolve("00000000000000000001.log");
+        Files.write(path, new byte[64]);
+        assertThrows(IOException.class, () -> LogSegment.open(path, true));
+    }
+
+    /**
+     * Append messages with bodies of varying length, one millisecond apart
+     * @return number appended
+     */
+    private static int appendMessages(LogSegment segment, long first, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            long sequence = first + i;
+            String body = "message " + sequence + " " + "z".repeat((int) (sequence % 50));
+            assertTrue(segment.append(frame(sequence, body), sequence, timeOf(sequence)));
+        }
+        return count;
+    }
+
+    private static ByteBuffer frame(long sequence, String body) throws IOException {
+        return new Message(sequence, timeOf(sequence), 7, "sender", Protocol.DEFAULT_ROOM, body).getFrame(Protocol.MAX_VERSION);
+    }
+
+    private static long timeOf(long sequence) {
+        return START_TIME + sequence;
+    }
+
+    private static List<Message> readFrom(LogSegment segment, long from, int limit) {
+        List<Message> read = new ArrayList<>();
+        segment.read(from, message -> read.add(message) && read.size() < limit);
+        return read;
+    }
+
+    /**
+     * Walk the records as laid out on disk: a CRC, then a frame starting with its length
+     */
+    private static List<Integer> recordPositions(Path path) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path));
+        List<Integer> positions = new ArrayList<>();
+        int position = LogSegment.HEADER_SIZE;
+        while (position + 8 <= bytes.capacity() && bytes.getInt(position + 4) > 0) {
+            positions.add(position);
+            position += 8 + bytes.getInt(position + 4);
+        }
+        return positions;
+    }
+
+    private static int readInt(Path path, int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer value = ByteBuffer.allocate(4);
+            channel.read(value, position);
+            return value.flip().getInt();
+        }
+    }
+
+    private static void zero(Path path, int position, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(length), position);
+        }
+    }
+
+    private static void flip(Path path, int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, position);
+            value.put(0, (byte) ~value.get(0));
+            channel.write(value.rewind(), position);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package server;
+
+import message.Message;
+import message.Protocol;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageLogTest {
+
+    /**
+     * Below the smallest segment the log accepts, so it is raised to that
+     */
+    private static final int SEGMENT_SIZE = 1;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void sequencesMessagesAndRecoversTheLastSequenceOnReopen() throws IOException {
+        MessageLog log = MessageLog.open(directory, SEGMENT_SIZE, MessageLog.FsyncPolicy.ALWAYS, 100);
+        for (int i = 1; i <= 50; i++) {
+            assertEquals(i, log.append(message("message " + i)).getSequence());
+        }
+        log.close();
+
+        MessageLog reopened = MessageLog.open(directory, SEGMENT_SIZE, MessageLog.FsyncPolicy.ALWAYS, 100);
+        assertEquals(50, reopened.lastSequence());
+        assertEquals(51, reopened.append(message("after restart")).getSequence());
+
+        List<Message> read = readFrom(reopened, 49);
+        assertEquals(List.of("message 49", "message 50", "after restart"), read.stream().map(Message::getBody).toList());
+        reopened.close();
+    }
+
+    @Test
+    void readsAcrossSegmentBoundaries() throws IOException {
+        MessageLog log = MessageLog.open(directory, SEGMENT_SIZE, MessageLog.FsyncPolicy.NEVER, 100);
+        String padding = "p".repeat(1000);
+        int count = 5000;
+        for (int i = 1; i <= count; i++) {
+            log.append(message(i + " " + padding));
+        }
+        assertTrue(segmentFiles() > 1, "expected the log to roll");
+
+        List<Message> all = readFrom(log, 1);
+        assertEquals(count, all.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + 1, all.get(i).getSequence());
+        }
+
+        // Start in each segment, and just before a boundary
+        for (long from : new long[] {1, 2000, count - 1}) {
+            assertEquals(from, readFrom(log, from).get(0).getSequence());
+        }
+        log.close();
+
+        MessageLog reopened = MessageLog.open(directory, SEGMENT_SIZE, MessageLog.FsyncPolicy.NEVER, 100);
+        assertEquals(count, reopened.lastSequence());
+        assertEquals(count, readFrom(reopened, 1).size());
+        reopened.close();
+    }
+
+    @Test
+    void readsFromTime() throws IOException {
+        MessageLog log = MessageLog.open(directory, SEGMENT_SIZE, MessageLog.FsyncPolicy.NEVER, 100);
+        long start = 1_700_000_000_000L;
+        for (int i = 0; i < 100; i++) {
+            log.append(new Message(0, start + i * 10L, 1, "sender", Protocol.DEFAULT_ROOM, "message " + i));
+        }
+
+        List<Message> read = new ArrayList<>();
+        log.readFromTime(start + 505, read::add);
+        assertEquals(49, read.size());
+        assertEquals(start + 510, read.get(0).getTimestamp());
+        log.close();
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(".log")).count();
+        }
+    }
+
+    private static Message message(String body) {
+        return new Message(1, "sender", Protocol.DEFAULT_ROOM, body);
+    }
+
+    private static List<Message> readFrom(MessageLog log, long from) {
+        List<Message> read = new ArrayList<>();
+        log.read(from, read::add);
+        return read;
+    }
+}
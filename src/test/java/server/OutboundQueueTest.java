@@ -0,0 +1,277 @@
+package server;
+
+import message.Frame;
+import message.Message;
+import message.Protocol;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class OutboundQueueTest {
+
+    private static final long DEADLINE_MILLIS = 100;
+
+    @Test
+    void dropOldestKeepsControlFramesAheadOfTheMessageDropped() throws IOException {
+        OutboundQueue queue = queue(4, OutboundQueue.Policy.DROP_OLDEST);
+        offer(queue, "c1", "m1", "c2", "m2", "m3", "c3", "m4");
+
+        assertTrue(queue.offer(frame("m5")));
+        assertEquals(1, queue.dropped());
+        assertEquals(List.of("c1", "c2", "m2", "m3", "c3", "m4", "m5"), drain(queue));
+    }
+
+    @Test
+    void dropOldestAcrossTheEndOfTheRing() throws IOException {
+        OutboundQueue queue = queue(4, OutboundQueue.Policy.DROP_OLDEST);
+
+        // Grow the ring to eight slots, then leave the head two from the end
+        offer(queue, "c1", "c2", "m1", "m2", "m3", "m4");
+        assertEquals(List.of("c1", "c2", "m1", "m2", "m3", "m4"), drain(queue));
+
+        // The control frames shifted to make room wrap past the end of the array
+        offer(queue, "c1", "c2", "c3", "m1", "m2", "m3", "m4");
+        assertTrue(queue.offer(frame("m5")));
+        assertTrue(queue.offer(frame("m6")));
+        assertEquals(2, queue.dropped());
+        assertEquals(List.of("c1", "c2", "c3", "m3", "m4", "m5", "m6"), drain(queue));
+    }
+
+    @Test
+    void dropNewestKeepsWhatIsQueued() throws IOException {
+        OutboundQueue queue = queue(2, OutboundQueue.Policy.DROP_NEWEST);
+        offer(queue, "m1", "c1", "m2");
+
+        assertTrue(queue.offer(frame("m3")));
+        assertTrue(queue.offerControl(frame("c2")));
+        assertEquals(1, queue.dropped());
+        assertEquals(List.of("m1", "c1", "m2", "c2"), drain(queue));
+    }
+
+    @Test
+    void coalesceReplacesMessagesWithANoticeAndKeepsControlFrames() throws IOException {
+        OutboundQueue queue = queue(3, OutboundQueue.Policy.COALESCE);
+        offer(queue, "c1", "m1", "m2", "c2", "m3");
+
+        assertTrue(queue.offer(frame("m4")));
+        assertEquals(3, queue.dropped());
+        assertEquals(4, queue.size());
+        assertEquals(bytesOf("c1", "c2", "m4") + notice(3).remaining(), queue.bytes());
+        assertEquals(List.of("c1", "c2", skipped(3), "m4"), drain(queue));
+    }
+
+    @Test
+    void coalesceAgainFoldsTheQueuedNoticeIntoTheNextOne() throws IOException {
+        OutboundQueue queue = queue(3, OutboundQueue.Policy.COALESCE);
+        offer(queue, "m1", "m2", "m3", "m4");
+        assertEquals(3, queue.dropped());
+
+        // The notice and m4 are still queued, m5 fills the queue and m6 coalesces it again
+        offer(queue, "c1", "m5", "m6");
+        assertEquals(5, queue.dropped());
+        assertEquals(List.of("c1", skipped(5), "m6"), drain(queue));
+
+        // Once the notice has been written, the next one counts afresh
+        offer(queue, "m7", "m8", "m9", "m10");
+        assertEquals(8, queue.dropped());
+        assertEquals(List.of(skipped(3), "m10"), drain(queue));
+    }
+
+    @Test
+    void disconnectOnlyOnceFullPastTheDeadline() throws Exception {
+        OutboundQueue queue = queue(2, OutboundQueue.Policy.DISCONNECT);
+        offer(queue, "m1", "m2");
+
+        assertTrue(queue.offer(frame("m3")), "dropped but not yet disconnected");
+        assertTrue(queue.offerControl(frame("c1")), "control frames are not held to the message capacity");
+        assertEquals(1, queue.dropped());
+        assertFalse(queue.isClosed());
+
+        Thread.sleep(DEADLINE_MILLIS * 2);
+        assertFalse(queue.offer(frame("m4")));
+        assertTrue(queue.isClosed());
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.bytes());
+
+        // Closed for good: further offers are ignored, not reported again
+        assertTrue(queue.offer(frame("m5")));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void disconnectDeadlineRestartsOnceTheClientCatchesUp() throws Exception {
+        OutboundQueue queue = queue(2, OutboundQueue.Policy.DISCONNECT);
+        offer(queue, "m1", "m2");
+        assertTrue(queue.offer(frame("m3")));
+
+        Thread.sleep(DEADLINE_MILLIS * 2);
+        assertEquals(1, queue.poll(new ByteBuffer[1], 0, 1));
+        assertTrue(queue.offer(frame("m4")));
+
+        // Full again, the deadline counts from now
+        assertTrue(queue.offer(frame("m5")));
+        assertFalse(queue.isClosed());
+        assertEquals(List.of("m2", "m4"), drain(queue));
+    }
+
+    @Test
+    void tooManyControlFramesDisconnects() throws IOException {
+        OutboundQueue queue = queue(2, OutboundQueue.Policy.DROP_OLDEST);
+        for (int i = 0; i < OutboundQueue.CONTROL_CAPACITY; i++) {
+            assertTrue(queue.offerControl(frame("c" + i)));
+        }
+        offer(queue, "m1", "m2", "m3");
+        assertEquals(1, queue.dropped());
+
+        assertFalse(queue.offerControl(frame("one too many")));
+        assertTrue(queue.isClosed());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void growsPastCapacityForControlFramesInOrder() throws IOException {
+        OutboundQueue queue = queue(2, OutboundQueue.Policy.DROP_OLDEST);
+        offer(queue, "m0");
+        queue.poll(new ByteBuffer[1], 0, 1);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String name = i % 10 == 0 ? "m" + i : "c" + i;
+            offer(queue, name);
+            expected.add(name);
+        }
+
+        // Only the last two of the ten messages fit; the rest were dropped oldest first
+        expected.removeIf(name -> name.startsWith("m") && !name.equals("m80") && !name.equals("m90"));
+        assertEquals(8, queue.dropped());
+        assertEquals(bytesOf(expected.toArray(new String[0])), queue.bytes());
+        assertEquals(expected, drain(queue));
+    }
+
+    @Test
+    void finishLetsTheWriterTakeWhatIsQueued() throws Exception {
+        OutboundQueue queue = queue(4, OutboundQueue.Policy.DROP_OLDEST);
+        offer(queue, "m1", "c1");
+        queue.finish();
+        assertTrue(queue.offer(frame("m2")), "ignored once finishing");
+
+        ByteBuffer[] out = new ByteBuffer[8];
+        assertEquals(2, queue.take(out, 0, Long.MAX_VALUE));
+        assertEquals(List.of("m1", "c1"), List.of(body(out[0]), body(out[1])));
+        assertEquals(0, queue.take(out, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    void takeWaitsForAFrameAndWakeReleasesIt() throws Exception {
+        OutboundQueue queue = queue(4, OutboundQueue.Policy.DROP_OLDEST);
+        AtomicInteger taken = new AtomicInteger(-1);
+        Thread writer = new Thread(() -> {
+            try {
+                taken.set(queue.take(new ByteBuffer[8], 0, Long.MAX_VALUE));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        writer.start();
+        writer.join(100);
+        assertTrue(writer.isAlive(), "take on an empty queue should wait");
+
+        queue.wake();
+        writer.join(10_000);
+        assertFalse(writer.isAlive());
+        assertEquals(0, taken.get());
+
+        // A wake with nobody waiting lets the next take return straight away
+        queue.wake();
+        assertEquals(0, queue.take(new ByteBuffer[8], 0, Long.MAX_VALUE));
+
+        offer(queue, "m1");
+        assertEquals(1, queue.take(new ByteBuffer[8], 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    void closeReleasesAWaitingWriter() throws Exception {
+        OutboundQueue queue = queue(4, OutboundQueue.Policy.DROP_OLDEST);
+        AtomicInteger taken = new AtomicInteger(-1);
+        Thread writer = new Thread(() -> {
+            try {
+                taken.set(queue.take(new ByteBuffer[8], 0, Long.MAX_VALUE));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        writer.start();
+        writer.join(100);
+
+        queue.close();
+        writer.join(10_000);
+        assertFalse(writer.isAlive());
+        assertEquals(0, taken.get());
+    }
+
+    private static OutboundQueue queue(int capacity, OutboundQueue.Policy policy) {
+        return new OutboundQueue(capacity, policy, DEADLINE_MILLIS, () -> Protocol.MAX_VERSION);
+    }
+
+    /**
+     * Offer frames by name: those starting with c as control frames, the rest as messages
+     */
+    private static void offer(OutboundQueue queue, String... names) throws IOException {
+        for (String name : names) {
+            if (name.startsWith("c")) assertTrue(queue.offerControl(frame(name)));
+            else assertTrue(queue.offer(frame(name)));
+        }
+    }
+
+    private static ByteBuffer frame(String name) throws IOException {
+        return new Message(0, "sender", Protocol.DEFAULT_ROOM, name).getFrame(Protocol.MAX_VERSION);
+    }
+
+    private static ByteBuffer notice(int skipped) throws IOException {
+        return new Message(0, "<System Info>", skipped(skipped)).getFrame(Protocol.MAX_VERSION);
+    }
+
+    private static String skipped(int count) {
+        return "Skipped " + count + " messages, your connection could not keep up";
+    }
+
+    private static long bytesOf(String... names) throws IOException {
+        long bytes = 0;
+        for (String name : names) {
+            bytes += frame(name).remaining();
+        }
+        return bytes;
+    }
+
+    /**
+     * Take everything queued
+     * @return bodies of the frames, in the order taken
+     */
+    private static List<String> drain(OutboundQueue queue) throws IOException {
+        ByteBuffer[] out = new ByteBuffer[1024];
+        int taken = queue.poll(out, 0, out.length);
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < taken; i++) {
+            bodies.add(body(out[i]));
+        }
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.bytes());
+        return bodies;
+    }
+
+    private static String body(ByteBuffer frame) throws IOException {
+        ByteBuffer read = frame.duplicate();
+        read.position(read.position() + Frame.LENGTH_SIZE);
+        return Frame.decode(read, Protocol.MAX_VERSION).getBody();
+    }
+}
@@ -0,0 +1,206 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class RingBufferTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @Test
+    void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(2, new RingBuffer<Integer>(1, new WaitStrategy.Park()).capacity());
+        assertEquals(8, new RingBuffer<Integer>(5, new WaitStrategy.Park()).capacity());
+        assertEquals(8, new RingBuffer<Integer>(8, new WaitStrategy.Park()).capacity());
+    }
+
+    @Test
+    void keepsOrderAcrossManyLapsOfTheRing() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4, new WaitStrategy.Park());
+        List<Integer> consumed = new ArrayList<>();
+
+        int next = 0;
+        for (int lap = 0; lap < 100; lap++) {
+            // Uneven batches, so the slots in use move round the ring
+            int batch = 1 + lap % ring.capacity();
+            for (int i = 0; i < batch; i++) {
+                assertTrue(ring.publish(next++));
+            }
+            assertEquals(batch, ring.size());
+            assertEquals(batch, ring.poll(consumed::add, Integer.MAX_VALUE));
+            assertEquals(0, ring.size());
+        }
+
+        assertEquals(next, consumed.size());
+        for (int i = 0; i < next; i++) {
+            assertEquals(i, consumed.get(i));
+        }
+    }
+
+    @Test
+    void pollStopsAtLimitAndWhenEmpty() {
+        RingBuffer<Integer> ring = new RingBuffer<>(8, new WaitStrategy.Park());
+        List<Integer> consumed = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ring.publish(i);
+        }
+
+        assertEquals(3, ring.poll(consumed::add, 3));
+        assertEquals(2, ring.poll(consumed::add, 10));
+        assertEquals(0, ring.poll(consumed::add, 10));
+        assertEquals(List.of(0, 1, 2, 3, 4), consumed);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"spin", "yield", "park"})
+    void deliversEveryProducersEntriesOnceAndInOrder(String strategy) throws Exception {
+        int producers = 4;
+        int perProducer = 20_000;
+        RingBuffer<long[]> ring = new RingBuffer<>(64, WaitStrategy.of(strategy));
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    ring.publish(new long[] {producer, i});
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        long[] nextFrom = new long[producers];
+        AtomicInteger outOfOrder = new AtomicInteger();
+        int total = 0;
+        start.countDown();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (total < producers * perProducer && System.nanoTime() < deadline) {
+            total += ring.drain(entry -> {
+                int producer = (int) entry[0];
+                if (entry[1] != nextFrom[producer]) outOfOrder.incrementAndGet();
+                nextFrom[producer] = entry[1] + 1;
+            });
+        }
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MILLIS);
+        }
+
+        assertEquals(producers * perProducer, total);
+        assertEquals(0, outOfOrder.get());
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer, nextFrom[p]);
+        }
+        assertEquals(0, ring.size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"spin", "yield", "park"})
+    void producerWaitsWhileFullUntilConsumerFreesSlot(String strategy) throws Exception {
+        RingBuffer<Integer> ring = new RingBuffer<>(2, WaitStrategy.of(strategy));
+        assertTrue(ring.publish(0));
+        assertTrue(ring.publish(1));
+
+        AtomicBoolean published = new AtomicBoolean(false);
+        Thread producer = new Thread(() -> published.set(ring.publish(2)));
+        producer.start();
+
+        producer.join(200);
+        assertTrue(producer.isAlive(), "publish to a full ring should wait");
+        assertEquals(3, ring.size());
+
+        List<Integer> consumed = new ArrayList<>();
+        ring.drain(consumed::add, 1);
+        producer.join(TIMEOUT_MILLIS);
+        assertFalse(producer.isAlive());
+        assertTrue(published.get());
+
+        while (consumed.size() < 3) {
+            ring.drain(consumed::add);
+        }
+        assertEquals(List.of(0, 1, 2), consumed);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"spin", "yield", "park"})
+    void closeReleasesProducerWaitingOnFullRing(String strategy) throws Exception {
+        RingBuffer<Integer> ring = new RingBuffer<>(2, WaitStrategy.of(strategy));
+        ring.publish(0);
+        ring.publish(1);
+
+        AtomicBoolean published = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> published.set(ring.publish(2)));
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        ring.close();
+        producer.join(TIMEOUT_MILLIS);
+        assertFalse(producer.isAlive());
+        assertFalse(published.get());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"spin", "yield", "park"})
+    void consumerWakesWhenEntryIsPublished(String strategy) throws Exception {
+        RingBuffer<Integer> ring = new RingBuffer<>(4, WaitStrategy.of(strategy));
+        List<Integer> consumed = new ArrayList<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                ring.drain(consumed::add);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+
+        consumer.join(100);
+        assertTrue(consumer.isAlive(), "drain on an empty ring should wait");
+
+        ring.publish(42);
+        consumer.join(TIMEOUT_MILLIS);
+        assertFalse(consumer.isAlive());
+        assertEquals(List.of(42), consumed);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"spin", "yield", "park"})
+    void waitingConsumerCanBeInterrupted(String strategy) throws Exception {
+        RingBuffer<Integer> ring = new RingBuffer<>(4, WaitStrategy.of(strategy));
+        AtomicBoolean interrupted = new AtomicBoolean(false);
+        Thread consumer = new Thread(() -> {
+            try {
+                ring.drain(entry -> { });
+            }
+            catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        consumer.start();
+        consumer.join(100);
+
+        consumer.interrupt();
+        consumer.join(TIMEOUT_MILLIS);
+        assertTrue(interrupted.get());
+    }
+}
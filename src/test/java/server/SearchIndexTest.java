@@ -0,0 +1,151 @@
+package server;
+
+import message.Message;
+import message.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(120)
+class SearchIndexTest {
+
+    private static final long START_TIME = 1_700_000_000_000L;
+    private static final String[] SENDERS = {"alice", "bob", "carol"};
+
+    /**
+     * Enough for nine full segments and part of a tenth, so the first eight are merged
+     */
+    private static final int COUNT = 9 * SearchIndex.SEGMENT_MESSAGES + 500;
+
+    /**
+     * Sequences either side of segment and zone boundaries, where the word "rare" occurs
+     */
+    private static final long[] RARE = {1, 1024, 1025, 4096, 4097, 8192, 8193, 32_768, 32_769, COUNT};
+
+    @TempDir
+    Path directory;
+
+    private MessageLog log;
+    private SearchIndex index;
+    private final List<Message> sent = new ArrayList<>();
+
+    @BeforeEach
+    void indexLoggedMessages() throws IOException, InterruptedException {
+        log = MessageLog.open(directory, 1, MessageLog.FsyncPolicy.NEVER, 100);
+        for (int i = 1; i <= COUNT; i++) {
+            sent.add(log.append(new Message(0, timeOf(i), i % 3, SENDERS[i % 3], Protocol.DEFAULT_ROOM, body(i))));
+        }
+
+        // Logged before the index starts, so indexed from the log in full segments
+        index = new SearchIndex(log);
+        index.start(ThreadMode.PLATFORM);
+
+        long deadline = System.nanoTime() + 60_000_000_000L;
+        while (index.segmentCount() != 3 || index.search(SearchQuery.parse("common"), 1).getTotal() != COUNT) {
+            assertTrue(System.nanoTime() < deadline, "index did not settle, " + index.segmentCount() + " segments");
+            Thread.sleep(20);
+        }
+    }
+
+    @AfterEach
+    void close() {
+        index.close();
+        log.close();
+    }
+
+    @Test
+    void mergedIndexStillFindsEveryMessage() {
+        assertEquals(COUNT, index.size());
+        SearchIndex.Results all = index.search(SearchQuery.parse("common"), COUNT);
+        assertEquals(COUNT, all.getSequences().length);
+        assertEquals(COUNT, all.getSequences()[0]);
+        assertEquals(1, all.getSequences()[COUNT - 1]);
+    }
+
+    @Test
+    void termFoundEitherSideOfSegmentAndZoneBoundaries() {
+        assertMatches("rare", message -> message.getBody().contains("rare"));
+    }
+
+    @Test
+    void senderQueriesMatchOnlyThatSender() {
+        assertMatches("from:alice", message -> message.getSenderName().equals("alice"));
+        assertMatches("from:Bob apple", message -> message.getSenderName().equals("bob") && message.getBody().contains("apple"));
+        assertMatches("from:carol rare", message -> message.getSenderName().equals("carol") && message.getBody().contains("rare"));
+    }
+
+    @Test
+    void timeRangesCrossingZoneAndSegmentBoundaries() {
+        // Around the end of the first zone, the first segment and the merged segment
+        long[][] ranges = {{1000, 1050}, {4000, 4200}, {32_700, 32_800}, {1, COUNT + 1}};
+        for (long[] range : ranges) {
+            long from = timeOf(range[0]);
+            long to = timeOf(range[1]);
+            String times = " after:" + from + " before:" + to;
+
+            assertMatches("pear" + times, message -> inRange(message, from, to) && message.getBody().contains("pear"));
+            assertMatches("from:carol" + times, message -> inRange(message, from, to) && message.getSenderName().equals("carol"));
+            assertMatches("apple from:alice" + times,
+                    message -> inRange(message, from, to) && message.getSenderName().equals("alice") && message.getBody().contains("apple"));
+        }
+    }
+
+    /**
+     * Search with a small and an unlimited limit, and check both against every message sent
+     */
+    private void assertMatches(String text, Predicate<Message> matches) {
+        long[] expected = sent.stream().filter(matches).mapToLong(Message::getSequence).sorted().toArray();
+        reverse(expected);
+        assertTrue(expected.length > 0, "nothing matches " + text);
+
+        for (int limit : new int[] {10, COUNT}) {
+            SearchIndex.Results results = index.search(SearchQuery.parse(text), limit);
+            long[] wanted = Arrays.copyOf(expected, Math.min(limit, expected.length));
+            assertArrayEquals(wanted, results.getSequences(), text + " limit " + limit);
+
+            if (results.isExact()) assertEquals(expected.length, results.getTotal(), text);
+            else assertTrue(results.getTotal() <= expected.length, text);
+        }
+    }
+
+    /**
+     * Words by sequence: every message has "common", and some also "apple", "pear" or "rare"
+     */
+    private static String body(long sequence) {
+        StringBuilder body = new StringBuilder("common message " + sequence);
+        if (sequence % 5 == 0) body.append(" apple");
+        if (sequence % 11 == 0) body.append(" pear");
+        if (Arrays.stream(RARE).anyMatch(rare -> rare == sequence)) body.append(" rare");
+        return body.toString();
+    }
+
+    /**
+     * Ten milliseconds apart, jittered so times within a zone are not in sequence order
+     */
+    private static long timeOf(long sequence) {
+        return START_TIME + sequence * 10 + (sequence % 4) * 7;
+    }
+
+    private static boolean inRange(Message message, long from, long to) {
+        return message.getTimestamp() >= from && message.getTimestamp() < to;
+    }
+
+    private static void reverse(long[] values) {
+        for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+            long value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+}
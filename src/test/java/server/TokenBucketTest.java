@@ -0,0 +1,63 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+
+    @Test
+    void allowsABurstThenRefuses() {
+        TokenBucket bucket = new TokenBucket(1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryTake());
+        }
+        assertFalse(bucket.tryTake());
+        assertEquals(1, bucket.getRefused());
+        assertFalse(bucket.tryTake());
+        assertEquals(2, bucket.getRefused());
+    }
+
+    @Test
+    void refillsAtRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        drain(bucket);
+        assertFalse(bucket.tryTake());
+
+        // 150 ms at 10 a second is one and a half tokens
+        Thread.sleep(150);
+        assertTrue(bucket.tryTake());
+    }
+
+    @Test
+    void refillStopsAtBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        drain(bucket);
+
+        // Long enough for five tokens, but the bucket only holds three
+        Thread.sleep(500);
+        assertEquals(3, drain(bucket));
+        assertEquals(1, bucket.getRefused(), "refusals should count again from a full bucket");
+    }
+
+    @Test
+    void noLimitWithoutRate() {
+        TokenBucket bucket = new TokenBucket(0, 1);
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(bucket.tryTake());
+        }
+        assertEquals(0, bucket.getRefused());
+    }
+
+    /**
+     * Take tokens until one is refused
+     * @return tokens taken
+     */
+    private static int drain(TokenBucket bucket) {
+        int taken = 0;
+        while (bucket.tryTake()) {
+            taken++;
+        }
+        return taken;
+    }
+}